@@ -0,0 +1,251 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.TranscoderService.decodeNum;
+import static de.javakaffee.web.msm.TranscoderService.encodeNum;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Describes the session attributes of a session that is stored with attributes delta backup
+ * (see {@link MemcachedBackupSessionManager#setAttributesDeltaBackup(boolean)}): each
+ * session attribute is stored as a separate item in memcached, the session item itself
+ * contains only the session fields and this manifest.
+ * <p>
+ * For each attribute the manifest stores the slot (used to create the key of the attribute item,
+ * see {@link #createAttributeKeyName(String, int)}), the 64 bit hash of the serialized attribute
+ * (to determine if the attribute was modified) and the time when the attribute item
+ * expires in memcached (to determine if an unmodified attribute must be stored again
+ * so that it does not expire before the session).
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public final class AttributesManifest {
+
+    private final Map<String, Entry> _entries;
+
+    AttributesManifest() {
+        _entries = new HashMap<String, Entry>();
+    }
+
+    /**
+     * Creates the name/key that is used for the item of the attribute stored in the given slot.
+     */
+    @Nonnull
+    static String createAttributeKeyName( @Nonnull final String sessionId, final int slot ) {
+        if ( sessionId == null ) {
+            throw new IllegalArgumentException( "The sessionId must not be null." );
+        }
+        return "attr:" + slot + ":" + sessionId;
+    }
+
+    /**
+     * Returns the entry for the given attribute name or <code>null</code> if there's none.
+     */
+    @CheckForNull
+    Entry get( @Nonnull final String name ) {
+        return _entries.get( name );
+    }
+
+    void put( @Nonnull final String name, @Nonnull final Entry entry ) {
+        _entries.put( name, entry );
+    }
+
+    /**
+     * The attribute names and their entries.
+     */
+    @Nonnull
+    Set<Map.Entry<String, Entry>> entries() {
+        return _entries.entrySet();
+    }
+
+    int size() {
+        return _entries.size();
+    }
+
+    /**
+     * Determines the lowest slot that is neither used by this manifest nor by the given one.
+     * @param other the manifest whose slots must not be used, can be <code>null</code>.
+     */
+    int nextFreeSlot( @Nullable final AttributesManifest other ) {
+        final Set<Integer> usedSlots = slots();
+        if ( other != null ) {
+            usedSlots.addAll( other.slots() );
+        }
+        int slot = 0;
+        while ( usedSlots.contains( slot ) ) {
+            slot++;
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the slots of this manifest that are not used by the given manifest,
+     * these are the slots of attributes that were removed.
+     */
+    @Nonnull
+    List<Integer> getSlotsNotUsedBy( @Nonnull final AttributesManifest other ) {
+        final Set<Integer> otherSlots = other.slots();
+        final List<Integer> result = new ArrayList<Integer>();
+        for ( final Entry entry : _entries.values() ) {
+            if ( !otherSlots.contains( entry.getSlot() ) ) {
+                result.add( entry.getSlot() );
+            }
+        }
+        return result;
+    }
+
+    private Set<Integer> slots() {
+        final Set<Integer> result = new HashSet<Integer>( _entries.size() );
+        for ( final Entry entry : _entries.values() ) {
+            result.add( entry.getSlot() );
+        }
+        return result;
+    }
+
+    /**
+     * Encode this manifest to a byte[], that can be decoded later via {@link #decode(byte[], int)}.
+     */
+    @Nonnull
+    byte[] encode() {
+        final Map<String, byte[]> names = new HashMap<String, byte[]>( _entries.size() );
+        int length = 4;
+        for ( final String name : _entries.keySet() ) {
+            final byte[] nameData = encodeString( name );
+            names.put( name, nameData );
+            length += 2 + nameData.length + 4 + 8 + 8;
+        }
+
+        final byte[] data = new byte[length];
+        int idx = encodeNum( _entries.size(), data, 0, 4 );
+        for ( final Map.Entry<String, Entry> item : _entries.entrySet() ) {
+            final byte[] nameData = names.get( item.getKey() );
+            idx = encodeNum( nameData.length, data, idx, 2 );
+            idx = TranscoderService.copy( nameData, data, idx );
+            idx = encodeNum( item.getValue().getSlot(), data, idx, 4 );
+            idx = encodeNum( item.getValue().getHash(), data, idx, 8 );
+            idx = encodeNum( item.getValue().getExpiresAt(), data, idx, 8 );
+        }
+        return data;
+    }
+
+    /**
+     * Decode the manifest from the given byte[] starting at the given index, the
+     * data was previously created via {@link #encode()}.
+     */
+    @Nonnull
+    static AttributesManifest decode( @Nonnull final byte[] data, final int beginIndex ) {
+        final AttributesManifest result = new AttributesManifest();
+        final int size = (int) decodeNum( data, beginIndex, 4 );
+        int idx = beginIndex + 4;
+        for ( int i = 0; i < size; i++ ) {
+            final int nameLength = (int) decodeNum( data, idx, 2 );
+            final String name = decodeString( data, idx += 2, nameLength );
+            final int slot = (int) decodeNum( data, idx += nameLength, 4 );
+            final long hash = decodeNum( data, idx += 4, 8 );
+            final long expiresAt = decodeNum( data, idx += 8, 8 );
+            idx += 8;
+            result.put( name, new Entry( slot, hash, expiresAt ) );
+        }
+        return result;
+    }
+
+    private static byte[] encodeString( final String value ) {
+        try {
+            return value.getBytes( "UTF-8" );
+        } catch ( final UnsupportedEncodingException e ) {
+            throw new RuntimeException( e );
+        }
+    }
+
+    private static String decodeString( final byte[] data, final int beginIndex, final int length ) {
+        try {
+            return new String( data, beginIndex, length, "UTF-8" );
+        } catch ( final UnsupportedEncodingException e ) {
+            throw new RuntimeException( e );
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AttributesManifest [entries=" + _entries + "]";
+    }
+
+    /**
+     * The information stored for a single session attribute.
+     */
+    static final class Entry {
+
+        private final int _slot;
+        private final long _hash;
+        private final long _expiresAt;
+
+        /**
+         * @param slot the slot of the attribute, used for the key of the attribute item.
+         * @param hash the 64 bit hash of the serialized attribute.
+         * @param expiresAt the time in millis when the attribute item expires in memcached,
+         *  <code>0</code> if it does not expire.
+         */
+        Entry( final int slot, final long hash, final long expiresAt ) {
+            _slot = slot;
+            _hash = hash;
+            _expiresAt = expiresAt;
+        }
+
+        int getSlot() {
+            return _slot;
+        }
+
+        long getHash() {
+            return _hash;
+        }
+
+        long getExpiresAt() {
+            return _expiresAt;
+        }
+
+        /**
+         * Determines, if the attribute item expires in memcached before the given time.
+         * @param time the time in millis, <code>0</code> means never.
+         */
+        boolean expiresBefore( final long time ) {
+            if ( _expiresAt == 0 ) {
+                return false;
+            }
+            return time == 0 || _expiresAt < time;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry [slot=" + _slot + ", hash=" + _hash + ", expiresAt=" + _expiresAt + "]";
+        }
+
+    }
+
+}
@@ -16,21 +16,33 @@
  */
 package de.javakaffee.web.msm;
 
+import static de.javakaffee.web.msm.Statistics.StatsType.BACKUP_QUEUE_SIZE;
+import static de.javakaffee.web.msm.Statistics.StatsType.BACKUP_QUEUE_WAIT;
 import static de.javakaffee.web.msm.Statistics.StatsType.EFFECTIVE_BACKUP;
+import static de.javakaffee.web.msm.Statistics.StatsType.MEMCACHED_UPDATE;
 import static de.javakaffee.web.msm.Statistics.StatsType.RELEASE_LOCK;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.AbstractExecutorService;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import net.spy.memcached.MemcachedClient;
@@ -40,6 +52,7 @@ import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
 import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
+import de.javakaffee.web.msm.TranscoderService.SerializedAttributes;
 
 /**
  * This service is responsible for storing sessions memcached. This includes
@@ -59,10 +72,29 @@ public class BackupSessionService {
     private final int _sessionBackupTimeout;
     private final MemcachedClient _memcached;
     private final NodeIdService _nodeIdService;
+    private final LocalSessionLocks _localSessionLocks;
     private final Statistics _statistics;
+    private final boolean _attributesDeltaBackup;
+    private final int _backupCoalescingWindow;
+    private final int _sessionChunkSize;
+    private final int _maxQueuedBackups;
+    private final long _maxInFlightBackupBytes;
+    private final OverloadPolicy _overloadPolicy;
 
     private final ExecutorService _executorService;
 
+    /*
+     * Only set for asynchronous backup.
+     */
+    private final InFlightBackups _inFlightBackups;
+    private final TouchSupport _touchSupport;
+
+    /*
+     * Only set if backups shall be coalesced, then this is the same as the _executorService.
+     */
+    private final ScheduledExecutorService _scheduler;
+    private final ConcurrentMap<String, CoalescedBackup> _pendingBackups;
+
 
     /**
      * @param sessionBackupAsync
@@ -72,6 +104,19 @@ public class BackupSessionService {
      * @param nodeAvailabilityCache
      * @param nodeIds
      * @param failoverNodeIds
+     * @param localSessionLocks the local session locks, that are handed over or released with the memcached lock.
+     * @param attributesDeltaBackup specifies, if only modified attributes shall be stored, see
+     *  {@link MemcachedBackupSessionManager#setAttributesDeltaBackup(boolean)}.
+     * @param backupCoalescingWindow the time in millis that asynchronous backups are delayed so that
+     *  backups of the same session can be coalesced, <code>0</code> disables coalescing. See
+     *  {@link MemcachedBackupSessionManager#setBackupCoalescingWindow(int)}.
+     * @param sessionChunkSize the max size of a session item, bigger sessions are stored in chunks of this size,
+     *  <code>0</code> disables chunking. See {@link MemcachedBackupSessionManager#setSessionChunkSize(int)}.
+     * @param maxQueuedBackups the max number of asynchronous backups waiting for execution,
+     *  <code>0</code> means unbounded. See {@link MemcachedBackupSessionManager#setMaxQueuedBackups(int)}.
+     * @param maxInFlightBackupBytes the max number of bytes passed to memcached asynchronously and not yet written,
+     *  <code>0</code> means unbounded. See {@link MemcachedBackupSessionManager#setMaxInFlightBackupBytes(long)}.
+     * @param overloadPolicy specifies how backups are handled that exceed one of the limits above.
      */
     public BackupSessionService( final TranscoderService transcoderService,
             final boolean sessionBackupAsync,
@@ -79,27 +124,73 @@ public class BackupSessionService {
             final int backupThreadCount,
             final MemcachedClient memcached,
             final NodeIdService nodeIdService,
-            final Statistics statistics ) {
+            @Nonnull final LocalSessionLocks localSessionLocks,
+            final Statistics statistics,
+            final boolean attributesDeltaBackup,
+            final int backupCoalescingWindow,
+            final int sessionChunkSize,
+            final int maxQueuedBackups,
+            final long maxInFlightBackupBytes,
+            @Nonnull final OverloadPolicy overloadPolicy ) {
         _transcoderService = transcoderService;
         _sessionBackupAsync = sessionBackupAsync;
         _sessionBackupTimeout = sessionBackupTimeout;
         _memcached = memcached;
         _nodeIdService = nodeIdService;
+        _localSessionLocks = localSessionLocks;
         _statistics = statistics;
-
-        _executorService = sessionBackupAsync
-            ? Executors.newFixedThreadPool( backupThreadCount )
-            : new SynchronousExecutorService();
+        _attributesDeltaBackup = attributesDeltaBackup;
+        _backupCoalescingWindow = backupCoalescingWindow;
+        _sessionChunkSize = sessionChunkSize;
+        _maxQueuedBackups = maxQueuedBackups;
+        _maxInFlightBackupBytes = maxInFlightBackupBytes;
+        _overloadPolicy = overloadPolicy;
+
+        if ( sessionBackupAsync && backupCoalescingWindow > 0 ) {
+            _scheduler = Executors.newScheduledThreadPool( backupThreadCount );
+            _executorService = _scheduler;
+            _pendingBackups = new ConcurrentHashMap<String, CoalescedBackup>();
+        }
+        else {
+            _scheduler = null;
+            _executorService = sessionBackupAsync
+                ? new ThreadPoolExecutor( backupThreadCount, backupThreadCount, 0L, TimeUnit.MILLISECONDS,
+                        maxQueuedBackups > 0
+                            ? new LinkedBlockingQueue<Runnable>( maxQueuedBackups )
+                            : new LinkedBlockingQueue<Runnable>() )
+                : new SynchronousExecutorService();
+            _pendingBackups = null;
+        }
+        _inFlightBackups = sessionBackupAsync ? new InFlightBackups() : null;
+        _touchSupport = new TouchSupport( memcached );
 
     }
 
     /**
      * Shutdown this service, this stops the possibly existing threads used for session backup.
+     * Backups that are waiting for their coalescing window to pass are still performed.
      */
     public void shutdown() {
         _executorService.shutdown();
     }
 
+    /**
+     * The number of asynchronous backups waiting for execution (including coalesced
+     * backups waiting for their coalescing window to pass).
+     */
+    public int getQueuedBackups() {
+        return _executorService instanceof ThreadPoolExecutor
+            ? ( (ThreadPoolExecutor) _executorService ).getQueue().size()
+            : 0;
+    }
+
+    /**
+     * The number of bytes that were passed to memcached asynchronously and are not yet written.
+     */
+    public long getInFlightBackupBytes() {
+        return _inFlightBackups != null ? _inFlightBackups.getBytes() : 0;
+    }
+
     /**
      * Update the expiration for the session associated with this {@link BackupSessionService}
      * in memcached, so that the session will expire in
@@ -107,10 +198,14 @@ public class BackupSessionService {
      * seconds in memcached (whereas timeIdle is calculated as
      * <em>System.currentTimeMillis - session.thisAccessedTime</em>).
      * <p>
-     * <strong>IMPLEMENTATION NOTE</strong>: right now this performs a new backup of the session
-     * in memcached. Once the touch command is available in memcached
-     * (see <a href="http://code.google.com/p/memcached/issues/detail?id=110">issue #110</a> in memcached),
-     * we can consider to use this.
+     * If the memcached client supports the touch command (see {@link TouchSupport}), the
+     * expiration of the session item (and its chunks) is updated via touch, so that the session
+     * doesn't need to be serialized and sent to memcached again. If touch is not supported, fails
+     * or the session item does not exist anymore, a new backup of the session is performed.
+     * </p>
+     * <p>
+     * With attributes delta backup only the session item and those attribute items are
+     * touched or stored that would expire before the session item.
      * </p>
      *
      * @param session the session for that the expiration shall be updated in memcached.
@@ -130,15 +225,81 @@ public class BackupSessionService {
         session.setExpirationUpdateRunning( true );
         session.setLastBackupTime( System.currentTimeMillis() );
         try {
+            if ( _touchSupport.isEnabled() && touchSession( session ) ) {
+                return;
+            }
+            if ( _attributesDeltaBackup ) {
+                createBackupSessionTask( session, false ).backupModifiedAttributes( true );
+                return;
+            }
             final Map<String, Object> attributes = session.getAttributesInternal();
-            final byte[] attributesData = _transcoderService.serializeAttributes( session, attributes );
+            final SerializedAttributes attributesData = _transcoderService.serializeAttributesWithHash( session, attributes );
             final byte[] data = _transcoderService.serialize( session, attributesData );
-            createBackupSessionTask( session, true ).doBackupSession( session, data, attributesData );
+            createBackupSessionTask( session, true ).doBackupSession( session, data );
         } finally {
             session.setExpirationUpdateRunning( false );
         }
     }
 
+    /**
+     * Updates the expiration of the items of the given session via touch.
+     *
+     * @return <code>true</code> if all items were touched, <code>false</code> if the session
+     *  must be stored again to update the expiration.
+     */
+    private boolean touchSession( final MemcachedBackupSession session ) {
+        final int expirationTime = session.getMemcachedExpirationTimeToSet();
+        final long start = System.currentTimeMillis();
+        try {
+            final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            futures.add( _touchSupport.touch( session.getId(), expirationTime ) );
+            for ( int i = 0; i < session.getNumChunks(); i++ ) {
+                futures.add( _touchSupport.touch( SessionChunks.createChunkKeyName( session.getId(), i ), expirationTime ) );
+            }
+
+            final AttributesManifest manifest = session.getAttributesManifest();
+            final List<Map.Entry<String, AttributesManifest.Entry>> touchedAttributes = new ArrayList<Map.Entry<String, AttributesManifest.Entry>>();
+            final int attributesExpirationTime = expirationTime > 0 ? 2 * expirationTime : 0;
+            final long attributesExpireAt = attributesExpirationTime > 0 ? start + attributesExpirationTime * 1000L : 0;
+            if ( manifest != null ) {
+                final long sessionExpiresAt = expirationTime > 0 ? start + expirationTime * 1000L : 0;
+                for ( final Map.Entry<String, AttributesManifest.Entry> entry : manifest.entries() ) {
+                    if ( entry.getValue().expiresBefore( sessionExpiresAt ) ) {
+                        final String key = AttributesManifest.createAttributeKeyName( session.getId(), entry.getValue().getSlot() );
+                        futures.add( _touchSupport.touch( key, attributesExpirationTime ) );
+                        touchedAttributes.add( entry );
+                    }
+                }
+            }
+
+            for ( final Future<Boolean> future : futures ) {
+                if ( !future.get( _sessionBackupTimeout, TimeUnit.MILLISECONDS ) ) {
+                    if ( _log.isDebugEnabled() ) {
+                        _log.debug( "Could not touch all items of session " + session.getId() + ", storing the session again." );
+                    }
+                    return false;
+                }
+            }
+
+            for ( final Map.Entry<String, AttributesManifest.Entry> entry : touchedAttributes ) {
+                final AttributesManifest.Entry manifestEntry = entry.getValue();
+                entry.setValue( new AttributesManifest.Entry( manifestEntry.getSlot(), manifestEntry.getHash(), attributesExpireAt ) );
+            }
+            session.setLastMemcachedExpirationTime( expirationTime );
+            return true;
+        } catch ( final ExecutionException e ) {
+            _touchSupport.disable( String.valueOf( e.getCause() ) );
+            return false;
+        } catch ( final Exception e ) {
+            if ( _log.isInfoEnabled() ) {
+                _log.info( "Could not touch session " + session.getId() + " in memcached: " + e );
+            }
+            return false;
+        } finally {
+            _statistics.registerSince( MEMCACHED_UPDATE, start );
+        }
+    }
+
     /**
      * Store the provided session in memcached if the session was modified
      * or if the session needs to be relocated.
@@ -155,18 +316,29 @@ public class BackupSessionService {
      * <li>check if session attributes were accessed during this request</li>
      * </ul>
      * </p>
+     * <p>
+     * If backups shall be coalesced (a coalescing window was specified in the constructor) the
+     * backup of a session that is not locked is delayed by the coalescing window. Further backups
+     * requested for the same session during this time are merged into the pending backup, which then
+     * stores the latest state of the session.
+     * </p>
+     * <p>
+     * If asynchronous backups exceed the configured max number of queued backups or the max
+     * number of in-flight bytes, the backup is handled according to the configured {@link OverloadPolicy}.
+     * </p>
      *
      * @param session
      *            the session to save
      * @param force
      *            specifies, if session backup shall be forced, e.g. because the
      *            session id was changed due to a memcached failover or tomcat failover.
-     * @return a {@link Future} providing the result of the backup task.
+     * @return a {@link ListenableFuture} providing the result of the backup task, follow-up tasks
+     *  should be registered as listener instead of waiting for the result.
      *
      * @see MemcachedBackupSessionManager#setSessionBackupAsync(boolean)
      * @see BackupSessionTask#call()
      */
-    public Future<BackupResult> backupSession( final MemcachedBackupSession session, final boolean force ) {
+    public ListenableFuture<BackupResult> backupSession( final MemcachedBackupSession session, final boolean force ) {
         if ( _log.isDebugEnabled() ) {
             _log.debug( "Starting for session id " + session.getId() );
         }
@@ -204,8 +376,13 @@ public class BackupSessionService {
                 return new SimpleFuture<BackupResult>( BackupResult.SKIPPED );
             }
 
-            final BackupSessionTask task = createBackupSessionTask( session, force );
-            final Future<BackupResult> result = _executorService.submit( task );
+            if ( _scheduler != null && !session.isLocked() && !session.isLockedShared() ) {
+                return scheduleCoalescedBackup( session, force );
+            }
+
+            final ListenableFuture<BackupResult> result = _sessionBackupAsync
+                ? submitBackup( session, force )
+                : new SynchronousExecutorService().submit( createBackupSessionTask( session, force ) );
 
             if ( !_sessionBackupAsync ) {
                 try {
@@ -225,6 +402,128 @@ public class BackupSessionService {
 
     }
 
+    private ListenableFuture<BackupResult> scheduleCoalescedBackup( final MemcachedBackupSession session, final boolean force ) {
+        final String sessionId = session.getIdInternal();
+        while ( true ) {
+            final CoalescedBackup candidate = new CoalescedBackup( session, force );
+            if ( !_pendingBackups.containsKey( sessionId ) && isOverloaded() ) {
+                // a new backup would have to be queued, joining a pending one is fine
+                return handleOverload( session, force );
+            }
+            final CoalescedBackup pending = _pendingBackups.putIfAbsent( sessionId, candidate );
+            if ( pending == null ) {
+                _scheduler.schedule( candidate.getFuture(), _backupCoalescingWindow, TimeUnit.MILLISECONDS );
+                return candidate.getFuture();
+            }
+            if ( pending.join( session, force ) ) {
+                if ( _log.isDebugEnabled() ) {
+                    _log.debug( "Coalescing backup of session " + sessionId + " with already pending backup." );
+                }
+                _statistics.requestWithCoalescedBackup();
+                return pending.getFuture();
+            }
+            // the pending backup was just started, so we need a new one
+            _pendingBackups.remove( sessionId, pending );
+        }
+    }
+
+    private ListenableFuture<BackupResult> submitBackup( final MemcachedBackupSession session, final boolean force ) {
+        if ( !isOverloaded() ) {
+            final QueuedBackup backup = new QueuedBackup( session, force );
+            try {
+                _executorService.execute( backup );
+                return backup;
+            } catch ( final RejectedExecutionException e ) {
+                // the queue is full (or the executor was shut down due to reconfiguration)
+            }
+        }
+        return handleOverload( session, force );
+    }
+
+    private boolean isOverloaded() {
+        final int queuedBackups = getQueuedBackups();
+        _statistics.register( BACKUP_QUEUE_SIZE, queuedBackups );
+        return _maxQueuedBackups > 0 && queuedBackups >= _maxQueuedBackups
+            || _maxInFlightBackupBytes > 0 && _inFlightBackups.getBytes() >= _maxInFlightBackupBytes;
+    }
+
+    private ListenableFuture<BackupResult> handleOverload( final MemcachedBackupSession session, final boolean force ) {
+        _statistics.backupRejected();
+        switch ( _overloadPolicy ) {
+            case CALLER_RUNS:
+                if ( _log.isDebugEnabled() ) {
+                    _log.debug( "Backup queue is full, storing session " + session.getIdInternal() + " in the request thread." );
+                }
+                return new SynchronousExecutorService().submit( createBackupSessionTask( session, force ) );
+            case DROP_OLDEST:
+                final QueuedBackup dropped = removeOldestQueuedBackup( session );
+                if ( dropped != null ) {
+                    final boolean sameSession = dropped.getSession().getIdInternal().equals( session.getIdInternal() );
+                    if ( _log.isInfoEnabled() ) {
+                        _log.info( "Backup queue is full, dropping queued backup of session " + dropped.getSession().getIdInternal()
+                                + " in favor of session " + session.getIdInternal() + "." );
+                    }
+                    dropped.cancel( false );
+                    if ( dropped.getSession() != session ) {
+                        // the dropped backup won't run, so it won't release the lock of its session
+                        releaseLock( dropped.getSession() );
+                    }
+                    final QueuedBackup backup = new QueuedBackup( session, force || sameSession && dropped.isForce() );
+                    try {
+                        _executorService.execute( backup );
+                        return backup;
+                    } catch ( final RejectedExecutionException e ) {
+                        // another backup took the free place, so we can only skip this one
+                    }
+                }
+                // there's no queued backup that could be dropped
+                return skipBackup( session );
+            default:
+                return skipBackup( session );
+        }
+    }
+
+    /**
+     * Removes the queued backup that shall be dropped in favor of a backup of the given session:
+     * a backup of the same session (same id, in non-sticky mode this is a different session instance)
+     * is preferred as it's superseded anyway, otherwise it's the oldest queued backup.
+     */
+    @CheckForNull
+    private QueuedBackup removeOldestQueuedBackup( final MemcachedBackupSession session ) {
+        if ( _scheduler != null ) {
+            // backups of not locked sessions are already coalesced, the scheduler queue
+            // contains scheduled tasks that cannot be dropped safely
+            return null;
+        }
+        final ThreadPoolExecutor executor = (ThreadPoolExecutor) _executorService;
+        QueuedBackup oldest = null;
+        for ( final Runnable item : executor.getQueue() ) {
+            if ( item instanceof QueuedBackup ) {
+                final QueuedBackup queued = (QueuedBackup) item;
+                if ( queued.getSession().getIdInternal().equals( session.getIdInternal() ) ) {
+                    if ( executor.remove( queued ) ) {
+                        return queued;
+                    }
+                }
+                else if ( oldest == null ) {
+                    oldest = queued;
+                }
+            }
+        }
+        if ( oldest != null && executor.remove( oldest ) ) {
+            return oldest;
+        }
+        return null;
+    }
+
+    private ListenableFuture<BackupResult> skipBackup( final MemcachedBackupSession session ) {
+        if ( _log.isInfoEnabled() ) {
+            _log.info( "Backup queue is full, skipping backup of session " + session.getIdInternal() + "." );
+        }
+        releaseLock( session );
+        return new SimpleFuture<BackupResult>( BackupResult.FAILURE );
+    }
+
     private BackupSessionTask createBackupSessionTask( final MemcachedBackupSession session, final boolean force ) {
         return new BackupSessionTask( session,
                 force,
@@ -233,7 +532,11 @@ public class BackupSessionService {
                 _sessionBackupTimeout,
                 _memcached,
                 _nodeIdService,
-                _statistics );
+                _localSessionLocks,
+                _statistics,
+                _attributesDeltaBackup,
+                _sessionChunkSize,
+                _inFlightBackups );
     }
 
     private boolean hasMemcachedIdSet( final MemcachedBackupSession session ) {
@@ -241,19 +544,173 @@ public class BackupSessionService {
     }
 
     private void releaseLock( @Nonnull final MemcachedBackupSession session ) {
+        if ( session.isLockReleaseDeferred() ) {
+            // the locking strategy releases the lock after the validity info is stored
+            return;
+        }
         if ( session.isLocked()  ) {
             try {
                 if ( _log.isDebugEnabled() ) {
                     _log.debug( "Releasing lock for session " + session.getIdInternal() );
                 }
                 final long start = System.currentTimeMillis();
-                _memcached.delete( _sessionIdFormat.createLockName( session.getIdInternal() ) );
+                _localSessionLocks.release( session.getIdInternal(), _memcached,
+                        _sessionIdFormat.createLockName( session.getIdInternal() ) );
                 _statistics.registerSince( RELEASE_LOCK, start );
                 session.releaseLock();
             } catch( final Exception e ) {
                 _log.warn( "Caught exception when trying to release lock for session " + session.getIdInternal() );
             }
         }
+        else if ( session.isLockedShared() ) {
+            try {
+                LockingStrategy.releaseSharedLock( _memcached, _sessionIdFormat.createReadLockName( session.getIdInternal() ) );
+                session.releaseLock();
+            } catch( final Exception e ) {
+                _log.warn( "Caught exception when trying to release shared lock for session " + session.getIdInternal() );
+            }
+        }
+    }
+
+    /**
+     * A session backup that is scheduled to be performed when the coalescing window has passed.
+     * Until the backup is started further backups of the same session can {@link #join(MemcachedBackupSession, boolean)}
+     * this backup, the session is serialized when the backup is actually performed.
+     */
+    private final class CoalescedBackup implements Callable<BackupResult> {
+
+        private final MemcachedBackupSession _session;
+        private final String _sessionId;
+        private final ListenableFutureTask<BackupResult> _future;
+        private final long _created = System.currentTimeMillis();
+        private boolean _force;
+        private boolean _started;
+
+        CoalescedBackup( final MemcachedBackupSession session, final boolean force ) {
+            _session = session;
+            _sessionId = session.getIdInternal();
+            _force = force;
+            _future = new ListenableFutureTask<BackupResult>( this );
+        }
+
+        ListenableFutureTask<BackupResult> getFuture() {
+            return _future;
+        }
+
+        /**
+         * Merges the backup of the given session into this backup.
+         * @return <code>false</code> if this backup was already started (or is for another session
+         *  instance), then the backup cannot be merged.
+         */
+        synchronized boolean join( final MemcachedBackupSession session, final boolean force ) {
+            if ( _started || session != _session ) {
+                return false;
+            }
+            _force |= force;
+            return true;
+        }
+
+        @Override
+        public BackupResult call() throws Exception {
+            final boolean force;
+            synchronized ( this ) {
+                _started = true;
+                force = _force;
+            }
+            _pendingBackups.remove( _sessionId, this );
+            _statistics.register( BACKUP_QUEUE_WAIT, Math.max( 0, System.currentTimeMillis() - _created - _backupCoalescingWindow ) );
+            return createBackupSessionTask( _session, force ).call();
+        }
+
+    }
+
+    /**
+     * An asynchronous session backup waiting in the queue of the executor, it's
+     * recognizable so that it can be dropped in favour of a newer backup of the same session.
+     */
+    private final class QueuedBackup extends ListenableFutureTask<BackupResult> {
+
+        private final MemcachedBackupSession _session;
+        private final boolean _force;
+        private final long _queued = System.currentTimeMillis();
+
+        QueuedBackup( final MemcachedBackupSession session, final boolean force ) {
+            super( createBackupSessionTask( session, force ) );
+            _session = session;
+            _force = force;
+        }
+
+        MemcachedBackupSession getSession() {
+            return _session;
+        }
+
+        boolean isForce() {
+            return _force;
+        }
+
+        @Override
+        public void run() {
+            _statistics.registerSince( BACKUP_QUEUE_WAIT, _queued );
+            super.run();
+        }
+
+    }
+
+    /**
+     * Specifies how an asynchronous session backup is handled that would exceed the
+     * max number of queued backups or the max number of in-flight bytes.
+     */
+    public static enum OverloadPolicy {
+
+        /**
+         * The backup is performed in the request thread, this slows down requests
+         * and by this throttles the load.
+         */
+        CALLER_RUNS( "callerRuns" ),
+
+        /**
+         * The oldest backup that is still waiting in the queue is dropped (its future is cancelled
+         * and its session lock is released) and the new backup is queued instead. A queued backup of
+         * the same session (by id, so that this also works for non-sticky sessions) is dropped in
+         * preference, as the new backup stores the latest state of the session anyway.
+         * If there's no queued backup that could be dropped (e.g. with backup coalescing) the
+         * backup is skipped.
+         */
+        DROP_OLDEST( "dropOldest" ),
+
+        /**
+         * The backup is skipped (and counted as rejected), so that the session is stored
+         * with the next modification.
+         */
+        SKIP( "skip" );
+
+        private final String _name;
+
+        private OverloadPolicy( final String name ) {
+            _name = name;
+        }
+
+        /**
+         * Returns the policy for the given name (as used in the configuration).
+         * @throws IllegalArgumentException if there's no policy with the given name.
+         */
+        @Nonnull
+        public static OverloadPolicy fromName( @Nonnull final String name ) throws IllegalArgumentException {
+            for ( final OverloadPolicy policy : values() ) {
+                if ( policy._name.equalsIgnoreCase( name ) ) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException( "No OverloadPolicy found for name " + name );
+        }
+
+        /**
+         * The name of this policy as used in the configuration.
+         */
+        public String getName() {
+            return _name;
+        }
+
     }
 
     /**
@@ -348,7 +805,7 @@ public class BackupSessionService {
          * {@inheritDoc}
          */
         @Override
-        public <T> Future<T> submit( final Callable<T> task ) {
+        public <T> SimpleFuture<T> submit( final Callable<T> task ) {
             try {
                 return new SimpleFuture<T>( task.call() );
             } catch ( final Exception e ) {
@@ -398,7 +855,7 @@ public class BackupSessionService {
      *
      * @param <T> the result type
      */
-    static class SimpleFuture<T> implements Future<T> {
+    static class SimpleFuture<T> implements ListenableFuture<T> {
 
         private final T _result;
         private final ExecutionException _e;
@@ -465,6 +922,14 @@ public class BackupSessionService {
             return true;
         }
 
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void addListener( final Runnable listener, final Executor executor ) {
+            ListenableFutureTask.execute( listener, executor );
+        }
+
     }
 
 }
@@ -22,7 +22,9 @@ import static de.javakaffee.web.msm.Statistics.StatsType.BACKUP;
 import static de.javakaffee.web.msm.Statistics.StatsType.MEMCACHED_UPDATE;
 import static de.javakaffee.web.msm.Statistics.StatsType.RELEASE_LOCK;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
@@ -30,6 +32,7 @@ import java.util.concurrent.TimeUnit;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import net.spy.memcached.MemcachedClient;
 
@@ -38,6 +41,7 @@ import org.apache.juli.logging.LogFactory;
 
 import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
 import de.javakaffee.web.msm.SessionTrackerValve.SessionBackupService.BackupResultStatus;
+import de.javakaffee.web.msm.TranscoderService.SerializedAttributes;
 
 /**
  * Stores the provided session in memcached if the session was modified
@@ -58,7 +62,11 @@ public class BackupSessionTask implements Callable<BackupResult> {
     private final int _sessionBackupTimeout;
     private final MemcachedClient _memcached;
     private final NodeIdService _nodeIdService;
+    private final LocalSessionLocks _localSessionLocks;
     private final Statistics _statistics;
+    private final boolean _attributesDeltaBackup;
+    private final int _sessionChunkSize;
+    private final InFlightBackups _inFlightBackups;
 
     /**
      * @param session
@@ -73,6 +81,16 @@ public class BackupSessionTask implements Callable<BackupResult> {
      * @param nodeAvailabilityCache
      * @param nodeIds
      * @param failoverNodeIds
+     * @param localSessionLocks
+     *            the local session locks, that are handed over or released with the memcached lock.
+     * @param attributesDeltaBackup
+     *            specifies, if only modified attributes shall be stored (each attribute as a separate item).
+     * @param sessionChunkSize
+     *            the max size of a session item, bigger sessions are stored in chunks of this size,
+     *            <code>0</code> disables chunking.
+     * @param inFlightBackups
+     *            if not <code>null</code> asynchronous writes to memcached are registered here, so that
+     *            the amount of data not yet written to memcached can be limited.
      */
     public BackupSessionTask( final MemcachedBackupSession session,
             final boolean sessionIdChanged,
@@ -81,7 +99,11 @@ public class BackupSessionTask implements Callable<BackupResult> {
             final int sessionBackupTimeout,
             final MemcachedClient memcached,
             final NodeIdService nodeIdService,
-            final Statistics statistics ) {
+            @Nonnull final LocalSessionLocks localSessionLocks,
+            final Statistics statistics,
+            final boolean attributesDeltaBackup,
+            final int sessionChunkSize,
+            @Nullable final InFlightBackups inFlightBackups ) {
         _session = session;
         _force = sessionIdChanged;
         _transcoderService = transcoderService;
@@ -89,7 +111,11 @@ public class BackupSessionTask implements Callable<BackupResult> {
         _sessionBackupTimeout = sessionBackupTimeout;
         _memcached = memcached;
         _nodeIdService = nodeIdService;
+        _localSessionLocks = localSessionLocks;
         _statistics = statistics;
+        _attributesDeltaBackup = attributesDeltaBackup;
+        _sessionChunkSize = sessionChunkSize;
+        _inFlightBackups = inFlightBackups;
     }
 
     /**
@@ -106,25 +132,9 @@ public class BackupSessionTask implements Callable<BackupResult> {
 
             final long startBackup = System.currentTimeMillis();
 
-            final Map<String, Object> attributes = _session.getAttributesInternal();
-
-            final byte[] attributesData = serializeAttributes( _session, attributes );
-            final int hashCode = Arrays.hashCode( attributesData );
-            final BackupResult result;
-            if ( _session.getDataHashCode() != hashCode
-                    || _force
-                    || _session.authenticationChanged() ) {
-
-                _session.setLastBackupTime( System.currentTimeMillis() );
-                final byte[] data = _transcoderService.serialize( _session, attributesData );
-
-                result = doBackupSession( _session, data, attributesData );
-                if ( result.isSuccess() ) {
-                    _session.setDataHashCode( hashCode );
-                }
-            } else {
-                result = new BackupResult( BackupResultStatus.SKIPPED );
-            }
+            final BackupResult result = _attributesDeltaBackup
+                ? backupModifiedAttributes( false )
+                : backupIfModified();
 
             switch ( result.getStatus() ) {
                 case FAILURE:
@@ -156,38 +166,170 @@ public class BackupSessionTask implements Callable<BackupResult> {
 
     }
 
+    private BackupResult backupIfModified() {
+        final Map<String, Object> attributes = _session.getAttributesInternal();
+
+        final SerializedAttributes serializedAttributes = serializeAttributes( _session, attributes );
+        final long hash = serializedAttributes.getHash();
+        if ( _session.getDataHash() != hash
+                || _force
+                || _session.authenticationChanged() ) {
+
+            _session.setLastBackupTime( System.currentTimeMillis() );
+            final byte[] data = _transcoderService.serialize( _session, serializedAttributes );
+
+            final BackupResult result = doBackupSession( _session, data );
+            if ( result.isSuccess() ) {
+                _session.setDataHash( hash );
+            }
+            return result;
+        } else {
+            return new BackupResult( BackupResultStatus.SKIPPED );
+        }
+    }
+
+    /**
+     * Stores the session with attributes delta backup: each attribute is stored as a separate
+     * item in memcached, and only attributes that were modified since the last backup are written.
+     * The session item itself contains the session fields and the {@link AttributesManifest} describing
+     * the attribute items.
+     * <p>
+     * Attribute items are stored with twice the expiration time of the session item, so that unmodified
+     * attributes only need to be written again if they would expire before the session item.
+     * </p>
+     * <p>
+     * Modified attributes are stored in new attribute items, the items no longer referenced
+     * are deleted only after the session item was stored successfully.
+     * </p>
+     *
+     * @param expirationUpdate specifies, if the session shall be stored even if no attribute was modified,
+     *  this is used to update the expiration of the session in memcached.
+     * @return the {@link BackupResult}
+     */
+    BackupResult backupModifiedAttributes( final boolean expirationUpdate ) {
+        final AttributesManifest previous = _session.getAttributesManifest();
+        final Map<String, SerializedAttributes> attributesData = serializeAttributesSeparately( _session );
+
+        final int expirationTime = _session.getMemcachedExpirationTimeToSet();
+        final int attributesExpirationTime = expirationTime > 0 ? 2 * expirationTime : 0;
+        final long now = System.currentTimeMillis();
+        final long sessionExpiresAt = expirationTime > 0 ? now + expirationTime * 1000L : 0;
+        final long attributesExpireAt = attributesExpirationTime > 0 ? now + attributesExpirationTime * 1000L : 0;
+
+        final AttributesManifest manifest = new AttributesManifest();
+        final Map<Integer, byte[]> modified = new HashMap<Integer, byte[]>();
+        for ( final Map.Entry<String, SerializedAttributes> entry : attributesData.entrySet() ) {
+            final long hash = entry.getValue().getHash();
+            final AttributesManifest.Entry previousEntry = previous != null ? previous.get( entry.getKey() ) : null;
+            if ( previousEntry != null && previousEntry.getHash() == hash && !_force ) {
+                manifest.put( entry.getKey(), previousEntry );
+            }
+            else {
+                // a fresh slot, so that the previous session item stays valid if storing the session fails
+                final int slot = manifest.nextFreeSlot( previous );
+                manifest.put( entry.getKey(), new AttributesManifest.Entry( slot, hash, attributesExpireAt ) );
+                modified.put( slot, entry.getValue().getData() );
+            }
+        }
+        final List<Integer> unusedSlots = previous != null ? previous.getSlotsNotUsedBy( manifest ) : new ArrayList<Integer>( 0 );
+
+        if ( modified.isEmpty()
+                && unusedSlots.isEmpty()
+                && !_force
+                && !_session.authenticationChanged()
+                && !expirationUpdate ) {
+            return new BackupResult( BackupResultStatus.SKIPPED );
+        }
+
+        /* unmodified attributes that would expire before the session must be stored again
+         */
+        for ( final Map.Entry<String, AttributesManifest.Entry> entry : manifest.entries() ) {
+            final AttributesManifest.Entry manifestEntry = entry.getValue();
+            if ( !modified.containsKey( manifestEntry.getSlot() ) && manifestEntry.expiresBefore( sessionExpiresAt ) ) {
+                entry.setValue( new AttributesManifest.Entry( manifestEntry.getSlot(), manifestEntry.getHash(), attributesExpireAt ) );
+                modified.put( manifestEntry.getSlot(), attributesData.get( entry.getKey() ).getData() );
+            }
+        }
+
+        _session.setLastBackupTime( System.currentTimeMillis() );
+        final byte[] manifestData = manifest.encode();
+        final byte[] data = _transcoderService.serializeWithAttributesManifest( _session, manifestData );
+
+        try {
+            storeAttributesInMemcached( _session, modified, attributesExpirationTime );
+        } catch ( final NodeFailureException e ) {
+            if ( _log.isInfoEnabled() ) {
+                _log.info( "Could not store attributes of session " + _session.getId() +
+                        " in memcached due to unavailable node " + e.getNodeId() + "." );
+            }
+            return new BackupResult( BackupResultStatus.FAILURE, data );
+        }
+
+        final BackupResult result = doBackupSession( _session, data );
+        if ( result.isSuccess() ) {
+            _session.setAttributesManifest( manifest );
+            for ( final Integer slot : unusedSlots ) {
+                _memcached.delete( AttributesManifest.createAttributeKeyName( _session.getId(), slot ) );
+            }
+        }
+        return result;
+    }
+
     private void releaseLock() {
+        if ( _session.isLockReleaseDeferred() ) {
+            // the locking strategy releases the lock after the validity info is stored
+            return;
+        }
         if ( _session.isLocked()  ) {
             try {
                 if ( _log.isDebugEnabled() ) {
                     _log.debug( "Releasing lock for session " + _session.getIdInternal() );
                 }
                 final long start = System.currentTimeMillis();
-                _memcached.delete( _sessionIdFormat.createLockName( _session.getIdInternal() ) );
+                _localSessionLocks.release( _session.getIdInternal(), _memcached,
+                        _sessionIdFormat.createLockName( _session.getIdInternal() ) );
                 _statistics.registerSince( RELEASE_LOCK, start );
                 _session.releaseLock();
             } catch( final Exception e ) {
                 _log.warn( "Caught exception when trying to release lock for session " + _session.getIdInternal() );
             }
         }
+        else if ( _session.isLockedShared() ) {
+            try {
+                LockingStrategy.releaseSharedLock( _memcached, _sessionIdFormat.createReadLockName( _session.getIdInternal() ) );
+                _session.releaseLock();
+            } catch( final Exception e ) {
+                _log.warn( "Caught exception when trying to release shared lock for session " + _session.getIdInternal() );
+            }
+        }
     }
 
-    private byte[] serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
+    private SerializedAttributes serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
         final long start = System.currentTimeMillis();
-        final byte[] attributesData = _transcoderService.serializeAttributes( session, attributes );
+        final SerializedAttributes attributesData = _transcoderService.serializeAttributesWithHash( session, attributes );
         _statistics.registerSince( ATTRIBUTES_SERIALIZATION, start );
         return attributesData;
     }
 
+    private Map<String, SerializedAttributes> serializeAttributesSeparately( final MemcachedBackupSession session ) {
+        final long start = System.currentTimeMillis();
+        final Map<String, Object> attributes = session.getAttributesInternal();
+        final Map<String, SerializedAttributes> result = new HashMap<String, SerializedAttributes>( attributes.size() );
+        for ( final Map.Entry<String, Object> entry : attributes.entrySet() ) {
+            result.put( entry.getKey(), _transcoderService.serializeAttribute( session, entry.getKey(), entry.getValue() ) );
+        }
+        _statistics.registerSince( ATTRIBUTES_SERIALIZATION, start );
+        return result;
+    }
+
     /**
      * Store the provided session in memcached.
      * @param session the session to backup
      * @param data the serialized session data (session fields and session attributes).
-     * @param attributesData just the serialized session attributes.
      *
      * @return the {@link SessionTrackerValve.SessionBackupService.BackupResultStatus}
      */
-    BackupResult doBackupSession( final MemcachedBackupSession session, final byte[] data, final byte[] attributesData ) {
+    BackupResult doBackupSession( final MemcachedBackupSession session, final byte[] data ) {
         if ( _log.isDebugEnabled() ) {
             _log.debug( "Trying to store session in memcached: " + session.getId() );
         }
@@ -196,7 +338,7 @@ public class BackupSessionTask implements Callable<BackupResult> {
 
             storeSessionInMemcached( session, data );
 
-            return new BackupResult( BackupResultStatus.SUCCESS, data, attributesData );
+            return new BackupResult( BackupResultStatus.SUCCESS, data );
         } catch ( final NodeFailureException e ) {
             if ( _log.isInfoEnabled() ) {
                 String msg = "Could not store session " + session.getId() +
@@ -207,7 +349,7 @@ public class BackupSessionTask implements Callable<BackupResult> {
                 _log.info( msg );
             }
 
-            return new BackupResult( BackupResultStatus.FAILURE, data, null );
+            return new BackupResult( BackupResultStatus.FAILURE, data );
         }
     }
 
@@ -221,10 +363,25 @@ public class BackupSessionTask implements Callable<BackupResult> {
         final int expirationTime = session.getMemcachedExpirationTimeToSet();
         final long start = System.currentTimeMillis();
         try {
-            final Future<Boolean> future = _memcached.set( session.getId(), expirationTime, data );
+            /* sessions exceeding the max item size are split into chunks, the chunks are
+             * stored before the manifest so that the manifest never references missing chunks
+             */
+            final int numChunks = SessionChunks.getNumChunks( data.length, _sessionChunkSize );
+            final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>( numChunks + 1 );
+            for ( int i = 0; i < numChunks; i++ ) {
+                final byte[] chunk = SessionChunks.createChunk( data, i, _sessionChunkSize );
+                final Future<Boolean> future = _memcached.set( SessionChunks.createChunkKeyName( session.getId(), i ), expirationTime, chunk );
+                futures.add( future );
+                registerInFlight( future, chunk );
+            }
+            final byte[] item = numChunks > 0 ? SessionChunks.createManifest( data, numChunks ) : data;
+            final Future<Boolean> future = _memcached.set( session.getId(), expirationTime, item );
+            futures.add( future );
             if ( !_sessionBackupAsync ) {
                 try {
-                    future.get( _sessionBackupTimeout, TimeUnit.MILLISECONDS );
+                    for ( final Future<Boolean> f : futures ) {
+                        f.get( _sessionBackupTimeout, TimeUnit.MILLISECONDS );
+                    }
                     session.setLastMemcachedExpirationTime( expirationTime );
                     session.setLastBackupTime( System.currentTimeMillis() );
                 } catch ( final Exception e ) {
@@ -239,14 +396,58 @@ public class BackupSessionTask implements Callable<BackupResult> {
             else {
                 /* in async mode, we asume the session was stored successfully
                  */
+                registerInFlight( future, item );
                 session.setLastMemcachedExpirationTime( expirationTime );
                 session.setLastBackupTime( System.currentTimeMillis() );
             }
+            deleteStaleChunks( session, numChunks );
         } finally {
             _statistics.registerSince( MEMCACHED_UPDATE, start );
         }
     }
 
+    /**
+     * Deletes the chunks of the previous backup that are not used by the session anymore (because
+     * the session shrinked).
+     */
+    private void deleteStaleChunks( final MemcachedBackupSession session, final int numChunks ) {
+        for ( int i = numChunks; i < session.getNumChunks(); i++ ) {
+            _memcached.delete( SessionChunks.createChunkKeyName( session.getId(), i ) );
+        }
+        session.setNumChunks( numChunks );
+    }
+
+    private void storeAttributesInMemcached( final MemcachedBackupSession session, final Map<Integer, byte[]> attributesData,
+            final int expirationTime ) throws NodeFailureException {
+        final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>( attributesData.size() );
+        for ( final Map.Entry<Integer, byte[]> entry : attributesData.entrySet() ) {
+            final String key = AttributesManifest.createAttributeKeyName( session.getId(), entry.getKey() );
+            final Future<Boolean> future = _memcached.set( key, expirationTime, entry.getValue() );
+            futures.add( future );
+            registerInFlight( future, entry.getValue() );
+        }
+        if ( !_sessionBackupAsync ) {
+            try {
+                for ( final Future<Boolean> future : futures ) {
+                    future.get( _sessionBackupTimeout, TimeUnit.MILLISECONDS );
+                }
+            } catch ( final Exception e ) {
+                if ( _log.isInfoEnabled() ) {
+                    _log.info( "Could not store attributes of session " + session.getId() + " in memcached." );
+                }
+                final String nodeId = _sessionIdFormat.extractMemcachedId( session.getId() );
+                _nodeIdService.setNodeAvailable( nodeId, false );
+                throw new NodeFailureException( "Could not store session attributes in memcached.", nodeId );
+            }
+        }
+    }
+
+    private void registerInFlight( final Future<Boolean> future, final byte[] data ) {
+        if ( _sessionBackupAsync && _inFlightBackups != null ) {
+            _inFlightBackups.add( future, data.length );
+        }
+    }
+
     static final class BackupResult {
 
         public static final BackupResult SKIPPED = new BackupResult( BackupResultStatus.SKIPPED );
@@ -254,16 +455,13 @@ public class BackupSessionTask implements Callable<BackupResult> {
 
         private final BackupResultStatus _status;
         private final byte[] _data;
-        private final byte[] _attributesData;
         public BackupResult( @Nonnull final BackupResultStatus status ) {
             _status = status;
             _data = null;
-            _attributesData = null;
         }
-        public BackupResult( @Nonnull final BackupResultStatus status, @Nonnull final byte[] data, @Nonnull final byte[] attributesData ) {
+        public BackupResult( @Nonnull final BackupResultStatus status, @Nonnull final byte[] data ) {
             _status = status;
             _data = data;
-            _attributesData = attributesData;
         }
         /**
          * The status/result of the backup operation.
@@ -283,17 +481,6 @@ public class BackupSessionTask implements Callable<BackupResult> {
         byte[] getData() {
             return _data;
         }
-        /**
-         * The serialized attributes that were actually stored in memcached with the
-         * full serialized session data. This can be <code>null</code>, e.g. if
-         * {@link #getStatus()} is {@link BackupResultStatus#FAILURE} or {@link BackupResultStatus#SKIPPED}.
-         *
-         * @return the attributesData
-         */
-        @CheckForNull
-        byte[] getAttributesData() {
-            return _attributesData;
-        }
         /**
          * @return <code>true</code> if the status is {@link BackupResultStatus#SUCCESS},
          * otherwise <code>false</code>.
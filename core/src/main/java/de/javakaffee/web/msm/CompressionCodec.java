@@ -0,0 +1,56 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A compression algorithm used by the {@link TranscoderService} to compress the serialized
+ * session attributes (see {@link TranscoderService.Compression}). Implementations must be thread-safe.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public interface CompressionCodec {
+
+    /**
+     * Compress the given range of the source array to the destination array.
+     *
+     * @param src the data to compress
+     * @param srcOff the index of the first byte to compress
+     * @param srcLen the number of bytes to compress
+     * @param dest the array the compressed data is written to
+     * @param destOff the index in the destination array where to start writing
+     * @param maxDestLen the max number of bytes that may be written to the destination array
+     * @return the number of bytes written to the destination array, or <code>-1</code> if the
+     *  compressed data would need more than <code>maxDestLen</code> bytes.
+     */
+    int compress( @Nonnull byte[] src, int srcOff, int srcLen, @Nonnull byte[] dest, int destOff, int maxDestLen );
+
+    /**
+     * Decompress the given range of the source array to the destination array.
+     *
+     * @param src the compressed data
+     * @param srcOff the index of the first byte of the compressed data
+     * @param srcLen the number of bytes of the compressed data
+     * @param dest the array the decompressed data is written to
+     * @param destOff the index in the destination array where to start writing
+     * @param destLen the number of bytes of the decompressed data (the length of the original data)
+     * @throws IllegalArgumentException if the compressed data is malformed.
+     */
+    void decompress( @Nonnull byte[] src, int srcOff, int srcLen, @Nonnull byte[] dest, int destOff, int destLen );
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The default {@link RequestKeyNormalizer}, it normalizes request ids in this order:
+ * <ol>
+ * <li>query parameters are removed, either all of them or the configured ones.</li>
+ * <li>path segments are templated: numeric segments are replaced by <code>{n}</code>, UUIDs by
+ * <code>{uuid}</code> (path parameters like <code>;jsessionid=...</code> are removed then as well).</li>
+ * <li>rewrite rules are applied, each replaces all matches of a regular expression.</li>
+ * </ol>
+ * Without any option the request id is returned unchanged.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class DefaultRequestKeyNormalizer implements RequestKeyNormalizer {
+
+    /**
+     * The value for ignored parameters that removes the complete query string.
+     */
+    public static final String ALL_PARAMETERS = "*";
+
+    static final String NUMBER_TEMPLATE = "{n}";
+    static final String UUID_TEMPLATE = "{uuid}";
+
+    private static final String RULE_SEPARATOR = "=>";
+
+    private final boolean _ignoreAllParameters;
+    private final Set<String> _ignoredParameters;
+    private final boolean _templatePathSegments;
+    private final List<RewriteRule> _rewriteRules;
+
+    /**
+     * Creates a normalizer that doesn't change request ids.
+     */
+    public DefaultRequestKeyNormalizer() {
+        this( null, false, null );
+    }
+
+    /**
+     * @param ignoredParameters the names of query parameters to remove, {@link #ALL_PARAMETERS} to remove the query string.
+     * @param templatePathSegments specifies, if numeric and UUID path segments shall be replaced by a template.
+     * @param rewriteRules the rules applied at last, see {@link #parseRewriteRules(String)}.
+     */
+    public DefaultRequestKeyNormalizer( @Nullable final Collection<String> ignoredParameters, final boolean templatePathSegments,
+            @Nullable final List<RewriteRule> rewriteRules ) {
+        _ignoreAllParameters = ignoredParameters != null && ignoredParameters.contains( ALL_PARAMETERS );
+        _ignoredParameters = ignoredParameters != null ? new HashSet<String>( ignoredParameters ) : Collections.<String>emptySet();
+        _templatePathSegments = templatePathSegments;
+        _rewriteRules = rewriteRules != null ? new ArrayList<RewriteRule>( rewriteRules ) : Collections.<RewriteRule>emptyList();
+    }
+
+    /**
+     * Parses the ignored query parameters.
+     *
+     * @param ignoredParameters comma separated parameter names or {@link #ALL_PARAMETERS}.
+     * @return the parameter names, <code>null</code> if none are given.
+     */
+    @CheckForNull
+    public static Set<String> parseIgnoredParameters( @Nullable final String ignoredParameters ) {
+        if ( ignoredParameters == null || ignoredParameters.trim().length() == 0 ) {
+            return null;
+        }
+        final Set<String> result = new HashSet<String>();
+        for ( final String name : ignoredParameters.split( "," ) ) {
+            if ( name.trim().length() > 0 ) {
+                result.add( name.trim() );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Parses rewrite rules.
+     *
+     * @param rewriteRules whitespace separated rules of the form <code>regex=&gt;replacement</code>,
+     *  e.g. <code>^/shop/[^/]+/=&gt;/shop/{category}/</code>. The replacement may reference groups (<code>$1</code>).
+     * @return the rules, <code>null</code> if none are given.
+     * @throws IllegalArgumentException if a rule is invalid.
+     */
+    @CheckForNull
+    public static List<RewriteRule> parseRewriteRules( @Nullable final String rewriteRules ) {
+        if ( rewriteRules == null || rewriteRules.trim().length() == 0 ) {
+            return null;
+        }
+        final List<RewriteRule> result = new ArrayList<RewriteRule>();
+        for ( final String rule : rewriteRules.trim().split( "\\s+" ) ) {
+            final int idx = rule.indexOf( RULE_SEPARATOR );
+            if ( idx <= 0 ) {
+                throw new IllegalArgumentException( "Invalid rewrite rule '" + rule + "', expected 'regex" + RULE_SEPARATOR + "replacement'." );
+            }
+            result.add( new RewriteRule( Pattern.compile( rule.substring( 0, idx ) ), rule.substring( idx + RULE_SEPARATOR.length() ) ) );
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String normalize( final String requestId ) {
+        String result = requestId;
+        if ( _ignoreAllParameters || !_ignoredParameters.isEmpty() || _templatePathSegments ) {
+            final int queryIdx = result.indexOf( '?' );
+            String path = queryIdx < 0 ? result : result.substring( 0, queryIdx );
+            String query = queryIdx < 0 ? null : result.substring( queryIdx + 1 );
+            if ( query != null ) {
+                query = _ignoreAllParameters ? null : removeIgnoredParameters( query );
+            }
+            if ( _templatePathSegments ) {
+                path = templatePathSegments( path );
+            }
+            result = query != null ? path + "?" + query : path;
+        }
+        for ( final RewriteRule rule : _rewriteRules ) {
+            result = rule.apply( result );
+        }
+        return result;
+    }
+
+    /**
+     * @return the remaining query string, <code>null</code> if no parameter is left.
+     */
+    @CheckForNull
+    private String removeIgnoredParameters( @Nonnull final String query ) {
+        if ( _ignoredParameters.isEmpty() ) {
+            return query;
+        }
+        final StringBuilder sb = new StringBuilder( query.length() );
+        for ( final String param : query.split( "&" ) ) {
+            final int idx = param.indexOf( '=' );
+            final String name = idx < 0 ? param : param.substring( 0, idx );
+            if ( param.length() > 0 && !_ignoredParameters.contains( name ) ) {
+                if ( sb.length() > 0 ) {
+                    sb.append( '&' );
+                }
+                sb.append( param );
+            }
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    @Nonnull
+    private static String templatePathSegments( @Nonnull final String path ) {
+        final StringBuilder sb = new StringBuilder( path.length() );
+        int start = 0;
+        while ( start <= path.length() ) {
+            int end = path.indexOf( '/', start );
+            if ( end < 0 ) {
+                end = path.length();
+            }
+            String segment = path.substring( start, end );
+            final int paramIdx = segment.indexOf( ';' );
+            if ( paramIdx >= 0 ) {
+                segment = segment.substring( 0, paramIdx );
+            }
+            if ( start > 0 ) {
+                sb.append( '/' );
+            }
+            sb.append( isNumber( segment ) ? NUMBER_TEMPLATE : isUUID( segment ) ? UUID_TEMPLATE : segment );
+            start = end + 1;
+        }
+        return sb.toString();
+    }
+
+    static boolean isNumber( @Nonnull final String segment ) {
+        if ( segment.length() == 0 ) {
+            return false;
+        }
+        for ( int i = 0; i < segment.length(); i++ ) {
+            if ( !Character.isDigit( segment.charAt( i ) ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isUUID( @Nonnull final String segment ) {
+        if ( segment.length() != 36 ) {
+            return false;
+        }
+        for ( int i = 0; i < segment.length(); i++ ) {
+            final char c = segment.charAt( i );
+            if ( i == 8 || i == 13 || i == 18 || i == 23 ) {
+                if ( c != '-' ) {
+                    return false;
+                }
+            }
+            else if ( Character.digit( c, 16 ) < 0 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A rewrite rule, replaces all matches of a pattern.
+     */
+    public static final class RewriteRule {
+
+        private final Pattern _pattern;
+        private final String _replacement;
+
+        public RewriteRule( @Nonnull final Pattern pattern, @Nonnull final String replacement ) {
+            _pattern = pattern;
+            _replacement = replacement;
+        }
+
+        @Nonnull
+        String apply( @Nonnull final String requestId ) {
+            return _pattern.matcher( requestId ).replaceAll( _replacement );
+        }
+
+        @Override
+        public String toString() {
+            return _pattern.pattern() + RULE_SEPARATOR + _replacement;
+        }
+
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A {@link CompressionCodec} using raw deflate (without zlib header and checksum, as
+ * the session data has its own envelope), which provides a good compression ratio
+ * but is slower than the {@link LZ4Codec}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class DeflateCodec implements CompressionCodec {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int compress( final byte[] src, final int srcOff, final int srcLen, final byte[] dest, final int destOff, final int maxDestLen ) {
+        final Deflater deflater = new Deflater( Deflater.DEFAULT_COMPRESSION, true );
+        try {
+            deflater.setInput( src, srcOff, srcLen );
+            deflater.finish();
+            int destLen = 0;
+            while ( !deflater.finished() ) {
+                if ( destLen == maxDestLen ) {
+                    return -1;
+                }
+                destLen += deflater.deflate( dest, destOff + destLen, maxDestLen - destLen );
+            }
+            return destLen;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void decompress( final byte[] src, final int srcOff, final int srcLen, final byte[] dest, final int destOff, final int destLen ) {
+        final Inflater inflater = new Inflater( true );
+        try {
+            /* with nowrap the inflater needs an additional dummy byte at the end of the input,
+             * therefore the input is provided in two steps
+             */
+            inflater.setInput( src, srcOff, srcLen );
+            int len = inflater.inflate( dest, destOff, destLen );
+            if ( len < destLen && inflater.needsInput() ) {
+                inflater.setInput( new byte[1] );
+                len += inflater.inflate( dest, destOff + len, destLen - len );
+            }
+            if ( len != destLen ) {
+                throw new IllegalArgumentException( "Malformed deflate data, expected " + destLen + " bytes but got " + len );
+            }
+        } catch ( final DataFormatException e ) {
+            throw new IllegalArgumentException( "Malformed deflate data", e );
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
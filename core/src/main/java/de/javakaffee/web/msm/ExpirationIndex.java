@@ -0,0 +1,138 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import javax.annotation.Nonnull;
+
+/**
+ * An index of session ids ordered by the time when the session expires in memcached, so that
+ * the expiration update in sticky mode (see {@link MemcachedBackupSessionManager#updateExpirationInMemcached()})
+ * only needs to visit sessions that are about to expire in memcached instead of all sessions.
+ * <p>
+ * Each session has at most one entry, scheduling a session again replaces its entry. An entry
+ * may be earlier than the actual expiration of the session in memcached (e.g. after the session
+ * was stored again), therefore polled sessions must be checked and scheduled again.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class ExpirationIndex {
+
+    private final ConcurrentSkipListSet<Entry> _entries = new ConcurrentSkipListSet<Entry>();
+    private final ConcurrentMap<String, Entry> _entriesById = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Schedules the session with the given id, an existing entry for this session is replaced.
+     *
+     * @param sessionId the id of the session
+     * @param expiresAt the time in millis when the session expires in memcached.
+     */
+    void schedule( @Nonnull final String sessionId, final long expiresAt ) {
+        final Entry entry = new Entry( sessionId, expiresAt );
+        final Entry previous = _entriesById.put( sessionId, entry );
+        if ( previous != null ) {
+            _entries.remove( previous );
+        }
+        _entries.add( entry );
+    }
+
+    /**
+     * Removes the entry of the session with the given id.
+     */
+    void remove( @Nonnull final String sessionId ) {
+        final Entry entry = _entriesById.remove( sessionId );
+        if ( entry != null ) {
+            _entries.remove( entry );
+        }
+    }
+
+    /**
+     * Removes and returns the ids of all sessions that expire in memcached before the given time.
+     *
+     * @param time the time in millis
+     * @return the session ids ordered by expiration.
+     */
+    @Nonnull
+    List<String> pollExpiringBefore( final long time ) {
+        final List<String> result = new ArrayList<String>();
+        for ( final Iterator<Entry> iter = _entries.iterator(); iter.hasNext(); ) {
+            final Entry entry = iter.next();
+            if ( entry._expiresAt > time ) {
+                break;
+            }
+            iter.remove();
+            /* an entry that was replaced concurrently is just dropped
+             */
+            if ( _entriesById.remove( entry._sessionId, entry ) ) {
+                result.add( entry._sessionId );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The number of sessions in this index.
+     */
+    int size() {
+        return _entriesById.size();
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+
+        private final String _sessionId;
+        private final long _expiresAt;
+
+        Entry( final String sessionId, final long expiresAt ) {
+            _sessionId = sessionId;
+            _expiresAt = expiresAt;
+        }
+
+        @Override
+        public int compareTo( final Entry o ) {
+            if ( _expiresAt != o._expiresAt ) {
+                return _expiresAt < o._expiresAt ? -1 : 1;
+            }
+            return _sessionId.compareTo( o._sessionId );
+        }
+
+        @Override
+        public boolean equals( final Object obj ) {
+            if ( this == obj ) {
+                return true;
+            }
+            if ( !( obj instanceof Entry ) ) {
+                return false;
+            }
+            final Entry other = (Entry) obj;
+            return _expiresAt == other._expiresAt && _sessionId.equals( other._sessionId );
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * _sessionId.hashCode() + (int) ( _expiresAt ^ ( _expiresAt >>> 32 ) );
+        }
+
+    }
+
+}
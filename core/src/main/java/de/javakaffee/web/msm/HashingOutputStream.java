@@ -0,0 +1,58 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnull;
+
+/**
+ * An {@link OutputStream} that calculates the 64 bit hash (see {@link XXHash64}) of the
+ * data written to the underlying stream, so that no additional pass over the data is needed.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class HashingOutputStream extends FilterOutputStream {
+
+    private final XXHash64 _hash = new XXHash64();
+
+    HashingOutputStream( @Nonnull final OutputStream out ) {
+        super( out );
+    }
+
+    @Override
+    public void write( final int b ) throws IOException {
+        out.write( b );
+        _hash.update( b );
+    }
+
+    @Override
+    public void write( final byte[] b, final int off, final int len ) throws IOException {
+        out.write( b, off, len );
+        _hash.update( b, off, len );
+    }
+
+    /**
+     * The hash of the data written so far.
+     */
+    long getHash() {
+        return _hash.getValue();
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Determines if session attribute values are immutable, so that reading such an attribute
+ * cannot modify the session (used for attributes dirty tracking, see
+ * {@link MemcachedBackupSessionManager#setAttributesDirtyTracking(boolean)}).
+ * <p>
+ * Immutable are <code>null</code>, strings, boxed primitives, {@link BigInteger}, {@link BigDecimal},
+ * {@link Locale}, {@link UUID}, enums and the additionally registered classes. Classes are compared
+ * by name, so that registered classes don't have to be loaded by the webapp classloader.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class ImmutableTypes {
+
+    private static final Collection<String> BUILTIN = Arrays.asList(
+            String.class.getName(), Boolean.class.getName(), Character.class.getName(),
+            Byte.class.getName(), Short.class.getName(), Integer.class.getName(), Long.class.getName(),
+            Float.class.getName(), Double.class.getName(), BigInteger.class.getName(), BigDecimal.class.getName(),
+            Locale.class.getName(), UUID.class.getName() );
+
+    private final Set<String> _classNames;
+
+    /**
+     * @param classNames additional classes whose instances shall be treated as immutable.
+     */
+    ImmutableTypes( @Nonnull final Collection<String> classNames ) {
+        _classNames = new HashSet<String>( BUILTIN );
+        _classNames.addAll( classNames );
+    }
+
+    /**
+     * Determines, if the given attribute value is immutable.
+     */
+    boolean isImmutable( @Nullable final Object value ) {
+        return value == null
+            || value instanceof Enum<?>
+            || _classNames.contains( value.getClass().getName() );
+    }
+
+    /**
+     * Determines, if setting the given new value for an attribute with the given old value
+     * does not change the session, because both are immutable and equal.
+     */
+    boolean isUnchanged( @Nullable final Object oldValue, @Nullable final Object newValue ) {
+        return newValue != null && oldValue != null
+            && newValue.getClass() == oldValue.getClass()
+            && isImmutable( newValue )
+            && newValue.equals( oldValue );
+    }
+
+}
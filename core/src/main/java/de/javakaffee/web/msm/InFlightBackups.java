@@ -0,0 +1,75 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Keeps track of the number of bytes that were handed over to the memcached client
+ * for asynchronous storage and that are not yet written to memcached. The memcached
+ * client holds this data in its operation queue, so if memcached becomes slow this
+ * is the memory that piles up.
+ * <p>
+ * Completed writes are purged lazily from the head of the queue when the number of
+ * bytes is requested. Writes to memcached complete roughly in the order they were issued,
+ * so a slow write at the head may delay purging of completed writes behind it, the number
+ * of bytes is then overestimated until the head completes.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class InFlightBackups {
+
+    private final Queue<InFlightBackup> _backups = new ConcurrentLinkedQueue<InFlightBackup>();
+    private final AtomicLong _bytes = new AtomicLong();
+
+    /**
+     * Registers the given (not yet completed) write of <code>size</code> bytes.
+     */
+    void add( @Nonnull final Future<?> future, final int size ) {
+        _backups.add( new InFlightBackup( future, size ) );
+        _bytes.addAndGet( size );
+    }
+
+    /**
+     * The number of bytes of writes that are not yet completed.
+     */
+    long getBytes() {
+        InFlightBackup head;
+        while ( ( head = _backups.peek() ) != null && head._future.isDone() ) {
+            if ( _backups.remove( head ) ) {
+                _bytes.addAndGet( -head._size );
+            }
+        }
+        return _bytes.get();
+    }
+
+    private static final class InFlightBackup {
+        private final Future<?> _future;
+        private final int _size;
+        InFlightBackup( final Future<?> future, final int size ) {
+            _future = future;
+            _size = size;
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nonnull;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Coalesces concurrent loads of the same session: the first thread loading a session (the leader)
+ * performs the load, threads that want to load the same session while this load is running wait
+ * for the result of the leader instead of loading the session again.
+ * <p>
+ * Waiting threads are bounded by a timeout, if the leader did not finish in time they perform
+ * the load themselves.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class InFlightLoads<V> {
+
+    private static final Log LOG = LogFactory.getLog( InFlightLoads.class );
+
+    private final ConcurrentMap<String, FutureTask<V>> _loads = new ConcurrentHashMap<String, FutureTask<V>>();
+
+    /**
+     * Loads the session with the given id via the given loader, or waits for the result of a running load
+     * of this session.
+     *
+     * @param sessionId the id of the session to load.
+     * @param loader performs the load.
+     * @param timeoutInMillis the max time to wait for the result of a running load.
+     * @return the result of the loader.
+     */
+    V load( @Nonnull final String sessionId, @Nonnull final Callable<V> loader, final long timeoutInMillis ) {
+        final FutureTask<V> task = new FutureTask<V>( loader );
+        final FutureTask<V> running = _loads.putIfAbsent( sessionId, task );
+        if ( running == null ) {
+            try {
+                task.run();
+                return getResult( task );
+            } finally {
+                _loads.remove( sessionId, task );
+            }
+        }
+        try {
+            return getResult( running, timeoutInMillis );
+        } catch ( final TimeoutException e ) {
+            LOG.info( "Loading session " + sessionId + " by another thread did not finish within "
+                    + timeoutInMillis + " millis, loading it again." );
+            return call( loader );
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return call( loader );
+        }
+    }
+
+    /**
+     * The number of sessions that are currently loaded.
+     */
+    int size() {
+        return _loads.size();
+    }
+
+    private V getResult( final FutureTask<V> task ) {
+        try {
+            return getResult( task, 0 );
+        } catch ( final TimeoutException e ) {
+            throw new IllegalStateException( "The task is already done.", e );
+        } catch ( final InterruptedException e ) {
+            throw new IllegalStateException( "The task is already done.", e );
+        }
+    }
+
+    private V getResult( final FutureTask<V> task, final long timeoutInMillis ) throws TimeoutException, InterruptedException {
+        try {
+            return task.get( timeoutInMillis, TimeUnit.MILLISECONDS );
+        } catch ( final ExecutionException e ) {
+            throw asRuntimeException( e.getCause() );
+        }
+    }
+
+    private V call( final Callable<V> loader ) {
+        try {
+            return loader.call();
+        } catch ( final Exception e ) {
+            throw asRuntimeException( e );
+        }
+    }
+
+    private static RuntimeException asRuntimeException( final Throwable e ) {
+        if ( e instanceof RuntimeException ) {
+            return (RuntimeException) e;
+        }
+        if ( e instanceof Error ) {
+            throw (Error) e;
+        }
+        return new RuntimeException( e );
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+/**
+ * A {@link SessionAttributesTranscoder} that can serialize and deserialize single attribute values.
+ * The {@link TranscoderService} uses this to store the session attributes in a format that is indexed
+ * by attribute name, so that attribute values can be deserialized lazily on first access
+ * (see {@link MemcachedBackupSessionManager#setLazyAttributesDeserialization(boolean)}) and the
+ * serialized values of attributes that were not accessed can be stored again as they are.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public interface IndexedSessionAttributesTranscoder extends SessionAttributesTranscoder {
+
+    /**
+     * Serialize the value of the given session attribute. The serialized value can be
+     * deserialized using {@link #deserializeAttribute(byte[], int, int)}.
+     *
+     * @param session the session that owns the given attribute.
+     * @param name the name of the attribute.
+     * @param value the value of the attribute.
+     * @return the serialized value or <code>null</code> if the attribute shall not be stored
+     *  (e.g. because its value is not serializable).
+     */
+    byte[] serializeAttribute( final MemcachedBackupSession session, final String name, final Object value );
+
+    /**
+     * Deserialize the attribute value stored in the given range of the byte array, that
+     * was serialized via {@link #serializeAttribute(MemcachedBackupSession, String, Object)}.
+     *
+     * @param data the array containing the serialized value.
+     * @param offset the index of the first byte of the serialized value.
+     * @param length the number of bytes of the serialized value.
+     * @return the deserialized attribute value.
+     */
+    Object deserializeAttribute( final byte[] data, final int offset, final int length );
+
+}
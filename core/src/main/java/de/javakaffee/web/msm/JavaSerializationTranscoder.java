@@ -49,7 +49,7 @@ import org.apache.juli.logging.LogFactory;
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  * @version $Id$
  */
-public class JavaSerializationTranscoder implements SessionAttributesTranscoder {
+public class JavaSerializationTranscoder implements StreamingSessionAttributesTranscoder, IndexedSessionAttributesTranscoder {
 
     private static final Log LOG = LogFactory.getLog( JavaSerializationTranscoder.class );
 
@@ -98,23 +98,32 @@ public class JavaSerializationTranscoder implements SessionAttributesTranscoder
         }
 
         ByteArrayOutputStream bos = null;
-        ObjectOutputStream oos = null;
         try {
             bos = new ByteArrayOutputStream();
-            oos = new ObjectOutputStream( bos );
-
-            writeAttributes( session, attributes, oos );
-
+            serializeAttributes( session, attributes, bos );
             return bos.toByteArray();
         } catch ( final IOException e ) {
             throw new IllegalArgumentException( "Non-serializable object", e );
         } finally {
             closeSilently( bos );
-            closeSilently( oos );
         }
 
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final OutputStream out ) throws IOException {
+        if ( attributes == null ) {
+            throw new NullPointerException( "Can't serialize null" );
+        }
+        final ObjectOutputStream oos = new ObjectOutputStream( out );
+        writeAttributes( session, attributes, oos );
+        oos.flush();
+    }
+
     private void writeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
             final ObjectOutputStream oos ) throws IOException {
 
@@ -166,10 +175,18 @@ public class JavaSerializationTranscoder implements SessionAttributesTranscoder
      */
     @Override
     public Map<String, Object> deserializeAttributes( final byte[] in ) {
+        return deserializeAttributes( in, 0, in.length );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Object> deserializeAttributes( final byte[] in, final int offset, final int length ) {
         ByteArrayInputStream bis = null;
         ObjectInputStream ois = null;
         try {
-            bis = new ByteArrayInputStream( in );
+            bis = new ByteArrayInputStream( in, offset, length );
             ois = createObjectInputStream( bis );
 
             final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
@@ -188,10 +205,61 @@ public class JavaSerializationTranscoder implements SessionAttributesTranscoder
 
             return attributes;
         } catch ( final ClassNotFoundException e ) {
-            LOG.warn( "Caught CNFE decoding "+ in.length +" bytes of data", e );
+            LOG.warn( "Caught CNFE decoding "+ length +" bytes of data", e );
+            throw new RuntimeException( "Caught CNFE decoding data", e );
+        } catch ( final IOException e ) {
+            LOG.warn( "Caught IOException decoding "+ length +" bytes of data", e );
+            throw new RuntimeException( "Caught IOException decoding data", e );
+        } finally {
+            closeSilently( bis );
+            closeSilently( ois );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] serializeAttribute( final MemcachedBackupSession session, final String name, final Object value ) {
+        if ( value == null || session.exclude( name ) ) {
+            return null;
+        }
+        if ( !( value instanceof Serializable ) ) {
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug( "Ignoring attribute '" + name + "' as it does not implement Serializable" );
+            }
+            return null;
+        }
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            final ObjectOutputStream oos = new ObjectOutputStream( bos );
+            oos.writeObject( value );
+            oos.flush();
+            return bos.toByteArray();
+        } catch ( final NotSerializableException e ) {
+            LOG.warn( sm.getString( "standardSession.notSerializable", name, session.getIdInternal() ), e );
+            return null;
+        } catch ( final IOException e ) {
+            throw new IllegalArgumentException( "Non-serializable object", e );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object deserializeAttribute( final byte[] in, final int offset, final int length ) {
+        ByteArrayInputStream bis = null;
+        ObjectInputStream ois = null;
+        try {
+            bis = new ByteArrayInputStream( in, offset, length );
+            ois = createObjectInputStream( bis );
+            return ois.readObject();
+        } catch ( final ClassNotFoundException e ) {
+            LOG.warn( "Caught CNFE decoding "+ length +" bytes of data", e );
             throw new RuntimeException( "Caught CNFE decoding data", e );
         } catch ( final IOException e ) {
-            LOG.warn( "Caught IOException decoding "+ in.length +" bytes of data", e );
+            LOG.warn( "Caught IOException decoding "+ length +" bytes of data", e );
             throw new RuntimeException( "Caught IOException decoding data", e );
         } finally {
             closeSilently( bis );
@@ -16,18 +16,30 @@
  */
 package de.javakaffee.web.msm;
 
-import java.util.AbstractList;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * An LRUCache that supports a maximum number of cache entries and a time to
  * live for them. The TTL is measured from insertion time to access time.
+ * <p>
+ * The cache is split into segments (selected by the hash of the key), each backed
+ * by a {@link ConcurrentHashMap}, so that reads don't need a lock and writes only lock
+ * the segment of the key. When a segment is full an entry is evicted using the CLOCK
+ * algorithm (an approximation of LRU): an entry that was accessed since the clock hand
+ * passed it last gets a second chance, otherwise it's evicted. Caches with less than
+ * {@value #MIN_SEGMENT_SIZE} entries per segment use a single segment.
+ * </p>
+ * <p>
+ * The last access of an entry is recorded as {@link System#nanoTime()} in the entry itself,
+ * so that reads of different keys don't write to a shared counter. Therefore the access order
+ * (see {@link #getKeys()}) is only approximate for entries accessed at the same time.
+ * </p>
  *
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  * @version $Id$
@@ -38,9 +50,11 @@ import java.util.RandomAccess;
  */
 public class LRUCache<K, V> {
 
-    private final int _size;
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_SIZE = 32;
+
     private final long _ttl;
-    private final LinkedHashMap<K, ManagedItem<V>> _map;
+    private final Segment<K, V>[] _segments;
 
     /**
      * Creates a new instance with the given maximum size.
@@ -58,14 +72,18 @@ public class LRUCache<K, V> {
      * insertion time to access time.
      *
      * @param size
-     *            the maximum number of cached items
+     *            the maximum number of cached items, with 0 nothing is cached
      * @param ttlInMillis
      *            the time to live in milli seconds. Specify -1 for no limit
      */
+    @SuppressWarnings( "unchecked" )
     public LRUCache( final int size, final long ttlInMillis ) {
-        _size = size;
         _ttl = ttlInMillis;
-        _map = new LinkedHashMap<K, ManagedItem<V>>( size / 2, 0.75f, true );
+        final int countSegments = Math.min( MAX_SEGMENTS, Integer.highestOneBit( Math.max( 1, size / MIN_SEGMENT_SIZE ) ) );
+        _segments = new Segment[countSegments];
+        for ( int i = 0; i < countSegments; i++ ) {
+            _segments[i] = new Segment<K, V>( size / countSegments + ( i < size % countSegments ? 1 : 0 ) );
+        }
     }
 
     /**
@@ -78,15 +96,24 @@ public class LRUCache<K, V> {
      * @return the previously associated value or <code>null</code>.
      */
     public V put( final K key, final V value ) {
-        synchronized ( _map ) {
-            final ManagedItem<V> previous = _map.put( key, new ManagedItem<V>( value, System.currentTimeMillis() ) );
-            while ( _map.size() > _size ) {
-                _map.remove( _map.keySet().iterator().next() );
-            }
-            return previous != null
-                ? previous._value
-                : null;
-        }
+        return put( key, value, System.currentTimeMillis() );
+    }
+
+    /**
+     * Put the key and value with the given insertion time, e.g. of an entry taken from another cache,
+     * so that it expires when the original entry expires.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the value
+     * @param insertionTime
+     *            the time in millis the entry was created, a time in the future is treated as now.
+     * @return the previously associated value or <code>null</code>.
+     */
+    public V put( final K key, final V value, final long insertionTime ) {
+        final long now = System.currentTimeMillis();
+        return segmentFor( key ).put( key, new ManagedItem<K, V>( key, value, Math.min( insertionTime, now ), System.nanoTime() ) );
     }
 
     /**
@@ -112,8 +139,9 @@ public class LRUCache<K, V> {
      *         there was no mapping for the key
      */
     public V putIfDifferent( final K key, final V value ) {
-        synchronized ( _map ) {
-            final ManagedItem<V> item = _map.get( key );
+        final Segment<K, V> segment = segmentFor( key );
+        synchronized ( segment ) {
+            final ManagedItem<K, V> item = segment._map.get( key );
             if ( item == null || item._value == null || !item._value.equals( value ) ) {
                 return put( key, value );
             } else {
@@ -126,17 +154,14 @@ public class LRUCache<K, V> {
      * Removes the mapping for the specified key from this map if present.
      *
      * @param  key key whose mapping is to be removed from the map
-     * @return
      * @return the previous value associated with <tt>key</tt>, or
      *         <tt>null</tt> if there was no mapping for <tt>key</tt>.
      *         (A <tt>null</tt> return can also indicate that the map
      *         previously associated <tt>null</tt> with <tt>key</tt>.)
      */
     public V remove( final K key ) {
-        synchronized ( _map ) {
-            final ManagedItem<V> removed = _map.remove( key );
-            return removed != null ? removed._value : null;
-        }
+        final ManagedItem<K, V> removed = segmentFor( key )._map.remove( key );
+        return removed != null ? removed._value : null;
     }
 
     /**
@@ -147,17 +172,50 @@ public class LRUCache<K, V> {
      * @return the stored value or <code>null</code>
      */
     public V get( final K key ) {
-        synchronized ( _map ) {
-            final ManagedItem<V> item = _map.get( key );
-            if ( item == null ) {
-                return null;
-            }
-            if ( _ttl > -1 && System.currentTimeMillis() - item._insertionTime > _ttl ) {
-                _map.remove( key );
-                return null;
-            }
-            return item._value;
+        final Segment<K, V> segment = segmentFor( key );
+        final ManagedItem<K, V> item = segment._map.get( key );
+        if ( item == null ) {
+            return null;
+        }
+        if ( _ttl > -1 && System.currentTimeMillis() - item._insertionTime > _ttl ) {
+            segment._map.remove( key, item );
+            return null;
+        }
+        item._lastAccess = System.nanoTime();
+        if ( !item._referenced ) {
+            item._referenced = true;
         }
+        return item._value;
+    }
+
+    /**
+     * Returns the value that was stored to the given key without "touching" this key.
+     *
+     * @param key
+     *            the key
+     * @return the stored value or <code>null</code> (also if it's expired)
+     */
+    public V peek( final K key ) {
+        final ManagedItem<K, V> item = segmentFor( key )._map.get( key );
+        if ( item == null || _ttl > -1 && System.currentTimeMillis() - item._insertionTime > _ttl ) {
+            return null;
+        }
+        return item._value;
+    }
+
+    /**
+     * Returns the time the entry of the given key was created, without "touching" this key.
+     *
+     * @param key
+     *            the key
+     * @return the insertion time in millis or <code>-1</code> if the key is not cached (also if it's expired).
+     */
+    public long getInsertionTime( final K key ) {
+        final ManagedItem<K, V> item = segmentFor( key )._map.get( key );
+        if ( item == null || _ttl > -1 && System.currentTimeMillis() - item._insertionTime > _ttl ) {
+            return -1;
+        }
+        return item._insertionTime;
     }
 
     /**
@@ -168,9 +226,7 @@ public class LRUCache<K, V> {
      * @return <code>true</code> if the given key is present in the underlying map, otherwise <code>false</code>.
      */
     public boolean containsKey( final K key ) {
-        synchronized ( _map ) {
-            return _map.containsKey( key );
-        }
+        return segmentFor( key )._map.containsKey( key );
     }
 
     /**
@@ -180,104 +236,141 @@ public class LRUCache<K, V> {
      * @return a new list.
      */
     public List<K> getKeys() {
-        synchronized ( _map ) {
-            return new java.util.ArrayList<K>( _map.keySet() );
-        }
+        return getKeys( null );
     }
 
     /**
-     * The keys sorted by the given value comparator.
+     * The keys sorted by the given value comparator, keys with equal values are ordered
+     * by their last access, from least-recently accessed to most-recently.
      *
-     * @return the underlying set, see {@link LinkedHashMap#keySet()}.
+     * @return a new list.
      */
     public List<K> getKeysSortedByValue( final Comparator<V> comparator ) {
-        synchronized ( _map ) {
-            @SuppressWarnings( "unchecked" )
-            final
-            Entry<K, ManagedItem<V>>[] a = _map.entrySet().toArray( new Map.Entry[_map.size()] );
-            final Comparator<Entry<K, ManagedItem<V>>> c = new Comparator<Entry<K, ManagedItem<V>>>() {
+        return getKeys( comparator );
+    }
 
-                @Override
-                public int compare( final Entry<K, ManagedItem<V>> o1, final Entry<K, ManagedItem<V>> o2 ) {
-                    return comparator.compare( o1.getValue()._value, o2.getValue()._value );
+    private List<K> getKeys( final Comparator<V> comparator ) {
+        final List<ManagedItem<K, V>> items = new ArrayList<ManagedItem<K, V>>();
+        for ( final Segment<K, V> segment : _segments ) {
+            items.addAll( segment._map.values() );
+        }
+        Collections.sort( items, new Comparator<ManagedItem<K, V>>() {
+
+            @Override
+            public int compare( final ManagedItem<K, V> o1, final ManagedItem<K, V> o2 ) {
+                final int result = comparator != null ? comparator.compare( o1._value, o2._value ) : 0;
+                if ( result != 0 ) {
+                    return result;
                 }
+                // nanoTime values must be compared by their difference, as they may overflow
+                final long diff = o1._lastAccess - o2._lastAccess;
+                return diff < 0 ? -1 : ( diff == 0 ? 0 : 1 );
+            }
 
-            };
-            Arrays.sort(a, c);
-            return new LRUCache.ArrayList<K, V>( a );
+        } );
+        final List<K> result = new ArrayList<K>( items.size() );
+        for ( final ManagedItem<K, V> item : items ) {
+            result.add( item._key );
         }
+        return result;
     }
 
-    /**
-     * Stores a value with the timestamp this value was added to the cache.
-     *
-     * @param <T>
-     *            the type of the value
-     */
-    private static final class ManagedItem<T> {
-        private final T _value;
-        private final long _insertionTime;
-
-        private ManagedItem( final T value, final long accessTime ) {
-            _value = value;
-            _insertionTime = accessTime;
-        }
+    private Segment<K, V> segmentFor( final K key ) {
+        // spread the bits of the hash code (as done by HashMap)
+        int h = key.hashCode();
+        h ^= ( h >>> 20 ) ^ ( h >>> 12 );
+        h ^= ( h >>> 7 ) ^ ( h >>> 4 );
+        return _segments[h & ( _segments.length - 1 )];
     }
 
     /**
-     * An array list over the backed array of keys and managed items.
-     * @author Martin Grotzke
-     *
-     * @param <E>
-     * @param <V>
+     * A part of the cache with its own capacity. Reads go directly to the map, writes are
+     * synchronized on the segment. The clock queue contains the items in the order the
+     * clock hand passes them, it may contain items that were removed or replaced
+     * meanwhile, which are skipped and purged when the queue grows too big.
      */
-    private static class ArrayList<E, V> extends AbstractList<E> implements RandomAccess, java.io.Serializable {
-        private static final long serialVersionUID = -2764017481108945198L;
-        private final Entry<E, ManagedItem<V>>[] a;
-
-        ArrayList( final Entry<E, ManagedItem<V>>[] array ) {
-            if ( array == null ) {
-                throw new NullPointerException();
-            }
-            a = array;
-        }
+    private static final class Segment<K, V> {
 
-        public int size() {
-            return a.length;
-        }
-
-        public <T> T[] toArray( final T[] a ) {
-            throw new UnsupportedOperationException( "Not implemented." );
-        }
+        private final int _capacity;
+        private final ConcurrentHashMap<K, ManagedItem<K, V>> _map;
+        private final ArrayDeque<ManagedItem<K, V>> _clock;
 
-        public E get( final int index ) {
-            return a[index].getKey();
+        Segment( final int capacity ) {
+            _capacity = capacity;
+            _map = new ConcurrentHashMap<K, ManagedItem<K, V>>( _capacity / 2 + 1 );
+            _clock = new ArrayDeque<ManagedItem<K, V>>( _capacity + 1 );
         }
 
-        public E set( final int index, final E element ) {
-            throw new UnsupportedOperationException( "Not implemented." );
+        synchronized V put( final K key, final ManagedItem<K, V> item ) {
+            if ( _capacity == 0 ) {
+                return null;
+            }
+            if ( !_map.containsKey( key ) ) {
+                while ( _map.size() >= _capacity && evict() ) {
+                    // evict until there's space for the new item
+                }
+            }
+            final ManagedItem<K, V> previous = _map.put( key, item );
+            _clock.add( item );
+            if ( _clock.size() > 2 * _capacity ) {
+                purge();
+            }
+            return previous != null ? previous._value : null;
         }
 
-        public int indexOf( final Object o ) {
-            if ( o == null ) {
-                for ( int i = 0; i < a.length; i++ ) {
-                    if ( a[i] == null || a[i].getKey() == null ) {
-                        return i;
-                    }
+        /**
+         * Moves the clock hand until an item is found that was not referenced since the last pass.
+         * @return <code>false</code> if there's no item left to evict.
+         */
+        private boolean evict() {
+            int passes = 2 * _clock.size();
+            ManagedItem<K, V> item;
+            while ( ( item = _clock.poll() ) != null ) {
+                if ( _map.get( item._key ) != item ) {
+                    continue;
+                }
+                if ( item._referenced && --passes > 0 ) {
+                    item._referenced = false;
+                    _clock.add( item );
+                    continue;
                 }
+                _map.remove( item._key, item );
+                return true;
             }
-            else {
-                for ( int i = 0; i < a.length; i++ ) {
-                    if ( o.equals( a[i].getKey() ) ) {
-                        return i;
-                    }
+            return false;
+        }
+
+        private void purge() {
+            for ( final Iterator<ManagedItem<K, V>> iter = _clock.iterator(); iter.hasNext(); ) {
+                final ManagedItem<K, V> item = iter.next();
+                if ( _map.get( item._key ) != item ) {
+                    iter.remove();
                 }
             }
-            return -1;
         }
 
-        public boolean contains( final Object o ) {
-            return indexOf( o ) != -1;
+    }
+
+    /**
+     * Stores a value with the timestamp this value was added to the cache.
+     *
+     * @param <K>
+     *            the type of the key
+     * @param <T>
+     *            the type of the value
+     */
+    private static final class ManagedItem<K, T> {
+        private final K _key;
+        private final T _value;
+        private final long _insertionTime;
+        private volatile long _lastAccess;
+        private volatile boolean _referenced;
+
+        private ManagedItem( final K key, final T value, final long insertionTime, final long lastAccess ) {
+            _key = key;
+            _value = value;
+            _insertionTime = insertionTime;
+            _lastAccess = lastAccess;
         }
     }
 
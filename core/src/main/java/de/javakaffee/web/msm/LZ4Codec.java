@@ -0,0 +1,208 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+/**
+ * A pure java {@link CompressionCodec} producing the <a href="http://code.google.com/p/lz4/">LZ4</a>
+ * block format. It uses a simple single-pass hash table match finder, so it compresses less than
+ * the {@link DeflateCodec} but is much faster, especially for decompression.
+ * <p>
+ * A block is a sequence of tokens, each consisting of a literal length and match length nibble,
+ * the literals, the 2 byte (little endian) offset of the match and the extended lengths (bytes of 255
+ * terminated by a smaller byte). The last sequence only consists of literals.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class LZ4Codec implements CompressionCodec {
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 65535;
+    private static final int HASH_LOG = 12;
+    private static final int RUN_MASK = 15;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int compress( final byte[] src, final int srcOff, final int srcLen, final byte[] dest, final int destOff, final int maxDestLen ) {
+        final int srcEnd = srcOff + srcLen;
+        final int destEnd = destOff + maxDestLen;
+        int sp = srcOff;
+        int dp = destOff;
+        int anchor = srcOff;
+
+        if ( srcLen > MF_LIMIT ) {
+            final int[] table = new int[1 << HASH_LOG];
+            final int mfLimit = srcEnd - MF_LIMIT;
+            final int matchLimit = srcEnd - LAST_LITERALS;
+            sp++;
+            while ( sp < mfLimit ) {
+                final int sequence = readInt( src, sp );
+                final int h = hash( sequence );
+                int ref = srcOff + table[h];
+                table[h] = sp - srcOff;
+                if ( ref >= sp || sp - ref > MAX_DISTANCE || readInt( src, ref ) != sequence ) {
+                    // skip faster over data that doesn't compress
+                    sp += 1 + ( ( sp - anchor ) >>> 6 );
+                    continue;
+                }
+
+                while ( sp > anchor && ref > srcOff && src[sp - 1] == src[ref - 1] ) {
+                    sp--;
+                    ref--;
+                }
+                int matchLen = MIN_MATCH;
+                while ( sp + matchLen < matchLimit && src[sp + matchLen] == src[ref + matchLen] ) {
+                    matchLen++;
+                }
+
+                final int literalLen = sp - anchor;
+                if ( dp + 1 + literalLen + literalLen / 255 + 1 + 2 + ( matchLen - MIN_MATCH ) / 255 + 1 > destEnd ) {
+                    return -1;
+                }
+                final int tokenIdx = dp++;
+                dp = writeLiterals( src, anchor, literalLen, dest, dp, tokenIdx );
+                dest[dp++] = (byte) ( sp - ref );
+                dest[dp++] = (byte) ( ( sp - ref ) >>> 8 );
+                final int extraMatchLen = matchLen - MIN_MATCH;
+                if ( extraMatchLen >= RUN_MASK ) {
+                    dest[tokenIdx] |= RUN_MASK;
+                    dp = writeLength( extraMatchLen - RUN_MASK, dest, dp );
+                }
+                else {
+                    dest[tokenIdx] |= extraMatchLen;
+                }
+
+                sp += matchLen;
+                anchor = sp;
+            }
+        }
+
+        final int literalLen = srcEnd - anchor;
+        if ( dp + 1 + literalLen + literalLen / 255 + 1 > destEnd ) {
+            return -1;
+        }
+        final int tokenIdx = dp++;
+        dp = writeLiterals( src, anchor, literalLen, dest, dp, tokenIdx );
+        return dp - destOff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void decompress( final byte[] src, final int srcOff, final int srcLen, final byte[] dest, final int destOff, final int destLen ) {
+        final int srcEnd = srcOff + srcLen;
+        final int destEnd = destOff + destLen;
+        int sp = srcOff;
+        int dp = destOff;
+        try {
+            while ( true ) {
+                final int token = src[sp++] & 0xFF;
+
+                int literalLen = token >>> 4;
+                if ( literalLen == RUN_MASK ) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xFF;
+                        literalLen += b;
+                    } while ( b == 255 );
+                }
+                if ( sp + literalLen > srcEnd || dp + literalLen > destEnd ) {
+                    throw new IllegalArgumentException( "Malformed lz4 data, literals exceed the data at " + ( sp - srcOff ) );
+                }
+                System.arraycopy( src, sp, dest, dp, literalLen );
+                sp += literalLen;
+                dp += literalLen;
+                if ( sp == srcEnd ) {
+                    break;
+                }
+
+                final int offset = ( src[sp] & 0xFF ) | ( src[sp + 1] & 0xFF ) << 8;
+                sp += 2;
+                int ref = dp - offset;
+                if ( offset == 0 || ref < destOff ) {
+                    throw new IllegalArgumentException( "Malformed lz4 data, invalid match offset at " + ( sp - srcOff ) );
+                }
+                int matchLen = token & RUN_MASK;
+                if ( matchLen == RUN_MASK ) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xFF;
+                        matchLen += b;
+                    } while ( b == 255 );
+                }
+                matchLen += MIN_MATCH;
+                if ( dp + matchLen > destEnd ) {
+                    throw new IllegalArgumentException( "Malformed lz4 data, match exceeds the data at " + ( sp - srcOff ) );
+                }
+                if ( offset >= matchLen ) {
+                    System.arraycopy( dest, ref, dest, dp, matchLen );
+                    dp += matchLen;
+                }
+                else {
+                    // overlapping match, e.g. a run of the same bytes
+                    final int matchEnd = dp + matchLen;
+                    while ( dp < matchEnd ) {
+                        dest[dp++] = dest[ref++];
+                    }
+                }
+            }
+        } catch ( final ArrayIndexOutOfBoundsException e ) {
+            throw new IllegalArgumentException( "Malformed lz4 data, unexpected end of data", e );
+        }
+        if ( dp != destEnd ) {
+            throw new IllegalArgumentException( "Malformed lz4 data, expected " + destLen + " bytes but got " + ( dp - destOff ) );
+        }
+    }
+
+    private static int writeLiterals( final byte[] src, final int anchor, final int literalLen, final byte[] dest, int dp, final int tokenIdx ) {
+        if ( literalLen >= RUN_MASK ) {
+            dest[tokenIdx] = (byte) ( RUN_MASK << 4 );
+            dp = writeLength( literalLen - RUN_MASK, dest, dp );
+        }
+        else {
+            dest[tokenIdx] = (byte) ( literalLen << 4 );
+        }
+        System.arraycopy( src, anchor, dest, dp, literalLen );
+        return dp + literalLen;
+    }
+
+    private static int writeLength( int len, final byte[] dest, int dp ) {
+        while ( len >= 255 ) {
+            dest[dp++] = (byte) 255;
+            len -= 255;
+        }
+        dest[dp++] = (byte) len;
+        return dp;
+    }
+
+    private static int hash( final int sequence ) {
+        return ( sequence * -1640531535 ) >>> ( 32 - HASH_LOG );
+    }
+
+    private static int readInt( final byte[] data, final int off ) {
+        return ( data[off] & 0xFF )
+                | ( data[off + 1] & 0xFF ) << 8
+                | ( data[off + 2] & 0xFF ) << 16
+                | ( data[off + 3] & 0xFF ) << 24;
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The serialized value of a session attribute that is not yet deserialized, it's stored as
+ * value in the attributes map of a {@link MemcachedBackupSession} until the attribute is accessed.
+ * Then it's replaced by the deserialized value (see {@link MemcachedBackupSession#getAttribute(String)}).
+ * If the attribute is not accessed, the serialized value is stored again as it is.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class LazyAttribute {
+
+    private final IndexedSessionAttributesTranscoder _transcoder;
+    private final byte[] _data;
+    private final int _offset;
+    private final int _length;
+
+    LazyAttribute( @Nonnull final IndexedSessionAttributesTranscoder transcoder, @Nonnull final byte[] data,
+            final int offset, final int length ) {
+        _transcoder = transcoder;
+        _data = data;
+        _offset = offset;
+        _length = length;
+    }
+
+    /**
+     * Deserializes the attribute value.
+     */
+    Object deserialize() {
+        return _transcoder.deserializeAttribute( _data, _offset, _length );
+    }
+
+    /**
+     * The array containing the serialized value.
+     */
+    @Nonnull
+    byte[] getData() {
+        return _data;
+    }
+
+    /**
+     * The index of the serialized value in {@link #getData()}.
+     */
+    int getOffset() {
+        return _offset;
+    }
+
+    /**
+     * The number of bytes of the serialized value.
+     */
+    int getLength() {
+        return _length;
+    }
+
+    @Override
+    public String toString() {
+        return "LazyAttribute [length=" + _length + "]";
+    }
+
+}
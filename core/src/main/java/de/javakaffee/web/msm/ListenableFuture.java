@@ -0,0 +1,46 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A {@link Future} that notifies listeners when it's completed, so that follow-up tasks
+ * can be chained onto the completion instead of blocking a thread in {@link Future#get()}
+ * until the result is available.
+ *
+ * @param <V> the result type
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public interface ListenableFuture<V> extends Future<V> {
+
+    /**
+     * Registers a listener that is executed by the given executor when this future is completed
+     * (also if it failed or was cancelled). If this future is already completed the listener is
+     * passed to the executor immediately. The listener can then obtain the result via {@link #get()}
+     * without blocking.
+     *
+     * @param listener the listener to run on completion
+     * @param executor the executor used to run the listener
+     */
+    void addListener( @Nonnull Runnable listener, @Nonnull Executor executor );
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.Nonnull;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * A {@link FutureTask} that runs the registered listeners when the task is completed.
+ *
+ * @param <V> the result type
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+class ListenableFutureTask<V> extends FutureTask<V> implements ListenableFuture<V> {
+
+    private static final Log LOG = LogFactory.getLog( ListenableFutureTask.class );
+
+    private final Object _lock = new Object();
+    private List<Listener> _listeners = new ArrayList<Listener>( 2 );
+
+    ListenableFutureTask( @Nonnull final Callable<V> callable ) {
+        super( callable );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addListener( final Runnable listener, final Executor executor ) {
+        synchronized ( _lock ) {
+            if ( _listeners != null ) {
+                _listeners.add( new Listener( listener, executor ) );
+                return;
+            }
+        }
+        execute( listener, executor );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void done() {
+        final List<Listener> listeners;
+        synchronized ( _lock ) {
+            listeners = _listeners;
+            _listeners = null;
+        }
+        for ( final Listener listener : listeners ) {
+            execute( listener._runnable, listener._executor );
+        }
+    }
+
+    /**
+     * Passes the listener to the executor, exceptions are logged so that they don't affect
+     * the completing thread or other listeners.
+     */
+    static void execute( @Nonnull final Runnable listener, @Nonnull final Executor executor ) {
+        try {
+            executor.execute( listener );
+        } catch ( final RuntimeException e ) {
+            LOG.warn( "Could not execute listener " + listener, e );
+        }
+    }
+
+    private static final class Listener {
+        private final Runnable _runnable;
+        private final Executor _executor;
+        Listener( final Runnable runnable, final Executor executor ) {
+            _runnable = runnable;
+            _executor = executor;
+        }
+    }
+
+}
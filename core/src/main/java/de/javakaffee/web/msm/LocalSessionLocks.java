@@ -0,0 +1,521 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Statistics.StatsType.ACQUIRE_LOCK_AFTER_RELEASE;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClient;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * A local (in-JVM) table of session locks in front of the session locks in memcached.
+ * Requests of this tomcat that want to lock the same session queue up here, so that only
+ * the first one has to acquire the lock in memcached. When the holder releases the lock
+ * the memcached lock is {@link #handOver(String) handed over} to the next local waiter
+ * directly, so that the waiter neither has to poll memcached nor has to wait for the
+ * next retry interval. Only contention between different tomcats goes to memcached.
+ * <p>
+ * A memcached lock is only handed over while it's younger than the max hand over age,
+ * so that it doesn't expire while it's used by a waiter and so that other tomcats also
+ * get the chance to lock the session.
+ * </p>
+ * <p>
+ * The value of a memcached lock is a lease that consists of an owner token (unique for each
+ * acquisition) and the time the lease was granted (see {@link #createLockValue(String)}). While
+ * a lock is held its lease is renewed in the background before it expires, so that long requests
+ * don't lose their lock. A lock is only deleted on release if it's still owned (checked via gets),
+ * so that a request cannot delete a lock that was acquired by another tomcat after its own lock
+ * expired. As the check and the delete are two operations this leaves a small window, but a held
+ * lock does not expire anymore because of the renewal. A lease is renewed at most {@value #MAX_LEASE_RENEWALS}
+ * times, so that a lock that's not released (e.g. because of a bug) expires nevertheless.
+ * </p>
+ * <p>
+ * The hold times of the memcached locks of this tomcat are tracked (see {@link #getAverageHoldTime()}),
+ * so that waiters for locks of other tomcats can estimate when a lock will be released.
+ * </p>
+ * <p>
+ * Locks are not owned by a thread, as a lock might be released by a backup thread.
+ * The table is striped, each stripe is guarded by its own lock.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class LocalSessionLocks {
+
+    private static final Log LOG = LogFactory.getLog( LocalSessionLocks.class );
+
+    private static final int STRIPES = 32;
+    private static final char TOKEN_SEPARATOR = ':';
+
+    /**
+     * The max number of renewals of a lease, with the default lock expiration of 5 seconds
+     * a lock can be held for about one minute.
+     */
+    static final int MAX_LEASE_RENEWALS = 24;
+
+    private final Stripe[] _stripes;
+    private final long _maxHandOverAge;
+    private final int _lockExpiration;
+    private final Statistics _statistics;
+    private final String _tokenPrefix = Long.toHexString( new Random().nextLong() ) + "-";
+    private final AtomicLong _tokenCounter = new AtomicLong();
+    private final AtomicLong _averageHoldTime = new AtomicLong();
+    private final ScheduledExecutorService _renewal;
+
+    /**
+     * @param maxHandOverAge the max age in millis of a memcached lock that is handed over to a local waiter.
+     * @param lockExpiration the expiration of memcached locks in seconds, leases are renewed after half of this time.
+     * @param statistics used to count hand overs and lease renewals.
+     */
+    LocalSessionLocks( final long maxHandOverAge, final int lockExpiration, @Nonnull final Statistics statistics ) {
+        _maxHandOverAge = maxHandOverAge;
+        _lockExpiration = lockExpiration;
+        _statistics = statistics;
+        _stripes = new Stripe[STRIPES];
+        for ( int i = 0; i < STRIPES; i++ ) {
+            _stripes[i] = new Stripe();
+        }
+        _renewal = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+
+            @Override
+            public Thread newThread( final Runnable r ) {
+                final Thread result = new Thread( r, "msm-lock-lease-renewal" );
+                result.setDaemon( true );
+                return result;
+            }
+
+        } );
+        final long renewalCheckInterval = Math.max( 1, TimeUnit.SECONDS.toMillis( lockExpiration ) / 4 );
+        _renewal.scheduleWithFixedDelay( new Runnable() {
+
+            @Override
+            public void run() {
+                renewLeases();
+            }
+
+        }, renewalCheckInterval, renewalCheckInterval, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Stops the renewal of leases.
+     */
+    void shutdown() {
+        _renewal.shutdownNow();
+    }
+
+    /**
+     * Creates a new owner token for the acquisition of a memcached lock.
+     */
+    @Nonnull
+    String newToken() {
+        return _tokenPrefix + _tokenCounter.incrementAndGet();
+    }
+
+    /**
+     * Creates the value of a memcached lock, a lease of the given owner that's granted now.
+     */
+    @Nonnull
+    static String createLockValue( @Nonnull final String token ) {
+        return token + TOKEN_SEPARATOR + System.currentTimeMillis();
+    }
+
+    /**
+     * Determines the owner token of the given memcached lock value.
+     * @return the token or <code>null</code> if the value is not a lease (e.g. written by an older version).
+     */
+    @CheckForNull
+    static String getOwner( @Nullable final Object lockValue ) {
+        if ( !( lockValue instanceof String ) ) {
+            return null;
+        }
+        final String value = (String) lockValue;
+        final int idx = value.lastIndexOf( TOKEN_SEPARATOR );
+        return idx > 0 ? value.substring( 0, idx ) : null;
+    }
+
+    /**
+     * Determines the time the lease of the given memcached lock value was granted.
+     * @return the time in millis or <code>-1</code> if the value is not a lease.
+     */
+    static long getLeaseTime( @Nullable final Object lockValue ) {
+        if ( !( lockValue instanceof String ) ) {
+            return -1;
+        }
+        final String value = (String) lockValue;
+        final int idx = value.lastIndexOf( TOKEN_SEPARATOR );
+        try {
+            return idx > 0 ? Long.parseLong( value.substring( idx + 1 ) ) : -1;
+        } catch ( final NumberFormatException e ) {
+            return -1;
+        }
+    }
+
+    /**
+     * The average time (exponentially weighted) requests of this tomcat held a memcached lock,
+     * <code>0</code> if no lock was released yet.
+     */
+    long getAverageHoldTime() {
+        return _averageHoldTime.get();
+    }
+
+    /**
+     * Acquires the local lock for the given session, waits if the session is locked by another request.
+     *
+     * @param sessionId the id of the session to lock.
+     * @param timeoutMillis the max time to wait.
+     * @return <code>true</code> if the memcached lock was handed over by the previous holder, <code>false</code>
+     *          if the memcached lock must be acquired by the caller.
+     * @throws TimeoutException if the lock could not be acquired within the given time.
+     */
+    boolean acquire( @Nonnull final String sessionId, final long timeoutMillis ) throws InterruptedException, TimeoutException {
+        final Stripe stripe = stripeFor( sessionId );
+        stripe._lock.lock();
+        try {
+            final Holder holder = stripe._holders.get( sessionId );
+            if ( holder == null ) {
+                stripe._holders.put( sessionId, new Holder() );
+                return false;
+            }
+            final Waiter waiter = new Waiter( stripe._lock.newCondition() );
+            holder._waiters.add( waiter );
+            long nanos = TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+            try {
+                while ( !waiter._granted ) {
+                    if ( nanos <= 0 ) {
+                        holder._waiters.remove( waiter );
+                        throw new TimeoutException( "Reached timeout when waiting for local lock of session " + sessionId );
+                    }
+                    nanos = waiter._condition.awaitNanos( nanos );
+                }
+                _statistics.registerSince( ACQUIRE_LOCK_AFTER_RELEASE, waiter._grantedAt );
+            } catch ( final InterruptedException e ) {
+                if ( !waiter._granted ) {
+                    holder._waiters.remove( waiter );
+                    throw e;
+                }
+                // the lock was granted meanwhile, so it's owned now and must be released as usual
+                Thread.currentThread().interrupt();
+            }
+            return waiter._handedOver;
+        } finally {
+            stripe._lock.unlock();
+        }
+    }
+
+    /**
+     * Must be invoked when the holder of the local lock has acquired the lock in memcached.
+     *
+     * @param sessionId the id of the locked session.
+     * @param memcached the client that was used to acquire the lock, it's used to renew and to release the lock.
+     * @param lockName the key of the lock.
+     * @param token the owner token that's stored in the lock value.
+     */
+    void lockedInMemcached( @Nonnull final String sessionId, @Nonnull final MemcachedClient memcached,
+            @Nonnull final String lockName, @Nonnull final String token ) {
+        final Stripe stripe = stripeFor( sessionId );
+        stripe._lock.lock();
+        try {
+            final Holder holder = stripe._holders.get( sessionId );
+            if ( holder != null ) {
+                holder._lockedAt = holder._leasedAt = holder._acquiredAt = System.currentTimeMillis();
+                holder._lease = new Lease( memcached, lockName, token );
+                holder._renewals = 0;
+            }
+        } finally {
+            stripe._lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the lock of the given session: the lock is handed over to a local waiter if possible,
+     * otherwise the memcached lock is deleted if it's still owned and the local lock is released.
+     *
+     * @param sessionId the id of the session to unlock.
+     * @param memcached the client used to delete the lock, if it's not known who acquired the lock.
+     * @param lockName the key of the lock.
+     */
+    void release( @Nonnull final String sessionId, @Nonnull final MemcachedClient memcached, @Nonnull final String lockName ) {
+        if ( handOver( sessionId ) ) {
+            return;
+        }
+        try {
+            final Lease lease = getLease( sessionId );
+            if ( lease != null ) {
+                lease.release();
+            }
+            else {
+                memcached.delete( lockName );
+            }
+        } finally {
+            releaseLocal( sessionId );
+        }
+    }
+
+    /**
+     * Hands over the local lock together with the memcached lock to the next local waiter,
+     * if there's one and if the memcached lock is not too old.
+     *
+     * @return <code>true</code> if the lock was handed over, then the memcached lock must not
+     *          be released. Otherwise the memcached lock must be released and after that
+     *          {@link #releaseLocal(String)} must be invoked.
+     */
+    boolean handOver( @Nonnull final String sessionId ) {
+        final Stripe stripe = stripeFor( sessionId );
+        stripe._lock.lock();
+        try {
+            final Holder holder = stripe._holders.get( sessionId );
+            if ( holder == null || holder._waiters.isEmpty() || holder._lease == null
+                    || System.currentTimeMillis() - holder._lockedAt >= _maxHandOverAge ) {
+                return false;
+            }
+            final long now = System.currentTimeMillis();
+            registerHoldTime( now - holder._acquiredAt );
+            holder._acquiredAt = now;
+            final Waiter waiter = holder._waiters.removeFirst();
+            waiter._handedOver = true;
+            waiter.grant( now );
+            _statistics.localLockHandOver();
+            return true;
+        } finally {
+            stripe._lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the local lock of the given session (after the memcached lock was released or if it
+     * could not be acquired), the next local waiter gets the local lock and must acquire the memcached lock itself.
+     */
+    void releaseLocal( @Nonnull final String sessionId ) {
+        final Stripe stripe = stripeFor( sessionId );
+        stripe._lock.lock();
+        try {
+            final Holder holder = stripe._holders.get( sessionId );
+            if ( holder == null ) {
+                return;
+            }
+            if ( holder._lease != null ) {
+                registerHoldTime( System.currentTimeMillis() - holder._acquiredAt );
+            }
+            if ( holder._waiters.isEmpty() ) {
+                stripe._holders.remove( sessionId );
+                return;
+            }
+            holder._lockedAt = 0;
+            holder._lease = null;
+            holder._renewals = 0;
+            holder._waiters.removeFirst().grant( System.currentTimeMillis() );
+        } finally {
+            stripe._lock.unlock();
+        }
+    }
+
+    /**
+     * Determines if there's a local lock for the given session.
+     */
+    boolean isLocked( @Nonnull final String sessionId ) {
+        final Stripe stripe = stripeFor( sessionId );
+        stripe._lock.lock();
+        try {
+            return stripe._holders.containsKey( sessionId );
+        } finally {
+            stripe._lock.unlock();
+        }
+    }
+
+    /**
+     * The number of locally locked sessions.
+     */
+    int size() {
+        int result = 0;
+        for ( final Stripe stripe : _stripes ) {
+            stripe._lock.lock();
+            try {
+                result += stripe._holders.size();
+            } finally {
+                stripe._lock.unlock();
+            }
+        }
+        return result;
+    }
+
+    @CheckForNull
+    private Lease getLease( final String sessionId ) {
+        final Stripe stripe = stripeFor( sessionId );
+        stripe._lock.lock();
+        try {
+            final Holder holder = stripe._holders.get( sessionId );
+            return holder != null ? holder._lease : null;
+        } finally {
+            stripe._lock.unlock();
+        }
+    }
+
+    /**
+     * Renews the leases of memcached locks that reached half of their expiration, unless a lease
+     * was already renewed {@value #MAX_LEASE_RENEWALS} times. The leases are collected while holding
+     * the stripe locks, but renewed in memcached without them.
+     */
+    void renewLeases() {
+        final long renewBefore = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis( _lockExpiration ) / 2;
+        final List<Lease> leases = new ArrayList<Lease>();
+        for ( final Stripe stripe : _stripes ) {
+            stripe._lock.lock();
+            try {
+                for ( final Map.Entry<String, Holder> entry : stripe._holders.entrySet() ) {
+                    final Holder holder = entry.getValue();
+                    if ( holder._lease != null && holder._leasedAt <= renewBefore && holder._renewals <= MAX_LEASE_RENEWALS ) {
+                        if ( holder._renewals++ == MAX_LEASE_RENEWALS ) {
+                            LOG.warn( "Not renewing the lease of the lock of session " + entry.getKey() + " anymore, it was already renewed "
+                                    + MAX_LEASE_RENEWALS + " times. Is the lock not released?" );
+                            continue;
+                        }
+                        leases.add( holder._lease );
+                        holder._leasedAt = System.currentTimeMillis();
+                    }
+                }
+            } finally {
+                stripe._lock.unlock();
+            }
+        }
+        for ( final Lease lease : leases ) {
+            try {
+                if ( lease.renew( _lockExpiration ) ) {
+                    _statistics.lockLeaseRenewal();
+                }
+            } catch ( final RuntimeException e ) {
+                LOG.warn( "Could not renew lease of lock " + lease._lockName, e );
+            }
+        }
+    }
+
+    private void registerHoldTime( final long holdTime ) {
+        final long average = _averageHoldTime.get();
+        _averageHoldTime.set( average == 0 ? Math.max( 1, holdTime ) : Math.max( 1, average + ( holdTime - average ) / 8 ) );
+    }
+
+    private Stripe stripeFor( final String sessionId ) {
+        int h = sessionId.hashCode();
+        h ^= ( h >>> 20 ) ^ ( h >>> 12 );
+        h ^= ( h >>> 7 ) ^ ( h >>> 4 );
+        return _stripes[h & ( STRIPES - 1 )];
+    }
+
+    private static final class Stripe {
+        private final ReentrantLock _lock = new ReentrantLock();
+        private final Map<String, Holder> _holders = new HashMap<String, Holder>();
+    }
+
+    /**
+     * The local lock of a session with the time the memcached lock was acquired, its lease and the waiting requests.
+     */
+    private static final class Holder {
+        private long _lockedAt;
+        private long _leasedAt;
+        private long _acquiredAt;
+        private int _renewals;
+        private Lease _lease;
+        private final LinkedList<Waiter> _waiters = new LinkedList<Waiter>();
+    }
+
+    /**
+     * A memcached lock owned by this tomcat.
+     */
+    private static final class Lease {
+
+        private final MemcachedClient _memcached;
+        private final String _lockName;
+        private final String _token;
+
+        Lease( final MemcachedClient memcached, final String lockName, final String token ) {
+            _memcached = memcached;
+            _lockName = lockName;
+            _token = token;
+        }
+
+        /**
+         * Extends the expiration of the lock, if it's still owned.
+         * @return <code>true</code> if the lease was renewed.
+         */
+        boolean renew( final int expiration ) {
+            final CASValue<Object> current = _memcached.gets( _lockName );
+            if ( current == null || !_token.equals( getOwner( current.getValue() ) ) ) {
+                LOG.warn( "Lost lock " + _lockName + ", it's " + ( current == null ? "expired" : "owned by " + current.getValue() ) );
+                return false;
+            }
+            return _memcached.cas( _lockName, current.getCas(), expiration, createLockValue( _token ),
+                    _memcached.getTranscoder() ) == CASResponse.OK;
+        }
+
+        /**
+         * Deletes the lock, if it's still owned.
+         */
+        void release() {
+            final CASValue<Object> current = _memcached.gets( _lockName );
+            if ( current == null ) {
+                return;
+            }
+            if ( _token.equals( getOwner( current.getValue() ) ) ) {
+                _memcached.delete( _lockName );
+            }
+            else {
+                LOG.warn( "Not releasing lock " + _lockName + " as it's owned by " + current.getValue() + " now." );
+            }
+        }
+
+    }
+
+    private static final class Waiter {
+        private final Condition _condition;
+        private boolean _granted;
+        private boolean _handedOver;
+        private long _grantedAt;
+
+        Waiter( final Condition condition ) {
+            _condition = condition;
+        }
+
+        void grant( final long now ) {
+            _grantedAt = now;
+            _granted = true;
+            _condition.signal();
+        }
+    }
+
+}
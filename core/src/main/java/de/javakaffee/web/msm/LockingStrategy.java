@@ -20,14 +20,26 @@ import static de.javakaffee.web.msm.SessionValidityInfo.createValidityInfoKeyNam
 import static de.javakaffee.web.msm.SessionValidityInfo.decode;
 import static de.javakaffee.web.msm.SessionValidityInfo.encode;
 import static de.javakaffee.web.msm.Statistics.StatsType.*;
+import static java.lang.Math.max;
 import static java.lang.Math.min;
 import static java.lang.Thread.sleep;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
@@ -36,6 +48,7 @@ import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import net.spy.memcached.DefaultConnectionFactory;
 import net.spy.memcached.MemcachedClient;
 
 import org.apache.catalina.connector.Request;
@@ -63,28 +76,60 @@ public abstract class LockingStrategy {
         /** The application explicitely manages locks */
         APP,
         /** The session is locked for configured request patterns **/
-        URI_PATTERN
+        URI_PATTERN,
+        /** Reading requests share the lock, requests that modify the session lock it exclusively */
+        READ_WRITE
     }
 
-    protected static final String LOCK_VALUE = "locked";
+    /** The expiration of session locks in memcached in seconds. */
+    protected static final int LOCK_EXPIRATION = 5;
     protected static final int LOCK_RETRY_INTERVAL = 10;
     protected static final int LOCK_MAX_RETRY_INTERVAL = 500;
     protected static final int LOCK_TIMEOUT = 2000;
 
+    /**
+     * Runs listeners of completed backups in the completing thread, for short tasks that don't block.
+     */
+    protected static final Executor SAME_THREAD_EXECUTOR = new BackupSessionService.SynchronousExecutorService();
+
     protected final Log _log = LogFactory.getLog( getClass() );
 
     protected MemcachedBackupSessionManager _manager;
     protected final MemcachedClient _memcached;
-    protected LRUCache<String, Boolean> _missingSessionsCache;
+    protected MissingSessionsCache _missingSessionsCache;
     protected final SessionIdFormat _sessionIdFormat;
     protected final InheritableThreadLocal<Request> _requestsThreadLocal;
     private final ExecutorService _executor;
+    /*
+     * Runs tasks in the executor, or in the calling thread if this strategy is already shut down:
+     * when the locking mode is changed, requests that are still processed may use the previous strategy.
+     */
+    private final Executor _asyncExecutor = new Executor() {
+        @Override
+        public void execute( final Runnable command ) {
+            try {
+                _executor.execute( command );
+            } catch ( final RejectedExecutionException e ) {
+                command.run();
+            }
+        }
+    };
     private final boolean _storeSecondaryBackup;
+    private final boolean _validityInSessionItem;
+    private final SessionNearCache _sessionNearCache;
+    private final LocalSessionLocks _localSessionLocks;
+    private final Random _random = new Random();
+    private final ThreadLocal<PrefetchedItems> _prefetchedItems = new ThreadLocal<PrefetchedItems>();
+    /*
+     * The ids of the sessions locked for the current request whose locks are neither released nor passed
+     * to a backup, so that the lock of a session that's not backed up can be released (see onBackupWithoutLoadedSession).
+     */
+    private final ThreadLocal<Set<String>> _lockedSessionIds = new ThreadLocal<Set<String>>();
     protected final Statistics _stats;
 
     protected LockingStrategy( @Nonnull final MemcachedBackupSessionManager manager,
             @Nonnull final MemcachedClient memcached,
-            @Nonnull final LRUCache<String, Boolean> missingSessionsCache, final boolean storeSecondaryBackup,
+            @Nonnull final MissingSessionsCache missingSessionsCache, final boolean storeSecondaryBackup,
             @Nonnull final Statistics stats ) {
         _manager = manager;
         _memcached = memcached;
@@ -92,6 +137,9 @@ public abstract class LockingStrategy {
         _sessionIdFormat = new SessionIdFormat();
         _requestsThreadLocal = new InheritableThreadLocal<Request>();
         _storeSecondaryBackup = storeSecondaryBackup;
+        _validityInSessionItem = manager.isValidityInSessionItem();
+        _sessionNearCache = manager.getSessionNearCache();
+        _localSessionLocks = manager.getLocalSessionLocks();
         _stats = stats;
         _executor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
     }
@@ -102,7 +150,7 @@ public abstract class LockingStrategy {
     @CheckForNull
     public static LockingStrategy create( @Nullable final LockingMode lockingMode, @Nullable final Pattern uriPattern,
             @Nonnull final MemcachedClient memcached, @Nonnull final MemcachedBackupSessionManager manager,
-            @Nonnull final LRUCache<String, Boolean> missingSessionsCache, final boolean storeSecondaryBackup,
+            @Nonnull final MissingSessionsCache missingSessionsCache, final boolean storeSecondaryBackup,
             @Nonnull final Statistics stats ) {
         if ( lockingMode == null ) {
             return null;
@@ -117,18 +165,30 @@ public abstract class LockingStrategy {
                     stats );
         case NONE:
             return new LockingStrategyNone( manager, memcached, missingSessionsCache, storeSecondaryBackup, stats );
+        case READ_WRITE:
+            return new LockingStrategyReadWrite( manager, uriPattern, memcached, missingSessionsCache, storeSecondaryBackup,
+                    stats );
         default:
             throw new IllegalArgumentException( "LockingMode not yet supported: " + lockingMode );
         }
     }
 
     /**
-     * Shutdown this lockingStrategy, which frees all resources / releases threads.
+     * Shutdown this lockingStrategy, which frees all resources / releases threads. Tasks submitted
+     * afterwards are run in the calling thread.
      */
     public void shutdown() {
         _executor.shutdown();
     }
 
+    /**
+     * Invoked periodically by the background process of the container (see
+     * {@link MemcachedBackupSessionManager#backgroundProcess()}), for maintenance tasks.
+     */
+    protected void onBackgroundProcess() {
+        // nothing to do by default
+    }
+
     protected LockStatus lock( final String sessionId ) {
         return lock( sessionId, LOCK_TIMEOUT, TimeUnit.MILLISECONDS );
     }
@@ -138,13 +198,32 @@ public abstract class LockingStrategy {
             _log.debug( "Locking session " + sessionId );
         }
         final long start = System.currentTimeMillis();
+        boolean locallyLocked = false;
         try {
-            acquireLock( sessionId, LOCK_RETRY_INTERVAL, LOCK_MAX_RETRY_INTERVAL, timeUnit.toMillis( timeout ),
-                    System.currentTimeMillis() );
+            if ( _localSessionLocks.acquire( sessionId, timeUnit.toMillis( timeout ) ) ) {
+                _stats.registerSince( ACQUIRE_LOCK, start );
+                if ( _log.isDebugEnabled() ) {
+                    _log.debug( "Locked session " + sessionId + " (handed over locally)" );
+                }
+                registerLockedSession( sessionId );
+                return LockStatus.LOCKED;
+            }
+            locallyLocked = true;
+            final String token = _localSessionLocks.newToken();
+            final PrefetchedItems prefetchedItems = tryLockAndPrefetch( sessionId, token );
+            if ( prefetchedItems != null ) {
+                _prefetchedItems.set( prefetchedItems );
+            }
+            else {
+                acquireLock( sessionId, token, System.currentTimeMillis(), timeUnit.toMillis( timeout ), start );
+            }
+            _localSessionLocks.lockedInMemcached( sessionId, _memcached, _sessionIdFormat.createLockName( sessionId ), token );
+            locallyLocked = false;
             _stats.registerSince( ACQUIRE_LOCK, start );
             if ( _log.isDebugEnabled() ) {
                 _log.debug( "Locked session " + sessionId );
             }
+            registerLockedSession( sessionId );
             return LockStatus.LOCKED;
         } catch ( final TimeoutException e ) {
             _log.warn( "Reached timeout when trying to aquire lock for session " + sessionId
@@ -158,22 +237,156 @@ public abstract class LockingStrategy {
             _log.warn( "An exception occurred when trying to aquire lock for session " + sessionId );
             _stats.registerSince( ACQUIRE_LOCK_FAILURE, start );
             return LockStatus.COULD_NOT_AQUIRE_LOCK;
+        } finally {
+            if ( locallyLocked ) {
+                // the memcached lock could not be acquired, so the next local waiter shall try it
+                _localSessionLocks.releaseLocal( sessionId );
+            }
+        }
+    }
+
+    /**
+     * Tries to acquire the lock in memcached once and requests the items of the session in the same
+     * pipeline, so that a successful lock doesn't need another roundtrip for loading the session.
+     * The items are requested after the lock on the same connection (all keys contain the node id),
+     * so that they're read after the lock was acquired.
+     *
+     * @return the loaded items if the lock was acquired (possibly without items if they could not be loaded),
+     *  or <code>null</code> if the lock could not be acquired, then the loaded items are discarded.
+     */
+    @CheckForNull
+    private PrefetchedItems tryLockAndPrefetch( @Nonnull final String sessionId, @Nonnull final String token )
+            throws InterruptedException, ExecutionException {
+        final Future<Boolean> result = _memcached.add( _sessionIdFormat.createLockName( sessionId ), LOCK_EXPIRATION,
+                LocalSessionLocks.createLockValue( token ) );
+        final List<String> keys = getKeysToPrefetch( sessionId );
+        Future<Map<String, Object>> items = null;
+        try {
+            items = _memcached.asyncGetBulk( keys, _manager.getUpgradeSupportTranscoder() );
+        } catch ( final RuntimeException e ) {
+            _log.debug( "Could not request session " + sessionId + " together with the lock.", e );
+        }
+        if ( !result.get().booleanValue() ) {
+            if ( items != null ) {
+                items.cancel( false );
+            }
+            return null;
+        }
+        if ( _log.isDebugEnabled() ) {
+            _log.debug( "Locked session " + sessionId );
+        }
+        if ( items == null ) {
+            return PrefetchedItems.NONE;
+        }
+        try {
+            return new PrefetchedItems( sessionId, keys, items.get( DefaultConnectionFactory.DEFAULT_OPERATION_TIMEOUT,
+                    TimeUnit.MILLISECONDS ) );
+        } catch ( final Exception e ) {
+            _log.debug( "Could not load session " + sessionId + " together with the lock.", e );
+            return PrefetchedItems.NONE;
+        }
+    }
+
+    /**
+     * The keys that are loaded for the given session, in the order used by the manager: the validity info
+     * before the session, so that the loaded version is never newer than the loaded session. If the
+     * session is in the near cache only the validity info is needed.
+     */
+    @Nonnull
+    private List<String> getKeysToPrefetch( @Nonnull final String sessionId ) {
+        if ( _validityInSessionItem ) {
+            return Collections.singletonList( sessionId );
+        }
+        final String validityKey = createValidityInfoKeyName( sessionId );
+        if ( _sessionNearCache != null && _sessionNearCache.contains( sessionId ) ) {
+            return Collections.singletonList( validityKey );
+        }
+        return Arrays.asList( validityKey, sessionId );
+    }
+
+    /**
+     * Returns and removes the items that were loaded together with the lock of the given session by the current
+     * thread (see {@link #onBeforeLoadFromMemcached(String)}), must be invoked after onBeforeLoadFromMemcached.
+     *
+     * @return the loaded items or <code>null</code> if no items were loaded together with the lock.
+     */
+    @CheckForNull
+    PrefetchedItems takePrefetchedItems( @Nonnull final String sessionId ) {
+        final PrefetchedItems result = _prefetchedItems.get();
+        if ( result == null ) {
+            return null;
         }
+        _prefetchedItems.remove();
+        return sessionId.equals( result._sessionId ) ? result : null;
     }
 
-    protected void acquireLock( @Nonnull final String sessionId, final long retryInterval, final long maxRetryInterval,
+    /**
+     * Acquires the lock in memcached that's held by another tomcat, the lock value is a lease of the given owner token.
+     * Memcached cannot notify about released locks, so the lock is polled: the first attempt is made when the lock is
+     * expected to be released (based on the age of the lock and the hold times observed for locks of this tomcat),
+     * after that the retry interval is doubled, but it's limited to a fraction of the average hold time. Waits are
+     * randomized so that waiters of different tomcats don't retry in lockstep.
+     *
+     * @param lastFailedAttempt the time the previous attempt to acquire the lock failed.
+     */
+    protected void acquireLock( @Nonnull final String sessionId, @Nonnull final String token, final long lastFailedAttempt,
             final long timeout, final long start ) throws InterruptedException, ExecutionException, TimeoutException {
-        final Future<Boolean> result = _memcached.add( _sessionIdFormat.createLockName( sessionId ), 5, LOCK_VALUE );
-        if ( result.get().booleanValue() ) {
-            if ( _log.isDebugEnabled() ) {
-                _log.debug( "Locked session " + sessionId );
+        final String lockName = _sessionIdFormat.createLockName( sessionId );
+        final long lockedSince = getLockedSince( lockName, lastFailedAttempt );
+        long failedAttempt = lastFailedAttempt;
+        long retryInterval = LOCK_RETRY_INTERVAL;
+        while ( true ) {
+            checkTimeoutAndWait( sessionId, getTimeToWait( lockedSince, retryInterval ), LOCK_MAX_RETRY_INTERVAL, timeout, start );
+            final Future<Boolean> result = _memcached.add( lockName, LOCK_EXPIRATION, LocalSessionLocks.createLockValue( token ) );
+            if ( result.get().booleanValue() ) {
+                /* the lock was released between the previous and this attempt, so this is the max time it took
+                 * to acquire the released lock
+                 */
+                _stats.registerSince( ACQUIRE_LOCK_AFTER_RELEASE, failedAttempt );
+                if ( _log.isDebugEnabled() ) {
+                    _log.debug( "Locked session " + sessionId );
+                }
+                return;
             }
-            return;
+            failedAttempt = System.currentTimeMillis();
+            retryInterval = min( retryInterval * 2, LOCK_MAX_RETRY_INTERVAL );
+        }
+    }
+
+    /**
+     * Determines when the given lock was acquired (or its lease was renewed) by reading the lease.
+     *
+     * @return the lease time, or the given default if it's not known.
+     */
+    private long getLockedSince( @Nonnull final String lockName, final long defaultValue ) {
+        try {
+            final long result = LocalSessionLocks.getLeaseTime( _memcached.get( lockName ) );
+            // limit to the known time as the clocks of the tomcats might differ
+            return result > 0 ? min( result, defaultValue ) : defaultValue;
+        } catch ( final RuntimeException e ) {
+            _log.debug( "Could not read lock " + lockName, e );
+            return defaultValue;
+        }
+    }
+
+    /**
+     * The time to wait for the next attempt to acquire a lock that was acquired at the given time.
+     */
+    long getTimeToWait( final long lockedSince, final long retryInterval ) {
+        final long averageHoldTime = _localSessionLocks.getAverageHoldTime();
+        final long untilRelease = lockedSince + averageHoldTime - System.currentTimeMillis();
+        final long result;
+        if ( untilRelease > retryInterval ) {
+            result = min( untilRelease, LOCK_MAX_RETRY_INTERVAL );
         }
         else {
-            checkTimeoutAndWait( sessionId, retryInterval, maxRetryInterval, timeout, start );
-            acquireLock( sessionId, retryInterval * 2, maxRetryInterval, timeout, start );
+            final long maxRetryInterval = averageHoldTime > 0
+                ? max( LOCK_RETRY_INTERVAL, min( averageHoldTime / 4, LOCK_MAX_RETRY_INTERVAL ) )
+                : LOCK_MAX_RETRY_INTERVAL;
+            result = min( retryInterval, maxRetryInterval );
         }
+        // +/- 25% jitter
+        return result - result / 4 + (long) ( _random.nextDouble() * ( result / 2 ) );
     }
 
     protected void checkTimeoutAndWait( @Nonnull final String sessionId, final long retryInterval,
@@ -182,26 +395,81 @@ public abstract class LockingStrategy {
         if ( System.currentTimeMillis() >= start + timeout ) {
             throw new TimeoutException( "Reached timeout when trying to aquire lock for session " + sessionId );
         }
-        final long timeToWait = min( retryInterval, maxRetryInterval );
+        final long timeToWait = max( 0, min( min( retryInterval, maxRetryInterval ), start + timeout - System.currentTimeMillis() ) );
         if ( _log.isDebugEnabled() ) {
             _log.debug( "Could not aquire lock for session " + sessionId + ", waiting " + timeToWait + " millis now..." );
         }
         sleep( timeToWait );
     }
 
+    private void registerLockedSession( @Nonnull final String sessionId ) {
+        Set<String> sessionIds = _lockedSessionIds.get();
+        if ( sessionIds == null ) {
+            sessionIds = new HashSet<String>();
+            _lockedSessionIds.set( sessionIds );
+        }
+        sessionIds.add( sessionId );
+    }
+
+    /**
+     * Removes the given session from the sessions locked for the current request, as its lock
+     * is released or passed to the backup.
+     * @return <code>true</code> if the session was locked for the current request.
+     */
+    private boolean unregisterLockedSession( @Nonnull final String sessionId ) {
+        final Set<String> sessionIds = _lockedSessionIds.get();
+        return sessionIds != null && sessionIds.remove( sessionId );
+    }
+
     protected void releaseLock( @Nonnull final String sessionId ) {
+        unregisterLockedSession( sessionId );
         try {
             if ( _log.isDebugEnabled() ) {
                 _log.debug( "Releasing lock for session " + sessionId );
             }
             final long start = System.currentTimeMillis();
-            _memcached.delete( _sessionIdFormat.createLockName( sessionId ) );
+            _localSessionLocks.release( sessionId, _memcached, _sessionIdFormat.createLockName( sessionId ) );
             _stats.registerSince( RELEASE_LOCK, start );
         } catch ( final Exception e ) {
             _log.warn( "Caught exception when trying to release lock for session " + sessionId );
         }
     }
 
+    /**
+     * Releases the lock or shared lock held by the given session, if any.
+     */
+    protected void releaseLock( @Nonnull final MemcachedBackupSession session ) {
+        if ( session.isLocked() ) {
+            releaseLock( session.getIdInternal() );
+            session.releaseLock();
+        }
+        else if ( session.isLockedShared() ) {
+            releaseSharedLock( session.getIdInternal() );
+            session.releaseLock();
+        }
+    }
+
+    /**
+     * Releases the shared (read) lock of the given session.
+     */
+    protected void releaseSharedLock( @Nonnull final String sessionId ) {
+        try {
+            if ( _log.isDebugEnabled() ) {
+                _log.debug( "Releasing shared lock for session " + sessionId );
+            }
+            releaseSharedLock( _memcached, _sessionIdFormat.createReadLockName( sessionId ) );
+        } catch ( final Exception e ) {
+            _log.warn( "Caught exception when trying to release shared lock for session " + sessionId );
+        }
+    }
+
+    /**
+     * Decrements the counter of shared locks with the given key, without waiting for the result.
+     */
+    static void releaseSharedLock( @Nonnull final MemcachedClient memcached, @Nonnull final String readLockName ) {
+        memcached.asyncDecr( readLockName, 1 );
+    }
+
     /**
      * Is invoked for the backup of a non-sticky session that was not accessed for the current request.
      */
@@ -212,10 +480,25 @@ public abstract class LockingStrategy {
             return;
         }
 
+        if ( unregisterLockedSession( sessionId ) && _localSessionLocks.isLocked( sessionId ) ) {
+            // the session was locked for this request but it's not backed up (e.g. because it was removed)
+            releaseLock( sessionId );
+        }
+
         try {
 
             final long start = System.currentTimeMillis();
 
+            if ( _validityInSessionItem ) {
+                /* prepending the validity header also pings the session
+                 */
+                final byte[] header = SessionValidityHeaders.encode( start, start );
+                final Future<Boolean> result = _memcached.prepend( 0, sessionId, header );
+                _asyncExecutor.execute( new FutureTask<Void>( new OnBackupWithoutLoadedSessionWithValidityHeaderTask( sessionId, result, header ) ) );
+                _stats.registerSince( NON_STICKY_ON_BACKUP_WITHOUT_LOADED_SESSION, start );
+                return;
+            }
+
             final String validityKey = createValidityInfoKeyName( sessionId );
             final SessionValidityInfo validityInfo = loadSessionValidityInfoForValidityKey( validityKey );
             if ( validityInfo == null ) {
@@ -225,7 +508,7 @@ public abstract class LockingStrategy {
 
             final int maxInactiveInterval = validityInfo.getMaxInactiveInterval();
             final byte[] validityData = encode( maxInactiveInterval, System.currentTimeMillis(),
-                    System.currentTimeMillis() );
+                    System.currentTimeMillis(), validityInfo.getVersion() );
             // fix for #88, along with the change in session.getMemcachedExpirationTimeToSet
             final int expiration = maxInactiveInterval <= 0 ? 0 : maxInactiveInterval;
             _memcached.set( validityKey, expiration, validityData );
@@ -235,9 +518,9 @@ public abstract class LockingStrategy {
              * - ping session backup
              * - save validity backup
              */
-            final Callable<?> backupSessionTask = new OnBackupWithoutLoadedSessionTask( sessionId,
+            final Callable<Void> backupSessionTask = new OnBackupWithoutLoadedSessionTask( sessionId,
                     _storeSecondaryBackup, validityKey, validityData, maxInactiveInterval );
-            _executor.submit( backupSessionTask );
+            _asyncExecutor.execute( new FutureTask<Void>( backupSessionTask ) );
 
             if ( _log.isDebugEnabled() ) {
                 _log.debug( "Stored session validity info for session " + sessionId );
@@ -251,46 +534,110 @@ public abstract class LockingStrategy {
 
     }
 
+    /**
+     * Is invoked before the backup of the session is initiated. With the session near cache the validity info
+     * carrying the new session version is stored when the backup is done, so the lock must not be released
+     * by the backup but after the validity info is stored (see {@link #onAfterBackupSession}). Otherwise
+     * another tomcat could get the lock and read the old version.
+     */
+    protected void onBeforeBackupSession( @Nonnull final MemcachedBackupSession session ) {
+        if ( _sessionNearCache != null && ( session.isLocked() || session.isLockedShared() ) ) {
+            session.setLockReleaseDeferred( true );
+        }
+    }
+
     /**
      * Is invoked after the backup of the session is initiated, it's represented by the provided backupResult. The
      * requestId is identifying the request.
      */
     protected void onAfterBackupSession( @Nonnull final MemcachedBackupSession session, final boolean backupWasForced,
-            @Nonnull final Future<BackupResult> result, @Nonnull final String requestId,
+            @Nonnull final ListenableFuture<BackupResult> result, @Nonnull final String requestId,
             @Nonnull final BackupSessionService backupSessionService ) {
 
+        // the lock is released by the backup
+        unregisterLockedSession( session.getIdInternal() );
+
         if ( !_sessionIdFormat.isValid( session.getIdInternal() ) ) {
+            releaseDeferredLock( session );
             return;
         }
 
+        if ( _sessionNearCache != null ) {
+            /* the validity info contains the version of the stored session data, which is known
+             * when the backup is completed (so it's stored right now if the backup is already done).
+             * The lock is released afterwards, the validity info and the lock are stored on the same
+             * memcached node so the lock is not removed before the validity info is written.
+             */
+            result.addListener( new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        storeValidityInfo( session, backupWasForced, result, backupSessionService );
+                    } finally {
+                        releaseDeferredLock( session );
+                    }
+                }
+
+            }, SAME_THREAD_EXECUTOR );
+        }
+        else {
+            storeValidityInfo( session, backupWasForced, result, backupSessionService );
+        }
+
+    }
+
+    private void releaseDeferredLock( @Nonnull final MemcachedBackupSession session ) {
+        if ( session.isLockReleaseDeferred() ) {
+            session.setLockReleaseDeferred( false );
+            releaseLock( session );
+        }
+    }
+
+    private void storeValidityInfo( @Nonnull final MemcachedBackupSession session, final boolean backupWasForced,
+            @Nonnull final ListenableFuture<BackupResult> result, @Nonnull final BackupSessionService backupSessionService ) {
+
         try {
 
             final long start = System.currentTimeMillis();
 
-            final int maxInactiveInterval = session.getMaxInactiveInterval();
-            final byte[] validityData = encode( maxInactiveInterval, session.getLastAccessedTimeInternal(),
-                    session.getThisAccessedTimeInternal() );
             final String validityKey = createValidityInfoKeyName( session.getIdInternal() );
-            // fix for #88, along with the change in session.getMemcachedExpirationTimeToSet
-            final int expiration = maxInactiveInterval <= 0 ? 0 : maxInactiveInterval;
-            _memcached.set( validityKey, expiration, validityData );
-            if ( _log.isDebugEnabled() ) {
-                _log.debug( "Stored session validity info for session " + session.getIdInternal() );
+            final byte[] validityData;
+            if ( _validityInSessionItem ) {
+                /* the validity header is prepended to the session item if the backup was skipped
+                 */
+                validityData = SessionValidityHeaders.encode( session.getLastAccessedTimeInternal(),
+                        session.getThisAccessedTimeInternal() );
+            }
+            else {
+                final int maxInactiveInterval = session.getMaxInactiveInterval();
+                final long version = _sessionNearCache != null ? updateVersion( session, result ) : 0;
+                validityData = encode( maxInactiveInterval, session.getLastAccessedTimeInternal(),
+                        session.getThisAccessedTimeInternal(), version );
+                // fix for #88, along with the change in session.getMemcachedExpirationTimeToSet
+                final int expiration = maxInactiveInterval <= 0 ? 0 : maxInactiveInterval;
+                _memcached.set( validityKey, expiration, validityData );
+                if ( _log.isDebugEnabled() ) {
+                    _log.debug( "Stored session validity info for session " + session.getIdInternal() );
+                }
             }
 
-            /* The following task are performed outside of the request thread (includes waiting for the backup result):
+            /* The following task are performed outside of the request thread when the backup is completed:
              * - ping session if the backup was skipped (depends on the backup result)
              * - save secondary session backup if session was modified (backup not skipped)
              * - ping secondary session backup if the backup was skipped
              * - save secondary validity backup
              */
             final boolean pingSessionIfBackupWasSkipped = !backupWasForced;
-            final boolean performAsyncTasks = pingSessionIfBackupWasSkipped || _storeSecondaryBackup;
+            final boolean performAsyncTasks = pingSessionIfBackupWasSkipped || _storeSecondaryBackup || _validityInSessionItem;
 
             if ( performAsyncTasks ) {
-                final Callable<?> backupSessionTask = new OnAfterBackupSessionTask( session, result,
+                final Runnable backupSessionTask = new OnAfterBackupSessionTask( session, result,
                         pingSessionIfBackupWasSkipped, backupSessionService, _storeSecondaryBackup, validityKey, validityData );
-                _executor.submit( backupSessionTask );
+                result.addListener( backupSessionTask, _asyncExecutor );
+            }
+            else if ( _sessionNearCache != null ) {
+                _sessionNearCache.put( session, session.getVersion() );
             }
 
             _stats.registerSince( NON_STICKY_AFTER_BACKUP, start );
@@ -301,6 +648,36 @@ public abstract class LockingStrategy {
 
     }
 
+    /**
+     * Updates the version of the session data according to the result of the completed backup:
+     * a stored session gets a new version, a failed backup makes the version unknown.
+     *
+     * @return the version of the session data stored in memcached, <code>0</code> if it's unknown.
+     */
+    private long updateVersion( @Nonnull final MemcachedBackupSession session, @Nonnull final Future<BackupResult> result ) {
+        BackupResultStatus status;
+        try {
+            status = result.get().getStatus();
+        } catch ( final Exception e ) {
+            status = BackupResultStatus.FAILURE;
+        }
+        switch ( status ) {
+            case SUCCESS:
+                long version;
+                do {
+                    version = _random.nextLong();
+                } while ( version == 0 );
+                session.setVersion( version );
+                break;
+            case FAILURE:
+                session.setVersion( 0 );
+                break;
+            default:
+                // the stored session data is not changed
+        }
+        return session.getVersion();
+    }
+
     /**
      * Is used to determine if this thread / the current request already hit the application or if this method
      * invocation comes from the container.
@@ -340,19 +717,23 @@ public abstract class LockingStrategy {
      *
      * @param lockStatus
      *            the {@link LockStatus} that was returned from {@link #onBeforeLoadFromMemcached(String)}.
+     * @param validityInfo
+     *            the validity info of the session that was loaded together with the session,
+     *            <code>null</code> if it was not found in memcached.
      */
     protected void onAfterLoadFromMemcached( @Nonnull final MemcachedBackupSession session,
-            @Nullable final LockStatus lockStatus ) {
+            @Nullable final LockStatus lockStatus, @Nullable final SessionValidityInfo validityInfo ) {
         session.setLockStatus( lockStatus );
 
         final long start = System.currentTimeMillis();
-        final SessionValidityInfo info = loadSessionValidityInfo( session.getIdInternal() );
-        if ( info != null ) {
+        if ( validityInfo != null ) {
             _stats.registerSince( NON_STICKY_AFTER_LOAD_FROM_MEMCACHED, start );
-            session.setLastAccessedTimeInternal( info.getLastAccessedTime() );
-            session.setThisAccessedTimeInternal( info.getThisAccessedTime() );
+            session.setLastAccessedTimeInternal( validityInfo.getLastAccessedTime() );
+            session.setThisAccessedTimeInternal( validityInfo.getThisAccessedTime() );
+            session.setVersion( validityInfo.getVersion() );
         }
         else {
+            session.setVersion( 0 );
             _log.warn( "No validity info available for session " + session.getIdInternal() );
         }
     }
@@ -364,11 +745,15 @@ public abstract class LockingStrategy {
         final long start = System.currentTimeMillis();
 
         final String validityInfoKey = createValidityInfoKeyName( sessionId );
-        _memcached.delete( validityInfoKey );
+        if ( !_validityInSessionItem ) {
+            _memcached.delete( validityInfoKey );
+        }
 
         if (_storeSecondaryBackup) {
             _memcached.delete( _sessionIdFormat.createBackupKey( sessionId ) );
-            _memcached.delete( _sessionIdFormat.createBackupKey( validityInfoKey ) );
+            if ( !_validityInSessionItem ) {
+                _memcached.delete( _sessionIdFormat.createBackupKey( validityInfoKey ) );
+            }
         }
 
         _stats.registerSince( NON_STICKY_AFTER_DELETE_FROM_MEMCACHED, start );
@@ -376,10 +761,12 @@ public abstract class LockingStrategy {
 
     protected final void onRequestStart( final Request request ) {
         _requestsThreadLocal.set( request );
+        _lockedSessionIds.remove();
     }
 
     protected final void onRequestFinished() {
         _requestsThreadLocal.set( null );
+        _lockedSessionIds.remove();
     }
 
     private boolean pingSession( @Nonnull final String sessionId ) throws InterruptedException {
@@ -417,19 +804,69 @@ public abstract class LockingStrategy {
         }
     }
 
-    private void updateSession( @Nonnull final MemcachedBackupSession session,
-            @Nonnull final BackupSessionService backupSessionService ) throws InterruptedException {
-        final Future<BackupResult> result = backupSessionService.backupSession( session, true );
+    /**
+     * Waits for the result of prepending a validity header to a session item (which also pings the item).
+     *
+     * @return <code>false</code> if the item does not exist (anymore).
+     */
+    private boolean isValidityHeaderPrepended( @Nonnull final String key, @Nonnull final Future<Boolean> result )
+            throws InterruptedException {
         try {
-            if ( result.get().getStatus() != BackupResultStatus.SUCCESS ) {
-                _log.warn( "Update for session (after unsuccessful ping) did not return SUCCESS, but " + result.get() );
+            final boolean prepended = result.get();
+            _log.debug( "Got prepend validity header result " + prepended + " for " + key );
+            if ( !prepended ) {
+                _log.warn( "The validity header of " + key + " should be prepended in memcached,"
+                        + " but it seemed to be not existing anymore." );
             }
+            return prepended;
         } catch ( final ExecutionException e ) {
-            _log.warn( "An exception occurred when trying to update session " + session.getIdInternal(), e );
+            _log.warn( "An exception occurred when trying to prepend the validity header of " + key, e );
+            return true;
+        }
+    }
+
+    private void updateSession( @Nonnull final MemcachedBackupSession session,
+            @Nonnull final BackupSessionService backupSessionService ) {
+        final ListenableFuture<BackupResult> result = backupSessionService.backupSession( session, true );
+        result.addListener( new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if ( result.get().getStatus() != BackupResultStatus.SUCCESS ) {
+                        _log.warn( "Update for session (after unsuccessful ping) did not return SUCCESS, but " + result.get() );
+                    }
+                } catch ( final InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                } catch ( final ExecutionException e ) {
+                    _log.warn( "An exception occurred when trying to update session " + session.getIdInternal(), e );
+                }
+            }
+        }, SAME_THREAD_EXECUTOR );
+    }
+
+    /**
+     * Stores the secondary backup of the given session data. Like the session item, sessions exceeding
+     * the max item size are split into chunks (see {@link SessionChunks}) that are stored before the manifest.
+     *
+     * @return the result of storing the backup item (the session data or the manifest).
+     */
+    @Nonnull
+    private Future<Boolean> storeSessionBackup( @Nonnull final String sessionId, final int expiration, @Nonnull final byte[] data ) {
+        final int chunkSize = _manager.getSessionChunkSize();
+        final int numChunks = SessionChunks.getNumChunks( data.length, chunkSize );
+        for ( int i = 0; i < numChunks; i++ ) {
+            _memcached.set( _sessionIdFormat.createBackupKey( SessionChunks.createChunkKeyName( sessionId, i ) ), expiration,
+                    SessionChunks.createChunk( data, i, chunkSize ) );
         }
+        final byte[] item = numChunks > 0 ? SessionChunks.createManifest( data, numChunks ) : data;
+        return _memcached.set( _sessionIdFormat.createBackupKey( sessionId ), expiration, item );
     }
 
-    private final class OnAfterBackupSessionTask implements Callable<Void> {
+    /**
+     * The tasks performed when the backup of a session is completed, the backup result
+     * is therefore available without blocking.
+     */
+    private final class OnAfterBackupSessionTask implements Runnable {
 
         private final MemcachedBackupSession _session;
         private final Future<BackupResult> _result;
@@ -455,10 +892,30 @@ public abstract class LockingStrategy {
         }
 
         @Override
-        public Void call() throws Exception {
+        public void run() {
+            try {
+                doRun();
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            } catch ( final Exception e ) {
+                _log.warn( "An error occurred after the backup of session " + _session.getIdInternal(), e );
+            } finally {
+                // the session is cached when it's no longer used by this task
+                if ( _sessionNearCache != null ) {
+                    _sessionNearCache.put( _session, _session.getVersion() );
+                }
+            }
+        }
+
+        private void doRun() throws InterruptedException, ExecutionException {
 
             final BackupResult backupResult = _result.get();
 
+            if ( _validityInSessionItem ) {
+                doRunWithValidityHeader( backupResult );
+                return;
+            }
+
             if ( _pingSessionIfBackupWasSkipped ) {
                 if ( backupResult.getStatus() == BackupResultStatus.SKIPPED ) {
                     pingSession( _session, _backupSessionService );
@@ -491,14 +948,46 @@ public abstract class LockingStrategy {
 
             }
 
-            return null;
+        }
+
+        /**
+         * Prepends the validity header to the session item (and its secondary backup) if the backup was skipped.
+         * If the session item must be compacted or does not exist anymore it's stored again.
+         */
+        private void doRunWithValidityHeader( final BackupResult backupResult ) throws InterruptedException {
+            final boolean skipped = backupResult.getStatus() == BackupResultStatus.SKIPPED;
+            boolean rewrite = false;
+            if ( skipped ) {
+                rewrite = _session.isRewriteRequired()
+                    || !isValidityHeaderPrepended( _session.getId(), _memcached.prepend( 0, _session.getId(), _validityData ));
+                if ( rewrite ) {
+                    _session.setRewriteRequired( false );
+                    updateSession( _session, _backupSessionService );
+                }
+            }
+
+            if ( _storeSecondaryBackup ) {
+                try {
+                    final String key = _sessionIdFormat.createBackupKey( _session.getId() );
+                    if ( !skipped ) {
+                        saveSessionBackupFromResult( backupResult );
+                    }
+                    else if ( rewrite || !isValidityHeaderPrepended( key, _memcached.prepend( 0, key, _validityData ) ) ) {
+                        saveSessionBackup( _session );
+                    }
+                } catch( final NodeFailureException e ) {
+                    // handle an unavailable secondary/backup node (fix for issue #83)
+                    _log.info( "Secondary/backup node "+ e.getNodeId() +" not available, skipping additional backup of session " + _session.getIdInternal() );
+                } catch( final RuntimeException e ) {
+                    _log.info( "Could not store secondary backup of session " + _session.getIdInternal(), e );
+                }
+            }
         }
 
         public void saveSessionBackupFromResult( final BackupResult backupResult ) {
             final byte[] data = backupResult.getData();
             if ( data != null ) {
-                final String key = _sessionIdFormat.createBackupKey( _session.getId() );
-                _memcached.set( key, _session.getMemcachedExpirationTimeToSet(), data );
+                storeSessionBackup( _session.getId(), _session.getMemcachedExpirationTimeToSet(), data );
             }
             else {
                 _log.warn( "No data set for backupResultStatus " + backupResult.getStatus() + " for sessionId "
@@ -525,7 +1014,7 @@ public abstract class LockingStrategy {
                     _log.warn( "The secondary backup for session " + session.getIdInternal()
                             + " should be touched in memcached, but it seemed to be"
                             + " not existing. Will store in memcached again." );
-                    saveSessionBackup( session, key );
+                    saveSessionBackup( session );
                 }
             } catch ( final TimeoutException e ) {
                 _log.warn( "The secondary backup for session " + session.getIdInternal()
@@ -535,11 +1024,10 @@ public abstract class LockingStrategy {
             }
         }
 
-        public void saveSessionBackup( @Nonnull final MemcachedBackupSession session, @Nonnull final String key )
-                throws InterruptedException {
+        public void saveSessionBackup( @Nonnull final MemcachedBackupSession session ) throws InterruptedException {
             try {
                 final byte[] data = _manager.serialize( session );
-                final Future<Boolean> backupResult = _memcached.set( key, session.getMemcachedExpirationTimeToSet(), data );
+                final Future<Boolean> backupResult = storeSessionBackup( session.getId(), session.getMemcachedExpirationTimeToSet(), data );
                 if ( !backupResult.get().booleanValue() ) {
                     _log.warn( "Update for secondary backup of session "+ session.getIdInternal() +" (after unsuccessful ping) did not return sucess." );
                 }
@@ -624,6 +1112,47 @@ public abstract class LockingStrategy {
         }
     }
 
+    /**
+     * Checks the result of prepending the validity header to the session item for a request that did not
+     * access the session, and prepends the validity header to the secondary backup.
+     */
+    private final class OnBackupWithoutLoadedSessionWithValidityHeaderTask implements Callable<Void> {
+
+        private final String _sessionId;
+        private final Future<Boolean> _result;
+        private final byte[] _header;
+
+        private OnBackupWithoutLoadedSessionWithValidityHeaderTask( @Nonnull final String sessionId,
+                @Nonnull final Future<Boolean> result, @Nonnull final byte[] header ) {
+            _sessionId = sessionId;
+            _result = result;
+            _header = header;
+        }
+
+        @Override
+        public Void call() throws Exception {
+
+            if ( !isValidityHeaderPrepended( _sessionId, _result) ) {
+                _stats.nonStickySessionsPingFailed();
+            }
+
+            if ( _storeSecondaryBackup ) {
+                try {
+                    final String key = _sessionIdFormat.createBackupKey( _sessionId );
+                    isValidityHeaderPrepended( key, _memcached.prepend( 0, key, _header ) );
+                } catch( final NodeFailureException e ) {
+                    // handle an unavailable secondary/backup node (fix for issue #83)
+                    _log.info( "Secondary/backup node "+ e.getNodeId() +" not available, skipping additional ping of session " + _sessionId );
+                } catch( final RuntimeException e ) {
+                    _log.info( "Could not store secondary backup of session " + _sessionId, e );
+                }
+            }
+
+            return null;
+        }
+
+    }
+
     // ---------------- for testing
 
     @Nonnull
@@ -631,4 +1160,42 @@ public abstract class LockingStrategy {
         return _executor;
     }
 
+    /**
+     * Items of a session that were loaded together with the lock.
+     */
+    static final class PrefetchedItems {
+
+        static final PrefetchedItems NONE = new PrefetchedItems( null, Collections.<String>emptyList(),
+                Collections.<String, Object>emptyMap() );
+
+        private final String _sessionId;
+        private final Collection<String> _keys;
+        private final Map<String, Object> _items;
+
+        PrefetchedItems( @Nullable final String sessionId, @Nonnull final Collection<String> keys,
+                @Nonnull final Map<String, Object> items ) {
+            _sessionId = sessionId;
+            _keys = keys;
+            _items = items;
+        }
+
+        /**
+         * Specifies, if the given key was loaded (even if it was not found).
+         */
+        boolean contains( @Nonnull final String key ) {
+            return _keys.contains( key );
+        }
+
+        @CheckForNull
+        Object get( @Nonnull final String key ) {
+            return _items.get( key );
+        }
+
+        @Nonnull
+        Map<String, Object> getItems() {
+            return _items;
+        }
+
+    }
+
 }
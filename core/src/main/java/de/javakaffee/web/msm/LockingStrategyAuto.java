@@ -16,19 +16,26 @@
  */
 package de.javakaffee.web.msm;
 
-import java.util.concurrent.Callable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
 import net.spy.memcached.MemcachedClient;
 
 import org.apache.catalina.connector.Request;
 
-import de.javakaffee.web.msm.BackupSessionService.SimpleFuture;
 import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
 import de.javakaffee.web.msm.MemcachedBackupSessionManager.LockStatus;
 import de.javakaffee.web.msm.SessionTrackerValve.SessionBackupService.BackupResultStatus;
@@ -36,22 +43,209 @@ import de.javakaffee.web.msm.SessionTrackerValve.SessionBackupService.BackupResu
 /**
  * This locking strategy locks all requests except those that are registed (via autodetection)
  * to access the session only readonly.
+ * <p>
+ * The detected readonly requests can be shared with the other tomcats via memcached
+ * (see {@link MemcachedBackupSessionManager#setReadOnlyRequestSharingInterval(int)}) and stored
+ * in a snapshot file (see {@link MemcachedBackupSessionManager#setReadOnlyRequestSnapshotFile(String)}),
+ * so that new or restarted tomcats don't have to lock all requests until they detected readonly requests.
+ * </p>
  *
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  */
 public class LockingStrategyAuto extends LockingStrategy {
 
-    private final ExecutorService _requestPatternDetectionExecutor;
-    private final ReadOnlyRequestsCache _readOnlyRequestCache;
+    /**
+     * The expiration in seconds of the readonly requests shared in memcached.
+     */
+    private static final int SHARED_READ_ONLY_REQUESTS_EXPIRATION = (int) TimeUnit.HOURS.toSeconds( 6 );
+
+    /**
+     * The max size in bytes of the readonly requests shared in memcached, well below the
+     * item size limit of memcached (1 MB by default).
+     */
+    static final int MAX_SHARED_READ_ONLY_REQUESTS_SIZE = 512 * 1024;
+
+    /**
+     * The interval in millis the snapshot file is written.
+     */
+    private static final long SNAPSHOT_INTERVAL = TimeUnit.MINUTES.toMillis( 5 );
+
+    private static final String SNAPSHOT_ENCODING = "UTF-8";
+
+    protected final ReadOnlyRequestsCache _readOnlyRequestCache;
+    private final long _sharingInterval;
+    private final File _snapshotFile;
+    private long _lastShared;
+    private long _lastSnapshot;
 
     public LockingStrategyAuto( @Nonnull final MemcachedBackupSessionManager manager,
             @Nonnull final MemcachedClient memcached,
-            @Nonnull final LRUCache<String, Boolean> missingSessionsCache,
+            @Nonnull final MissingSessionsCache missingSessionsCache,
             final boolean storeSecondaryBackup,
             @Nonnull final Statistics stats ) {
         super( manager, memcached, missingSessionsCache, storeSecondaryBackup, stats );
-        _requestPatternDetectionExecutor = Executors.newSingleThreadExecutor();
-        _readOnlyRequestCache = new ReadOnlyRequestsCache();
+        _readOnlyRequestCache = manager.createReadOnlyRequestsCache();
+        _sharingInterval = TimeUnit.SECONDS.toMillis( manager.getReadOnlyRequestSharingInterval() );
+        _snapshotFile = manager.getReadOnlyRequestSnapshotFile() != null ? new File( manager.getReadOnlyRequestSnapshotFile() ) : null;
+        _lastShared = _lastSnapshot = System.currentTimeMillis();
+        if ( _snapshotFile != null ) {
+            loadSnapshot();
+        }
+        if ( _sharingInterval > 0 ) {
+            mergeSharedReadOnlyRequests();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if ( _snapshotFile != null ) {
+            writeSnapshot();
+        }
+        super.shutdown();
+    }
+
+    @Override
+    protected void onBackgroundProcess() {
+        final long now = System.currentTimeMillis();
+        if ( _sharingInterval > 0 && now - _lastShared >= _sharingInterval ) {
+            _lastShared = now;
+            shareReadOnlyRequests();
+        }
+        if ( _snapshotFile != null && now - _lastSnapshot >= SNAPSHOT_INTERVAL ) {
+            _lastSnapshot = now;
+            writeSnapshot();
+        }
+    }
+
+    /**
+     * Merges the readonly requests shared by the other tomcats.
+     */
+    private void mergeSharedReadOnlyRequests() {
+        final String key = _manager.getSharedReadOnlyRequestsKey();
+        if ( key == null ) {
+            _log.info( "Cannot load shared readonly requests, no memcached node available." );
+            return;
+        }
+        try {
+            final Object shared = _memcached.get( key );
+            if ( shared instanceof String ) {
+                _readOnlyRequestCache.merge( (String) shared );
+            }
+        } catch ( final RuntimeException e ) {
+            _log.warn( "Could not load shared readonly requests from memcached.", e );
+        }
+    }
+
+    /**
+     * Merges the readonly requests shared by the other tomcats and stores the merged requests
+     * in memcached. If the shared requests were modified concurrently they're not stored but
+     * shared with the next run.
+     */
+    void shareReadOnlyRequests() {
+        final String key = _manager.getSharedReadOnlyRequestsKey();
+        if ( key == null ) {
+            _log.debug( "Not sharing readonly requests, no memcached node available." );
+            return;
+        }
+        try {
+            final CASValue<Object> current = _memcached.gets( key );
+            if ( current != null && current.getValue() instanceof String ) {
+                _readOnlyRequestCache.merge( (String) current.getValue() );
+            }
+            final String snapshot = _readOnlyRequestCache.toSnapshot( MAX_SHARED_READ_ONLY_REQUESTS_SIZE );
+            if ( current == null ) {
+                if ( !_memcached.add( key, SHARED_READ_ONLY_REQUESTS_EXPIRATION, snapshot ).get().booleanValue()
+                        && _log.isDebugEnabled() ) {
+                    _log.debug( "Shared readonly requests were added concurrently, will share them with the next run." );
+                }
+            }
+            else {
+                final CASResponse response = _memcached.cas( key, current.getCas(), SHARED_READ_ONLY_REQUESTS_EXPIRATION,
+                        snapshot, _memcached.getTranscoder() );
+                if ( response == CASResponse.EXISTS || response == CASResponse.NOT_FOUND ) {
+                    if ( _log.isDebugEnabled() ) {
+                        _log.debug( "Shared readonly requests were modified concurrently (" + response
+                                + "), will share them with the next run." );
+                    }
+                }
+                else if ( response != CASResponse.OK ) {
+                    _log.warn( "Could not store shared readonly requests in memcached: " + response );
+                }
+            }
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        } catch ( final ExecutionException e ) {
+            _log.warn( "Could not share readonly requests via memcached.", e );
+        } catch ( final RuntimeException e ) {
+            _log.warn( "Could not share readonly requests via memcached.", e );
+        }
+    }
+
+    private void loadSnapshot() {
+        if ( !_snapshotFile.exists() ) {
+            return;
+        }
+        try {
+            _readOnlyRequestCache.merge( readFile( _snapshotFile ) );
+            _log.info( "Loaded readonly requests from " + _snapshotFile );
+        } catch ( final IOException e ) {
+            _log.warn( "Could not load readonly requests from " + _snapshotFile, e );
+        }
+    }
+
+    /**
+     * Writes the readonly requests to the snapshot file. The snapshot is written to a temporary
+     * file first, so that a crash while writing doesn't leave a broken snapshot.
+     */
+    void writeSnapshot() {
+        final File tmpFile = new File( _snapshotFile.getPath() + ".tmp" );
+        try {
+            writeFile( tmpFile, _readOnlyRequestCache.toSnapshot() );
+            if ( !tmpFile.renameTo( _snapshotFile ) && !( _snapshotFile.delete() && tmpFile.renameTo( _snapshotFile ) ) ) {
+                throw new IOException( "Could not rename " + tmpFile + " to " + _snapshotFile );
+            }
+        } catch ( final IOException e ) {
+            _log.warn( "Could not store readonly requests in " + _snapshotFile, e );
+        }
+    }
+
+    @Nonnull
+    private static String readFile( @Nonnull final File file ) throws IOException {
+        final Reader reader = new InputStreamReader( new FileInputStream( file ), SNAPSHOT_ENCODING );
+        try {
+            final StringBuilder sb = new StringBuilder();
+            final char[] buf = new char[4096];
+            int read;
+            while ( ( read = reader.read( buf ) ) != -1 ) {
+                sb.append( buf, 0, read );
+            }
+            return sb.toString();
+        } finally {
+            closeSilently( reader );
+        }
+    }
+
+    private static void writeFile( @Nonnull final File file, @Nonnull final String content ) throws IOException {
+        final File dir = file.getAbsoluteFile().getParentFile();
+        if ( dir != null && !dir.exists() && !dir.mkdirs() ) {
+            throw new IOException( "Could not create directory " + dir );
+        }
+        final Writer writer = new OutputStreamWriter( new FileOutputStream( file ), SNAPSHOT_ENCODING );
+        try {
+            writer.write( content );
+            // close explicitly so that a failure is not ignored
+            writer.close();
+        } finally {
+            closeSilently( writer );
+        }
+    }
+
+    private static void closeSilently( @Nonnull final Closeable closeable ) {
+        try {
+            closeable.close();
+        } catch ( final IOException e ) {
+            // ignore
+        }
     }
 
     @Override
@@ -69,7 +263,7 @@ public class LockingStrategyAuto extends LockingStrategy {
 
     @Override
     protected void onAfterBackupSession( final MemcachedBackupSession session, final boolean backupWasForced,
-            final Future<BackupResult> result,
+            final ListenableFuture<BackupResult> result,
             final String requestId,
             final BackupSessionService backupSessionService ) {
 
@@ -79,10 +273,13 @@ public class LockingStrategyAuto extends LockingStrategy {
 
         super.onAfterBackupSession( session, backupWasForced, result, requestId, backupSessionService );
 
-        final Callable<Void> task = new Callable<Void>() {
+        /* The classification is cheap, so it's run by the thread completing the backup
+         * (or right now if the backup is already done).
+         */
+        result.addListener( new Runnable() {
 
             @Override
-            public Void call() {
+            public void run() {
                 try {
                     if ( result.get().getStatus() == BackupResultStatus.SKIPPED ) {
                         _readOnlyRequestCache.readOnlyRequest( requestId );
@@ -92,20 +289,9 @@ public class LockingStrategyAuto extends LockingStrategy {
                 } catch ( final Exception e ) {
                     _readOnlyRequestCache.modifyingRequest( requestId );
                 }
-                return null;
             }
 
-        };
-        /* A simple future does not need to go through the executor, but we can process the result right now.
-         */
-        if ( result instanceof SimpleFuture ) {
-            try {
-                task.call();
-            } catch ( final Exception e ) { /* caught in the callable */ }
-        }
-        else {
-            _requestPatternDetectionExecutor.submit( task );
-        }
+        }, SAME_THREAD_EXECUTOR );
     }
 
     @Override
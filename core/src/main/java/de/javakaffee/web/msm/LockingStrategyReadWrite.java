@@ -0,0 +1,208 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Statistics.StatsType.ACQUIRE_LOCK;
+import static de.javakaffee.web.msm.Statistics.StatsType.ACQUIRE_LOCK_FAILURE;
+import static java.lang.Math.min;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClient;
+
+import org.apache.catalina.connector.Request;
+
+import de.javakaffee.web.msm.MemcachedBackupSessionManager.LockStatus;
+
+/**
+ * This locking strategy lets reading requests share the session lock, while requests that
+ * modify the session lock it exclusively (readers/writer lock).
+ * <p>
+ * A request is regarded as reading request if it has the request attribute {@link #READ_ONLY_REQUEST_ATTRIBUTE}
+ * set to <code>true</code>, if its uri matches the configured pattern or if it was detected to access the
+ * session only readonly (as with {@link LockingStrategyAuto}). The request attribute set to <code>false</code>
+ * marks a request as writing request.
+ * </p>
+ * <p>
+ * Readers are counted in memcached (see {@link SessionIdFormat#createReadLockName(String)}): a reader increments
+ * the counter and then checks that there's no exclusive lock, otherwise it decrements the counter again and retries.
+ * A writer acquires the exclusive lock and then waits until the counter is <code>0</code>. The counter expires
+ * like the exclusive lock, so that the counts of crashed requests don't block writers forever. As memcached's
+ * <code>incr</code> only sets the expiration when the counter is created, each reader refreshes the expiration
+ * (using <code>gets</code>/<code>cas</code>) after it got the shared lock.
+ * </p>
+ * <p>
+ * The exclusion of readers and writers is only best-effort: the expiration is not refreshed if the counter
+ * is modified concurrently (then it's refreshed by the concurrent reader, unless that was a reader releasing
+ * its lock), so the counter may expire while long running readers still hold the shared lock. Also a writer
+ * uses the session nevertheless if the readers don't finish in time (see {@link #waitForReaders(String)}).
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class LockingStrategyReadWrite extends LockingStrategyAuto {
+
+    /**
+     * The name of the request attribute that marks a request as reading (<code>true</code>)
+     * or writing (<code>false</code>) request.
+     */
+    public static final String READ_ONLY_REQUEST_ATTRIBUTE = "de.javakaffee.web.msm.readOnlyRequest";
+
+    private final Pattern _readUriPattern;
+
+    public LockingStrategyReadWrite( @Nonnull final MemcachedBackupSessionManager manager,
+            @Nullable final Pattern readUriPattern,
+            @Nonnull final MemcachedClient memcached,
+            @Nonnull final MissingSessionsCache missingSessionsCache,
+            final boolean storeSecondaryBackup,
+            @Nonnull final Statistics stats ) {
+        super( manager, memcached, missingSessionsCache, storeSecondaryBackup, stats );
+        _readUriPattern = readUriPattern;
+    }
+
+    @Override
+    protected LockStatus onBeforeLoadFromMemcached( final String sessionId ) throws InterruptedException,
+            ExecutionException {
+
+        final Request request = _requestsThreadLocal.get();
+
+        if ( request == null ) {
+            throw new RuntimeException( "There's no request set, this indicates that this findSession" +
+                    "was triggered by the container which should already be handled in findSession." );
+        }
+
+        if ( isReadingRequest( request ) ) {
+            if ( _log.isDebugEnabled() ) {
+                _log.debug( "Getting shared lock for reading request " + SessionTrackerValve.getURIWithQueryString( request ) );
+            }
+            _stats.nonStickySessionsReadOnlyRequest();
+            return lockShared( sessionId );
+        }
+
+        final LockStatus result = lock( sessionId );
+        if ( result == LockStatus.LOCKED ) {
+            try {
+                waitForReaders( sessionId );
+            } catch ( final InterruptedException e ) {
+                releaseLock( sessionId );
+                throw e;
+            }
+        }
+        return result;
+    }
+
+    private boolean isReadingRequest( @Nonnull final Request request ) {
+        final Object readOnly = request.getAttribute( READ_ONLY_REQUEST_ATTRIBUTE );
+        if ( readOnly != null ) {
+            return Boolean.valueOf( readOnly.toString() );
+        }
+        final String requestId = SessionTrackerValve.getURIWithQueryString( request );
+        if ( _readUriPattern != null && _readUriPattern.matcher( requestId ).matches() ) {
+            return true;
+        }
+        return _readOnlyRequestCache.isReadOnlyRequest( requestId );
+    }
+
+    /**
+     * Acquires a shared lock for the given session, that's only granted while the session is not locked exclusively.
+     */
+    protected LockStatus lockShared( @Nonnull final String sessionId ) {
+        final long start = System.currentTimeMillis();
+        final String lockName = _sessionIdFormat.createLockName( sessionId );
+        final String readLockName = _sessionIdFormat.createReadLockName( sessionId );
+        try {
+            long retryInterval = LOCK_RETRY_INTERVAL;
+            while ( true ) {
+                _memcached.incr( readLockName, 1, 1, LOCK_EXPIRATION );
+                if ( _memcached.get( lockName ) == null ) {
+                    refreshExpiration( readLockName );
+                    _stats.registerSince( ACQUIRE_LOCK, start );
+                    if ( _log.isDebugEnabled() ) {
+                        _log.debug( "Got shared lock for session " + sessionId );
+                    }
+                    return LockStatus.LOCKED_SHARED;
+                }
+                releaseSharedLock( _memcached, readLockName );
+                checkTimeoutAndWait( sessionId, retryInterval, LOCK_MAX_RETRY_INTERVAL, LOCK_TIMEOUT, start );
+                retryInterval = min( retryInterval * 2, LOCK_MAX_RETRY_INTERVAL );
+            }
+        } catch ( final TimeoutException e ) {
+            _log.warn( "Reached timeout when trying to aquire shared lock for session " + sessionId
+                    + ". Will use this session without this lock." );
+            _stats.registerSince( ACQUIRE_LOCK_FAILURE, start );
+            return LockStatus.COULD_NOT_AQUIRE_LOCK;
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Got interrupted while trying to lock session.", e );
+        } catch ( final RuntimeException e ) {
+            _log.warn( "An exception occurred when trying to aquire shared lock for session " + sessionId, e );
+            _stats.registerSince( ACQUIRE_LOCK_FAILURE, start );
+            return LockStatus.COULD_NOT_AQUIRE_LOCK;
+        }
+    }
+
+    /**
+     * Refreshes the expiration of the readers counter, without waiting for the result. If the counter
+     * was modified meanwhile the cas fails and the expiration is not refreshed.
+     */
+    private void refreshExpiration( @Nonnull final String readLockName ) {
+        final CASValue<Object> readers = _memcached.gets( readLockName );
+        if ( readers != null ) {
+            _memcached.asyncCAS( readLockName, readers.getCas(), LOCK_EXPIRATION, readers.getValue(), _memcached.getTranscoder() );
+        }
+    }
+
+    /**
+     * Waits until the shared locks of the given (exclusively locked) session are released. If the readers
+     * don't finish in time the session is used nevertheless, as readers don't modify the session.
+     */
+    private void waitForReaders( @Nonnull final String sessionId ) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        final String readLockName = _sessionIdFormat.createReadLockName( sessionId );
+        try {
+            long retryInterval = LOCK_RETRY_INTERVAL;
+            while ( countReaders( readLockName ) > 0 ) {
+                checkTimeoutAndWait( sessionId, retryInterval, LOCK_MAX_RETRY_INTERVAL, LOCK_TIMEOUT, start );
+                retryInterval = min( retryInterval * 2, LOCK_MAX_RETRY_INTERVAL );
+            }
+        } catch ( final TimeoutException e ) {
+            _log.warn( "Reached timeout when waiting for readers of session " + sessionId
+                    + ". Will use this session nevertheless." );
+        } catch ( final RuntimeException e ) {
+            _log.warn( "An exception occurred when waiting for readers of session " + sessionId, e );
+        }
+    }
+
+    private long countReaders( @Nonnull final String readLockName ) {
+        final Object value = _memcached.get( readLockName );
+        if ( value == null ) {
+            return 0;
+        }
+        try {
+            return Long.parseLong( value.toString().trim() );
+        } catch ( final NumberFormatException e ) {
+            return 0;
+        }
+    }
+
+}
@@ -20,6 +20,11 @@ import java.security.Principal;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionEvent;
 
 import org.apache.catalina.Manager;
 import org.apache.catalina.session.StandardSession;
@@ -46,10 +51,34 @@ public final class MemcachedBackupSession extends StandardSession {
     private static final long serialVersionUID = 1L;
 
     /*
-     * The hash code of the serialized byte[] of this session that is
+     * The 64 bit hash of the serialized byte[] of this session that is
      * used to determine, if the session was modified.
      */
-    private transient int _dataHashCode;
+    private transient long _dataHash;
+
+    /*
+     * Describes the separately stored attributes if the session was stored
+     * with attributes delta backup.
+     */
+    private transient AttributesManifest _attributesManifest;
+
+    /*
+     * The number of chunks the session is stored in, if it was too big
+     * for a single memcached item (0 otherwise).
+     */
+    private transient int _numChunks;
+
+    /*
+     * Specifies, if the session item must be stored again although the session
+     * was not modified (see SessionValidityHeaders).
+     */
+    private transient boolean _rewriteRequired;
+
+    /*
+     * The version of the session data stored in memcached for non-sticky sessions
+     * (see SessionNearCache), 0 if it's unknown.
+     */
+    private transient long _version;
 
     /*
      * Used to determine, if the session was #accessed since it was
@@ -88,9 +117,16 @@ public final class MemcachedBackupSession extends StandardSession {
 
     private transient boolean _attributesAccessed;
 
+    /*
+     * Only set if attributes dirty tracking is enabled, then reading attributes with
+     * immutable values does not mark the attributes as accessed.
+     */
+    private transient ImmutableTypes _immutableTypes;
+
     private transient boolean _sessionIdChanged;
     private transient boolean _sticky;
     private volatile transient LockStatus _lockStatus;
+    private volatile transient boolean _lockReleaseDeferred;
 
     /**
      * Creates a new instance without a given manager. This has to be
@@ -117,8 +153,11 @@ public final class MemcachedBackupSession extends StandardSession {
      */
     @Override
     public Object getAttribute( final String name ) {
-        _attributesAccessed = true;
-        return super.getAttribute( name );
+        final Object result = resolveAttribute( name, super.getAttribute( name ) );
+        if ( _immutableTypes == null || !_immutableTypes.isImmutable( result ) ) {
+            _attributesAccessed = true;
+        }
+        return result;
     }
 
     /**
@@ -126,7 +165,7 @@ public final class MemcachedBackupSession extends StandardSession {
      */
     @Override
     public void setAttribute( final String name, final Object value ) {
-        _attributesAccessed = true;
+        markAttributeModified( name, value );
         super.setAttribute( name, value );
     }
 
@@ -135,17 +174,79 @@ public final class MemcachedBackupSession extends StandardSession {
      */
     @Override
     public void setAttribute( final String name, final Object value, final boolean notify ) {
-        _attributesAccessed = true;
+        markAttributeModified( name, value );
         super.setAttribute( name, value, notify );
     }
 
+    private void markAttributeModified( final String name, final Object value ) {
+        // the replaced value is needed for listener notifications
+        resolveAttribute( name, name != null ? super.attributes.get( name ) : null );
+        if ( _immutableTypes == null || name == null || !_immutableTypes.isUnchanged( super.attributes.get( name ), value ) ) {
+            _attributesAccessed = true;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeAttribute( final String name, final boolean notify ) {
+        _attributesAccessed = true;
+        super.removeAttribute( name, notify );
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If the session was set to never expire before, the manager is notified so that the expiration
+     * of this session in memcached is updated again.
+     * </p>
+     */
+    @Override
+    public void setMaxInactiveInterval( final int interval ) {
+        final int previous = maxInactiveInterval;
+        super.setMaxInactiveInterval( interval );
+        if ( previous <= 0 && interval > 0 && manager instanceof MemcachedBackupSessionManager ) {
+            ( (MemcachedBackupSessionManager) manager ).scheduleExpirationUpdate( this );
+        }
+    }
+
+    /**
+     * Deserializes the given attribute value if it's a {@link LazyAttribute} and replaces it
+     * in the attributes map. As the session was activated before the attribute was deserialized,
+     * an {@link HttpSessionActivationListener} is notified when it's deserialized.
+     */
+    @SuppressWarnings( "unchecked" )
+    private Object resolveAttribute( final String name, final Object value ) {
+        if ( !( value instanceof LazyAttribute ) ) {
+            return value;
+        }
+        final Object result = ( (LazyAttribute) value ).deserialize();
+        final boolean replaced = super.attributes instanceof ConcurrentMap
+            ? ( (ConcurrentMap<String, Object>) super.attributes ).replace( name, value, result )
+            : super.attributes.put( name, result ) == value;
+        if ( !replaced ) {
+            // resolved (or modified) concurrently
+            return resolveAttribute( name, super.attributes.get( name ) );
+        }
+        if ( result instanceof HttpSessionActivationListener ) {
+            ( (HttpSessionActivationListener) result ).sessionDidActivate( new HttpSessionEvent( getSession() ) );
+        }
+        return result;
+    }
+
     @Override
     public void recycle() {
         super.recycle();
-        _dataHashCode = 0;
+        _dataHash = 0;
+        _attributesManifest = null;
+        _numChunks = 0;
+        _rewriteRequired = false;
+        _version = 0;
         _expirationUpdateRunning = false;
         _backupRunning = false;
         _lockStatus = null;
+        _lockReleaseDeferred = false;
     }
 
     /**
@@ -287,8 +388,9 @@ public final class MemcachedBackupSession extends StandardSession {
 
     /**
      * Determines, if attributes were accessed via {@link #getAttribute(String)},
-     * {@link #setAttribute(String, Object)} or {@link #setAttribute(String, Object, boolean)}
-     * since the last request.
+     * {@link #setAttribute(String, Object)}, {@link #setAttribute(String, Object, boolean)}
+     * or {@link #removeAttribute(String, boolean)} since the last request. With attributes
+     * dirty tracking read access to immutable values is not considered (see {@link #setImmutableTypes(ImmutableTypes)}).
      *
      * @return <code>true</code> if attributes were accessed.
      */
@@ -378,21 +480,82 @@ public final class MemcachedBackupSession extends StandardSession {
     }
 
     /**
-     * The hash code of the serialized byte[] of this sessions attributes that is
+     * The 64 bit hash of the serialized byte[] of this sessions attributes that is
      * used to determine, if the session was modified.
-     * @return the hashCode
+     * @return the hash
+     */
+    long getDataHash() {
+        return _dataHash;
+    }
+
+    /**
+     * Set the 64 bit hash of the serialized session attributes.
+     *
+     * @param attributesDataHash the hash of the serialized byte[].
+     */
+    void setDataHash( final long attributesDataHash ) {
+        _dataHash = attributesDataHash;
+    }
+
+    /**
+     * The manifest describing the separately stored attributes of this session, if
+     * the session was stored with attributes delta backup.
+     * @return the manifest or <code>null</code>.
+     */
+    AttributesManifest getAttributesManifest() {
+        return _attributesManifest;
+    }
+
+    /**
+     * Set the manifest describing the separately stored attributes of this session.
+     *
+     * @param attributesManifest the manifest of the attributes stored in memcached.
+     */
+    void setAttributesManifest( final AttributesManifest attributesManifest ) {
+        _attributesManifest = attributesManifest;
+    }
+
+    /**
+     * The number of chunks this session is stored in (see {@link SessionChunks}),
+     * <code>0</code> if it's stored in a single item.
      */
-    int getDataHashCode() {
-        return _dataHashCode;
+    int getNumChunks() {
+        return _numChunks;
     }
 
     /**
-     * Set the hash code of the serialized session attributes.
+     * Set the number of chunks this session is stored in.
      *
-     * @param attributesDataHashCode the hashCode of the serialized byte[].
+     * @param numChunks the number of chunks, <code>0</code> if it's stored in a single item.
+     */
+    void setNumChunks( final int numChunks ) {
+        _numChunks = numChunks;
+    }
+
+    /**
+     * Specifies, if the session item must be stored again although the session was not modified,
+     * because the validity headers prepended to the item must be compacted (see {@link SessionValidityHeaders}).
+     */
+    boolean isRewriteRequired() {
+        return _rewriteRequired;
+    }
+
+    /**
+     * Set if the session item must be stored again although the session was not modified.
+     */
+    void setRewriteRequired( final boolean rewriteRequired ) {
+        _rewriteRequired = rewriteRequired;
+    }
+
+    /**
+     * The version of the session data stored in memcached, <code>0</code> if it's unknown.
      */
-    void setDataHashCode( final int attributesDataHashCode ) {
-        _dataHashCode = attributesDataHashCode;
+    long getVersion() {
+        return _version;
+    }
+
+    void setVersion( final long version ) {
+        _version = version;
     }
 
     long getCreationTimeInternal() {
@@ -459,6 +622,8 @@ public final class MemcachedBackupSession extends StandardSession {
      */
     @Override
     public void removeAttributeInternal( final String name, final boolean notify ) {
+        // the removed value is needed for listener notifications
+        resolveAttribute( name, name != null ? super.attributes.get( name ) : null );
         super.removeAttributeInternal( name, notify );
     }
 
@@ -545,6 +710,17 @@ public final class MemcachedBackupSession extends StandardSession {
         _sticky = sticky;
     }
 
+    /**
+     * Enables attributes dirty tracking (see {@link MemcachedBackupSessionManager#setAttributesDirtyTracking(boolean)}):
+     * if set, reading attributes with values that are immutable according to the given {@link ImmutableTypes}
+     * and setting an attribute to an equal immutable value does not mark the attributes as accessed.
+     *
+     * @param immutableTypes the immutable types, or <code>null</code> to disable dirty tracking.
+     */
+    void setImmutableTypes( @Nullable final ImmutableTypes immutableTypes ) {
+        _immutableTypes = immutableTypes;
+    }
+
     /**
      * Returns if there was a lock created in memcached.
      */
@@ -566,11 +742,35 @@ public final class MemcachedBackupSession extends StandardSession {
         return _lockStatus == LockStatus.LOCKED;
     }
 
+    /**
+     * Returns if there was a shared (read) lock created in memcached.
+     */
+    public synchronized boolean isLockedShared() {
+        return _lockStatus == LockStatus.LOCKED_SHARED;
+    }
+
     /**
      * Resets the lock status.
      */
     public void releaseLock() {
         _lockStatus = null;
+        _lockReleaseDeferred = false;
+    }
+
+    /**
+     * Returns if the lock is not released by the backup but by the locking strategy,
+     * after the validity info of the session is stored.
+     */
+    boolean isLockReleaseDeferred() {
+        return _lockReleaseDeferred;
+    }
+
+    /**
+     * Specifies if the lock is not released by the backup but by the locking strategy,
+     * after the validity info of the session is stored.
+     */
+    void setLockReleaseDeferred( final boolean lockReleaseDeferred ) {
+        _lockReleaseDeferred = lockReleaseDeferred;
     }
 
 }
\ No newline at end of file
@@ -17,6 +17,7 @@
 package de.javakaffee.web.msm;
 
 
+import static de.javakaffee.web.msm.SessionValidityInfo.createValidityInfoKeyName;
 import static de.javakaffee.web.msm.Statistics.StatsType.*;
 
 import java.beans.PropertyChangeEvent;
@@ -24,10 +25,13 @@ import java.beans.PropertyChangeListener;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Future;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -53,12 +57,15 @@ import org.apache.catalina.util.LifecycleSupport;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
+import de.javakaffee.web.msm.BackupSessionService.OverloadPolicy;
 import de.javakaffee.web.msm.BackupSessionService.SimpleFuture;
 import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
 import de.javakaffee.web.msm.LockingStrategy.LockingMode;
+import de.javakaffee.web.msm.LockingStrategy.PrefetchedItems;
 import de.javakaffee.web.msm.NodeAvailabilityCache.CacheLoader;
 import de.javakaffee.web.msm.NodeIdResolver.MapBasedResolver;
 import de.javakaffee.web.msm.SessionTrackerValve.SessionBackupService;
+import de.javakaffee.web.msm.TranscoderService.Compression;
 
 /**
  * This {@link Manager} stores session in configured memcached nodes after the
@@ -187,6 +194,146 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
 
     private String _memcachedProtocol = PROTOCOL_TEXT;
 
+    /**
+     * Specifies, if session attributes shall be stored separately in memcached, so that
+     * only modified attributes need to be written. This is only supported for
+     * sticky sessions.
+     */
+    private boolean _attributesDeltaBackup = false;
+
+    /**
+     * The time in milliseconds that asynchronous session backups are delayed, so that
+     * multiple backups of the same session can be coalesced. <code>0</code> disables coalescing.
+     */
+    private int _backupCoalescingWindow = 0;
+
+    /**
+     * The max number of asynchronous session backups waiting for execution, <code>0</code> means unbounded.
+     */
+    private int _maxQueuedBackups = 1000;
+
+    /**
+     * The max number of bytes passed to memcached asynchronously that are not yet written,
+     * <code>0</code> means unbounded.
+     */
+    private long _maxInFlightBackupBytes = 0;
+
+    /**
+     * Specifies how asynchronous backups exceeding the limits above are handled.
+     */
+    private OverloadPolicy _backupOverloadPolicy = OverloadPolicy.CALLER_RUNS;
+
+    /**
+     * The compression applied to serialized session attributes.
+     */
+    private Compression _compression = Compression.NONE;
+
+    /**
+     * The min size of serialized session attributes that are compressed.
+     */
+    private int _compressionThreshold = TranscoderService.DEFAULT_COMPRESSION_THRESHOLD;
+
+    /**
+     * Specifies, if session attributes are stored indexed by name and deserialized on first access.
+     */
+    private boolean _lazyAttributesDeserialization = false;
+
+    /**
+     * The max size of a session item, bigger sessions are stored in chunks of this size.
+     */
+    private int _sessionChunkSize = SessionChunks.DEFAULT_CHUNK_SIZE;
+
+    /**
+     * Specifies, if the validity info of non-sticky sessions is stored in the session item
+     * instead of a separate item.
+     */
+    private boolean _validityInSessionItem = false;
+
+    /**
+     * The max number of deserialized non-sticky sessions kept in the local near cache,
+     * 0 disables the near cache.
+     */
+    private int _sessionNearCacheSize = 0;
+
+    /**
+     * The max time in millis a thread waits for the load of a session by another thread,
+     * 0 disables coalescing of concurrent session loads.
+     */
+    private int _loadWaitTimeout = 1000;
+
+    /**
+     * The max number of session ids that were not found in memcached and are remembered as missing.
+     */
+    private int _missingSessionsCacheSize = 200;
+
+    /**
+     * The time in millis a session id that was not found in memcached is remembered as missing.
+     */
+    private long _missingSessionsCacheTTL = 500;
+
+    /**
+     * Specifies, if lookups in the missing sessions cache are checked by a bloom filter first.
+     */
+    private boolean _missingSessionsCacheBloomFilter = false;
+
+    /**
+     * The class name of a custom {@link RequestKeyNormalizer} for the readonly requests detection
+     * of the <code>auto</code> and <code>readWrite</code> locking modes.
+     */
+    private String _readOnlyRequestKeyNormalizerClassName;
+
+    /**
+     * The query parameters ignored by the readonly requests detection (comma separated, <code>*</code> for all).
+     */
+    private String _readOnlyRequestIgnoredParameters;
+
+    /**
+     * Specifies, if numeric and UUID path segments are templated by the readonly requests detection.
+     */
+    private boolean _readOnlyRequestPathTemplating = false;
+
+    /**
+     * Whitespace separated rewrite rules (<code>regex=&gt;replacement</code>) of the readonly requests detection.
+     */
+    private String _readOnlyRequestRewriteRules;
+
+    /**
+     * The number of times a request must have been detected as readonly to skip locking.
+     */
+    private int _readOnlyRequestMinHits = 1;
+
+    /**
+     * The min ratio of readonly to all tracked requests of a request key to skip locking.
+     */
+    private double _readOnlyRequestMinConfidence = 1;
+
+    /**
+     * The interval in seconds the detected readonly requests are shared with other tomcats via memcached,
+     * 0 disables sharing.
+     */
+    private int _readOnlyRequestSharingInterval = 0;
+
+    /**
+     * The file the detected readonly requests are stored in and loaded from at startup.
+     */
+    private String _readOnlyRequestSnapshotFile;
+
+    /**
+     * Specifies, if reading session attributes with immutable values shall not cause
+     * a (serialization and) backup check of the session.
+     */
+    private boolean _attributesDirtyTracking = false;
+
+    /**
+     * Additional class names whose instances are treated as immutable with attributes dirty tracking.
+     */
+    private String _immutableAttributeClasses;
+
+    /*
+     * Only set if attributes dirty tracking is enabled.
+     */
+    private ImmutableTypes _immutableTypes;
+
     private final AtomicBoolean _enabled = new AtomicBoolean( true );
 
     // -------------------- END configuration properties --------------------
@@ -203,10 +350,10 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
      * that we don't have locally stored each findSession invocation would
      * trigger a memcached request - this would open the door for DOS attacks...
      *
-     * this solution: use a LRUCache with a timeout to store, which session had
+     * this solution: use a cache with a timeout to store, which session had
      * been requested in the last <n> millis.
      */
-    private LRUCache<String, Boolean> _missingSessionsCache;
+    private volatile MissingSessionsCache _missingSessionsCache;
 
     private NodeIdService _nodeIdService;
 
@@ -227,9 +374,26 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
 
     private BackupSessionService _backupSessionService;
 
+    /*
+     * The sessions ordered by their expiration in memcached, used for the expiration update in sticky mode.
+     */
+    private final ExpirationIndex _expirationIndex = new ExpirationIndex();
+
+    /*
+     * The running loads of sessions from memcached, used to coalesce concurrent loads of a session.
+     */
+    private final InFlightLoads<MemcachedBackupSession> _inFlightLoads = new InFlightLoads<MemcachedBackupSession>();
+
     private boolean _sticky = true;
     private String _lockingMode;
     private LockingStrategy _lockingStrategy;
+    private SessionNearCache _sessionNearCache;
+
+    /*
+     * requests of this tomcat that lock the same session queue up here, so that the
+     * memcached lock can be handed over directly.
+     */
+    private LocalSessionLocks _localSessionLocks;
 
     private SessionTrackerValve _sessionTrackerValve;
 
@@ -240,6 +404,10 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
          */
         LOCK_NOT_REQUIRED,
         LOCKED,
+        /**
+         * A shared lock for a reading request (see {@link LockingStrategy.LockingMode#READ_WRITE}).
+         */
+        LOCKED_SHARED,
         COULD_NOT_AQUIRE_LOCK
     }
 
@@ -285,6 +453,8 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
                 " nodes definition " + _memcachedNodes + ", failover nodes " + _failoverNodes + ")" );
 
         _statistics = Statistics.create( _enableStatistics );
+        _localSessionLocks = new LocalSessionLocks( TimeUnit.SECONDS.toMillis( LockingStrategy.LOCK_EXPIRATION ) / 2,
+                LockingStrategy.LOCK_EXPIRATION, _statistics );
 
         /* init memcached
          */
@@ -296,7 +466,7 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
 
         /* create the missing sessions cache
          */
-        _missingSessionsCache = new LRUCache<String, Boolean>( 200, 500 );
+        _missingSessionsCache = createMissingSessionsCache();
 
         _sessionTrackerValve = new SessionTrackerValve( _requestUriIgnorePattern,
                 (Context) getContainer(), this, _statistics, _enabled );
@@ -308,8 +478,7 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
 
         _upgradeSupportTranscoder = getTranscoderFactory().createSessionTranscoder( this );
 
-        _backupSessionService = new BackupSessionService( _transcoderService, _sessionBackupAsync, _sessionBackupTimeout,
-                _backupThreadCount, _memcached, _nodeIdService, _statistics );
+        _backupSessionService = createBackupSessionService( _transcoderService, _memcached, _nodeIdService );
 
         _log.info( getClass().getSimpleName() + " finished initialization, have node ids " + config.getNodeIds() + " and failover node ids " + config.getFailoverNodeIds() );
 
@@ -338,8 +507,16 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         return new MemcachedConfig( memcachedNodes, failoverNodes, new NodeIdList( nodeIds ), failoverNodeIds, addresses, address2Ids );
     }
 
+    private BackupSessionService createBackupSessionService( final TranscoderService transcoderService,
+            final MemcachedClient memcached, final NodeIdService nodeIdService ) {
+        return new BackupSessionService( transcoderService, _sessionBackupAsync, _sessionBackupTimeout,
+                _backupThreadCount, memcached, nodeIdService, _localSessionLocks, _statistics, isAttributesDeltaBackupEnabled(),
+                getBackupCoalescingWindowEffective(), _sessionChunkSize, _maxQueuedBackups, _maxInFlightBackupBytes, _backupOverloadPolicy );
+    }
+
     private TranscoderService createTranscoderService( final Statistics statistics ) {
-        return new TranscoderService( getTranscoderFactory().createTranscoder( this ) );
+        return new TranscoderService( getTranscoderFactory().createTranscoder( this ), _compression, _compressionThreshold, statistics,
+                _lazyAttributesDeserialization );
     }
 
     protected TranscoderFactory getTranscoderFactory() {
@@ -371,10 +548,16 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
             final NodeIdList nodeIds, final Map<InetSocketAddress, String> address2Ids,
             final Statistics statistics ) {
         final MapBasedResolver resolver = new MapBasedResolver( address2Ids );
+        /* if we compress session data ourselves spymemcached must not compress it again,
+         * validity headers can only be prepended to session items that are not compressed by spymemcached
+         */
+        final int compressionThreshold = _compression != Compression.NONE || isValidityInSessionItemEffective()
+            ? Integer.MAX_VALUE
+            : SerializingTranscoder.DEFAULT_COMPRESSION_THRESHOLD;
         if ( PROTOCOL_BINARY.equals( _memcachedProtocol ) ) {
-            return new SuffixLocatorBinaryConnectionFactory( nodeIds, resolver, _sessionIdFormat, statistics );
+            return new SuffixLocatorBinaryConnectionFactory( nodeIds, resolver, _sessionIdFormat, statistics, compressionThreshold );
         }
-        return new SuffixLocatorConnectionFactory( nodeIds, resolver, _sessionIdFormat, statistics );
+        return new SuffixLocatorConnectionFactory( nodeIds, resolver, _sessionIdFormat, statistics, compressionThreshold );
     }
 
     private TranscoderFactory createTranscoderFactory() throws InstantiationException, IllegalAccessException, ClassNotFoundException {
@@ -507,7 +690,7 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
     @Override
     public Session findSession( final String id ) throws IOException {
         MemcachedBackupSession result = (MemcachedBackupSession) super.findSession( id );
-        if ( result == null && canHitMemcached( id ) && _missingSessionsCache.get( id ) == null ) {
+        if ( result == null && canHitMemcached( id ) && !_missingSessionsCache.contains( id ) ) {
             // when the request comes from the container, it's from CoyoteAdapter.postParseRequest
             if ( !_sticky && _lockingStrategy.isContainerSessionLookup() ) {
                 // we can return just null as the requestedSessionId will still be set on
@@ -515,22 +698,50 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
                 return null;
             }
 
-            // else load the session from memcached
-            result = loadFromMemcached( id );
-            // checking valid() would expire() the session if it's not valid!
-            if ( result != null && result.isValid() ) {
-
-                // When the sessionId will be changed later in changeSessionIdOnTomcatFailover/handleSessionTakeOver
-                // (due to a tomcat failover) we don't want to notify listeners via session.activate for the
-                // old sessionId but do that later (in handleSessionTakeOver)
-                // See also http://code.google.com/p/memcached-session-manager/issues/detail?id=92
-                String jvmRoute;
-                final boolean sessionIdWillBeChanged = _sticky && ( jvmRoute = getJvmRoute() ) != null
-                    && !jvmRoute.equals( _sessionIdFormat.extractJvmRoute( id ) );
-
-                final boolean activate = !sessionIdWillBeChanged;
-                addValidLoadedSession( result, activate );
+            /* else load the session from memcached, concurrent requests for this session share the load
+             * if the session is not locked per request. Otherwise each request must acquire the lock itself.
+             */
+            if ( !isCoalescingLoads() ) {
+                return loadValidSessionFromMemcached( id );
             }
+            final Callable<MemcachedBackupSession> loader = new Callable<MemcachedBackupSession>() {
+                @Override
+                public MemcachedBackupSession call() {
+                    return loadValidSessionFromMemcached( id );
+                }
+            };
+            result = _inFlightLoads.load( id, loader, _loadWaitTimeout );
+        }
+        return result;
+    }
+
+    /**
+     * Determines if concurrent loads of the same session are shared, this is only possible if the
+     * session is not locked for the loading request (sticky sessions or non-sticky sessions without locking).
+     */
+    private boolean isCoalescingLoads() {
+        return _loadWaitTimeout > 0 && ( _sticky || _lockingStrategy instanceof LockingStrategyNone );
+    }
+
+    /**
+     * Loads the session with the given id from memcached and adds it to the sessions of this
+     * manager if it's valid.
+     */
+    private MemcachedBackupSession loadValidSessionFromMemcached( final String id ) {
+        final MemcachedBackupSession result = loadFromMemcached( id );
+        // checking valid() would expire() the session if it's not valid!
+        if ( result != null && result.isValid() ) {
+
+            // When the sessionId will be changed later in changeSessionIdOnTomcatFailover/handleSessionTakeOver
+            // (due to a tomcat failover) we don't want to notify listeners via session.activate for the
+            // old sessionId but do that later (in handleSessionTakeOver)
+            // See also http://code.google.com/p/memcached-session-manager/issues/detail?id=92
+            String jvmRoute;
+            final boolean sessionIdWillBeChanged = _sticky && ( jvmRoute = getJvmRoute() ) != null
+                && !jvmRoute.equals( _sessionIdFormat.extractJvmRoute( id ) );
+
+            final boolean activate = !sessionIdWillBeChanged;
+            addValidLoadedSession( result, activate );
         }
         return result;
     }
@@ -618,6 +829,7 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
     public MemcachedBackupSession createEmptySession() {
         final MemcachedBackupSession result = new MemcachedBackupSession( this );
         result.setSticky( _sticky );
+        result.setImmutableTypes( _immutableTypes );
         return result;
     }
 
@@ -673,6 +885,9 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         addValidLoadedSession( session, true );
 
         deleteFromMemcached( origSessionId );
+        deleteAttributesFromMemcached( origSessionId, session.getAttributesManifest() );
+        deleteChunksFromMemcached( origSessionId, session.getNumChunks() );
+        session.setNumChunks( 0 );
 
         _statistics.requestWithTomcatFailover();
 
@@ -764,6 +979,10 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         }
 
         try {
+            if ( _validityInSessionItem ) {
+                return loadBackupSessionWithValidityHeaders( requestedSessionId, backupNodeId );
+            }
+
             final SessionValidityInfo validityInfo = _lockingStrategy.loadBackupSessionValidityInfo( requestedSessionId );
             if ( validityInfo == null || !validityInfo.isValid() ) {
                 _log.info( "No validity info (or no valid one) found for sessionId " + requestedSessionId );
@@ -776,16 +995,9 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
                 return null;
             }
 
-            final MemcachedBackupSession session = _transcoderService.deserialize( (byte[]) obj, getContainer().getRealm(), this );
-            session.setSticky( _sticky );
-            session.setLastAccessedTimeInternal( validityInfo.getLastAccessedTime() );
-            session.setThisAccessedTimeInternal( validityInfo.getThisAccessedTime() );
-
-            final String newSessionId = _sessionIdFormat.createNewSessionId( requestedSessionId, backupNodeId );
-            _log.info( "Session backup loaded from secondary memcached for "+ requestedSessionId +" (will be relocated)," +
-            		" setting new id "+ newSessionId +" on session..." );
-            session.setIdInternal( newSessionId );
-            return session;
+            final byte[] data = joinBackupChunksIfRequired( requestedSessionId, (byte[]) obj );
+            final MemcachedBackupSession session = _transcoderService.deserialize( data, getContainer().getRealm(), this );
+            return relocateBackupSession( session, validityInfo, requestedSessionId, backupNodeId );
 
         } catch( final Exception e ) {
             _log.error( "Could not get backup validityInfo or backup session for sessionId " + requestedSessionId, e );
@@ -793,6 +1005,72 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         return null;
     }
 
+    /**
+     * Loads the backup of a session that was stored with the validity info in the session item.
+     */
+    @CheckForNull
+    private MemcachedBackupSession loadBackupSessionWithValidityHeaders( @Nonnull final String requestedSessionId,
+            @Nonnull final String backupNodeId ) {
+        final Object obj = _memcached.get( _sessionIdFormat.createBackupKey( requestedSessionId ) );
+        if ( obj == null ) {
+            _log.info( "No backup found for sessionId " + requestedSessionId );
+            return null;
+        }
+
+        byte[] data = (byte[]) obj;
+        final SessionValidityHeaders headers = SessionValidityHeaders.decode( data );
+        if ( headers != null ) {
+            data = headers.strip( data );
+        }
+        data = joinBackupChunksIfRequired( requestedSessionId, data );
+        final MemcachedBackupSession session = _transcoderService.deserialize( data, getContainer().getRealm(), this );
+        if ( session == null ) {
+            return null;
+        }
+        final SessionValidityInfo validityInfo = createValidityInfo( session, headers );
+        if ( !validityInfo.isValid() ) {
+            _log.info( "The backup of session " + requestedSessionId + " is not valid anymore." );
+            return null;
+        }
+        return relocateBackupSession( session, validityInfo, requestedSessionId, backupNodeId );
+    }
+
+    /**
+     * Loads and joins the chunks of the secondary backup if the given backup item is the manifest of
+     * a session that was too big for a single item, otherwise the given data is returned.
+     */
+    @Nonnull
+    private byte[] joinBackupChunksIfRequired( @Nonnull final String sessionId, @Nonnull final byte[] data ) {
+        final SessionChunks chunks = SessionChunks.decode( data );
+        if ( chunks == null ) {
+            return data;
+        }
+        if ( _log.isDebugEnabled() ) {
+            _log.debug( "Loading chunks of the backup of session " + sessionId + ": " + chunks );
+        }
+        final List<String> keys = new ArrayList<String>( chunks.getNumChunks() );
+        for ( final String chunkKey : chunks.getChunkKeys( sessionId ) ) {
+            keys.add( _sessionIdFormat.createBackupKey( chunkKey ) );
+        }
+        return chunks.join( sessionId, keys, _memcached.getBulk( keys ) );
+    }
+
+    @Nonnull
+    private MemcachedBackupSession relocateBackupSession( @Nonnull final MemcachedBackupSession session,
+            @Nonnull final SessionValidityInfo validityInfo, @Nonnull final String requestedSessionId,
+            @Nonnull final String backupNodeId ) {
+        session.setSticky( _sticky );
+        session.setImmutableTypes( _immutableTypes );
+        session.setLastAccessedTimeInternal( validityInfo.getLastAccessedTime() );
+        session.setThisAccessedTimeInternal( validityInfo.getThisAccessedTime() );
+
+        final String newSessionId = _sessionIdFormat.createNewSessionId( requestedSessionId, backupNodeId );
+        _log.info( "Session backup loaded from secondary memcached for "+ requestedSessionId +" (will be relocated)," +
+        		" setting new id "+ newSessionId +" on session..." );
+        session.setIdInternal( newSessionId );
+        return session;
+    }
+
     /**
      * Determines if the (secondary) memcached node used for failover backup of non-sticky sessions is available.
      * @param sessionId the id of the session that shall be stored in another, secondary memcached node.
@@ -855,7 +1133,7 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
      *            the uri/id of the request for that the session backup shall be performed, used for readonly tracking.
      * @return the {@link SessionTrackerValve.SessionBackupService.BackupResultStatus}
      */
-    public Future<BackupResult> backupSession( final String sessionId, final boolean sessionIdChanged, final String requestId ) {
+    public ListenableFuture<BackupResult> backupSession( final String sessionId, final boolean sessionIdChanged, final String requestId ) {
         if ( !_enabled.get() ) {
             return new SimpleFuture<BackupResult>( BackupResult.SKIPPED );
         }
@@ -876,10 +1154,11 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
 
         if ( !_sticky ) {
             msmSession.passivate();
+            _lockingStrategy.onBeforeBackupSession( msmSession );
         }
 
         final boolean force = sessionIdChanged || msmSession.isSessionIdChanged() || !_sticky && (msmSession.getSecondsSinceLastBackup() >= msmSession.getMaxInactiveInterval());
-        final Future<BackupResult> result = _backupSessionService.backupSession( msmSession, force );
+        final ListenableFuture<BackupResult> result = _backupSessionService.backupSession( msmSession, force );
 
         if ( !_sticky ) {
             remove( msmSession, false );
@@ -895,12 +1174,17 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
     }
 
     protected MemcachedBackupSession loadFromMemcachedWithCheck( final String sessionId ) {
-        if ( !canHitMemcached( sessionId ) || _missingSessionsCache.get( sessionId ) != null ) {
+        if ( !canHitMemcached( sessionId ) || _missingSessionsCache.contains( sessionId ) ) {
             return null;
         }
         return loadFromMemcached( sessionId );
     }
 
+    @CheckForNull
+    private static SessionValidityInfo decodeValidityInfo( @Nullable final Object validityData ) {
+        return validityData != null ? SessionValidityInfo.decode( (byte[]) validityData ) : null;
+    }
+
     /**
      * Checks if this manager {@link #isEnabled()}, if the given sessionId is valid (contains a memcached id)
      * and if this sessionId is not in our missingSessionsCache.
@@ -929,8 +1213,15 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
             LockStatus lockStatus = null;
             try {
 
+                /* the session items that were loaded in the same roundtrip as the lock, if any
+                 */
+                PrefetchedItems prefetched = null;
                 if ( !_sticky ) {
-                    lockStatus = _lockingStrategy.onBeforeLoadFromMemcached( sessionId );
+                    try {
+                        lockStatus = _lockingStrategy.onBeforeLoadFromMemcached( sessionId );
+                    } finally {
+                        prefetched = _lockingStrategy.takePrefetchedItems( sessionId );
+                    }
                 }
 
                 final long start = System.currentTimeMillis();
@@ -941,7 +1232,48 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
                  * they get deserialized by BaseSerializingTranscoder.deserialize or the appropriate
                  * specializations.
                  */
-                final Object object = _memcached.get( sessionId, _upgradeSupportTranscoder );
+                final Object object;
+                SessionValidityInfo validityInfo;
+                if ( _sticky || _validityInSessionItem ) {
+                    object = prefetched != null && prefetched.contains( sessionId )
+                        ? prefetched.get( sessionId )
+                        : _memcached.get( sessionId, _upgradeSupportTranscoder );
+                    validityInfo = null;
+                }
+                else {
+                    final String validityKey = createValidityInfoKeyName( sessionId );
+                    MemcachedBackupSession cached = null;
+                    validityInfo = null;
+                    if ( _sessionNearCache != null ) {
+                        if ( _sessionNearCache.contains( sessionId ) ) {
+                            /* only the validity info is loaded to check if the cached session is up to date
+                             */
+                            validityInfo = decodeValidityInfo( prefetched != null && prefetched.contains( validityKey )
+                                ? prefetched.get( validityKey )
+                                : _memcached.get( validityKey, _upgradeSupportTranscoder ) );
+                            cached = _sessionNearCache.take( sessionId, validityInfo );
+                        }
+                        else {
+                            _sessionNearCache.miss();
+                        }
+                    }
+                    if ( cached != null ) {
+                        object = cached;
+                    }
+                    else {
+                        /* The session and its validity info are loaded with a single bulk get, both keys
+                         * contain the node id and therefore are served by the same memcached node.
+                         * The validity info is requested first: it's stored after the session, so that
+                         * the loaded version is never newer than the loaded session.
+                         */
+                        final Map<String, Object> items = prefetched != null && prefetched.contains( validityKey )
+                                && prefetched.contains( sessionId )
+                            ? prefetched.getItems()
+                            : _memcached.getBulk( Arrays.asList( validityKey, sessionId ), _upgradeSupportTranscoder );
+                        object = items.get( sessionId );
+                        validityInfo = decodeValidityInfo( items.get( validityKey ) );
+                    }
+                }
                 _nodeIdService.setNodeAvailable( nodeId, true );
 
                 if ( object != null ) {
@@ -950,15 +1282,34 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
                         result = (MemcachedBackupSession) object;
                     }
                     else {
+                        byte[] data = (byte[]) object;
+                        final SessionValidityHeaders headers = !_sticky ? SessionValidityHeaders.decode( data ) : null;
+                        if ( headers != null ) {
+                            data = headers.strip( data );
+                        }
+                        final SessionChunks chunks = SessionChunks.decode( data );
+                        if ( chunks != null ) {
+                            data = loadChunksFromMemcached( sessionId, chunks );
+                        }
                         final long startDeserialization = System.currentTimeMillis();
-                        result = _transcoderService.deserialize( (byte[]) object, getContainer().getRealm(), this );
+                        result = _transcoderService.deserialize( data, getContainer().getRealm(), this );
+                        if ( result != null && chunks != null ) {
+                            result.setNumChunks( chunks.getNumChunks() );
+                        }
+                        if ( result != null && result.getAttributesManifest() != null ) {
+                            loadAttributesFromMemcached( result );
+                        }
+                        if ( result != null && !_sticky && _validityInSessionItem ) {
+                            validityInfo = createValidityInfo( result, headers );
+                        }
                         _statistics.registerSince( SESSION_DESERIALIZATION, startDeserialization );
                     }
                     _statistics.registerSince( LOAD_FROM_MEMCACHED, start );
 
                     result.setSticky( _sticky );
+                    result.setImmutableTypes( _immutableTypes );
                     if ( !_sticky ) {
-                        _lockingStrategy.onAfterLoadFromMemcached( result, lockStatus );
+                        _lockingStrategy.onAfterLoadFromMemcached( result, lockStatus, validityInfo );
                     }
 
                     if ( _log.isDebugEnabled() ) {
@@ -970,7 +1321,10 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
                     if ( lockStatus == LockStatus.LOCKED ) {
                         _lockingStrategy.releaseLock( sessionId );
                     }
-                    _missingSessionsCache.put( sessionId, Boolean.TRUE );
+                    else if ( lockStatus == LockStatus.LOCKED_SHARED ) {
+                        _lockingStrategy.releaseSharedLock( sessionId );
+                    }
+                    _missingSessionsCache.put( sessionId );
                     if ( _log.isDebugEnabled() ) {
                         _log.debug( "Session " + sessionId + " not found in memcached." );
                     }
@@ -985,17 +1339,122 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
                 if ( lockStatus == LockStatus.LOCKED ) {
                     _lockingStrategy.releaseLock( sessionId );
                 }
+                else if ( lockStatus == LockStatus.LOCKED_SHARED ) {
+                    _lockingStrategy.releaseSharedLock( sessionId );
+                }
             }
         }
         return null;
     }
 
+    /**
+     * Creates the validity info of a session that was stored with the validity info in the session item,
+     * and determines if the session item must be stored again (see {@link SessionValidityHeaders}).
+     *
+     * @param session the deserialized session, with the access times from the time it was stored.
+     * @param headers the validity headers of the session item, <code>null</code> if it has none.
+     */
+    @Nonnull
+    private SessionValidityInfo createValidityInfo( @Nonnull final MemcachedBackupSession session,
+            @Nullable final SessionValidityHeaders headers ) {
+        session.setRewriteRequired( SessionValidityHeaders.isRewriteRequired( headers, session.getThisAccessedTimeInternal(),
+                session.getMaxInactiveInterval() ) );
+        return headers != null
+            ? new SessionValidityInfo( session.getMaxInactiveInterval(), headers.getLastAccessedTime(), headers.getThisAccessedTime() )
+            : new SessionValidityInfo( session.getMaxInactiveInterval(), session.getLastAccessedTimeInternal(),
+                    session.getThisAccessedTimeInternal() );
+    }
+
+    /**
+     * Loads the attributes of a session stored with attributes delta backup, all attribute
+     * items referenced by the {@link AttributesManifest} of the session are loaded with a single
+     * bulk get.
+     *
+     * @throws IllegalStateException if an attribute item could not be found in memcached.
+     */
+    private void loadAttributesFromMemcached( @Nonnull final MemcachedBackupSession session ) {
+        final AttributesManifest manifest = session.getAttributesManifest();
+        final Map<String, String> namesByKey = new HashMap<String, String>( manifest.size() );
+        for ( final Map.Entry<String, AttributesManifest.Entry> entry : manifest.entries() ) {
+            namesByKey.put( AttributesManifest.createAttributeKeyName( session.getIdInternal(), entry.getValue().getSlot() ), entry.getKey() );
+        }
+        final Map<String, Object> items = namesByKey.isEmpty()
+            ? Collections.<String, Object>emptyMap()
+            : _memcached.getBulk( namesByKey.keySet() );
+        final Map<String, byte[]> attributesData = new HashMap<String, byte[]>( namesByKey.size() );
+        for ( final Map.Entry<String, String> entry : namesByKey.entrySet() ) {
+            final byte[] data = (byte[]) items.get( entry.getKey() );
+            if ( data == null ) {
+                throw new IllegalStateException( "The attribute " + entry.getValue() + " of session " + session.getIdInternal() +
+                        " was not found in memcached (key " + entry.getKey() + ")." );
+            }
+            attributesData.put( entry.getValue(), data );
+        }
+        session.setAttributesInternal( _transcoderService.deserializeAttributes( manifest, attributesData ) );
+    }
+
+    /**
+     * Loads the chunks of a session that was too big for a single item with a single bulk get
+     * and assembles the session data.
+     *
+     * @throws IllegalStateException if a chunk could not be found in memcached or the chunks don't match.
+     */
+    @Nonnull
+    private byte[] loadChunksFromMemcached( @Nonnull final String sessionId, @Nonnull final SessionChunks chunks ) {
+        if ( _log.isDebugEnabled() ) {
+            _log.debug( "Loading chunks of session " + sessionId + ": " + chunks );
+        }
+        return chunks.join( sessionId, _memcached.getBulk( chunks.getChunkKeys( sessionId ) ) );
+    }
+
+    /**
+     * Deletes the chunk items of a session that was too big for a single item (and the chunks of its secondary backup).
+     */
+    private void deleteChunksFromMemcached( @Nonnull final String sessionId, final int numChunks ) {
+        if ( numChunks > 0 && _enabled.get() && _sessionIdFormat.isValid( sessionId ) ) {
+            try {
+                final boolean deleteBackupChunks = !_sticky && isBackupNodeAvailable( sessionId );
+                for ( int i = 0; i < numChunks; i++ ) {
+                    final String key = SessionChunks.createChunkKeyName( sessionId, i );
+                    _memcached.delete( key );
+                    if ( deleteBackupChunks ) {
+                        _memcached.delete( _sessionIdFormat.createBackupKey( key ) );
+                    }
+                }
+            } catch ( final Throwable e ) {
+                _log.info( "Could not delete session chunks from memcached.", e );
+            }
+        }
+    }
+
+    /**
+     * Deletes the attribute items of a session that was stored with attributes delta backup.
+     */
+    private void deleteAttributesFromMemcached( @Nonnull final String sessionId, @Nullable final AttributesManifest manifest ) {
+        if ( manifest != null && _enabled.get() && _sessionIdFormat.isValid( sessionId ) ) {
+            try {
+                for ( final Map.Entry<String, AttributesManifest.Entry> entry : manifest.entries() ) {
+                    _memcached.delete( AttributesManifest.createAttributeKeyName( sessionId, entry.getValue().getSlot() ) );
+                }
+            } catch ( final Throwable e ) {
+                _log.info( "Could not delete session attributes from memcached.", e );
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
+     * <p>
+     * In non-sticky mode the lock of the session is released, as a session that's removed (e.g. because
+     * it's invalidated) during the request is not backed up, which would release the lock otherwise.
+     * </p>
      */
     @Override
     public void remove( final Session session ) {
         remove( session, session.getNote( NODE_FAILURE ) != Boolean.TRUE );
+        if ( !_sticky ) {
+            _lockingStrategy.releaseLock( (MemcachedBackupSession) session );
+        }
     }
 
     private void remove( final Session session, final boolean removeFromMemcached ) {
@@ -1005,10 +1464,42 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         }
         if ( removeFromMemcached ) {
             deleteFromMemcached( session.getId() );
+            deleteAttributesFromMemcached( session.getId(), ( (MemcachedBackupSession) session ).getAttributesManifest() );
+            deleteChunksFromMemcached( session.getId(), ( (MemcachedBackupSession) session ).getNumChunks() );
+        }
+        _expirationIndex.remove( session.getIdInternal() );
+        if ( _sessionNearCache != null && session.getIdInternal() != null ) {
+            _sessionNearCache.remove( session.getIdInternal() );
         }
         super.remove( session );
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The session is added to the index of sessions checked by {@link #updateExpirationInMemcached()}.
+     * </p>
+     */
+    @Override
+    public void add( final Session session ) {
+        super.add( session );
+        if ( session.getIdInternal() != null ) {
+            _expirationIndex.schedule( session.getIdInternal(), System.currentTimeMillis() );
+        }
+    }
+
+    /**
+     * Adds the given session (again) to the index of sessions checked by {@link #updateExpirationInMemcached()},
+     * this is needed when a session that never expired (and therefore was not scheduled again) gets a
+     * positive <code>maxInactiveInterval</code>.
+     */
+    void scheduleExpirationUpdate( @Nonnull final MemcachedBackupSession session ) {
+        final String sessionId = session.getIdInternal();
+        if ( sessionId != null && sessions.get( sessionId ) == session ) {
+            _expirationIndex.schedule( sessionId, System.currentTimeMillis() );
+        }
+    }
+
     /**
      * Set the maximum number of active Sessions allowed, or -1 for no limit.
      *
@@ -1095,8 +1586,7 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         final NodeIdService nodeIdService = new NodeIdService(
                 createNodeAvailabilityCache( config.getCountNodes(), NODE_AVAILABILITY_CACHE_TTL, memcachedClient ),
                 config.getNodeIds(), config.getFailoverNodeIds() );
-        final BackupSessionService backupSessionService = new BackupSessionService( _transcoderService, _sessionBackupAsync,
-                _sessionBackupTimeout, _backupThreadCount, memcachedClient, nodeIdService, _statistics );
+        final BackupSessionService backupSessionService = createBackupSessionService( _transcoderService, memcachedClient, nodeIdService );
 
         /* then assign new services
          */
@@ -1302,64 +1792,641 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
     }
 
     /**
-     * Enable/disable memcached-session-manager (default <code>true</code> / enabled).
-     * If disabled, sessions are neither looked up in memcached nor stored in memcached.
+     * Specifies, if session attributes shall be stored separately in memcached (attributes
+     * delta backup), so that only attributes that were modified during a request need to
+     * be written to memcached. The session item then just contains the session fields
+     * and a manifest of the attribute items, the attributes are loaded via a single bulk get.
+     * <p>
+     * This reduces the amount of data sent to memcached for large sessions where only
+     * small attributes are modified. Note that a session stored this way is lost if
+     * one of its attribute items is evicted by memcached.
+     * </p>
+     * <p>
+     * Attributes delta backup is only supported for sticky sessions and ignored in non-sticky
+     * mode, as the secondary backup of non-sticky sessions relies on a single session item.
+     * The default is <code>false</code>.
+     * </p>
      *
-     * @param enabled specifies if msm shall be disabled or not.
-     * @throws IllegalStateException it's not allowed to disable this session manager when running in non-sticky mode.
+     * @param attributesDeltaBackup <code>true</code> if attributes shall be stored separately.
      */
-    public void setEnabled( final boolean enabled ) throws IllegalStateException {
-        if ( !enabled && !_sticky ) {
-            throw new IllegalStateException( "Disabling this session manager is not allowed in non-sticky mode. You must switch to sticky operation mode before." );
+    public void setAttributesDeltaBackup( final boolean attributesDeltaBackup ) {
+        final boolean oldAttributesDeltaBackup = _attributesDeltaBackup;
+        _attributesDeltaBackup = attributesDeltaBackup;
+        if ( !_sticky && attributesDeltaBackup ) {
+            _log.warn( "Attributes delta backup is not supported for non-sticky sessions and will be ignored." );
         }
-        final boolean changed = _enabled.compareAndSet( !enabled, enabled );
-        if ( changed && initialized ) {
-            reloadMemcachedConfig( _memcachedNodes, _failoverNodes );
-            _log.info( "Changed enabled status to " + enabled + "." );
+        if ( oldAttributesDeltaBackup != attributesDeltaBackup && initialized ) {
+            _log.info( "AttributesDeltaBackup was changed to " + attributesDeltaBackup + ", creating new BackupSessionService with new configuration." );
+            recreateBackupSessionService();
         }
     }
 
     /**
-     * Specifies, if msm is enabled or not.
+     * Specifies, if session attributes are stored separately in memcached.
      *
-     * @return <code>true</code> if enabled, otherwise <code>false</code>.
+     * @return <code>true</code> if attributes delta backup is configured.
      */
-    public boolean isEnabled() {
-        return _enabled.get();
+    public boolean isAttributesDeltaBackup() {
+        return _attributesDeltaBackup;
     }
 
-    public void setSticky( final boolean sticky ) {
-        if ( sticky == _sticky ) {
-            return;
-        }
-        if ( !sticky && getJvmRoute() != null ) {
-            _log.warn( "Setting sticky to false while there's still a jvmRoute configured (" + getJvmRoute() + "), this might cause trouble." +
-            		" You should remve the jvmRoute configuration for non-sticky mode." );
+    private boolean isAttributesDeltaBackupEnabled() {
+        return _attributesDeltaBackup && _sticky;
+    }
+
+    /**
+     * Specifies the time in milliseconds that asynchronous session backups are delayed, so that multiple
+     * backups of the same session (e.g. triggered by concurrent AJAX requests) can be coalesced: while a
+     * backup of a session is pending, further backups of this session are merged into the pending one,
+     * which finally stores the latest state of the session. So for a session accessed by many requests
+     * in a short time the session is serialized and sent to memcached just once per coalescing window.
+     * <p>
+     * Coalescing is only done if sessions are stored asynchronously (see {@link #setSessionBackupAsync(boolean)}),
+     * and only for sticky sessions, as with non-sticky sessions the next request might be served by another
+     * tomcat that then would not see the latest session data. The default is <code>0</code>, which disables coalescing.
+     * </p>
+     *
+     * @param backupCoalescingWindow the coalescing window in milliseconds.
+     */
+    public void setBackupCoalescingWindow( final int backupCoalescingWindow ) {
+        final int oldBackupCoalescingWindow = _backupCoalescingWindow;
+        _backupCoalescingWindow = backupCoalescingWindow;
+        if ( !_sticky && backupCoalescingWindow > 0 ) {
+            _log.warn( "Coalescing of session backups is not supported for non-sticky sessions and will be ignored." );
         }
-        _sticky = sticky;
-        if ( initialized ) {
-            _log.info( "Changed sticky to " + _sticky + ". Reloading configuration..." );
-            reloadMemcachedConfig( _memcachedNodes, _failoverNodes );
-            _log.info( "Finished reloading configuration." );
+        if ( oldBackupCoalescingWindow != backupCoalescingWindow && initialized ) {
+            _log.info( "BackupCoalescingWindow was changed to " + backupCoalescingWindow + ", creating new BackupSessionService with new configuration." );
+            recreateBackupSessionService();
         }
     }
 
-    protected void setStickyInternal( final boolean sticky ) {
-        _sticky = sticky;
+    private void recreateBackupSessionService() {
+        final BackupSessionService oldBackupSessionService = _backupSessionService;
+        _backupSessionService = createBackupSessionService( _transcoderService, _memcached, _nodeIdService );
+        oldBackupSessionService.shutdown();
     }
 
-    public boolean isSticky() {
-        return _sticky;
+    /**
+     * The time in milliseconds that asynchronous session backups are delayed to coalesce them.
+     *
+     * @return the coalescing window in milliseconds.
+     */
+    public int getBackupCoalescingWindow() {
+        return _backupCoalescingWindow;
     }
 
     /**
-     * Sets the session locking mode. Possible values:
+     * Specifies the max number of asynchronous session backups that may wait for execution (if
+     * {@link #setSessionBackupAsync(boolean)} is <code>true</code>). If memcached gets slow, backups
+     * would pile up and exhaust the heap otherwise. Backups exceeding this limit are handled according
+     * to the {@link #setBackupOverloadPolicy(String) backupOverloadPolicy}.
+     * The default is <code>1000</code>, <code>0</code> means unbounded.
+     *
+     * @param maxQueuedBackups the max number of queued backups.
+     */
+    public void setMaxQueuedBackups( final int maxQueuedBackups ) {
+        final int oldMaxQueuedBackups = _maxQueuedBackups;
+        _maxQueuedBackups = maxQueuedBackups;
+        if ( oldMaxQueuedBackups != maxQueuedBackups && initialized ) {
+            _log.info( "MaxQueuedBackups was changed to " + maxQueuedBackups + ", creating new BackupSessionService with new configuration." );
+            recreateBackupSessionService();
+        }
+    }
+
+    /**
+     * The max number of asynchronous session backups that may wait for execution.
+     *
+     * @return the max number of queued backups, <code>0</code> means unbounded.
+     */
+    public int getMaxQueuedBackups() {
+        return _maxQueuedBackups;
+    }
+
+    /**
+     * Specifies the max number of bytes that were passed to memcached asynchronously and are not yet written
+     * (if {@link #setSessionBackupAsync(boolean)} is <code>true</code>), the memcached client holds this data
+     * until it's written. Backups exceeding this limit are handled according to the
+     * {@link #setBackupOverloadPolicy(String) backupOverloadPolicy}.
+     * The default is <code>0</code>, which means unbounded.
+     *
+     * @param maxInFlightBackupBytes the max number of in-flight bytes.
+     */
+    public void setMaxInFlightBackupBytes( final long maxInFlightBackupBytes ) {
+        final long oldMaxInFlightBackupBytes = _maxInFlightBackupBytes;
+        _maxInFlightBackupBytes = maxInFlightBackupBytes;
+        if ( oldMaxInFlightBackupBytes != maxInFlightBackupBytes && initialized ) {
+            _log.info( "MaxInFlightBackupBytes was changed to " + maxInFlightBackupBytes + ", creating new BackupSessionService with new configuration." );
+            recreateBackupSessionService();
+        }
+    }
+
+    /**
+     * The max number of bytes that were passed to memcached asynchronously and are not yet written.
+     *
+     * @return the max number of in-flight bytes, <code>0</code> means unbounded.
+     */
+    public long getMaxInFlightBackupBytes() {
+        return _maxInFlightBackupBytes;
+    }
+
+    /**
+     * Specifies how asynchronous session backups are handled that exceed the {@link #setMaxQueuedBackups(int) maxQueuedBackups}
+     * or {@link #setMaxInFlightBackupBytes(long) maxInFlightBackupBytes}. Possible values are
+     * <ul>
+     * <li><code>callerRuns</code> (default): the session is stored in the request thread</li>
+     * <li><code>dropOldest</code>: a queued backup of the same session is dropped in favour of the new one,
+     * if there's none the backup is skipped</li>
+     * <li><code>skip</code>: the backup is skipped, the session is stored with the next modification</li>
+     * </ul>
+     * Rejected backups are counted, see {@link #getMsmStatNumRejectedBackups()}.
+     *
+     * @param backupOverloadPolicy the name of the overload policy.
+     * @see OverloadPolicy
+     */
+    public void setBackupOverloadPolicy( final String backupOverloadPolicy ) {
+        final OverloadPolicy oldBackupOverloadPolicy = _backupOverloadPolicy;
+        try {
+            _backupOverloadPolicy = OverloadPolicy.fromName( backupOverloadPolicy );
+        } catch ( final IllegalArgumentException e ) {
+            _log.warn( "Invalid backupOverloadPolicy '" + backupOverloadPolicy + "', keeping " + oldBackupOverloadPolicy.getName() + "." );
+            return;
+        }
+        if ( oldBackupOverloadPolicy != _backupOverloadPolicy && initialized ) {
+            _log.info( "BackupOverloadPolicy was changed to " + backupOverloadPolicy + ", creating new BackupSessionService with new configuration." );
+            recreateBackupSessionService();
+        }
+    }
+
+    /**
+     * The name of the policy for asynchronous session backups exceeding the configured limits.
+     *
+     * @return the name of the overload policy.
+     */
+    public String getBackupOverloadPolicy() {
+        return _backupOverloadPolicy.getName();
+    }
+
+    /**
+     * Specifies the compression that is applied to serialized session attributes that are not
+     * smaller than the {@link #setCompressionThreshold(int) compressionThreshold}. Possible values are
+     * <ul>
+     * <li><code>none</code> (default): session data is not compressed by msm, but spymemcached
+     * compresses data bigger than 16 KB with gzip</li>
+     * <li><code>deflate</code>: compresses better than <code>lz4</code>, but is slower</li>
+     * <li><code>lz4</code>: a fast compression with a lower compression ratio</li>
+     * </ul>
+     * Session data is always read regardless of the compression it was stored with, so that
+     * the compression can be changed without losing sessions. If a compression is configured
+     * when the manager is started, compression of spymemcached is disabled. Compression ratio and time
+     * are available via {@link #getMsmStatCompressionRatioInfo()} and {@link #getMsmStatCompressionInfo()}.
+     *
+     * @param compression the name of the compression.
+     * @see Compression
+     */
+    public void setCompression( final String compression ) {
+        final Compression oldCompression = _compression;
+        try {
+            _compression = Compression.fromName( compression );
+        } catch ( final IllegalArgumentException e ) {
+            _log.warn( "Invalid compression '" + compression + "', keeping " + oldCompression.getName() + "." );
+            return;
+        }
+        if ( oldCompression != _compression && initialized ) {
+            _log.info( "Compression was changed to " + compression + ", creating new TranscoderService with new configuration." );
+            recreateTranscoderService();
+        }
+    }
+
+    /**
+     * The name of the compression applied to serialized session attributes.
+     *
+     * @return the name of the compression.
+     */
+    public String getCompression() {
+        return _compression.getName();
+    }
+
+    /**
+     * Specifies the min size in bytes of serialized session attributes that are compressed
+     * with the configured {@link #setCompression(String) compression}. The default is <code>16384</code>.
+     *
+     * @param compressionThreshold the compression threshold in bytes.
+     */
+    public void setCompressionThreshold( final int compressionThreshold ) {
+        final int oldCompressionThreshold = _compressionThreshold;
+        _compressionThreshold = compressionThreshold;
+        if ( oldCompressionThreshold != compressionThreshold && initialized ) {
+            _log.info( "CompressionThreshold was changed to " + compressionThreshold + ", creating new TranscoderService with new configuration." );
+            recreateTranscoderService();
+        }
+    }
+
+    /**
+     * The min size in bytes of serialized session attributes that are compressed.
+     *
+     * @return the compression threshold in bytes.
+     */
+    public int getCompressionThreshold() {
+        return _compressionThreshold;
+    }
+
+    /**
+     * Specifies, if session attributes shall be stored indexed by attribute name, so that
+     * only the attributes that are accessed by a request are deserialized (on first access)
+     * when a session is loaded from memcached. Attributes that were not accessed are
+     * stored again without being serialized, the serialized session data is kept in memory
+     * as long as such attributes exist.
+     * <p>
+     * This requires a transcoder implementing {@link IndexedSessionAttributesTranscoder}
+     * (like the default java serialization). Session data is always read regardless of this setting,
+     * so it can be changed without losing sessions. The default is <code>false</code>.
+     * </p>
+     *
+     * @param lazyAttributesDeserialization <code>true</code> if attributes shall be deserialized on first access.
+     */
+    public void setLazyAttributesDeserialization( final boolean lazyAttributesDeserialization ) {
+        final boolean oldLazyAttributesDeserialization = _lazyAttributesDeserialization;
+        _lazyAttributesDeserialization = lazyAttributesDeserialization;
+        if ( oldLazyAttributesDeserialization != lazyAttributesDeserialization && initialized ) {
+            _log.info( "LazyAttributesDeserialization was changed to " + lazyAttributesDeserialization
+                    + ", creating new TranscoderService with new configuration." );
+            recreateTranscoderService();
+        }
+    }
+
+    /**
+     * Specifies, if session attributes are stored indexed by name and deserialized on first access.
+     */
+    public boolean isLazyAttributesDeserialization() {
+        return _lazyAttributesDeserialization;
+    }
+
+    /**
+     * Specifies the max time in milliseconds a request waits for a session that is just loaded from memcached
+     * for a concurrent request (with the same session id), instead of loading the session itself. If the
+     * session is not loaded in time, the session is loaded again. This is relevant for parallel requests
+     * with non-sticky sessions or after a tomcat failover. Loads of non-sticky sessions are only coalesced
+     * with lockingMode <code>none</code>, as otherwise each request has to acquire the session lock.
+     * The default is <code>1000</code>, <code>0</code> disables coalescing of concurrent session loads.
+     *
+     * @param loadWaitTimeout the timeout in milliseconds.
+     */
+    public void setLoadWaitTimeout( final int loadWaitTimeout ) {
+        _loadWaitTimeout = loadWaitTimeout;
+    }
+
+    /**
+     * The max time in milliseconds a request waits for a session that is loaded for a concurrent request.
+     */
+    public int getLoadWaitTimeout() {
+        return _loadWaitTimeout;
+    }
+
+    /**
+     * Specifies the max number of session ids that were not found in memcached and are remembered
+     * as missing, so that further lookups of such a session don't cause memcached requests.
+     * The default is <code>200</code>.
+     *
+     * @param missingSessionsCacheSize the max number of remembered session ids, must be greater than 0.
+     */
+    public void setMissingSessionsCacheSize( final int missingSessionsCacheSize ) {
+        final int oldMissingSessionsCacheSize = _missingSessionsCacheSize;
+        _missingSessionsCacheSize = missingSessionsCacheSize;
+        if ( oldMissingSessionsCacheSize != missingSessionsCacheSize && initialized ) {
+            _log.info( "MissingSessionsCacheSize was changed to " + missingSessionsCacheSize + ", recreating missing sessions cache..." );
+            recreateMissingSessionsCache();
+        }
+    }
+
+    /**
+     * The max number of session ids that are remembered as missing.
+     */
+    public int getMissingSessionsCacheSize() {
+        return _missingSessionsCacheSize;
+    }
+
+    /**
+     * Specifies the time in milliseconds a session id that was not found in memcached is remembered as missing.
+     * The default is <code>500</code>.
+     *
+     * @param missingSessionsCacheTTL the time to live in milliseconds.
+     */
+    public void setMissingSessionsCacheTTL( final long missingSessionsCacheTTL ) {
+        final long oldMissingSessionsCacheTTL = _missingSessionsCacheTTL;
+        _missingSessionsCacheTTL = missingSessionsCacheTTL;
+        if ( oldMissingSessionsCacheTTL != missingSessionsCacheTTL && initialized ) {
+            _log.info( "MissingSessionsCacheTTL was changed to " + missingSessionsCacheTTL + ", recreating missing sessions cache..." );
+            recreateMissingSessionsCache();
+        }
+    }
+
+    /**
+     * The time in milliseconds a session id is remembered as missing.
+     */
+    public long getMissingSessionsCacheTTL() {
+        return _missingSessionsCacheTTL;
+    }
+
+    /**
+     * Specifies, if lookups of the missing sessions cache shall be checked by a bloom filter first, so that
+     * session ids that were not missing recently are answered without accessing the cache itself.
+     * The default is <code>false</code>.
+     *
+     * @param missingSessionsCacheBloomFilter <code>true</code> if the bloom filter shall be used.
+     */
+    public void setMissingSessionsCacheBloomFilter( final boolean missingSessionsCacheBloomFilter ) {
+        final boolean oldMissingSessionsCacheBloomFilter = _missingSessionsCacheBloomFilter;
+        _missingSessionsCacheBloomFilter = missingSessionsCacheBloomFilter;
+        if ( oldMissingSessionsCacheBloomFilter != missingSessionsCacheBloomFilter && initialized ) {
+            _log.info( "MissingSessionsCacheBloomFilter was changed to " + missingSessionsCacheBloomFilter + ", recreating missing sessions cache..." );
+            recreateMissingSessionsCache();
+        }
+    }
+
+    /**
+     * Specifies, if lookups of the missing sessions cache are checked by a bloom filter first.
+     */
+    public boolean isMissingSessionsCacheBloomFilter() {
+        return _missingSessionsCacheBloomFilter;
+    }
+
+    private MissingSessionsCache createMissingSessionsCache() {
+        return new MissingSessionsCache( _missingSessionsCacheSize, _missingSessionsCacheTTL,
+                _missingSessionsCacheBloomFilter, _statistics );
+    }
+
+    private void recreateMissingSessionsCache() {
+        _missingSessionsCache = createMissingSessionsCache();
+        if ( _lockingStrategy != null ) {
+            // the locking strategy holds the missing sessions cache, so it's recreated as well
+            initNonStickyLockingMode( createMemcachedConfig( _memcachedNodes, _failoverNodes ) );
+        }
+    }
+
+    private void recreateTranscoderService() {
+        _transcoderService = createTranscoderService( _statistics );
+        recreateBackupSessionService();
+    }
+
+    /**
+     * Specifies the max size in bytes of the session data that is stored in a single memcached item.
+     * Bigger sessions are split into chunks of this size that are stored as separate items
+     * (with the expiration of the session), the session item then only references the chunks.
+     * When a session is loaded all chunks are fetched with a single bulk get.
+     * <p>
+     * The default is <code>1024000</code>, so that a chunk fits into the default
+     * max item size of memcached (1 MB). If memcached is started with a bigger item size (<code>-I</code>)
+     * this can be increased accordingly, <code>0</code> disables chunking.
+     * </p>
+     *
+     * @param sessionChunkSize the max size of a session item in bytes.
+     */
+    public void setSessionChunkSize( final int sessionChunkSize ) {
+        final int oldSessionChunkSize = _sessionChunkSize;
+        _sessionChunkSize = sessionChunkSize;
+        if ( oldSessionChunkSize != sessionChunkSize && initialized ) {
+            _log.info( "SessionChunkSize was changed to " + sessionChunkSize + ", creating new BackupSessionService with new configuration." );
+            recreateBackupSessionService();
+        }
+    }
+
+    /**
+     * The max size in bytes of the session data that is stored in a single memcached item.
+     *
+     * @return the session chunk size, <code>0</code> if chunking is disabled.
+     */
+    public int getSessionChunkSize() {
+        return _sessionChunkSize;
+    }
+
+    /**
+     * Specifies, if the validity info of non-sticky sessions (maxInactiveInterval, lastAccessedTime
+     * and thisAccessedTime) shall be stored in the session item instead of a separate validity item.
+     * A request that accesses the session but does not modify it then only prepends a small header
+     * with the new access times to the session item (see {@link SessionValidityHeaders}), instead of
+     * writing the validity item and pinging the session item. This halves the number of items per
+     * session (and of secondary backup items).
+     * <p>
+     * The session item then must not be compressed by the memcached client, so sessions are only
+     * compressed if configured via {@link #setCompression(String)}. Sessions stored with the other
+     * format are not found after this was changed. This has no effect for sticky sessions,
+     * the default is <code>false</code>.
+     * </p>
+     *
+     * @param validityInSessionItem <code>true</code> if the validity info shall be stored in the session item.
+     */
+    public void setValidityInSessionItem( final boolean validityInSessionItem ) {
+        final boolean oldValidityInSessionItem = _validityInSessionItem;
+        _validityInSessionItem = validityInSessionItem;
+        if ( oldValidityInSessionItem != validityInSessionItem && initialized && !_sticky ) {
+            _log.info( "ValidityInSessionItem was changed to " + validityInSessionItem + ", reloading configuration..." );
+            reloadMemcachedConfig( _memcachedNodes, _failoverNodes );
+        }
+    }
+
+    /**
+     * Specifies, if the validity info of non-sticky sessions is stored in the session item.
+     */
+    public boolean isValidityInSessionItem() {
+        return _validityInSessionItem;
+    }
+
+    boolean isValidityInSessionItemEffective() {
+        return !_sticky && _validityInSessionItem;
+    }
+
+    /**
+     * Specifies the max number of deserialized non-sticky sessions that are kept in a local near cache.
+     * A cached session is used by a later request if it was not modified in the meantime (which is checked
+     * by loading only the small validity info), so that it must neither be transferred from memcached nor
+     * be deserialized. The session data version needed for this check is stored in the validity info when
+     * the session backup is completed. Therefore the near cache should be enabled on all tomcats, as sessions
+     * stored by a tomcat without near cache have an unknown version and are not cached.
+     * <p>
+     * This has no effect for sticky sessions or if the validity info is stored in the session item
+     * (see {@link #setValidityInSessionItem(boolean)}), the default is <code>0</code> (disabled).
+     * </p>
+     *
+     * @param sessionNearCacheSize the max number of cached sessions, <code>0</code> disables the near cache.
+     */
+    public void setSessionNearCacheSize( final int sessionNearCacheSize ) {
+        final int oldSessionNearCacheSize = _sessionNearCacheSize;
+        _sessionNearCacheSize = sessionNearCacheSize;
+        if ( oldSessionNearCacheSize != sessionNearCacheSize && initialized && !_sticky ) {
+            _log.info( "SessionNearCacheSize was changed to " + sessionNearCacheSize + ", reloading configuration..." );
+            reloadMemcachedConfig( _memcachedNodes, _failoverNodes );
+        }
+    }
+
+    /**
+     * The max number of deserialized non-sticky sessions kept in the local near cache.
+     */
+    public int getSessionNearCacheSize() {
+        return _sessionNearCacheSize;
+    }
+
+    /**
+     * The transcoder used to load sessions from memcached.
+     */
+    @Nonnull
+    SerializingTranscoder getUpgradeSupportTranscoder() {
+        return _upgradeSupportTranscoder;
+    }
+
+    /**
+     * The near cache of non-sticky sessions, <code>null</code> if it's not enabled.
+     */
+    @CheckForNull
+    SessionNearCache getSessionNearCache() {
+        return _sessionNearCache;
+    }
+
+    /**
+     * The local session locks in front of the session locks in memcached.
+     */
+    @Nonnull
+    LocalSessionLocks getLocalSessionLocks() {
+        return _localSessionLocks;
+    }
+
+    /**
+     * Specifies, if modifications of session attributes shall be tracked more precisely, so that
+     * requests that only read session attributes don't cause serialization of the session. By default
+     * any access to session attributes (also {@link javax.servlet.http.HttpSession#getAttribute(String)}) causes the session
+     * to be serialized at the end of the request to check if it was modified, as the value might have
+     * been changed internally.
+     * <p>
+     * With attributes dirty tracking reading an attribute with an immutable value (strings, boxed primitives,
+     * enums, classes configured via {@link #setImmutableAttributeClasses(String)} etc.) does not mark the session
+     * as accessed, and setting an attribute to an equal immutable value neither. Reading an attribute with a mutable
+     * value still marks the session as accessed. So classes whose instances are always set again via
+     * {@link javax.servlet.http.HttpSession#setAttribute(String, Object)} after they were modified can be configured as immutable as well.
+     * </p>
+     * <p>
+     * This applies to sessions created or loaded after this property was set. The default is <code>false</code>.
+     * </p>
+     *
+     * @param attributesDirtyTracking <code>true</code> if attributes dirty tracking shall be enabled.
+     */
+    public void setAttributesDirtyTracking( final boolean attributesDirtyTracking ) {
+        _attributesDirtyTracking = attributesDirtyTracking;
+        _immutableTypes = createImmutableTypes();
+    }
+
+    /**
+     * Specifies, if attributes dirty tracking is enabled.
+     *
+     * @return <code>true</code> if attributes dirty tracking is enabled.
+     */
+    public boolean isAttributesDirtyTracking() {
+        return _attributesDirtyTracking;
+    }
+
+    /**
+     * Specifies a comma separated list of class names whose instances shall be treated as immutable
+     * with attributes dirty tracking, see {@link #setAttributesDirtyTracking(boolean)}.
+     *
+     * @param immutableAttributeClasses a comma separated list of fully qualified class names.
+     */
+    public void setImmutableAttributeClasses( final String immutableAttributeClasses ) {
+        _immutableAttributeClasses = immutableAttributeClasses;
+        _immutableTypes = createImmutableTypes();
+    }
+
+    /**
+     * The comma separated list of class names whose instances are treated as immutable
+     * with attributes dirty tracking.
+     *
+     * @return the class names, or <code>null</code> if not set.
+     */
+    public String getImmutableAttributeClasses() {
+        return _immutableAttributeClasses;
+    }
+
+    @CheckForNull
+    private ImmutableTypes createImmutableTypes() {
+        if ( !_attributesDirtyTracking ) {
+            return null;
+        }
+        final List<String> classNames = new ArrayList<String>();
+        if ( _immutableAttributeClasses != null ) {
+            for ( final String className : _immutableAttributeClasses.split( ",\\s*" ) ) {
+                if ( className.trim().length() > 0 ) {
+                    classNames.add( className.trim() );
+                }
+            }
+        }
+        return new ImmutableTypes( classNames );
+    }
+
+    private int getBackupCoalescingWindowEffective() {
+        return _sticky ? _backupCoalescingWindow : 0;
+    }
+
+    /**
+     * Enable/disable memcached-session-manager (default <code>true</code> / enabled).
+     * If disabled, sessions are neither looked up in memcached nor stored in memcached.
+     *
+     * @param enabled specifies if msm shall be disabled or not.
+     * @throws IllegalStateException it's not allowed to disable this session manager when running in non-sticky mode.
+     */
+    public void setEnabled( final boolean enabled ) throws IllegalStateException {
+        if ( !enabled && !_sticky ) {
+            throw new IllegalStateException( "Disabling this session manager is not allowed in non-sticky mode. You must switch to sticky operation mode before." );
+        }
+        final boolean changed = _enabled.compareAndSet( !enabled, enabled );
+        if ( changed && initialized ) {
+            reloadMemcachedConfig( _memcachedNodes, _failoverNodes );
+            _log.info( "Changed enabled status to " + enabled + "." );
+        }
+    }
+
+    /**
+     * Specifies, if msm is enabled or not.
+     *
+     * @return <code>true</code> if enabled, otherwise <code>false</code>.
+     */
+    public boolean isEnabled() {
+        return _enabled.get();
+    }
+
+    public void setSticky( final boolean sticky ) {
+        if ( sticky == _sticky ) {
+            return;
+        }
+        if ( !sticky && getJvmRoute() != null ) {
+            _log.warn( "Setting sticky to false while there's still a jvmRoute configured (" + getJvmRoute() + "), this might cause trouble." +
+            		" You should remve the jvmRoute configuration for non-sticky mode." );
+        }
+        _sticky = sticky;
+        if ( initialized ) {
+            _log.info( "Changed sticky to " + _sticky + ". Reloading configuration..." );
+            reloadMemcachedConfig( _memcachedNodes, _failoverNodes );
+            _log.info( "Finished reloading configuration." );
+        }
+    }
+
+    protected void setStickyInternal( final boolean sticky ) {
+        _sticky = sticky;
+    }
+
+    public boolean isSticky() {
+        return _sticky;
+    }
+
+    /**
+     * Sets the session locking mode. Possible values:
      * <ul>
      * <li><code>none</code> - does not lock the session at all (default for non-sticky sessions).</li>
      * <li><code>all</code> - the session is locked for each request accessing the session.</li>
      * <li><code>auto</code> - locks the session for each request except for those the were detected to access the session only readonly.</li>
      * <li><code>uriPattern:&lt;regexp&gt;</code> - locks the session for each request with a request uri (with appended querystring) matching
      * the provided regular expression.</li>
+     * <li><code>readWrite</code> - reading requests share the lock, requests that modify the session lock it exclusively.
+     * Reading requests are detected like with <code>auto</code> or marked via the request attribute
+     * {@link LockingStrategyReadWrite#READ_ONLY_REQUEST_ATTRIBUTE}.</li>
+     * <li><code>readWrite:&lt;regexp&gt;</code> - like <code>readWrite</code>, requests with a request uri (with appended querystring)
+     * matching the provided regular expression are regarded as reading requests.</li>
      * </ul>
      */
     public void setLockingMode( @Nullable final String lockingMode ) {
@@ -1373,7 +2440,217 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         }
     }
 
+    /**
+     * Sets the class name of a custom {@link RequestKeyNormalizer} that determines the keys requests are
+     * classified by in the <code>auto</code> and <code>readWrite</code> locking modes. If it's set the options
+     * of the default normalization ({@link #setReadOnlyRequestIgnoredParameters(String)},
+     * {@link #setReadOnlyRequestPathTemplating(boolean)}, {@link #setReadOnlyRequestRewriteRules(String)}) are ignored.
+     *
+     * @param readOnlyRequestKeyNormalizerClassName the class name, <code>null</code> for the {@link DefaultRequestKeyNormalizer}.
+     */
+    public void setReadOnlyRequestKeyNormalizerClass( @Nullable final String readOnlyRequestKeyNormalizerClassName ) {
+        _readOnlyRequestKeyNormalizerClassName = readOnlyRequestKeyNormalizerClassName;
+        reinitReadOnlyRequestsDetection( "ReadOnlyRequestKeyNormalizerClass", readOnlyRequestKeyNormalizerClassName );
+    }
+
+    @CheckForNull
+    public String getReadOnlyRequestKeyNormalizerClass() {
+        return _readOnlyRequestKeyNormalizerClassName;
+    }
+
+    /**
+     * Sets the query parameters that are ignored when requests are classified as readonly or modifying
+     * in the <code>auto</code> and <code>readWrite</code> locking modes, e.g. <code>id,page</code> so that
+     * <code>/product?id=1</code> and <code>/product?id=2</code> are classified together. The default is
+     * <code>null</code> (no parameter is ignored).
+     *
+     * @param readOnlyRequestIgnoredParameters comma separated parameter names, <code>*</code> to ignore the query string.
+     */
+    public void setReadOnlyRequestIgnoredParameters( @Nullable final String readOnlyRequestIgnoredParameters ) {
+        _readOnlyRequestIgnoredParameters = readOnlyRequestIgnoredParameters;
+        reinitReadOnlyRequestsDetection( "ReadOnlyRequestIgnoredParameters", readOnlyRequestIgnoredParameters );
+    }
+
+    @CheckForNull
+    public String getReadOnlyRequestIgnoredParameters() {
+        return _readOnlyRequestIgnoredParameters;
+    }
+
+    /**
+     * Specifies, if numeric and UUID path segments shall be replaced by a template when requests are classified
+     * in the <code>auto</code> and <code>readWrite</code> locking modes, so that e.g. <code>/product/1</code>
+     * and <code>/product/2</code> are classified together. The default is <code>false</code>.
+     */
+    public void setReadOnlyRequestPathTemplating( final boolean readOnlyRequestPathTemplating ) {
+        final boolean oldReadOnlyRequestPathTemplating = _readOnlyRequestPathTemplating;
+        _readOnlyRequestPathTemplating = readOnlyRequestPathTemplating;
+        if ( oldReadOnlyRequestPathTemplating != readOnlyRequestPathTemplating ) {
+            reinitReadOnlyRequestsDetection( "ReadOnlyRequestPathTemplating", String.valueOf( readOnlyRequestPathTemplating ) );
+        }
+    }
+
+    public boolean isReadOnlyRequestPathTemplating() {
+        return _readOnlyRequestPathTemplating;
+    }
+
+    /**
+     * Sets rewrite rules that are applied (after ignored parameters and path templating) when requests are
+     * classified in the <code>auto</code> and <code>readWrite</code> locking modes. The rules are whitespace
+     * separated, each has the form <code>regex=&gt;replacement</code>, e.g. <code>^/shop/[^/?]+=&gt;/shop/{category}</code>.
+     *
+     * @param readOnlyRequestRewriteRules the rules, <code>null</code> for none.
+     */
+    public void setReadOnlyRequestRewriteRules( @Nullable final String readOnlyRequestRewriteRules ) {
+        // fail early on invalid rules
+        DefaultRequestKeyNormalizer.parseRewriteRules( readOnlyRequestRewriteRules );
+        _readOnlyRequestRewriteRules = readOnlyRequestRewriteRules;
+        reinitReadOnlyRequestsDetection( "ReadOnlyRequestRewriteRules", readOnlyRequestRewriteRules );
+    }
+
+    @CheckForNull
+    public String getReadOnlyRequestRewriteRules() {
+        return _readOnlyRequestRewriteRules;
+    }
+
+    /**
+     * Sets the number of times a request must have been detected as readonly before locking is skipped for it
+     * in the <code>auto</code> and <code>readWrite</code> locking modes. The default is <code>1</code>.
+     */
+    public void setReadOnlyRequestMinHits( final int readOnlyRequestMinHits ) {
+        if ( readOnlyRequestMinHits < 1 ) {
+            throw new IllegalArgumentException( "The readOnlyRequestMinHits must be greater than 0." );
+        }
+        final int oldReadOnlyRequestMinHits = _readOnlyRequestMinHits;
+        _readOnlyRequestMinHits = readOnlyRequestMinHits;
+        if ( oldReadOnlyRequestMinHits != readOnlyRequestMinHits ) {
+            reinitReadOnlyRequestsDetection( "ReadOnlyRequestMinHits", String.valueOf( readOnlyRequestMinHits ) );
+        }
+    }
+
+    public int getReadOnlyRequestMinHits() {
+        return _readOnlyRequestMinHits;
+    }
+
+    /**
+     * Sets the min ratio of readonly to all detected requests (of a request key) before locking is skipped for
+     * a request in the <code>auto</code> and <code>readWrite</code> locking modes. With the default of <code>1</code>
+     * a single modifying request blacklists the request key, with e.g. <code>0.99</code> a request key that's
+     * modifying only now and then is still regarded as readonly.
+     */
+    public void setReadOnlyRequestMinConfidence( final double readOnlyRequestMinConfidence ) {
+        if ( readOnlyRequestMinConfidence <= 0 || readOnlyRequestMinConfidence > 1 ) {
+            throw new IllegalArgumentException( "The readOnlyRequestMinConfidence must be greater than 0 and at most 1." );
+        }
+        final double oldReadOnlyRequestMinConfidence = _readOnlyRequestMinConfidence;
+        _readOnlyRequestMinConfidence = readOnlyRequestMinConfidence;
+        if ( oldReadOnlyRequestMinConfidence != readOnlyRequestMinConfidence ) {
+            reinitReadOnlyRequestsDetection( "ReadOnlyRequestMinConfidence", String.valueOf( readOnlyRequestMinConfidence ) );
+        }
+    }
+
+    public double getReadOnlyRequestMinConfidence() {
+        return _readOnlyRequestMinConfidence;
+    }
+
+    /**
+     * Sets the interval in seconds the readonly requests detected in the <code>auto</code> and <code>readWrite</code>
+     * locking modes are shared with the other tomcats (of this context) via memcached: the requests known by
+     * the others are merged and the merged requests are stored in memcached. The shared requests are also merged
+     * when the locking strategy is created, so that restarted tomcats don't have to detect readonly requests from
+     * scratch. The sharing runs in the background process of the container, so an interval below the
+     * background processor delay has no effect. The default is <code>0</code> (disabled).
+     */
+    public void setReadOnlyRequestSharingInterval( final int readOnlyRequestSharingInterval ) {
+        final int oldReadOnlyRequestSharingInterval = _readOnlyRequestSharingInterval;
+        _readOnlyRequestSharingInterval = readOnlyRequestSharingInterval;
+        if ( oldReadOnlyRequestSharingInterval != readOnlyRequestSharingInterval ) {
+            reinitReadOnlyRequestsDetection( "ReadOnlyRequestSharingInterval", String.valueOf( readOnlyRequestSharingInterval ) );
+        }
+    }
+
+    public int getReadOnlyRequestSharingInterval() {
+        return _readOnlyRequestSharingInterval;
+    }
+
+    /**
+     * Sets the file the readonly requests detected in the <code>auto</code> and <code>readWrite</code> locking modes
+     * are stored in (periodically and on shutdown) and loaded from when the locking strategy is created,
+     * e.g. <code>${catalina.base}/work/msm-readonly-requests.txt</code>.
+     *
+     * @param readOnlyRequestSnapshotFile the path of the file, <code>null</code> (default) to disable snapshots.
+     */
+    public void setReadOnlyRequestSnapshotFile( @Nullable final String readOnlyRequestSnapshotFile ) {
+        _readOnlyRequestSnapshotFile = readOnlyRequestSnapshotFile;
+        reinitReadOnlyRequestsDetection( "ReadOnlyRequestSnapshotFile", readOnlyRequestSnapshotFile );
+    }
+
+    @CheckForNull
+    public String getReadOnlyRequestSnapshotFile() {
+        return _readOnlyRequestSnapshotFile;
+    }
+
+    /**
+     * The memcached key of the readonly requests shared by the tomcats running this context. The key is
+     * stored on the first available memcached node, so that all tomcats use the same one.
+     *
+     * @return the key or <code>null</code> if no memcached node is available.
+     */
+    @CheckForNull
+    String getSharedReadOnlyRequestsKey() {
+        for ( final String nodeId : _nodeIdService.getNodeIds() ) {
+            if ( _nodeIdService.isNodeAvailable( nodeId ) ) {
+                final Container host = getContainer().getParent();
+                final String context = ( host != null ? host.getName() : "" ) + getContainer().getName();
+                // the key must not contain '-' or '.' before the node id
+                return _sessionIdFormat.createSessionId( "msmreadonlyrequests_" + context.replaceAll( "[^A-Za-z0-9_/]", "_" ), nodeId );
+            }
+        }
+        return null;
+    }
+
+    private void reinitReadOnlyRequestsDetection( final String property, final String value ) {
+        if ( initialized && _lockingStrategy != null ) {
+            _log.info( property + " was changed to " + value + ", recreating locking strategy..." );
+            initNonStickyLockingMode( createMemcachedConfig( _memcachedNodes, _failoverNodes ) );
+        }
+    }
+
+    /**
+     * Creates the cache of readonly requests for the <code>auto</code> and <code>readWrite</code> locking modes.
+     */
+    @Nonnull
+    ReadOnlyRequestsCache createReadOnlyRequestsCache() {
+        return new ReadOnlyRequestsCache( createReadOnlyRequestKeyNormalizer(), _readOnlyRequestMinHits,
+                _readOnlyRequestMinConfidence );
+    }
+
+    @Nonnull
+    private RequestKeyNormalizer createReadOnlyRequestKeyNormalizer() {
+        if ( _readOnlyRequestKeyNormalizerClassName == null ) {
+            return new DefaultRequestKeyNormalizer( DefaultRequestKeyNormalizer.parseIgnoredParameters( _readOnlyRequestIgnoredParameters ),
+                    _readOnlyRequestPathTemplating, DefaultRequestKeyNormalizer.parseRewriteRules( _readOnlyRequestRewriteRules ) );
+        }
+        _log.info( "Creating request key normalizer " + _readOnlyRequestKeyNormalizerClassName );
+        try {
+            Class<? extends RequestKeyNormalizer> clazz;
+            final ClassLoader classLoader = getContainer().getLoader().getClassLoader();
+            try {
+                clazz = Class.forName( _readOnlyRequestKeyNormalizerClassName, false, classLoader ).asSubclass( RequestKeyNormalizer.class );
+            } catch ( final ClassNotFoundException e ) {
+                _log.info( "Could not load request key normalizer class with classloader "+ classLoader +", trying " + getClass().getClassLoader() );
+                clazz = Class.forName( _readOnlyRequestKeyNormalizerClassName, false, getClass().getClassLoader() ).asSubclass( RequestKeyNormalizer.class );
+            }
+            return clazz.newInstance();
+        } catch ( final Exception e ) {
+            throw new RuntimeException( "Could not create request key normalizer " + _readOnlyRequestKeyNormalizerClassName, e );
+        }
+    }
+
     private void initNonStickyLockingMode( @Nonnull final MemcachedConfig config ) {
+        _sessionNearCache = !_sticky && !_validityInSessionItem && _sessionNearCacheSize > 0
+            ? new SessionNearCache( _sessionNearCacheSize, _statistics )
+            : null;
+
         if ( _sticky ) {
             setLockingMode( null, null, false );
             return;
@@ -1386,6 +2663,12 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
                 lockingMode = LockingMode.URI_PATTERN;
                 uriPattern = Pattern.compile( _lockingMode.substring( "uriPattern:".length() ) );
             }
+            else if ( _lockingMode.startsWith( "readWrite" ) ) {
+                lockingMode = LockingMode.READ_WRITE;
+                if ( _lockingMode.startsWith( "readWrite:" ) ) {
+                    uriPattern = Pattern.compile( _lockingMode.substring( "readWrite:".length() ) );
+                }
+            }
             else {
                 lockingMode = LockingMode.valueOf( _lockingMode.toUpperCase() );
             }
@@ -1399,6 +2682,10 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
 
     public void setLockingMode( @Nullable final LockingMode lockingMode, @Nullable final Pattern uriPattern, final boolean storeSecondaryBackup ) {
         _log.info( "Setting lockingMode to " + lockingMode + ( uriPattern != null ? " with pattern " + uriPattern.pattern() : "" ) );
+        if ( _lockingStrategy != null ) {
+            // shut down before the new strategy is created, so that it can load the final snapshot of readonly requests
+            _lockingStrategy.shutdown();
+        }
         _lockingStrategy = LockingStrategy.create( lockingMode, uriPattern, _memcached, this, _missingSessionsCache, storeSecondaryBackup, _statistics );
         if ( _sessionTrackerValve != null ) {
             _sessionTrackerValve.setLockingStrategy( _lockingStrategy );
@@ -1488,6 +2775,7 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
             if ( _lockingStrategy != null ) {
                 _lockingStrategy.shutdown();
             }
+            _localSessionLocks.shutdown();
             if ( _memcached != null ) {
                 _memcached.shutdown();
             }
@@ -1512,15 +2800,33 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
     @Override
     public void backgroundProcess() {
         updateExpirationInMemcached();
+        if ( _lockingStrategy != null ) {
+            _lockingStrategy.onBackgroundProcess();
+        }
         super.backgroundProcess();
     }
 
+    /**
+     * Updates the expiration in memcached of sessions (in sticky mode) that were accessed but not stored
+     * since their last backup and that would expire in memcached before the next run of this method.
+     * <p>
+     * Only sessions are checked that are about to expire in memcached according to the {@link ExpirationIndex},
+     * checked sessions are scheduled again with their current expiration in memcached.
+     * Sessions with a <code>maxInactiveInterval &lt;= 0</code> are stored without expiration and are not
+     * scheduled again.
+     * </p>
+     */
     protected void updateExpirationInMemcached() {
         if ( _enabled.get() && _sticky ) {
-            final Session[] sessions = findSessions();
             final int delay = getContainer().getBackgroundProcessorDelay();
-            for ( final Session s : sessions ) {
-                final MemcachedBackupSession session = (MemcachedBackupSession) s;
+            /* the expiration time is rounded to seconds, so we take sessions a bit more in advance
+             */
+            final List<String> sessionIds = _expirationIndex.pollExpiringBefore( System.currentTimeMillis() + ( 2 * delay + 1 ) * 1000L );
+            for ( final String sessionId : sessionIds ) {
+                final MemcachedBackupSession session = (MemcachedBackupSession) sessions.get( sessionId );
+                if ( session == null || !session.isValidInternal() || session.getMaxInactiveInterval() <= 0 ) {
+                    continue;
+                }
                 if ( _log.isDebugEnabled() ) {
                     _log.debug( "Checking session " + session.getId() + ": " +
                             "\n- isValid: " + session.isValidInternal() +
@@ -1530,12 +2836,10 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
                             "\n- wasAccessedSinceLastBackup: " + session.wasAccessedSinceLastBackup() +
                             "\n- memcachedExpirationTime: " + session.getMemcachedExpirationTime() );
                 }
-                if ( session.isValidInternal()
-                        && !session.isExpiring()
+                if ( !session.isExpiring()
                         && !session.isBackupRunning()
                         && !session.isExpirationUpdateRunning()
                         && session.wasAccessedSinceLastBackup()
-                        && session.getMaxInactiveInterval() > 0 // for <= 0 the session was stored in memcached with expiration 0
                         && session.getMemcachedExpirationTime() <= 2 * delay ) {
                     try {
                         _backupSessionService.updateExpiration( session );
@@ -1543,6 +2847,9 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
                         _log.info( "Could not update expiration in memcached for session " + session.getId(), e );
                     }
                 }
+                if ( sessions.containsKey( sessionId ) ) {
+                    _expirationIndex.schedule( sessionId, System.currentTimeMillis() + session.getMemcachedExpirationTime() * 1000L );
+                }
             }
         }
     }
@@ -1587,8 +2894,7 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         _sessionBackupAsync = sessionBackupAsync;
         if ( ( oldSessionBackupAsync != sessionBackupAsync ) && initialized ) {
             _log.info( "SessionBackupAsync was changed to " + sessionBackupAsync + ", creating new BackupSessionService with new configuration." );
-            _backupSessionService = new BackupSessionService( _transcoderService, _sessionBackupAsync, _sessionBackupTimeout,
-                    _backupThreadCount, _memcached, _nodeIdService, _statistics );
+            recreateBackupSessionService();
         }
     }
 
@@ -1618,8 +2924,7 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
      */
     void setTranscoderService( final TranscoderService transcoderService ) {
         _transcoderService = transcoderService;
-        _backupSessionService = new BackupSessionService( transcoderService, _sessionBackupAsync, _sessionBackupTimeout,
-                _backupThreadCount, _memcached, _nodeIdService, _statistics );
+        _backupSessionService = createBackupSessionService( transcoderService, _memcached, _nodeIdService );
     }
 
     /**
@@ -1659,6 +2964,13 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         return _lockingStrategy;
     }
 
+    /**
+     * The service that knows the memcached nodes and their availability.
+     */
+    NodeIdService getNodeIdService() {
+        return _nodeIdService;
+    }
+
     // -------------------------  statistics via jmx ----------------
 
     /**
@@ -1717,6 +3029,94 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         return _statistics.getRequestsWithoutSessionModification();
     }
 
+    /**
+     * @return
+     * @see de.javakaffee.web.msm.Statistics#getRequestsWithCoalescedBackup()
+     */
+    public long getMsmStatNumCoalescedBackups() {
+        return _statistics.getRequestsWithCoalescedBackup();
+    }
+
+    /**
+     * @return
+     * @see de.javakaffee.web.msm.Statistics#getRejectedBackups()
+     */
+    public long getMsmStatNumRejectedBackups() {
+        return _statistics.getRejectedBackups();
+    }
+
+    /**
+     * @return
+     * @see de.javakaffee.web.msm.Statistics#getNearCacheHits()
+     */
+    public long getMsmStatNumNearCacheHits() {
+        return _statistics.getNearCacheHits();
+    }
+
+    /**
+     * @return
+     * @see de.javakaffee.web.msm.Statistics#getNearCacheMisses()
+     */
+    public long getMsmStatNumNearCacheMisses() {
+        return _statistics.getNearCacheMisses();
+    }
+
+    /**
+     * @return
+     * @see de.javakaffee.web.msm.Statistics#getNearCacheStale()
+     */
+    public long getMsmStatNumNearCacheStale() {
+        return _statistics.getNearCacheStale();
+    }
+
+    /**
+     * @return
+     * @see de.javakaffee.web.msm.Statistics#getMissingSessionsCacheHits()
+     */
+    public long getMsmStatNumMissingSessionsCacheHits() {
+        return _statistics.getMissingSessionsCacheHits();
+    }
+
+    /**
+     * @return
+     * @see de.javakaffee.web.msm.Statistics#getMissingSessionsCacheMisses()
+     */
+    public long getMsmStatNumMissingSessionsCacheMisses() {
+        return _statistics.getMissingSessionsCacheMisses();
+    }
+
+    /**
+     * @return
+     * @see de.javakaffee.web.msm.Statistics#getLocalLockHandOvers()
+     */
+    public long getMsmStatNumLocalLockHandOvers() {
+        return _statistics.getLocalLockHandOvers();
+    }
+
+    /**
+     * @return
+     * @see de.javakaffee.web.msm.Statistics#getLockLeaseRenewals()
+     */
+    public long getMsmStatNumLockLeaseRenewals() {
+        return _statistics.getLockLeaseRenewals();
+    }
+
+    /**
+     * The number of asynchronous session backups currently waiting for execution.
+     * @return the current backup queue size.
+     */
+    public int getMsmStatBackupQueueSize() {
+        return _backupSessionService.getQueuedBackups();
+    }
+
+    /**
+     * The number of bytes currently passed to memcached asynchronously that are not yet written.
+     * @return the current in-flight bytes.
+     */
+    public long getMsmStatBackupInFlightBytes() {
+        return _backupSessionService.getInFlightBackupBytes();
+    }
+
     /**
      * @return
      * @see de.javakaffee.web.msm.Statistics#getRequestsWithSession()
@@ -1765,6 +3165,58 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         return _statistics.getProbe( BACKUP ).getInfo();
     }
 
+    /**
+     * Returns a string array with labels and values of count, min, avg and max
+     * of the number of queued backups when an asynchronous backup was submitted.
+     *
+     * @return a String array for statistics inspection via jmx.
+     */
+    public String[] getMsmStatBackupQueueSizeInfo() {
+        return _statistics.getProbe( BACKUP_QUEUE_SIZE ).getInfo();
+    }
+
+    /**
+     * Returns a string array with labels and values of count, min, avg and max
+     * of the time that asynchronous backups were waiting in the queue before they were started.
+     *
+     * @return a String array for statistics inspection via jmx.
+     */
+    public String[] getMsmStatBackupQueueWaitInfo() {
+        return _statistics.getProbe( BACKUP_QUEUE_WAIT ).getInfo();
+    }
+
+    /**
+     * Returns a string array with labels and values of count, min, avg and max
+     * of the time that compression of serialized session attributes took.
+     *
+     * @return a String array for statistics inspection via jmx.
+     * @see #setCompression(String)
+     */
+    public String[] getMsmStatCompressionInfo() {
+        return _statistics.getProbe( COMPRESSION ).getInfo();
+    }
+
+    /**
+     * Returns a string array with labels and values of count, min, avg and max
+     * of the size of compressed session attributes in percent of their uncompressed size.
+     *
+     * @return a String array for statistics inspection via jmx.
+     * @see #setCompression(String)
+     */
+    public String[] getMsmStatCompressionRatioInfo() {
+        return _statistics.getProbe( COMPRESSION_RATIO ).getInfo();
+    }
+
+    /**
+     * Returns a string array with labels and values of count, min, avg and max
+     * of the time that decompression of session attributes took.
+     *
+     * @return a String array for statistics inspection via jmx.
+     */
+    public String[] getMsmStatDecompressionInfo() {
+        return _statistics.getProbe( DECOMPRESSION ).getInfo();
+    }
+
     /**
      * Returns a string array with labels and values of count, min, avg and max
      * of the time that loading sessions from memcached took (including deserialization).
@@ -1835,6 +3287,13 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         return _statistics.getProbe( RELEASE_LOCK ).getInfo();
     }
 
+    /**
+     * Time it took to acquire a lock after its release in non-sticky session mode.
+     */
+    public String[] getMsmStatNonStickyAcquireLockAfterReleaseInfo() {
+        return _statistics.getProbe( ACQUIRE_LOCK_AFTER_RELEASE ).getInfo();
+    }
+
     /**
      * Tasks executed (in the request thread) for non-sticky sessions at the end of requests that did not access
      * the session (validity load/update, ping session, ping 2nd session backup, update validity backup).
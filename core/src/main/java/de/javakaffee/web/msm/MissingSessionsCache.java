@@ -0,0 +1,237 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A negative cache of session ids that were not found in memcached, so that repeated lookups of
+ * a missing session (e.g. several findSession invocations in one request or requests with an
+ * invalid session cookie) don't trigger a memcached request each time.
+ * <p>
+ * The cache is split into segments that are selected by the hash of the session id. Each segment
+ * is backed by a {@link ConcurrentHashMap} of session ids and their expiration time and a queue
+ * of session ids in insertion order, so that lookups and inserts don't need a lock. A segment that
+ * exceeds its capacity evicts its oldest entries. As all entries have the same time to live the
+ * oldest entries are also the ones that expire first, so that expired entries don't need to be
+ * removed on lookup.
+ * </p>
+ * <p>
+ * Optionally the segments are fronted by a bloom filter, so that lookups of session ids that were
+ * never missing (the common case) are answered without touching the segments. Because entries expire
+ * the filter consists of two generations that are rotated after the time to live, so that an id is
+ * kept in the filter as long as it may be cached.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class MissingSessionsCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] _segments;
+    private final long _ttl;
+    private final BloomFilter _filter;
+    private final Statistics _statistics;
+
+    /**
+     * @param size the max number of cached session ids.
+     * @param ttlInMillis the time in millis a session id is cached.
+     * @param bloomFilter specifies, if lookups shall be checked by a bloom filter first.
+     * @param statistics used to count hits and misses.
+     */
+    MissingSessionsCache( final int size, final long ttlInMillis, final boolean bloomFilter,
+            @Nonnull final Statistics statistics ) {
+        if ( size < 1 ) {
+            throw new IllegalArgumentException( "The size must be greater than 0, but was " + size );
+        }
+        _ttl = ttlInMillis;
+        _statistics = statistics;
+        final int segments = Math.min( SEGMENTS, Integer.highestOneBit( size ) );
+        _segments = new Segment[segments];
+        final int segmentSize = ( size + segments - 1 ) / segments;
+        for ( int i = 0; i < segments; i++ ) {
+            _segments[i] = new Segment( segmentSize );
+        }
+        _filter = bloomFilter ? new BloomFilter( size, ttlInMillis ) : null;
+    }
+
+    /**
+     * Stores the given session id as missing.
+     */
+    void put( @Nonnull final String sessionId ) {
+        final int hash = hash( sessionId );
+        if ( _filter != null ) {
+            _filter.put( hash );
+        }
+        segmentFor( hash ).put( sessionId, System.currentTimeMillis() + _ttl );
+    }
+
+    /**
+     * Determines, if the given session id was stored as missing during the last ttl millis.
+     * Hits and misses are counted.
+     */
+    boolean contains( @Nonnull final String sessionId ) {
+        final int hash = hash( sessionId );
+        final boolean result = ( _filter == null || _filter.mightContain( hash ) )
+            && segmentFor( hash ).contains( sessionId, System.currentTimeMillis() );
+        if ( result ) {
+            _statistics.missingSessionsCacheHit();
+        }
+        else {
+            _statistics.missingSessionsCacheMiss();
+        }
+        return result;
+    }
+
+    /**
+     * The number of cached session ids, including entries that are expired but not yet evicted.
+     */
+    int size() {
+        int result = 0;
+        for ( final Segment segment : _segments ) {
+            result += segment._size.get();
+        }
+        return result;
+    }
+
+    private Segment segmentFor( final int hash ) {
+        return _segments[( hash >>> 16 ) & ( _segments.length - 1 )];
+    }
+
+    private static int hash( final String sessionId ) {
+        // spread the bits of the string hash (as done by HashMap)
+        int h = sessionId.hashCode();
+        h ^= ( h >>> 20 ) ^ ( h >>> 12 );
+        return h ^ ( h >>> 7 ) ^ ( h >>> 4 );
+    }
+
+    private static final class Segment {
+
+        private final int _capacity;
+        private final ConcurrentMap<String, Long> _expirations = new ConcurrentHashMap<String, Long>();
+        private final ConcurrentLinkedQueue<String> _insertionOrder = new ConcurrentLinkedQueue<String>();
+        private final AtomicInteger _size = new AtomicInteger();
+
+        Segment( final int capacity ) {
+            _capacity = capacity;
+        }
+
+        void put( final String sessionId, final long expiration ) {
+            if ( _expirations.put( sessionId, expiration ) == null ) {
+                _insertionOrder.add( sessionId );
+                if ( _size.incrementAndGet() > _capacity ) {
+                    evict();
+                }
+            }
+        }
+
+        boolean contains( final String sessionId, final long now ) {
+            // expired entries are not removed here but evicted in insertion order
+            final Long expiration = _expirations.get( sessionId );
+            return expiration != null && expiration.longValue() > now;
+        }
+
+        private void evict() {
+            while ( _size.get() > _capacity ) {
+                final String eldest = _insertionOrder.poll();
+                if ( eldest == null ) {
+                    return;
+                }
+                if ( _expirations.remove( eldest ) != null ) {
+                    _size.decrementAndGet();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * A bloom filter that consists of two generations of bits, the current generation is
+     * moved to the previous one after the ttl. An id that's added is therefore contained
+     * in the filter for at least the ttl.
+     * Lost updates during a rotation are acceptable, they only cause a lookup of the segments.
+     */
+    private static final class BloomFilter {
+
+        private static final int BITS_PER_ENTRY = 10;
+        private static final int HASHES = 3;
+
+        private final int _mask;
+        private final long _ttl;
+        private final AtomicLong _generationStart = new AtomicLong( System.currentTimeMillis() );
+        private volatile AtomicLongArray _current;
+        private volatile AtomicLongArray _previous;
+
+        BloomFilter( final int size, final long ttlInMillis ) {
+            final int bits = Integer.highestOneBit( Math.max( 64, size * BITS_PER_ENTRY ) - 1 ) << 1;
+            _mask = bits - 1;
+            _ttl = ttlInMillis;
+            _current = new AtomicLongArray( bits / 64 );
+            _previous = new AtomicLongArray( bits / 64 );
+        }
+
+        void put( final int hash ) {
+            final AtomicLongArray bits = currentGeneration();
+            int h = hash;
+            final int step = ( hash >>> 16 ) | 1;
+            for ( int i = 0; i < HASHES; i++, h += step ) {
+                final int bit = h & _mask;
+                final long mask = 1L << ( bit & 63 );
+                long word;
+                do {
+                    word = bits.get( bit >>> 6 );
+                } while ( ( word & mask ) == 0 && !bits.compareAndSet( bit >>> 6, word, word | mask ) );
+            }
+        }
+
+        boolean mightContain( final int hash ) {
+            return contains( currentGeneration(), hash ) || contains( _previous, hash );
+        }
+
+        private boolean contains( final AtomicLongArray bits, final int hash ) {
+            int h = hash;
+            final int step = ( hash >>> 16 ) | 1;
+            for ( int i = 0; i < HASHES; i++, h += step ) {
+                final int bit = h & _mask;
+                if ( ( bits.get( bit >>> 6 ) & ( 1L << ( bit & 63 ) ) ) == 0 ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private AtomicLongArray currentGeneration() {
+            final long start = _generationStart.get();
+            final long now = System.currentTimeMillis();
+            if ( _ttl > 0 && now - start >= _ttl && _generationStart.compareAndSet( start, now ) ) {
+                _previous = _current;
+                _current = new AtomicLongArray( _previous.length() );
+            }
+            return _current;
+        }
+
+    }
+
+}
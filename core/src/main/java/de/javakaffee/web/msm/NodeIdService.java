@@ -185,7 +185,8 @@ public class NodeIdService {
         return isNodeAvailable( nodeId ) ? nodeId : getAvailableNodeId( nodeId );
     }
 
-    /* Just for testing
+    /**
+     * The (regular) node ids in the configured order.
      */
     List<String> getNodeIds() {
         return new ArrayList<String>( _nodeIds );
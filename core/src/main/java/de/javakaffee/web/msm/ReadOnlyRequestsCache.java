@@ -16,16 +16,36 @@
  */
 package de.javakaffee.web.msm;
 
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.regex.Pattern;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
 /**
  * Stores readonly requests and a blacklist (requests that modified the session).
+ * <p>
+ * Requests are tracked by the key determined by a {@link RequestKeyNormalizer}, so that similar
+ * requests (e.g. requests for different products) are classified together. A request is regarded
+ * as readonly when it was tracked as readonly at least <em>minHits</em> times and the ratio of
+ * readonly to all tracked requests with this key is at least <em>minConfidence</em>.
+ * With a confidence of <code>1</code> (the default) a single modifying request blacklists
+ * the request key.
+ * </p>
+ * <p>
+ * The tracked requests can be exported as a {@link #toSnapshot() snapshot} and snapshots (e.g. of
+ * other tomcats) can be {@link #merge(String) merged}, so that the knowledge is not learned from scratch.
+ * Requests keep the time they were first tracked when they're merged, so that they expire like the
+ * original ones.
+ * </p>
  *
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  */
@@ -42,15 +62,53 @@ public class ReadOnlyRequestsCache {
 
     };
 
+    /**
+     * The max number of modifying requests contained in a snapshot, the most recently accessed are exported.
+     */
+    static final int MAX_SNAPSHOT_MODIFYING_REQUESTS = 5000;
+
+    /**
+     * The time in millis requests are tracked.
+     */
+    private static final long TTL = TimeUnit.HOURS.toMillis( 6 );
+
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    private static final char READ_ONLY = 'R';
+    private static final char MODIFYING = 'M';
+    private static final char SEPARATOR = '\t';
+    private static final Pattern LINE_SEPARATOR = Pattern.compile( "\n" );
+
     private final Log _log = LogFactory.getLog( getClass() );
 
     private final LRUCache<String, AtomicLong> _readOnlyRequests;
     private final LRUCache<String, AtomicLong> _blacklist;
+    private final RequestKeyNormalizer _normalizer;
+    private final int _minHits;
+    private final double _minConfidence;
 
     public ReadOnlyRequestsCache() {
-        final long sixHours = TimeUnit.HOURS.toMillis( 6 );
-        _readOnlyRequests = new LRUCache<String, AtomicLong>( 1000, sixHours );
-        _blacklist = new LRUCache<String, AtomicLong>( 50000, sixHours );
+        this( new DefaultRequestKeyNormalizer(), 1, 1 );
+    }
+
+    /**
+     * @param normalizer determines the keys requests are tracked by.
+     * @param minHits the number of times a request must have been tracked as readonly to be regarded as readonly.
+     * @param minConfidence the min ratio (from <code>0</code> to <code>1</code>) of readonly to all tracked requests
+     *  for a request to be regarded as readonly.
+     */
+    public ReadOnlyRequestsCache( @Nonnull final RequestKeyNormalizer normalizer, final int minHits, final double minConfidence ) {
+        if ( minHits < 1 ) {
+            throw new IllegalArgumentException( "The minHits must be greater than 0, but was " + minHits );
+        }
+        if ( minConfidence <= 0 || minConfidence > 1 ) {
+            throw new IllegalArgumentException( "The minConfidence must be greater than 0 and at most 1, but was " + minConfidence );
+        }
+        _readOnlyRequests = new LRUCache<String, AtomicLong>( 1000, TTL );
+        _blacklist = new LRUCache<String, AtomicLong>( 50000, TTL );
+        _normalizer = normalizer;
+        _minHits = minHits;
+        _minConfidence = minConfidence;
     }
 
     /**
@@ -65,11 +123,12 @@ public class ReadOnlyRequestsCache {
      * @see #modifyingRequest(String)
      */
     public boolean readOnlyRequest( final String requestId ) {
-        if ( !_blacklist.containsKey( requestId ) ) {
+        final String key = _normalizer.normalize( requestId );
+        if ( _minConfidence < 1 || !_blacklist.containsKey( key ) ) {
             if ( _log.isDebugEnabled() ) {
-                _log.debug( "Registering readonly request: " + requestId );
+                _log.debug( "Registering readonly request: " + key );
             }
-            incrementOrPut( _readOnlyRequests, requestId );
+            incrementOrPut( _readOnlyRequests, key );
             return true;
         }
         return false;
@@ -81,11 +140,14 @@ public class ReadOnlyRequestsCache {
      * @param requestId the request uri to track.
      */
     public void modifyingRequest( final String requestId ) {
+        final String key = _normalizer.normalize( requestId );
         if ( _log.isDebugEnabled() ) {
-            _log.debug( "Registering modifying request: " + requestId );
+            _log.debug( "Registering modifying request: " + key );
+        }
+        incrementOrPut( _blacklist, key );
+        if ( _minConfidence >= 1 ) {
+            _readOnlyRequests.remove( key );
         }
-        incrementOrPut( _blacklist, requestId );
-        _readOnlyRequests.remove( requestId );
     }
 
     /**
@@ -94,15 +156,38 @@ public class ReadOnlyRequestsCache {
      * @return <code>true</code> if the given request uri can be regarded as read only.
      */
     public boolean isReadOnlyRequest( final String requestId ) {
+        final String key = _normalizer.normalize( requestId );
+        final boolean result = isReadOnly( key );
         if ( _log.isDebugEnabled() ) {
-            _log.debug( "Asked for readonly request: " + requestId + " ("+ _readOnlyRequests.containsKey( requestId ) +")" );
+            _log.debug( "Asked for readonly request: " + key + " ("+ result +")" );
+        }
+        return result;
+    }
+
+    private boolean isReadOnly( final String key ) {
+        if ( _minHits <= 1 && _minConfidence >= 1 ) {
+            return _readOnlyRequests.containsKey( key );
+        }
+        final AtomicLong readOnlyCount = _readOnlyRequests.get( key );
+        if ( readOnlyCount == null ) {
+            return false;
+        }
+        final long readOnly = readOnlyCount.get();
+        if ( readOnly < _minHits ) {
+            return false;
+        }
+        if ( _minConfidence >= 1 ) {
+            // modifying requests are removed from the readonly requests
+            return true;
         }
-        // TODO: add some threshold
-        return _readOnlyRequests.containsKey( requestId );
+        final AtomicLong modifyingCount = _blacklist.get( key );
+        final long modifying = modifyingCount != null ? modifyingCount.get() : 0;
+        return readOnly >= _minConfidence * ( readOnly + modifying );
     }
 
     /**
-     * The readonly requests, ordered by last accessed time, from least-recently accessed to most-recently.
+     * The keys of requests that were tracked as readonly (regardless of the hit threshold and confidence),
+     * ordered by last accessed time, from least-recently accessed to most-recently.
      * @return a list of readonly requests.
      */
     public List<String> getReadOnlyRequests() {
@@ -117,6 +202,138 @@ public class ReadOnlyRequestsCache {
         return _readOnlyRequests.getKeysSortedByValue( ATOMLONG_COMP );
     }
 
+    /**
+     * Exports the tracked readonly and modifying requests with their counts and the time they were
+     * first tracked, one request per line.
+     *
+     * @return the snapshot that can be {@link #merge(String) merged} into another cache.
+     */
+    @Nonnull
+    public String toSnapshot() {
+        return toSnapshot( Integer.MAX_VALUE );
+    }
+
+    /**
+     * Exports the tracked requests like {@link #toSnapshot()}, with a size of at most the given number
+     * of bytes (UTF-8 encoded). If not all requests fit, readonly requests take precedence over modifying
+     * requests and recently accessed requests over less recently accessed ones.
+     *
+     * @param maxBytes the max size of the snapshot in bytes.
+     * @return the snapshot that can be {@link #merge(String) merged} into another cache.
+     */
+    @Nonnull
+    public String toSnapshot( final int maxBytes ) {
+        final List<String> readOnly = new ArrayList<String>();
+        final int readOnlyBytes = collectLines( readOnly, READ_ONLY, _readOnlyRequests, _readOnlyRequests.getKeys(), maxBytes );
+        final List<String> modifying = new ArrayList<String>();
+        final List<String> modifyingKeys = _blacklist.getKeys();
+        collectLines( modifying, MODIFYING, _blacklist,
+                modifyingKeys.subList( Math.max( 0, modifyingKeys.size() - MAX_SNAPSHOT_MODIFYING_REQUESTS ), modifyingKeys.size() ),
+                maxBytes - readOnlyBytes );
+
+        // the lines are written from least-recently accessed to most-recently, so that merging keeps the order
+        final StringBuilder sb = new StringBuilder();
+        for ( int i = modifying.size() - 1; i >= 0; i-- ) {
+            sb.append( modifying.get( i ) );
+        }
+        for ( int i = readOnly.size() - 1; i >= 0; i-- ) {
+            sb.append( readOnly.get( i ) );
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Collects the snapshot lines of the given keys, starting with the most recently accessed one, as long
+     * as the lines don't exceed the given number of bytes.
+     *
+     * @return the number of bytes of the collected lines.
+     */
+    private static int collectLines( final List<String> lines, final char type, final LRUCache<String, AtomicLong> cache,
+            final List<String> keys, final int maxBytes ) {
+        int bytes = 0;
+        for ( int i = keys.size() - 1; i >= 0; i-- ) {
+            final String key = keys.get( i );
+            final AtomicLong count = cache.peek( key );
+            final long insertionTime = cache.getInsertionTime( key );
+            if ( count == null || insertionTime < 0 || key.indexOf( '\n' ) >= 0 ) {
+                continue;
+            }
+            final String line = new StringBuilder().append( type ).append( SEPARATOR ).append( count.get() )
+                    .append( SEPARATOR ).append( insertionTime ).append( SEPARATOR ).append( key ).append( '\n' ).toString();
+            final int lineBytes = line.getBytes( UTF_8 ).length;
+            if ( bytes + lineBytes > maxBytes ) {
+                break;
+            }
+            lines.add( line );
+            bytes += lineBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Merges the given snapshot (created by {@link #toSnapshot()}) into this cache: for requests that are
+     * known in both the higher count is taken, so that merging the same snapshot again doesn't change
+     * anything. Requests that are not known yet keep the time they were first tracked, expired
+     * requests are ignored. With a min confidence of <code>1</code> modifying requests blacklist readonly ones
+     * like for tracked requests.
+     *
+     * @param snapshot the snapshot, invalid lines are ignored.
+     */
+    public void merge( @Nullable final String snapshot ) {
+        if ( snapshot == null ) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        int merged = 0;
+        for ( final String line : LINE_SEPARATOR.split( snapshot ) ) {
+            final int idx1 = line.indexOf( SEPARATOR );
+            final int idx2 = idx1 < 0 ? -1 : line.indexOf( SEPARATOR, idx1 + 1 );
+            final int idx3 = idx2 < 0 ? -1 : line.indexOf( SEPARATOR, idx2 + 1 );
+            if ( idx1 != 1 || idx3 < 0 ) {
+                continue;
+            }
+            final long count;
+            final long insertionTime;
+            try {
+                count = Long.parseLong( line.substring( idx1 + 1, idx2 ) );
+                insertionTime = Long.parseLong( line.substring( idx2 + 1, idx3 ) );
+            } catch ( final NumberFormatException e ) {
+                continue;
+            }
+            if ( now - insertionTime > TTL ) {
+                continue;
+            }
+            final String key = line.substring( idx3 + 1 );
+            if ( line.charAt( 0 ) == MODIFYING ) {
+                mergeCount( _blacklist, key, count, insertionTime );
+                if ( _minConfidence >= 1 ) {
+                    _readOnlyRequests.remove( key );
+                }
+                merged++;
+            }
+            else if ( line.charAt( 0 ) == READ_ONLY && ( _minConfidence < 1 || !_blacklist.containsKey( key ) ) ) {
+                mergeCount( _readOnlyRequests, key, count, insertionTime );
+                merged++;
+            }
+        }
+        if ( _log.isDebugEnabled() ) {
+            _log.debug( "Merged " + merged + " requests from snapshot." );
+        }
+    }
+
+    private static void mergeCount( final LRUCache<String, AtomicLong> cache, final String key, final long count,
+            final long insertionTime ) {
+        final AtomicLong current = cache.peek( key );
+        if ( current == null ) {
+            cache.put( key, new AtomicLong( count ), insertionTime );
+            return;
+        }
+        long value;
+        while ( ( value = current.get() ) < count && !current.compareAndSet( value, count ) ) {
+            // retry
+        }
+    }
+
     private void incrementOrPut( final LRUCache<String, AtomicLong> cache, final String requestURI ) {
         final AtomicLong count = cache.get( requestURI );
         if ( count != null ) {
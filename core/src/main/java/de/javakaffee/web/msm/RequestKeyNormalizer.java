@@ -0,0 +1,43 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Normalizes the ids of requests (request uri with query string) before they are tracked by the
+ * {@link ReadOnlyRequestsCache}, so that requests that differ e.g. only by the id of the requested
+ * entity are classified together.
+ * <p>
+ * Implementations must be thread-safe and must have a public no-arg constructor to be configured
+ * via {@link MemcachedBackupSessionManager#setReadOnlyRequestKeyNormalizerClass(String)}.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public interface RequestKeyNormalizer {
+
+    /**
+     * Determines the key that's used to classify the given request.
+     *
+     * @param requestId the request uri with query string.
+     * @return the normalized key, e.g. <code>/product/{n}</code> for <code>/product/42?ref=home</code>.
+     */
+    @Nonnull
+    String normalize( @Nonnull String requestId );
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.TranscoderService.decodeNum;
+import static de.javakaffee.web.msm.TranscoderService.encodeNum;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Describes a session that is too big for a single memcached item (see
+ * {@link MemcachedBackupSessionManager#setSessionChunkSize(int)}): the session data is split into
+ * chunks that are stored as separate items (see {@link #createChunkKeyName(String, int)}),
+ * and the session item itself only contains this (small) manifest.
+ * <p>
+ * The manifest stores the length of the session data, the number of chunks and the
+ * 64 bit hash of the session data, so that a session assembled from chunks of different backups
+ * is detected.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class SessionChunks {
+
+    /**
+     * The default chunk size, this leaves enough space for the item overhead so
+     * that a chunk fits into the default max item size of memcached (1 MB).
+     */
+    static final int DEFAULT_CHUNK_SIZE = 1000 * 1024;
+
+    /*
+     * The version of the manifest, this must differ from the versions of the session data
+     * written by the TranscoderService, so that a manifest can be distinguished from session data.
+     */
+    private static final short VERSION = 3;
+    private static final int MANIFEST_LENGTH = 2 + 4 + 4 + 8;
+
+    private final int _length;
+    private final int _numChunks;
+    private final long _hash;
+
+    private SessionChunks( final int length, final int numChunks, final long hash ) {
+        _length = length;
+        _numChunks = numChunks;
+        _hash = hash;
+    }
+
+    /**
+     * Creates the name/key that is used for the item of the chunk with the given index.
+     */
+    @Nonnull
+    static String createChunkKeyName( @Nonnull final String sessionId, final int index ) {
+        if ( sessionId == null ) {
+            throw new IllegalArgumentException( "The sessionId must not be null." );
+        }
+        return "chunk:" + index + ":" + sessionId;
+    }
+
+    /**
+     * Determines the number of chunks needed to store the given number of bytes,
+     * <code>0</code> if the data fits into a single item (or if chunking is disabled).
+     *
+     * @param length the length of the session data
+     * @param chunkSize the max size of a chunk, <code>0</code> disables chunking.
+     */
+    static int getNumChunks( final int length, final int chunkSize ) {
+        if ( chunkSize <= 0 || length <= chunkSize ) {
+            return 0;
+        }
+        return ( length + chunkSize - 1 ) / chunkSize;
+    }
+
+    /**
+     * Copies the chunk with the given index from the session data.
+     */
+    @Nonnull
+    static byte[] createChunk( @Nonnull final byte[] data, final int index, final int chunkSize ) {
+        final int offset = index * chunkSize;
+        final int length = Math.min( chunkSize, data.length - offset );
+        final byte[] result = new byte[length];
+        System.arraycopy( data, offset, result, 0, length );
+        return result;
+    }
+
+    /**
+     * Creates the manifest for the given session data that is stored in the given number of chunks.
+     */
+    @Nonnull
+    static byte[] createManifest( @Nonnull final byte[] data, final int numChunks ) {
+        final byte[] result = new byte[MANIFEST_LENGTH];
+        int idx = encodeNum( VERSION, result, 0, 2 );
+        idx = encodeNum( data.length, result, idx, 4 );
+        idx = encodeNum( numChunks, result, idx, 4 );
+        encodeNum( XXHash64.hash( data ), result, idx, 8 );
+        return result;
+    }
+
+    /**
+     * Decodes the manifest from the given session item.
+     *
+     * @return the manifest or <code>null</code> if the item does not contain a manifest
+     *  but the session data.
+     */
+    @CheckForNull
+    static SessionChunks decode( @Nonnull final byte[] data ) {
+        if ( data.length != MANIFEST_LENGTH || decodeNum( data, 0, 2 ) != VERSION ) {
+            return null;
+        }
+        return new SessionChunks( (int) decodeNum( data, 2, 4 ), (int) decodeNum( data, 6, 4 ), decodeNum( data, 10, 8 ) );
+    }
+
+    /**
+     * The number of chunks the session data is stored in.
+     */
+    int getNumChunks() {
+        return _numChunks;
+    }
+
+    /**
+     * The keys of all chunks of the given session.
+     */
+    @Nonnull
+    List<String> getChunkKeys( @Nonnull final String sessionId ) {
+        final List<String> result = new ArrayList<String>( _numChunks );
+        for ( int i = 0; i < _numChunks; i++ ) {
+            result.add( createChunkKeyName( sessionId, i ) );
+        }
+        return result;
+    }
+
+    /**
+     * Assembles the session data from the given chunk items.
+     *
+     * @param sessionId the id of the session
+     * @param items the chunk items by key as returned by a bulk get for {@link #getChunkKeys(String)}.
+     * @return the session data
+     * @throws IllegalStateException if a chunk is missing or the chunks don't belong to
+     *  the session data described by this manifest.
+     */
+    @Nonnull
+    byte[] join( @Nonnull final String sessionId, @Nonnull final Map<String, Object> items ) {
+        return join( sessionId, getChunkKeys( sessionId ), items );
+    }
+
+    /**
+     * Assembles the session data from the chunk items with the given keys, e.g. the keys of the
+     * chunks of the secondary backup of the session.
+     *
+     * @param sessionId the id of the session
+     * @param chunkKeys the keys of the chunks, in the order of the chunks.
+     * @param items the chunk items by key as returned by a bulk get for the given keys.
+     * @return the session data
+     * @throws IllegalStateException if a chunk is missing or the chunks don't belong to
+     *  the session data described by this manifest.
+     */
+    @Nonnull
+    byte[] join( @Nonnull final String sessionId, @Nonnull final List<String> chunkKeys, @Nonnull final Map<String, Object> items ) {
+        if ( chunkKeys.size() != _numChunks ) {
+            throw new IllegalArgumentException( "Expected " + _numChunks + " chunk keys, but got " + chunkKeys.size() + "." );
+        }
+        final byte[] result = new byte[_length];
+        int offset = 0;
+        for ( int i = 0; i < _numChunks; i++ ) {
+            final String key = chunkKeys.get( i );
+            final byte[] chunk = (byte[]) items.get( key );
+            if ( chunk == null ) {
+                throw new IllegalStateException( "The chunk " + i + " of session " + sessionId +
+                        " was not found in memcached (key " + key + ")." );
+            }
+            if ( offset + chunk.length > _length ) {
+                throw new IllegalStateException( "The chunks of session " + sessionId + " exceed the expected length " + _length + "." );
+            }
+            System.arraycopy( chunk, 0, result, offset, chunk.length );
+            offset += chunk.length;
+        }
+        if ( offset != _length || XXHash64.hash( result ) != _hash ) {
+            throw new IllegalStateException( "The chunks of session " + sessionId + " don't match the session manifest." );
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionChunks [length=" + _length + ", numChunks=" + _numChunks + "]";
+    }
+
+}
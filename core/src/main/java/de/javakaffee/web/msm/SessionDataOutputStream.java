@@ -0,0 +1,73 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A {@link ByteArrayOutputStream} that is reused for serializing the session attributes
+ * and that reserves space at the front of the buffer for the session fields, so that
+ * the session fields can be written in place afterwards (see
+ * {@link TranscoderService#serialize(MemcachedBackupSession, TranscoderService.SerializedAttributes)})
+ * and the serialized attributes don't have to be copied to another array.
+ * <p>
+ * Instances are pooled by the {@link TranscoderService}, this class is not thread-safe.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class SessionDataOutputStream extends ByteArrayOutputStream {
+
+    SessionDataOutputStream() {
+        super( 4096 );
+    }
+
+    /**
+     * Prepares this stream for the next use, the given number of bytes
+     * at the front of the buffer is reserved (and skipped).
+     *
+     * @param reserved the number of bytes to reserve.
+     */
+    void reset( final int reserved ) {
+        if ( buf.length < reserved ) {
+            buf = new byte[Math.max( reserved, buf.length << 1 )];
+        }
+        count = reserved;
+    }
+
+    /**
+     * Provides the underlying buffer with at least the given size, so that it can
+     * be used as scratch space (the stream must be {@link #reset(int)} before it's used as stream again).
+     *
+     * @param capacity the min size of the buffer.
+     * @return the underlying buffer.
+     */
+    byte[] ensureCapacity( final int capacity ) {
+        if ( buf.length < capacity ) {
+            buf = new byte[capacity];
+        }
+        return buf;
+    }
+
+    /**
+     * The current size of the underlying buffer.
+     */
+    int capacity() {
+        return buf.length;
+    }
+
+}
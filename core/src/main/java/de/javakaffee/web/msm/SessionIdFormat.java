@@ -202,6 +202,19 @@ public class SessionIdFormat {
         return "lock:" + sessionId;
     }
 
+    /**
+     * Creates the name/key of the counter of shared (read) locks stored in memcached.
+     * @param sessionId the session id for that a read lock key shall be created.
+     * @return a String.
+     */
+    @Nonnull
+    public String createReadLockName( @Nonnull final String sessionId ) {
+        if ( sessionId == null ) {
+            throw new IllegalArgumentException( "The sessionId must not be null." );
+        }
+        return "rlock:" + sessionId;
+    }
+
     /**
      * Creates the name/key that is used for the data (session or validity info)
      * that is additionally stored in a secondary memcached node for non-sticky sessions.
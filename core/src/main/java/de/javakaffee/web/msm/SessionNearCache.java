@@ -0,0 +1,121 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A bounded local cache of deserialized non-sticky sessions, so that a session that was not modified
+ * on another tomcat since it was used here must neither be transferred from memcached nor be deserialized.
+ * <p>
+ * Each cached session is stored with the version of its data in memcached, which is also stored
+ * in the {@link SessionValidityInfo}. Before a cached session is used the (small) validity info is
+ * loaded and the session is only used if both versions are equal.
+ * </p>
+ * <p>
+ * A cached session is {@link #take(String, SessionValidityInfo) taken} out of the cache while it's used by
+ * a request and put back when it was stored in memcached, so that a session instance is never shared by
+ * requests that load the session concurrently.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class SessionNearCache {
+
+    private final LRUCache<String, Entry> _entries;
+    private final Statistics _statistics;
+
+    /**
+     * @param size the max number of cached sessions.
+     * @param statistics used to count hits, misses and stale entries.
+     */
+    SessionNearCache( final int size, @Nonnull final Statistics statistics ) {
+        _entries = new LRUCache<String, Entry>( size );
+        _statistics = statistics;
+    }
+
+    /**
+     * Caches the given session, that is stored in memcached with the given version. A session
+     * with an unknown version (<code>0</code>) or an invalidated session is not cached.
+     */
+    void put( @Nonnull final MemcachedBackupSession session, final long version ) {
+        if ( version == 0 || !session.isValidInternal() ) {
+            _entries.remove( session.getIdInternal() );
+            return;
+        }
+        _entries.put( session.getIdInternal(), new Entry( session, version ) );
+    }
+
+    /**
+     * Specifies, if a session with the given id is cached, without changing statistics.
+     */
+    boolean contains( @Nonnull final String sessionId ) {
+        return _entries.containsKey( sessionId );
+    }
+
+    /**
+     * Removes the cached session with the given id and returns it, if it has the version of the given
+     * validity info.
+     *
+     * @param sessionId the id of the session
+     * @param validityInfo the validity info loaded from memcached, <code>null</code> if it does not exist.
+     * @return the cached session or <code>null</code> if no session is cached or if the cached session is stale.
+     */
+    @CheckForNull
+    MemcachedBackupSession take( @Nonnull final String sessionId, @Nullable final SessionValidityInfo validityInfo ) {
+        final Entry entry = _entries.remove( sessionId );
+        if ( entry == null ) {
+            _statistics.nearCacheMiss();
+            return null;
+        }
+        if ( validityInfo == null || validityInfo.getVersion() != entry._version ) {
+            _statistics.nearCacheStale();
+            return null;
+        }
+        _statistics.nearCacheHit();
+        return entry._session;
+    }
+
+    /**
+     * Counts a lookup of a session that is not cached.
+     */
+    void miss() {
+        _statistics.nearCacheMiss();
+    }
+
+    /**
+     * Removes the session with the given id.
+     */
+    void remove( @Nonnull final String sessionId ) {
+        _entries.remove( sessionId );
+    }
+
+    private static final class Entry {
+
+        private final MemcachedBackupSession _session;
+        private final long _version;
+
+        Entry( final MemcachedBackupSession session, final long version ) {
+            _session = session;
+            _version = version;
+        }
+
+    }
+
+}
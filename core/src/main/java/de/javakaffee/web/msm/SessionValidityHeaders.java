@@ -0,0 +1,149 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.TranscoderService.decodeNum;
+import static de.javakaffee.web.msm.TranscoderService.encodeNum;
+
+import java.util.Arrays;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Defines the format of the validity headers of non-sticky sessions that are stored with
+ * the validity information in the session item (see {@link MemcachedBackupSessionManager#setValidityInSessionItem(boolean)}).
+ * <p>
+ * When a session is stored the session item only contains the session data, which already contains
+ * the maxInactiveInterval, lastAccessedTime and thisAccessedTime of the session. When the session is
+ * accessed but not modified, a small header with the new lastAccessedTime and thisAccessedTime is
+ * prepended to the session item (memcached <code>prepend</code>), so that neither the session data
+ * nor a separate validity item have to be written. The first header therefore is the most recent one.
+ * </p>
+ * <p>
+ * As each access adds a header, the session item must be stored again once it has
+ * {@link #MAX_HEADERS} headers (see {@link #isRewriteRequired(SessionValidityHeaders, long, int)}).
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class SessionValidityHeaders {
+
+    /**
+     * The max number of headers before the session item is stored again.
+     */
+    static final int MAX_HEADERS = 32;
+
+    /*
+     * The version of a header, this must differ from the versions of the session data
+     * written by the TranscoderService and from the version of the SessionChunks manifest,
+     * so that a header can be distinguished from the session data.
+     */
+    private static final short VERSION = 4;
+    static final int HEADER_LENGTH = 2 + 8 + 8;
+
+    private final int _count;
+    private final long _lastAccessedTime;
+    private final long _thisAccessedTime;
+
+    private SessionValidityHeaders( final int count, final long lastAccessedTime, final long thisAccessedTime ) {
+        _count = count;
+        _lastAccessedTime = lastAccessedTime;
+        _thisAccessedTime = thisAccessedTime;
+    }
+
+    /**
+     * Creates the header that is prepended to the session item.
+     */
+    @Nonnull
+    static byte[] encode( final long lastAccessedTime, final long thisAccessedTime ) {
+        final byte[] result = new byte[HEADER_LENGTH];
+        int idx = encodeNum( VERSION, result, 0, 2 );
+        idx = encodeNum( lastAccessedTime, result, idx, 8 );
+        encodeNum( thisAccessedTime, result, idx, 8 );
+        return result;
+    }
+
+    /**
+     * Decodes the headers of the given session item.
+     *
+     * @return the headers or <code>null</code> if the session item does not start with a header.
+     */
+    @CheckForNull
+    static SessionValidityHeaders decode( @Nonnull final byte[] item ) {
+        int count = 0;
+        while ( ( count + 1 ) * HEADER_LENGTH < item.length && decodeNum( item, count * HEADER_LENGTH, 2 ) == VERSION ) {
+            count++;
+        }
+        if ( count == 0 ) {
+            return null;
+        }
+        return new SessionValidityHeaders( count, decodeNum( item, 2, 8 ), decodeNum( item, 10, 8 ) );
+    }
+
+    /**
+     * Returns the session data of the given session item without the headers.
+     */
+    @Nonnull
+    byte[] strip( @Nonnull final byte[] item ) {
+        return Arrays.copyOfRange( item, _count * HEADER_LENGTH, item.length );
+    }
+
+    /**
+     * The number of headers of the session item.
+     */
+    int getCount() {
+        return _count;
+    }
+
+    /**
+     * The lastAccessedTime of the most recent header.
+     */
+    long getLastAccessedTime() {
+        return _lastAccessedTime;
+    }
+
+    /**
+     * The thisAccessedTime of the most recent header.
+     */
+    long getThisAccessedTime() {
+        return _thisAccessedTime;
+    }
+
+    /**
+     * Determines if the session item must be stored again instead of prepending another header:
+     * if it has reached {@link #MAX_HEADERS} headers, or if it was stored longer ago than the
+     * maxInactiveInterval, as prepending does not update the expiration of the item
+     * (non-sticky sessions are stored with twice the maxInactiveInterval).
+     *
+     * @param headers the headers of the session item, <code>null</code> if it has none.
+     * @param storedAt the thisAccessedTime stored with the session data, i.e. when the item was stored.
+     * @param maxInactiveInterval the maxInactiveInterval of the session in seconds.
+     */
+    static boolean isRewriteRequired( @CheckForNull final SessionValidityHeaders headers, final long storedAt,
+            final int maxInactiveInterval ) {
+        return headers != null && headers._count >= MAX_HEADERS
+            || maxInactiveInterval > 0 && System.currentTimeMillis() - storedAt > maxInactiveInterval * 1000L;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionValidityHeaders [count=" + _count + ", lastAccessedTime=" + _lastAccessedTime
+                + ", thisAccessedTime=" + _thisAccessedTime + "]";
+    }
+
+}
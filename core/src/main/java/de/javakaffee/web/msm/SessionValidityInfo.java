@@ -31,7 +31,8 @@ import org.apache.juli.logging.LogFactory;
  * <p>
  * The stored information contains the maxInactiveInterval (might be session specific),
  * lastAccessedTime (used by tomcat7 with STRICT_SERVLET_COMPLIANCE/LAST_ACCESS_AT_START) and
- * thisAccessedTime.
+ * thisAccessedTime. It may also contain the version of the session data stored in memcached
+ * (see {@link SessionNearCache}), validity info without version is decoded with version <code>0</code>.
  * </p>
  *
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
@@ -44,11 +45,18 @@ public class SessionValidityInfo {
     private final int _maxInactiveInterval;
     private final long _lastAccessedTime;
     private final long _thisAccessedTime;
+    private final long _version;
 
     public SessionValidityInfo( final int maxInactiveInterval, final long lastAccessedTime, final long thisAccessedTime ) {
+        this( maxInactiveInterval, lastAccessedTime, thisAccessedTime, 0 );
+    }
+
+    public SessionValidityInfo( final int maxInactiveInterval, final long lastAccessedTime, final long thisAccessedTime,
+            final long version ) {
         _maxInactiveInterval = maxInactiveInterval;
         _lastAccessedTime = lastAccessedTime;
         _thisAccessedTime = thisAccessedTime;
+        _version = version;
     }
 
     /**
@@ -68,16 +76,30 @@ public class SessionValidityInfo {
      */
     @Nonnull
     public static byte[] encode( final long maxInactiveInterval, final long lastAccessedTime, final long thisAccessedTime ) {
+        return encode( maxInactiveInterval, lastAccessedTime, thisAccessedTime, 0 );
+    }
+
+    /**
+     * Encode the given information including the version of the session data to a byte[], that can
+     * be decoded later via {@link #decode(byte[])}. The version is omitted if it's <code>0</code> (unknown).
+     */
+    @Nonnull
+    public static byte[] encode( final long maxInactiveInterval, final long lastAccessedTime, final long thisAccessedTime,
+            final long version ) {
         int idx = 0;
-        final byte[] data = new byte[ 4 + 2 * 8 ];
+        final byte[] data = new byte[ version != 0 ? 4 + 3 * 8 : 4 + 2 * 8 ];
         encodeNum( maxInactiveInterval, data, idx, 4 );
         encodeNum( lastAccessedTime, data, idx += 4, 8 );
         encodeNum( thisAccessedTime, data, idx += 8, 8 );
+        if ( version != 0 ) {
+            encodeNum( version, data, idx += 8, 8 );
+        }
         return data;
     }
 
     /**
-     * Decode the given byte[] that previously was created via {@link #encode(long, long, long)}.
+     * Decode the given byte[] that previously was created via {@link #encode(long, long, long)}
+     * or {@link #encode(long, long, long, long)}.
      */
     @Nonnull
     public static SessionValidityInfo decode( @Nonnull final byte[] data ) {
@@ -85,7 +107,8 @@ public class SessionValidityInfo {
         final int maxInactiveInterval = (int) decodeNum( data, idx, 4 );
         final long lastAccessedTime = decodeNum( data, idx += 4, 8 );
         final long thisAccessedTime = decodeNum( data, idx += 8, 8 );
-        return new SessionValidityInfo( maxInactiveInterval, lastAccessedTime, thisAccessedTime );
+        final long version = data.length >= 4 + 3 * 8 ? decodeNum( data, idx += 8, 8 ) : 0;
+        return new SessionValidityInfo( maxInactiveInterval, lastAccessedTime, thisAccessedTime, version );
     }
 
     public int getMaxInactiveInterval() {
@@ -100,6 +123,13 @@ public class SessionValidityInfo {
         return _thisAccessedTime;
     }
 
+    /**
+     * The version of the session data stored in memcached, <code>0</code> if it's unknown.
+     */
+    public long getVersion() {
+        return _version;
+    }
+
     public boolean isValid() {
         final long timeNow = System.currentTimeMillis();
         final int timeIdle = (int) ((timeNow - _thisAccessedTime) / 1000L);
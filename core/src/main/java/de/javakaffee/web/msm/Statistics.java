@@ -38,6 +38,15 @@ public class Statistics {
     private final AtomicLong _numRequestsWithoutSessionModification = new AtomicLong();
     private final AtomicLong _numNonStickySessionsPingFailed = new AtomicLong();
     private final AtomicLong _numNonStickySessionsReadOnlyRequest = new AtomicLong();
+    private final AtomicLong _numRequestsWithCoalescedBackup = new AtomicLong();
+    private final AtomicLong _numRejectedBackups = new AtomicLong();
+    private final AtomicLong _numNearCacheHits = new AtomicLong();
+    private final AtomicLong _numNearCacheMisses = new AtomicLong();
+    private final AtomicLong _numNearCacheStale = new AtomicLong();
+    private final AtomicLong _numMissingSessionsCacheHits = new AtomicLong();
+    private final AtomicLong _numMissingSessionsCacheMisses = new AtomicLong();
+    private final AtomicLong _numLocalLockHandOvers = new AtomicLong();
+    private final AtomicLong _numLockLeaseRenewals = new AtomicLong();
 
     private final Map<StatsType, MinMaxAvgProbe> _probes;
 
@@ -155,6 +164,87 @@ public class Statistics {
         return _numNonStickySessionsReadOnlyRequest.get();
     }
 
+    public void requestWithCoalescedBackup() {
+        _numRequestsWithCoalescedBackup.incrementAndGet();
+    }
+    public long getRequestsWithCoalescedBackup() {
+        return _numRequestsWithCoalescedBackup.get();
+    }
+
+    /**
+     * Is invoked when a session backup could not be queued because the backup queue
+     * or the in-flight bytes limit was exceeded.
+     */
+    public void backupRejected() {
+        _numRejectedBackups.incrementAndGet();
+    }
+    public long getRejectedBackups() {
+        return _numRejectedBackups.get();
+    }
+
+    /**
+     * Is invoked when a non-sticky session was taken from the near cache (see {@link SessionNearCache}).
+     */
+    public void nearCacheHit() {
+        _numNearCacheHits.incrementAndGet();
+    }
+    public long getNearCacheHits() {
+        return _numNearCacheHits.get();
+    }
+    public void nearCacheMiss() {
+        _numNearCacheMisses.incrementAndGet();
+    }
+    public long getNearCacheMisses() {
+        return _numNearCacheMisses.get();
+    }
+    /**
+     * Is invoked when a session of the near cache was not used because it was modified on another tomcat.
+     */
+    public void nearCacheStale() {
+        _numNearCacheStale.incrementAndGet();
+    }
+    public long getNearCacheStale() {
+        return _numNearCacheStale.get();
+    }
+
+    /**
+     * Is invoked when a session lookup was answered by the cache of missing sessions
+     * (see {@link MissingSessionsCache}), so that memcached was not requested.
+     */
+    public void missingSessionsCacheHit() {
+        _numMissingSessionsCacheHits.incrementAndGet();
+    }
+    public long getMissingSessionsCacheHits() {
+        return _numMissingSessionsCacheHits.get();
+    }
+    public void missingSessionsCacheMiss() {
+        _numMissingSessionsCacheMisses.incrementAndGet();
+    }
+    public long getMissingSessionsCacheMisses() {
+        return _numMissingSessionsCacheMisses.get();
+    }
+
+    /**
+     * Is invoked when a session lock was handed over to a waiting request of this tomcat
+     * (see {@link LocalSessionLocks}), so that it was not released and acquired in memcached.
+     */
+    public void localLockHandOver() {
+        _numLocalLockHandOvers.incrementAndGet();
+    }
+    public long getLocalLockHandOvers() {
+        return _numLocalLockHandOvers.get();
+    }
+
+    /**
+     * Is invoked when the lease of a session lock held by a long running request was renewed in memcached.
+     */
+    public void lockLeaseRenewal() {
+        _numLockLeaseRenewals.incrementAndGet();
+    }
+    public long getLockLeaseRenewals() {
+        return _numLockLeaseRenewals.get();
+    }
+
     public static enum StatsType {
 
         /**
@@ -180,6 +270,33 @@ public class Statistics {
         DELETE_FROM_MEMCACHED,
         CACHED_DATA_SIZE,
 
+        /**
+         * The time that compression of serialized session attributes took.
+         */
+        COMPRESSION,
+
+        /**
+         * The size of compressed session attributes in percent of the uncompressed size
+         * (100 if the attributes could not be compressed).
+         */
+        COMPRESSION_RATIO,
+
+        /**
+         * The time that decompression of session attributes took.
+         */
+        DECOMPRESSION,
+
+        /**
+         * The number of session backups waiting in the queue when an asynchronous backup is submitted.
+         */
+        BACKUP_QUEUE_SIZE,
+
+        /**
+         * The time asynchronous session backups were waiting in the queue before they were started
+         * (for coalesced backups this excludes the coalescing window).
+         */
+        BACKUP_QUEUE_WAIT,
+
         /**
          * Lock acquiration in non-sticky session mode.
          */
@@ -195,6 +312,14 @@ public class Statistics {
          */
         RELEASE_LOCK,
 
+        /**
+         * The time it took to acquire a lock after it was released by the previous holder in non-sticky
+         * session mode. For locks released by this tomcat this is the time until the waiting request
+         * continued, for locks released by other tomcats it's the time since the last failed attempt
+         * (an upper bound, as memcached doesn't tell when a lock was released).
+         */
+        ACQUIRE_LOCK_AFTER_RELEASE,
+
         /**
          * Time spent (in the request thread) for non-sticky sessions at the end of requests that did not access
          * the session (performs validity load/update, ping session, ping 2nd session backup, update validity backup in secondary memcached).
@@ -368,6 +493,42 @@ public class Statistics {
         public void requestWithoutAttributesAccess() {
         }
 
+        @Override
+        public void requestWithCoalescedBackup() {
+        }
+
+        @Override
+        public void backupRejected() {
+        }
+
+        @Override
+        public void nearCacheHit() {
+        }
+
+        @Override
+        public void nearCacheMiss() {
+        }
+
+        @Override
+        public void nearCacheStale() {
+        }
+
+        @Override
+        public void missingSessionsCacheHit() {
+        }
+
+        @Override
+        public void missingSessionsCacheMiss() {
+        }
+
+        @Override
+        public void localLockHandOver() {
+        }
+
+        @Override
+        public void lockLeaseRenewal() {
+        }
+
     };
 
 }
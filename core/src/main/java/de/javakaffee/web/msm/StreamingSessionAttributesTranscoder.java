@@ -0,0 +1,61 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * A {@link SessionAttributesTranscoder} that can write the serialized session attributes
+ * to an {@link OutputStream} and read them from a range of a byte array. The {@link TranscoderService}
+ * uses this to calculate the hash of the serialized attributes while they are written, which saves
+ * an additional pass over the serialized data, and to avoid copying the serialized attributes
+ * to and from the session data stored in memcached. {@link SessionAttributesTranscoder}s not
+ * implementing this interface are still supported, then the hash is calculated from the returned
+ * byte array and the serialized attributes are copied.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public interface StreamingSessionAttributesTranscoder extends SessionAttributesTranscoder {
+
+    /**
+     * Serialize the given attributes to the given {@link OutputStream}. The written data must
+     * be the same as the result of {@link #serializeAttributes(MemcachedBackupSession, Map)}.
+     * The stream must not be closed by the transcoder.
+     *
+     * @param session the session that owns the given attributes.
+     * @param attributes the attributes to serialize.
+     * @param out the stream to write the serialized attributes to.
+     * @throws IOException if writing to the stream failed.
+     */
+    void serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final OutputStream out ) throws IOException;
+
+    /**
+     * Deserialize the session attributes stored in the given range of the byte array,
+     * the result must be the same as the result of {@link #deserializeAttributes(byte[])}
+     * for a copy of this range.
+     *
+     * @param data the array containing the serialized attributes.
+     * @param offset the index of the first byte of the serialized attributes.
+     * @param length the number of bytes of the serialized attributes.
+     * @return the deserialized attributes.
+     */
+    Map<String, Object> deserializeAttributes( final byte[] data, final int offset, final int length );
+
+}
@@ -39,6 +39,7 @@ public final class SuffixLocatorConnectionFactory extends DefaultConnectionFacto
     private final SessionIdFormat _sessionIdFormat;
     private final NodeIdResolver _resolver;
     private final Statistics _statistics;
+    private final int _compressionThreshold;
 
     /**
      * Creates a new instance.
@@ -51,10 +52,28 @@ public final class SuffixLocatorConnectionFactory extends DefaultConnectionFacto
      */
     public SuffixLocatorConnectionFactory( final NodeIdList nodeIds, final NodeIdResolver resolver, final SessionIdFormat sessionIdFormat,
             final Statistics statistics ) {
+        this( nodeIds, resolver, sessionIdFormat, statistics, SerializingTranscoder.DEFAULT_COMPRESSION_THRESHOLD );
+    }
+
+    /**
+     * Creates a new instance.
+     * @param nodeIds
+     *            the list of nodeIds
+     * @param resolver
+     *            the {@link NodeIdResolver}
+     * @param sessionIdFormat
+     *            the {@link SessionIdFormat}
+     * @param compressionThreshold
+     *            the min size of data that is compressed by the transcoder,
+     *            {@link Integer#MAX_VALUE} disables compression.
+     */
+    public SuffixLocatorConnectionFactory( final NodeIdList nodeIds, final NodeIdResolver resolver, final SessionIdFormat sessionIdFormat,
+            final Statistics statistics, final int compressionThreshold ) {
         _nodeIds = nodeIds;
         _resolver = resolver;
         _sessionIdFormat = sessionIdFormat;
         _statistics = statistics;
+        _compressionThreshold = compressionThreshold;
     }
 
     /**
@@ -80,7 +99,7 @@ public final class SuffixLocatorConnectionFactory extends DefaultConnectionFacto
     @Override
     public Transcoder<Object> getDefaultTranscoder() {
         final SerializingTranscoder transcoder = new SerializingTranscoder();
-        transcoder.setCompressionThreshold( SerializingTranscoder.DEFAULT_COMPRESSION_THRESHOLD );
+        transcoder.setCompressionThreshold( _compressionThreshold );
         return new TranscoderWrapperStatisticsSupport( _statistics, transcoder );
     }
 
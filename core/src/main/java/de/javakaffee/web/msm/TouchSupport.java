@@ -0,0 +1,118 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Future;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.spy.memcached.MemcachedClient;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Provides the memcached <em>touch</em> command (update the expiration of an item without
+ * sending the item again) if it's available.
+ * <p>
+ * The touch command is supported by memcached since 1.4.8, but not by all memcached client
+ * versions. Therefore the memcached client is probed for a <code>touch(String, int)</code> method
+ * returning a {@link Future}, which is then invoked reflectively. If the memcached server fails
+ * to execute the command (e.g. because it's too old), touch is {@link #disable(String) disabled}
+ * so that callers fall back to storing the item again.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class TouchSupport {
+
+    private static final Log LOG = LogFactory.getLog( TouchSupport.class );
+
+    private final MemcachedClient _memcached;
+    private final Method _touch;
+    private volatile boolean _enabled;
+
+    TouchSupport( @Nullable final MemcachedClient memcached ) {
+        _memcached = memcached;
+        _touch = memcached != null ? findTouchMethod( memcached.getClass() ) : null;
+        _enabled = _touch != null;
+    }
+
+    /**
+     * Determines the <code>touch(String key, int exp)</code> method of the given
+     * memcached client class.
+     *
+     * @return the method or <code>null</code> if the client does not support touch.
+     */
+    @CheckForNull
+    static Method findTouchMethod( @Nonnull final Class<?> clazz ) {
+        try {
+            final Method result = clazz.getMethod( "touch", String.class, int.class );
+            return Future.class.isAssignableFrom( result.getReturnType() ) ? result : null;
+        } catch ( final NoSuchMethodException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * Specifies, if the touch command can be used.
+     */
+    boolean isEnabled() {
+        return _enabled;
+    }
+
+    /**
+     * Disables the touch command, e.g. because the memcached server does not support it.
+     *
+     * @param reason the reason that is logged.
+     */
+    void disable( @Nonnull final String reason ) {
+        if ( _enabled ) {
+            _enabled = false;
+            LOG.info( "Disabling memcached touch, expiration updates store the session again: " + reason );
+        }
+    }
+
+    /**
+     * Updates the expiration of the item with the given key.
+     *
+     * @param key the key of the item
+     * @param exp the expiration time in seconds, as for memcached set.
+     * @return the future providing the result of the command, <code>false</code> if the item does not exist.
+     * @throws IllegalStateException if touch is not supported by the memcached client.
+     */
+    @SuppressWarnings( "unchecked" )
+    @Nonnull
+    Future<Boolean> touch( @Nonnull final String key, final int exp ) {
+        if ( _touch == null ) {
+            throw new IllegalStateException( "The memcached client does not support touch." );
+        }
+        try {
+            return (Future<Boolean>) _touch.invoke( _memcached, key, exp );
+        } catch ( final InvocationTargetException e ) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException( cause );
+        } catch ( final IllegalAccessException e ) {
+            throw new IllegalStateException( "Could not invoke touch on the memcached client.", e );
+        }
+    }
+
+}
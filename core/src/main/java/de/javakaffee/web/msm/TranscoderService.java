@@ -16,6 +16,10 @@
  */
 package de.javakaffee.web.msm;
 
+import static de.javakaffee.web.msm.Statistics.StatsType.COMPRESSION;
+import static de.javakaffee.web.msm.Statistics.StatsType.COMPRESSION_RATIO;
+import static de.javakaffee.web.msm.Statistics.StatsType.DECOMPRESSION;
+
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -25,8 +29,14 @@ import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.Principal;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
 
 import org.apache.catalina.Manager;
 import org.apache.catalina.Realm;
@@ -49,6 +59,41 @@ public class TranscoderService {
 
     private static final short CURRENT_VERSION = 1;
 
+    /**
+     * The version for session data that contains an {@link AttributesManifest} instead of
+     * the serialized session attributes (see {@link #serializeWithAttributesManifest(MemcachedBackupSession, byte[])}).
+     */
+    private static final short VERSION_ATTRIBUTES_MANIFEST = 2;
+
+    /**
+     * The version for session data with attributes indexed by name, so that they can be
+     * deserialized lazily (see {@link IndexedSessionAttributesTranscoder}). Each attribute is stored
+     * as name length (2 bytes), name (UTF-8), value length (4 bytes) and serialized value.
+     * Versions 3 and 4 are used by the {@link SessionChunks} manifest and the {@link SessionValidityHeaders}.
+     */
+    private static final short VERSION_INDEXED_ATTRIBUTES = 5;
+
+    /**
+     * The number of buffers used for serializing session data that are kept for reuse.
+     */
+    private static final int MAX_POOLED_BUFFERS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Buffers that grew bigger than this (for large sessions) are not kept for reuse.
+     */
+    private static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * The default min size of serialized session attributes that are compressed, like
+     * the default compression threshold of spymemcached.
+     */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 16 * 1024;
+
+    /**
+     * The number of bytes storing the length of the uncompressed attributes in front of the compressed attributes.
+     */
+    private static final int UNCOMPRESSED_LENGTH_BYTES = 4;
+
     static final int NUM_BYTES = 8 // creationTime: long
             + 8 // lastAccessedTime: long
             + 4 // maxInactiveInterval: int
@@ -58,33 +103,77 @@ public class TranscoderService {
             + 8; // lastBackupTime
 
     private final SessionAttributesTranscoder _attributesTranscoder;
+    private final Compression _compression;
+    private final int _compressionThreshold;
+    private final Statistics _statistics;
+    private final boolean _lazyAttributesDeserialization;
+    private final BlockingQueue<SessionDataOutputStream> _buffers = new ArrayBlockingQueue<SessionDataOutputStream>( MAX_POOLED_BUFFERS );
 
     /**
-     * Creates a new {@link TranscoderService}.
+     * Creates a new {@link TranscoderService} that does not compress session data.
      *
      * @param attributesTranscoder the {@link SessionAttributesTranscoder} strategy to use.
      */
     public TranscoderService( final SessionAttributesTranscoder attributesTranscoder ) {
+        this( attributesTranscoder, Compression.NONE, DEFAULT_COMPRESSION_THRESHOLD, Statistics.create( false ) );
+    }
+
+    /**
+     * Creates a new {@link TranscoderService}.
+     *
+     * @param attributesTranscoder the {@link SessionAttributesTranscoder} strategy to use.
+     * @param compression the compression to apply to serialized session attributes.
+     * @param compressionThreshold the min size of serialized session attributes that are compressed.
+     * @param statistics used to register the compression ratio and the time of compression and decompression.
+     */
+    public TranscoderService( final SessionAttributesTranscoder attributesTranscoder, @Nonnull final Compression compression,
+            final int compressionThreshold, @Nonnull final Statistics statistics ) {
+        this( attributesTranscoder, compression, compressionThreshold, statistics, false );
+    }
+
+    /**
+     * Creates a new {@link TranscoderService}.
+     *
+     * @param attributesTranscoder the {@link SessionAttributesTranscoder} strategy to use.
+     * @param compression the compression to apply to serialized session attributes.
+     * @param compressionThreshold the min size of serialized session attributes that are compressed.
+     * @param statistics used to register the compression ratio and the time of compression and decompression.
+     * @param lazyAttributesDeserialization specifies, if session attributes shall be stored indexed by name
+     *  and deserialized on first access. This requires an {@link IndexedSessionAttributesTranscoder}.
+     */
+    public TranscoderService( final SessionAttributesTranscoder attributesTranscoder, @Nonnull final Compression compression,
+            final int compressionThreshold, @Nonnull final Statistics statistics, final boolean lazyAttributesDeserialization ) {
         _attributesTranscoder = attributesTranscoder;
+        _compression = compression;
+        _compressionThreshold = compressionThreshold;
+        _statistics = statistics;
+        _lazyAttributesDeserialization = lazyAttributesDeserialization;
+        if ( lazyAttributesDeserialization && !( attributesTranscoder instanceof IndexedSessionAttributesTranscoder ) ) {
+            LOG.warn( "Lazy attributes deserialization is not supported by " + attributesTranscoder.getClass().getName()
+                    + ", it must implement " + IndexedSessionAttributesTranscoder.class.getSimpleName() + "." );
+        }
+    }
+
+    private boolean isIndexedAttributes() {
+        return _lazyAttributesDeserialization && _attributesTranscoder instanceof IndexedSessionAttributesTranscoder;
     }
 
     /**
      * Serialize the given session to a byte array. This is a shortcut for
      * <code><pre>
-     * final byte[] attributesData = serializeAttributes( session, session.getAttributes() );
-     * serialize( session, attributesData );
+     * final SerializedAttributes attributes = serializeAttributesWithHash( session, session.getAttributes() );
+     * serialize( session, attributes );
      * </pre></code>
      * The returned byte array can be deserialized using {@link #deserialize(byte[], Realm, Manager)}.
      *
-     * @see #serializeAttributes(MemcachedBackupSession, Map)
-     * @see #serialize(MemcachedBackupSession, byte[])
+     * @see #serializeAttributesWithHash(MemcachedBackupSession, Map)
+     * @see #serialize(MemcachedBackupSession, SerializedAttributes)
      * @see #deserialize(byte[], Realm, Manager)
      * @param session the session to serialize.
      * @return the serialized session data.
      */
     public byte[] serialize( final MemcachedBackupSession session ) {
-        final byte[] attributesData = serializeAttributes( session, session.getAttributesInternal() );
-        return serialize( session, attributesData );
+        return serialize( session, serializeAttributesWithHash( session, session.getAttributesInternal() ) );
     }
 
     /**
@@ -94,7 +183,15 @@ public class TranscoderService {
      * <p>
      * Note: the returned session already has the manager set and
      * {@link MemcachedBackupSession#doAfterDeserialization()} is invoked. Additionally
-     * the attributes hash is set (via {@link MemcachedBackupSession#setDataHashCode(int)}).
+     * the attributes hash is set (via {@link MemcachedBackupSession#setDataHash(long)}).
+     * </p>
+     * <p>
+     * If the session data was created via {@link #serializeWithAttributesManifest(MemcachedBackupSession, byte[])}
+     * the returned session has no attributes but the {@link AttributesManifest} set instead, the attributes
+     * then must be loaded separately and deserialized via {@link #deserializeAttributes(AttributesManifest, Map)}.
+     * </p>
+     * <p>
+     * Compressed session data is decompressed regardless of the configured {@link Compression}.
      * </p>
      *
      * @param data the byte array of the serialized session and its session attributes. Can be <code>null</code>.
@@ -110,11 +207,37 @@ public class TranscoderService {
         }
         try {
             final DeserializationResult deserializationResult = TranscoderService.deserializeSessionFields( data, realm );
-            final byte[] attributesData = deserializationResult.getAttributesData();
-            final Map<String, Object> attributes = deserializeAttributes( attributesData );
+            final int offset = deserializationResult.getAttributesOffset();
+            final int length = deserializationResult.getAttributesLength();
             final MemcachedBackupSession session = deserializationResult.getSession();
-            session.setAttributesInternal( attributes );
-            session.setDataHashCode( Arrays.hashCode( attributesData ) );
+            if ( deserializationResult.getVersion() == VERSION_ATTRIBUTES_MANIFEST ) {
+                session.setAttributesManifest( AttributesManifest.decode( data, offset ) );
+                session.setAttributesInternal( new ConcurrentHashMap<String, Object>() );
+            }
+            else if ( deserializationResult.getVersion() == VERSION_INDEXED_ATTRIBUTES ) {
+                if ( !( _attributesTranscoder instanceof IndexedSessionAttributesTranscoder ) ) {
+                    LOG.info( "Got session data with indexed attributes, which are not supported by "
+                            + _attributesTranscoder.getClass().getName() );
+                    return null;
+                }
+                final byte[] attributesData = deserializationResult.getCompression() != Compression.NONE
+                    ? decompress( deserializationResult.getCompression(), data, offset, length )
+                    : data;
+                final int attributesOffset = attributesData == data ? offset : 0;
+                final int attributesLength = attributesData == data ? length : attributesData.length;
+                session.setAttributesInternal( deserializeIndexedAttributes( attributesData, attributesOffset, attributesLength ) );
+                session.setDataHash( XXHash64.hash( attributesData, attributesOffset, attributesLength ) );
+            }
+            else if ( deserializationResult.getCompression() != Compression.NONE ) {
+                final byte[] attributesData = decompress( deserializationResult.getCompression(), data, offset, length );
+                session.setAttributesInternal( deserializeAttributes( attributesData, 0, attributesData.length ) );
+                session.setDataHash( XXHash64.hash( attributesData ) );
+            }
+            else {
+                final Map<String, Object> attributes = deserializeAttributes( data, offset, length );
+                session.setAttributesInternal( attributes );
+                session.setDataHash( XXHash64.hash( data, offset, length ) );
+            }
             session.setManager( manager );
             session.doAfterDeserialization();
             return session;
@@ -138,9 +261,175 @@ public class TranscoderService {
      * @see de.javakaffee.web.msm.SessionAttributesTranscoder#serializeAttributes(MemcachedBackupSession, Map)
      */
     public byte[] serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
-        return _attributesTranscoder.serializeAttributes( session, attributes );
+        return _attributesTranscoder.serializeAttributes( session, resolveLazyAttributes( attributes ) );
+    }
+
+    /**
+     * Serialize the given session attributes like {@link #serializeAttributes(MemcachedBackupSession, Map)}
+     * and calculate the 64 bit hash of the serialized data, that is used to determine if the session was modified.
+     * If the {@link SessionAttributesTranscoder} is a {@link StreamingSessionAttributesTranscoder} the hash
+     * is calculated while the attributes are serialized, otherwise the hash is calculated from the serialized data.
+     * <p>
+     * With a {@link StreamingSessionAttributesTranscoder} the attributes are written to a pooled buffer
+     * with space reserved at the front for the session fields, so that
+     * {@link #serialize(MemcachedBackupSession, SerializedAttributes)} can write the session fields in place
+     * and does not need to copy the serialized attributes.
+     * </p>
+     * <p>
+     * With lazy attributes deserialization the attributes are serialized indexed by name, attributes
+     * that were not deserialized since the session was loaded are written as they were loaded.
+     * </p>
+     *
+     * @param session the session that owns the given attributes.
+     * @param attributes the attributes to serialize.
+     * @return the serialized attributes and their hash.
+     */
+    @Nonnull
+    public SerializedAttributes serializeAttributesWithHash( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
+        final boolean indexed = isIndexedAttributes();
+        if ( indexed || _attributesTranscoder instanceof StreamingSessionAttributesTranscoder ) {
+            final Principal principal = session.getPrincipal();
+            final byte[] principalData = principal != null ? serializePrincipal( principal ) : null;
+            final int sessionFieldsDataLength = getSessionFieldsDataLength( serializeId( session.getIdInternal() ), principalData );
+            final SerializedAttributes result = indexed
+                ? serializeIndexedAttributes( session, attributes, sessionFieldsDataLength )
+                : serializeAttributesWithHash( session, resolveLazyAttributes( attributes ), sessionFieldsDataLength );
+            result.setPrincipalData( principal, principalData );
+            return result;
+        }
+        final byte[] data = _attributesTranscoder.serializeAttributes( session, resolveLazyAttributes( attributes ) );
+        return new SerializedAttributes( data, XXHash64.hash( data ) );
+    }
+
+    private SerializedAttributes serializeIndexedAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final int reserved ) {
+        final IndexedSessionAttributesTranscoder transcoder = (IndexedSessionAttributesTranscoder) _attributesTranscoder;
+        final SessionDataOutputStream bos = acquireBuffer( reserved );
+        try {
+            final HashingOutputStream out = new HashingOutputStream( bos );
+            final byte[] lengthData = new byte[4];
+            for ( final Map.Entry<String, Object> entry : attributes.entrySet() ) {
+                final Object value = entry.getValue();
+                final byte[] nameData = entry.getKey().getBytes( "UTF-8" );
+                final byte[] valueData;
+                final int valueOffset;
+                final int valueLength;
+                if ( value instanceof LazyAttribute ) {
+                    final LazyAttribute lazyAttribute = (LazyAttribute) value;
+                    valueData = lazyAttribute.getData();
+                    valueOffset = lazyAttribute.getOffset();
+                    valueLength = lazyAttribute.getLength();
+                }
+                else {
+                    valueData = transcoder.serializeAttribute( session, entry.getKey(), value );
+                    if ( valueData == null ) {
+                        continue;
+                    }
+                    valueOffset = 0;
+                    valueLength = valueData.length;
+                }
+                out.write( lengthData, 0, encodeNum( nameData.length, lengthData, 0, 2 ) );
+                out.write( nameData );
+                out.write( lengthData, 0, encodeNum( valueLength, lengthData, 0, 4 ) );
+                out.write( valueData, valueOffset, valueLength );
+            }
+            return new SerializedAttributes( bos.toByteArray(), reserved, out.getHash(), VERSION_INDEXED_ATTRIBUTES );
+        } catch ( final IOException e ) {
+            throw new IllegalArgumentException( "Non-serializable object", e );
+        } finally {
+            releaseBuffer( bos );
+        }
+    }
+
+    /**
+     * Deserializes session attributes stored indexed by name, with lazy attributes deserialization
+     * the values are only deserialized when they're accessed.
+     */
+    private Map<String, Object> deserializeIndexedAttributes( final byte[] data, final int offset, final int length ) {
+        final IndexedSessionAttributesTranscoder transcoder = (IndexedSessionAttributesTranscoder) _attributesTranscoder;
+        final Map<String, Object> result = new ConcurrentHashMap<String, Object>();
+        final int end = offset + length;
+        int idx = offset;
+        while ( idx < end ) {
+            final int nameLength = (int) decodeNum( data, idx, 2 );
+            final String name = decodeString( data, idx += 2, nameLength );
+            final int valueLength = (int) decodeNum( data, idx += nameLength, 4 );
+            idx += 4;
+            result.put( name, _lazyAttributesDeserialization
+                ? new LazyAttribute( transcoder, data, idx, valueLength )
+                : transcoder.deserializeAttribute( data, idx, valueLength ) );
+            idx += valueLength;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the given attributes with all {@link LazyAttribute}s deserialized, for serialization
+     * with a format that is not indexed by attribute name.
+     */
+    private static Map<String, Object> resolveLazyAttributes( final Map<String, Object> attributes ) {
+        Map<String, Object> result = attributes;
+        for ( final Map.Entry<String, Object> entry : attributes.entrySet() ) {
+            if ( entry.getValue() instanceof LazyAttribute ) {
+                if ( result == attributes ) {
+                    result = new ConcurrentHashMap<String, Object>( attributes );
+                }
+                result.put( entry.getKey(), ( (LazyAttribute) entry.getValue() ).deserialize() );
+            }
+        }
+        return result;
+    }
+
+    private SerializedAttributes serializeAttributesWithHash( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final int reserved ) {
+        final SessionDataOutputStream bos = acquireBuffer( reserved );
+        try {
+            final HashingOutputStream out = new HashingOutputStream( bos );
+            ( (StreamingSessionAttributesTranscoder) _attributesTranscoder ).serializeAttributes( session, attributes, out );
+            return new SerializedAttributes( bos.toByteArray(), reserved, out.getHash() );
+        } catch ( final IOException e ) {
+            throw new IllegalArgumentException( "Non-serializable object", e );
+        } finally {
+            releaseBuffer( bos );
+        }
+    }
+
+    private SessionDataOutputStream acquireBuffer( final int reserved ) {
+        SessionDataOutputStream result = _buffers.poll();
+        if ( result == null ) {
+            result = new SessionDataOutputStream();
+        }
+        result.reset( reserved );
+        return result;
+    }
+
+    private void releaseBuffer( final SessionDataOutputStream buffer ) {
+        if ( buffer.capacity() <= MAX_POOLED_BUFFER_SIZE ) {
+            _buffers.offer( buffer );
+        }
     }
 
+    /**
+     * Serialize a single session attribute to a byte array, used for attributes delta backup
+     * where each attribute is stored separately. The result can be deserialized
+     * via {@link #deserializeAttributes(byte[])}.
+     *
+     * @param session the session that owns the given attribute.
+     * @param name the name of the attribute.
+     * @param value the value of the attribute.
+     * @return the serialized attribute and its hash.
+     */
+    @Nonnull
+    public SerializedAttributes serializeAttribute( final MemcachedBackupSession session, final String name, final Object value ) {
+        final Map<String, Object> attributes = Collections.singletonMap( name, value instanceof LazyAttribute
+            ? ( (LazyAttribute) value ).deserialize()
+            : value );
+        if ( _attributesTranscoder instanceof StreamingSessionAttributesTranscoder ) {
+            return serializeAttributesWithHash( session, attributes, 0 );
+        }
+        final byte[] data = _attributesTranscoder.serializeAttributes( session, attributes );
+        return new SerializedAttributes( data, XXHash64.hash( data ) );
+    }
 
 
     /**
@@ -157,6 +446,48 @@ public class TranscoderService {
         return _attributesTranscoder.deserializeAttributes( data );
     }
 
+    /**
+     * Deserialize the session attributes stored in the given range of the byte array. If the
+     * {@link SessionAttributesTranscoder} is a {@link StreamingSessionAttributesTranscoder} the attributes
+     * are read directly from the given array, otherwise the range is copied to a new array first.
+     *
+     * @param data the array containing the serialized attributes
+     * @param offset the index of the first byte of the serialized attributes
+     * @param length the number of bytes of the serialized attributes
+     * @return the deserialized attributes
+     */
+    public Map<String, Object> deserializeAttributes( final byte[] data, final int offset, final int length ) {
+        if ( _attributesTranscoder instanceof StreamingSessionAttributesTranscoder ) {
+            return ( (StreamingSessionAttributesTranscoder) _attributesTranscoder ).deserializeAttributes( data, offset, length );
+        }
+        if ( offset == 0 && length == data.length ) {
+            return _attributesTranscoder.deserializeAttributes( data );
+        }
+        final byte[] attributesData = new byte[length];
+        System.arraycopy( data, offset, attributesData, 0, length );
+        return _attributesTranscoder.deserializeAttributes( attributesData );
+    }
+
+    /**
+     * Deserialize the attributes of a session that was stored with attributes delta backup,
+     * each attribute was serialized separately via {@link #serializeAttribute(MemcachedBackupSession, String, Object)}.
+     *
+     * @param manifest the manifest of the session
+     * @param attributesData the serialized attributes, mapped by attribute name
+     * @return the deserialized attributes
+     */
+    public Map<String, Object> deserializeAttributes( final AttributesManifest manifest, final Map<String, byte[]> attributesData ) {
+        final Map<String, Object> result = new ConcurrentHashMap<String, Object>();
+        for ( final Map.Entry<String, byte[]> entry : attributesData.entrySet() ) {
+            final AttributesManifest.Entry manifestEntry = manifest.get( entry.getKey() );
+            if ( manifestEntry != null && manifestEntry.getHash() != XXHash64.hash( entry.getValue() ) ) {
+                LOG.info( "The attribute " + entry.getKey() + " was modified after the session was stored, using the more recent value." );
+            }
+            result.putAll( deserializeAttributes( entry.getValue() ) );
+        }
+        return result;
+    }
+
     /**
      * Serialize session fields to a byte[] and create a byte[] containing both the
      * serialized byte[] of the session fields and the provided byte[] of the serialized
@@ -167,24 +498,122 @@ public class TranscoderService {
      * @return a byte[] containing both the serialized session fields and the provided serialized session attributes
      */
     public byte[] serialize( final MemcachedBackupSession session, final byte[] attributesData ) {
-        final byte[] sessionData = serializeSessionFields( session );
-        final byte[] result = new byte[ sessionData.length + attributesData.length ];
-        System.arraycopy( sessionData, 0, result, 0, sessionData.length );
-        System.arraycopy( attributesData, 0, result, sessionData.length, attributesData.length );
-        return result;
+        return serializeCompressed( session, CURRENT_VERSION, serializePrincipal( session ), attributesData, 0, attributesData.length );
+    }
+
+    /**
+     * Serialize session fields and create a byte[] containing both the serialized session fields
+     * and the provided serialized session attributes. If the attributes were serialized with space
+     * reserved for the session fields (see {@link #serializeAttributesWithHash(MemcachedBackupSession, Map)})
+     * the session fields are written into this space and the byte array of the provided
+     * {@link SerializedAttributes} is returned, so that no data is copied (if the attributes are not compressed).
+     *
+     * @param session its fields will be serialized
+     * @param attributes the serialized session attributes
+     * @return a byte[] containing both the serialized session fields and the provided serialized session attributes
+     */
+    public byte[] serialize( final MemcachedBackupSession session, final SerializedAttributes attributes ) {
+        final Principal principal = session.getPrincipal();
+        final byte[] principalData = principal != null && principal == attributes._principal
+            ? attributes._principalData
+            : serializePrincipal( session );
+        if ( attributes._offset > 0 && !isCompressionRequired( attributes.getLength() ) ) {
+            final byte[] idData = serializeId( session.getIdInternal() );
+            if ( getSessionFieldsDataLength( idData, principalData ) == attributes._offset ) {
+                encodeSessionFields( session, attributes._version, idData, principalData, attributes._data );
+                return attributes._data;
+            }
+        }
+        return serializeCompressed( session, attributes._version, principalData, attributes._data, attributes._offset, attributes.getLength() );
+    }
+
+    /**
+     * Serialize session fields to a byte[] and create a byte[] containing both the
+     * serialized byte[] of the session fields and the provided {@link AttributesManifest}
+     * (instead of the serialized session attributes), used for attributes delta backup.
+     *
+     * @param session its fields will be serialized to a byte[]
+     * @param manifestData the encoded manifest (from {@link AttributesManifest#encode()})
+     * @return a byte[] containing both the serialized session fields and the provided manifest
+     */
+    public byte[] serializeWithAttributesManifest( final MemcachedBackupSession session, final byte[] manifestData ) {
+        return serialize( session, VERSION_ATTRIBUTES_MANIFEST, serializePrincipal( session ), manifestData, 0, manifestData.length );
     }
 
     // ---------------------  private/protected helper methods  -------------------
 
+    private boolean isCompressionRequired( final int length ) {
+        return _compression != Compression.NONE && length >= _compressionThreshold && length > UNCOMPRESSED_LENGTH_BYTES + 1;
+    }
 
-    static byte[] serializeSessionFields( final MemcachedBackupSession session ) {
+    /**
+     * Creates the byte array for the session fields and the given range of attributes data, which
+     * is compressed if it's not smaller than the compression threshold. If the compressed data would not
+     * be smaller than the uncompressed data, the attributes data is stored uncompressed.
+     */
+    private byte[] serializeCompressed( final MemcachedBackupSession session, final short version, final byte[] principalData,
+            final byte[] attributesData, final int offset, final int length ) {
+        if ( !isCompressionRequired( length ) ) {
+            return serialize( session, version, principalData, attributesData, offset, length );
+        }
 
+        final long start = System.currentTimeMillis();
+        final SessionDataOutputStream buffer = acquireBuffer( 0 );
+        try {
+            final byte[] compressed = buffer.ensureCapacity( length );
+            final int compressedLength = _compression.getCodec().compress( attributesData, offset, length, compressed, 0,
+                    length - UNCOMPRESSED_LENGTH_BYTES - 1 );
+            _statistics.register( COMPRESSION_RATIO, compressedLength < 0 ? 100 : 100L * compressedLength / length );
+            if ( compressedLength < 0 ) {
+                return serialize( session, version, principalData, attributesData, offset, length );
+            }
+
+            final byte[] idData = serializeId( session.getIdInternal() );
+            final int sessionFieldsDataLength = getSessionFieldsDataLength( idData, principalData );
+            final byte[] result = new byte[ sessionFieldsDataLength + UNCOMPRESSED_LENGTH_BYTES + compressedLength ];
+            encodeSessionFields( session, _compression.getVersion( version ), idData, principalData, result );
+            encodeNum( length, result, sessionFieldsDataLength, UNCOMPRESSED_LENGTH_BYTES );
+            System.arraycopy( compressed, 0, result, sessionFieldsDataLength + UNCOMPRESSED_LENGTH_BYTES, compressedLength );
+            return result;
+        } finally {
+            releaseBuffer( buffer );
+            _statistics.registerSince( COMPRESSION, start );
+        }
+    }
+
+    private byte[] decompress( final Compression compression, final byte[] data, final int offset, final int length ) {
+        final long start = System.currentTimeMillis();
+        try {
+            final int uncompressedLength = (int) decodeNum( data, offset, UNCOMPRESSED_LENGTH_BYTES );
+            final byte[] result = new byte[uncompressedLength];
+            compression.getCodec().decompress( data, offset + UNCOMPRESSED_LENGTH_BYTES, length - UNCOMPRESSED_LENGTH_BYTES,
+                    result, 0, uncompressedLength );
+            return result;
+        } finally {
+            _statistics.registerSince( DECOMPRESSION, start );
+        }
+    }
+
+    /**
+     * Creates the byte array for the session fields and the given range of attributes data,
+     * so that the attributes data needs to be copied only once.
+     */
+    private static byte[] serialize( final MemcachedBackupSession session, final short version, final byte[] principalData,
+            final byte[] attributesData, final int offset, final int length ) {
         final byte[] idData = serializeId( session.getIdInternal() );
+        final int sessionFieldsDataLength = getSessionFieldsDataLength( idData, principalData );
+        final byte[] result = new byte[ sessionFieldsDataLength + length ];
+        encodeSessionFields( session, version, idData, principalData, result );
+        System.arraycopy( attributesData, offset, result, sessionFieldsDataLength, length );
+        return result;
+    }
 
-        final byte[] principalData = session.getPrincipal() != null ? serializePrincipal( session.getPrincipal() ) : null;
-        final int principalDataLength = principalData != null ? principalData.length : 0;
+    static byte[] serializeSessionFields( final MemcachedBackupSession session ) {
+        return serialize( session, CURRENT_VERSION, serializePrincipal( session ), new byte[0], 0, 0 );
+    }
 
-        final int sessionFieldsDataLength = 2 // short value for the version
+    private static int getSessionFieldsDataLength( final byte[] idData, final byte[] principalData ) {
+        return 2 // short value for the version
         // the following might change with other versions, refactoring needed then
                 + 2 // short value that stores the dataLength
                 + NUM_BYTES // bytes that store all session attributes but the id
@@ -192,11 +621,21 @@ public class TranscoderService {
                 + idData.length // the number of bytes for the id
                 + 2 // short value for the authType
                 + 2 // short value that stores the principalData length
-                + principalDataLength; // the number of bytes for the principal
-        final byte[] data = new byte[sessionFieldsDataLength];
+                + ( principalData != null ? principalData.length : 0 ); // the number of bytes for the principal
+    }
+
+    /**
+     * Writes the session fields to the beginning of the given array, which must provide
+     * enough space (see {@link #getSessionFieldsDataLength(byte[], byte[])}).
+     */
+    private static void encodeSessionFields( final MemcachedBackupSession session, final short version,
+            final byte[] idData, final byte[] principalData, final byte[] data ) {
+
+        final int principalDataLength = principalData != null ? principalData.length : 0;
+        final int sessionFieldsDataLength = getSessionFieldsDataLength( idData, principalData );
 
         int idx = 0;
-        idx = encodeNum( CURRENT_VERSION, data, idx, 2 );
+        idx = encodeNum( version, data, idx, 2 );
         idx = encodeNum( sessionFieldsDataLength, data, idx, 2 );
         idx = encodeNum( session.getCreationTimeInternal(), data, idx, 8 );
         idx = encodeNum( session.getLastAccessedTimeInternal(), data, idx, 8 );
@@ -210,17 +649,19 @@ public class TranscoderService {
         idx = encodeNum( AuthType.valueOfValue( session.getAuthType() ).getId(), data, idx, 2 );
         idx = encodeNum( principalDataLength, data, idx, 2 );
         copy( principalData, data, idx );
-
-        return data;
     }
 
     static DeserializationResult deserializeSessionFields( final byte[] data, final Realm realm ) throws InvalidVersionException {
         final MemcachedBackupSession result = new MemcachedBackupSession();
 
-        final short version = (short) decodeNum( data, 0, 2 );
+        final short storedVersion = (short) decodeNum( data, 0, 2 );
+        final short version = Compression.getUncompressedVersion( storedVersion );
+        final Compression compression = Compression.valueOfVersion( storedVersion );
 
-        if ( version != CURRENT_VERSION ) {
-            throw new InvalidVersionException( "The version " + version + " does not match the current version " + CURRENT_VERSION, version );
+        if ( version != CURRENT_VERSION && version != VERSION_ATTRIBUTES_MANIFEST && version != VERSION_INDEXED_ATTRIBUTES
+                || compression == null
+                || compression != Compression.NONE && version == VERSION_ATTRIBUTES_MANIFEST ) {
+            throw new InvalidVersionException( "The version " + storedVersion + " does not match the current version " + CURRENT_VERSION, storedVersion );
         }
 
         final short sessionFieldsDataLength = (short) decodeNum( data, 2, 2 );
@@ -247,18 +688,102 @@ public class TranscoderService {
             result.setPrincipal( deserializePrincipal( principalData, realm ) );
         }
 
-        final byte[] attributesData = new byte[ data.length - sessionFieldsDataLength ];
-        System.arraycopy( data, sessionFieldsDataLength, attributesData, 0, data.length - sessionFieldsDataLength );
+        return new DeserializationResult( version, compression, result, data, sessionFieldsDataLength );
+    }
+
+    /**
+     * Serialized session attributes together with the 64 bit hash of the serialized data.
+     * The serialized attributes may be preceded by space reserved for the session fields
+     * (see {@link TranscoderService#serialize(MemcachedBackupSession, SerializedAttributes)}).
+     */
+    public static final class SerializedAttributes {
+
+        private final byte[] _data;
+        private final int _offset;
+        private final long _hash;
+        private final short _version;
+        private Principal _principal;
+        private byte[] _principalData;
+
+        SerializedAttributes( @Nonnull final byte[] data, final long hash ) {
+            this( data, 0, hash );
+        }
+
+        SerializedAttributes( @Nonnull final byte[] data, final int offset, final long hash ) {
+            this( data, offset, hash, CURRENT_VERSION );
+        }
+
+        SerializedAttributes( @Nonnull final byte[] data, final int offset, final long hash, final short version ) {
+            _data = data;
+            _offset = offset;
+            _hash = hash;
+            _version = version;
+        }
+
+        /**
+         * Remembers the serialized principal that was used to calculate the reserved space,
+         * so that the principal does not need to be serialized again.
+         */
+        void setPrincipalData( final Principal principal, final byte[] principalData ) {
+            _principal = principal;
+            _principalData = principalData;
+        }
+
+        /**
+         * The serialized attributes. If space was reserved for the session fields, this
+         * returns a copy of the serialized attributes.
+         */
+        @Nonnull
+        public byte[] getData() {
+            if ( _offset == 0 ) {
+                return _data;
+            }
+            final byte[] result = new byte[getLength()];
+            System.arraycopy( _data, _offset, result, 0, result.length );
+            return result;
+        }
+
+        /**
+         * The number of bytes of the serialized attributes.
+         */
+        public int getLength() {
+            return _data.length - _offset;
+        }
+
+        /**
+         * The hash of the serialized attributes.
+         */
+        public long getHash() {
+            return _hash;
+        }
 
-        return new DeserializationResult( result, attributesData );
     }
 
     static class DeserializationResult {
+        private final short _version;
+        private final Compression _compression;
         private final MemcachedBackupSession _session;
-        private final byte[] _attributesData;
-        DeserializationResult( final MemcachedBackupSession session, final byte[] attributesData ) {
+        private final byte[] _data;
+        private final int _attributesOffset;
+        DeserializationResult( final short version, final Compression compression, final MemcachedBackupSession session,
+                final byte[] data, final int attributesOffset ) {
+            _version = version;
+            _compression = compression;
             _session = session;
-            _attributesData = attributesData;
+            _data = data;
+            _attributesOffset = attributesOffset;
+        }
+        /**
+         * @return the version of the serialized session data.
+         */
+        short getVersion() {
+            return _version;
+        }
+        /**
+         * @return the compression of the serialized session attributes.
+         */
+        Compression getCompression() {
+            return _compression;
         }
         /**
          * @return the session with fields initialized apart from the attributes.
@@ -267,11 +792,17 @@ public class TranscoderService {
             return _session;
         }
         /**
-         * The serialized session attributes.
-         * @return the byte array representing the serialized session attributes.
+         * The index of the serialized session attributes (or the encoded {@link AttributesManifest},
+         * depending on the {@link #getVersion()}) in the session data.
          */
-        byte[] getAttributesData() {
-            return _attributesData;
+        int getAttributesOffset() {
+            return _attributesOffset;
+        }
+        /**
+         * The number of bytes of the serialized session attributes (or the encoded {@link AttributesManifest}).
+         */
+        int getAttributesLength() {
+            return _data.length - _attributesOffset;
         }
     }
 
@@ -283,6 +814,10 @@ public class TranscoderService {
         }
     }
 
+    private static byte[] serializePrincipal( final MemcachedBackupSession session ) {
+        return session.getPrincipal() != null ? serializePrincipal( session.getPrincipal() ) : null;
+    }
+
     private static byte[] serializePrincipal( final Principal principal ) {
         ByteArrayOutputStream bos = null;
         ObjectOutputStream oos = null;
@@ -408,6 +943,92 @@ public class TranscoderService {
         }
     }
 
+    /**
+     * The compression that is applied to serialized session attributes (if they exceed the
+     * compression threshold). The compression is stored in the upper byte of the version of the
+     * session data, so that compressed session data can be read regardless of the configured compression
+     * and session data stored without compression (also by previous versions) can still be read.
+     */
+    public static enum Compression {
+
+        /**
+         * No compression.
+         */
+        NONE( 0, "none", null ),
+
+        /**
+         * Deflate (see {@link DeflateCodec}), compresses better than {@link #LZ4} but is slower.
+         */
+        DEFLATE( 1, "deflate", new DeflateCodec() ),
+
+        /**
+         * A fast pure java LZ4 implementation (see {@link LZ4Codec}).
+         */
+        LZ4( 2, "lz4", new LZ4Codec() );
+
+        private final int _id;
+        private final String _name;
+        private final CompressionCodec _codec;
+
+        private Compression( final int id, final String name, final CompressionCodec codec ) {
+            _id = id;
+            _name = name;
+            _codec = codec;
+        }
+
+        /**
+         * Returns the compression for the given name (as used in the configuration).
+         * @throws IllegalArgumentException if there's no compression with the given name.
+         */
+        @Nonnull
+        public static Compression fromName( @Nonnull final String name ) throws IllegalArgumentException {
+            for ( final Compression compression : values() ) {
+                if ( compression._name.equalsIgnoreCase( name ) ) {
+                    return compression;
+                }
+            }
+            throw new IllegalArgumentException( "No Compression found for name " + name );
+        }
+
+        /**
+         * The name of this compression as used in the configuration.
+         */
+        public String getName() {
+            return _name;
+        }
+
+        CompressionCodec getCodec() {
+            return _codec;
+        }
+
+        /**
+         * The version to store for session data with the given version compressed with this compression.
+         */
+        short getVersion( final short version ) {
+            return (short) ( _id << 8 | version );
+        }
+
+        static short getUncompressedVersion( final short version ) {
+            return (short) ( version & 0xFF );
+        }
+
+        /**
+         * The compression of session data with the given (stored) version, or <code>null</code>
+         * if the compression is unknown.
+         */
+        @CheckForNull
+        static Compression valueOfVersion( final short version ) {
+            final int id = ( version >>> 8 ) & 0xFF;
+            for ( final Compression compression : values() ) {
+                if ( compression._id == id ) {
+                    return compression;
+                }
+            }
+            return null;
+        }
+
+    }
+
     /**
      * The enum representing id/string mappings for the {@link Session#getAuthType()}
      * with values defined in {@link Constants}.
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A pure java implementation of the 64 bit <a href="http://code.google.com/p/xxhash/">xxHash</a>
+ * (with seed 0) that can be computed incrementally, so that the hash of serialized data can be
+ * calculated while the data is written (see {@link HashingOutputStream}).
+ * <p>
+ * This class is not thread-safe.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class XXHash64 {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private final byte[] _buffer = new byte[32];
+    private int _bufferSize;
+    private long _length;
+
+    private long _v1 = PRIME1 + PRIME2;
+    private long _v2 = PRIME2;
+    private long _v3 = 0;
+    private long _v4 = -PRIME1;
+
+    /**
+     * Calculates the hash of the given data.
+     */
+    static long hash( @Nonnull final byte[] data ) {
+        return hash( data, 0, data.length );
+    }
+
+    /**
+     * Calculates the hash of the given range of the data.
+     */
+    static long hash( @Nonnull final byte[] data, final int off, final int len ) {
+        final XXHash64 hash = new XXHash64();
+        hash.update( data, off, len );
+        return hash.getValue();
+    }
+
+    void update( final int b ) {
+        _buffer[_bufferSize++] = (byte) b;
+        _length++;
+        if ( _bufferSize == 32 ) {
+            processStripe( _buffer, 0 );
+            _bufferSize = 0;
+        }
+    }
+
+    void update( @Nonnull final byte[] data, int off, int len ) {
+        _length += len;
+        if ( _bufferSize + len < 32 ) {
+            System.arraycopy( data, off, _buffer, _bufferSize, len );
+            _bufferSize += len;
+            return;
+        }
+        if ( _bufferSize > 0 ) {
+            final int fill = 32 - _bufferSize;
+            System.arraycopy( data, off, _buffer, _bufferSize, fill );
+            processStripe( _buffer, 0 );
+            off += fill;
+            len -= fill;
+            _bufferSize = 0;
+        }
+        while ( len >= 32 ) {
+            processStripe( data, off );
+            off += 32;
+            len -= 32;
+        }
+        System.arraycopy( data, off, _buffer, 0, len );
+        _bufferSize = len;
+    }
+
+    /**
+     * The hash of the data passed to {@link #update(byte[], int, int)} so far.
+     */
+    long getValue() {
+        long h;
+        if ( _length >= 32 ) {
+            h = Long.rotateLeft( _v1, 1 ) + Long.rotateLeft( _v2, 7 ) + Long.rotateLeft( _v3, 12 ) + Long.rotateLeft( _v4, 18 );
+            h = mergeRound( h, _v1 );
+            h = mergeRound( h, _v2 );
+            h = mergeRound( h, _v3 );
+            h = mergeRound( h, _v4 );
+        }
+        else {
+            h = PRIME5;
+        }
+        h += _length;
+
+        int i = 0;
+        while ( i + 8 <= _bufferSize ) {
+            h ^= round( 0, getLong( _buffer, i ) );
+            h = Long.rotateLeft( h, 27 ) * PRIME1 + PRIME4;
+            i += 8;
+        }
+        if ( i + 4 <= _bufferSize ) {
+            h ^= ( getInt( _buffer, i ) & 0xFFFFFFFFL ) * PRIME1;
+            h = Long.rotateLeft( h, 23 ) * PRIME2 + PRIME3;
+            i += 4;
+        }
+        while ( i < _bufferSize ) {
+            h ^= ( _buffer[i] & 0xFF ) * PRIME5;
+            h = Long.rotateLeft( h, 11 ) * PRIME1;
+            i++;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private void processStripe( final byte[] data, final int off ) {
+        _v1 = round( _v1, getLong( data, off ) );
+        _v2 = round( _v2, getLong( data, off + 8 ) );
+        _v3 = round( _v3, getLong( data, off + 16 ) );
+        _v4 = round( _v4, getLong( data, off + 24 ) );
+    }
+
+    private static long round( long acc, final long input ) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft( acc, 31 );
+        return acc * PRIME1;
+    }
+
+    private static long mergeRound( long acc, final long val ) {
+        acc ^= round( 0, val );
+        return acc * PRIME1 + PRIME4;
+    }
+
+    private static long getLong( final byte[] data, final int off ) {
+        return ( data[off] & 0xFFL )
+                | ( data[off + 1] & 0xFFL ) << 8
+                | ( data[off + 2] & 0xFFL ) << 16
+                | ( data[off + 3] & 0xFFL ) << 24
+                | ( data[off + 4] & 0xFFL ) << 32
+                | ( data[off + 5] & 0xFFL ) << 40
+                | ( data[off + 6] & 0xFFL ) << 48
+                | ( data[off + 7] & 0xFFL ) << 56;
+    }
+
+    private static int getInt( final byte[] data, final int off ) {
+        return ( data[off] & 0xFF )
+                | ( data[off + 1] & 0xFF ) << 8
+                | ( data[off + 2] & 0xFF ) << 16
+                | ( data[off + 3] & 0xFF ) << 24;
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link AttributesManifest}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class AttributesManifestTest {
+
+    @Test
+    public void testDecodeEncodedData() {
+        final AttributesManifest manifest = new AttributesManifest();
+        manifest.put( "foo", new AttributesManifest.Entry( 0, -42L, 4711 ) );
+        manifest.put( "b\u00e4r", new AttributesManifest.Entry( 3, Long.MAX_VALUE, 0 ) );
+
+        final byte[] encoded = manifest.encode();
+        final byte[] data = new byte[encoded.length + 2];
+        System.arraycopy( encoded, 0, data, 2, encoded.length );
+
+        final AttributesManifest decoded = AttributesManifest.decode( data, 2 );
+        assertEquals( decoded.size(), 2 );
+        assertEquals( decoded.get( "foo" ).getSlot(), 0 );
+        assertEquals( decoded.get( "foo" ).getHash(), -42L );
+        assertEquals( decoded.get( "foo" ).getExpiresAt(), 4711 );
+        assertEquals( decoded.get( "b\u00e4r" ).getSlot(), 3 );
+        assertEquals( decoded.get( "b\u00e4r" ).getHash(), Long.MAX_VALUE );
+        assertEquals( decoded.get( "b\u00e4r" ).getExpiresAt(), 0 );
+        assertNull( decoded.get( "baz" ) );
+    }
+
+    @Test
+    public void testSlots() {
+        final AttributesManifest previous = new AttributesManifest();
+        previous.put( "foo", new AttributesManifest.Entry( 0, 1, 0 ) );
+        previous.put( "bar", new AttributesManifest.Entry( 1, 1, 0 ) );
+
+        final AttributesManifest manifest = new AttributesManifest();
+        manifest.put( "bar", new AttributesManifest.Entry( 1, 2, 0 ) );
+        assertEquals( manifest.nextFreeSlot( previous ), 2 );
+        assertEquals( manifest.nextFreeSlot( null ), 0 );
+        assertEquals( previous.getSlotsNotUsedBy( manifest ), Arrays.asList( 0 ) );
+    }
+
+    @Test
+    public void testExpiresBefore() {
+        assertFalse( new AttributesManifest.Entry( 0, 1, 0 ).expiresBefore( 1000 ) );
+        assertTrue( new AttributesManifest.Entry( 0, 1, 1000 ).expiresBefore( 0 ) );
+        assertTrue( new AttributesManifest.Entry( 0, 1, 1000 ).expiresBefore( 1001 ) );
+        assertFalse( new AttributesManifest.Entry( 0, 1, 1000 ).expiresBefore( 1000 ) );
+    }
+
+}
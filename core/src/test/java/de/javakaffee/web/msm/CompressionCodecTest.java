@@ -0,0 +1,105 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link CompressionCodec} implementations.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class CompressionCodecTest {
+
+    @DataProvider( name = "codecs" )
+    public Object[][] createCodecs() {
+        return new Object[][] {
+                { new DeflateCodec() },
+                { new LZ4Codec() }
+        };
+    }
+
+    @Test( dataProvider = "codecs" )
+    public void testRoundtripCompressibleData( final CompressionCodec codec ) throws Exception {
+        final StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < 2000; i++ ) {
+            sb.append( "<entry key=\"attribute" ).append( i % 17 ).append( "\" value=\"" ).append( i ).append( "\"/>" );
+        }
+        final byte[] data = sb.toString().getBytes( "UTF-8" );
+        final int compressedLength = assertRoundtrip( codec, data, data.length );
+        assertTrue( compressedLength < data.length / 3, "Expected good compression, got " + compressedLength + " of " + data.length );
+    }
+
+    @Test( dataProvider = "codecs" )
+    public void testRoundtripRunsAndSmallData( final CompressionCodec codec ) {
+        final byte[] run = new byte[10000];
+        Arrays.fill( run, (byte) 'a' );
+        assertRoundtrip( codec, run, run.length );
+        assertRoundtrip( codec, new byte[] { 1, 2, 3 }, 100 );
+        assertRoundtrip( codec, new byte[0], 100 );
+    }
+
+    @Test( dataProvider = "codecs" )
+    public void testIncompressibleDataExceedsMaxLength( final CompressionCodec codec ) {
+        final byte[] data = new byte[5000];
+        new Random( 42 ).nextBytes( data );
+        assertEquals( codec.compress( data, 0, data.length, new byte[data.length], 0, data.length - 1 ), -1 );
+        assertRoundtrip( codec, data, data.length * 2 );
+    }
+
+    @Test( dataProvider = "codecs" )
+    public void testRoundtripWithOffsets( final CompressionCodec codec ) {
+        final Random random = new Random( 42 );
+        final byte[] data = new byte[3000];
+        for ( int i = 0; i < data.length; i++ ) {
+            data[i] = (byte) random.nextInt( 4 );
+        }
+        final byte[] compressed = new byte[data.length + 20];
+        final int compressedLength = codec.compress( data, 10, 2000, compressed, 20, data.length );
+        assertTrue( compressedLength > 0 );
+        final byte[] decompressed = new byte[2010];
+        codec.decompress( compressed, 20, compressedLength, decompressed, 10, 2000 );
+        assertEquals( Arrays.copyOfRange( decompressed, 10, 2010 ), Arrays.copyOfRange( data, 10, 2010 ) );
+    }
+
+    @Test( dataProvider = "codecs", expectedExceptions = IllegalArgumentException.class )
+    public void testDecompressMalformedData( final CompressionCodec codec ) {
+        final byte[] data = new byte[1000];
+        Arrays.fill( data, (byte) 'a' );
+        final byte[] compressed = new byte[data.length];
+        final int compressedLength = codec.compress( data, 0, data.length, compressed, 0, compressed.length );
+        codec.decompress( compressed, 0, compressedLength, new byte[data.length + 1], 0, data.length + 1 );
+    }
+
+    private int assertRoundtrip( final CompressionCodec codec, final byte[] data, final int maxCompressedLength ) {
+        final byte[] compressed = new byte[maxCompressedLength];
+        final int compressedLength = codec.compress( data, 0, data.length, compressed, 0, compressed.length );
+        assertTrue( compressedLength >= 0 );
+        final byte[] decompressed = new byte[data.length];
+        codec.decompress( compressed, 0, compressedLength, decompressed, 0, decompressed.length );
+        assertEquals( decompressed, data );
+        return compressedLength;
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link DefaultRequestKeyNormalizer}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class DefaultRequestKeyNormalizerTest {
+
+    @Test
+    public void testRequestIdIsNotChangedByDefault() {
+        final DefaultRequestKeyNormalizer cut = new DefaultRequestKeyNormalizer();
+        assertEquals( cut.normalize( "/product/42?id=1" ), "/product/42?id=1" );
+    }
+
+    @Test
+    public void testIgnoredParametersAreRemoved() {
+        final DefaultRequestKeyNormalizer cut = new DefaultRequestKeyNormalizer( Arrays.asList( "id", "ref" ), false, null );
+        assertEquals( cut.normalize( "/product?id=1" ), "/product" );
+        assertEquals( cut.normalize( "/product?id=1&view=full&ref=home" ), "/product?view=full" );
+        assertEquals( cut.normalize( "/product?view=full&id" ), "/product?view=full" );
+        assertEquals( cut.normalize( "/product?identity=1" ), "/product?identity=1" );
+        assertEquals( cut.normalize( "/product" ), "/product" );
+    }
+
+    @Test
+    public void testQueryStringIsRemovedForAllParameters() {
+        final DefaultRequestKeyNormalizer cut = new DefaultRequestKeyNormalizer(
+                Collections.singleton( DefaultRequestKeyNormalizer.ALL_PARAMETERS ), false, null );
+        assertEquals( cut.normalize( "/product?id=1&view=full" ), "/product" );
+    }
+
+    @Test
+    public void testPathSegmentsAreTemplated() {
+        final DefaultRequestKeyNormalizer cut = new DefaultRequestKeyNormalizer( null, true, null );
+        assertEquals( cut.normalize( "/product/42" ), "/product/{n}" );
+        assertEquals( cut.normalize( "/product/42/reviews/" ), "/product/{n}/reviews/" );
+        assertEquals( cut.normalize( "/order/123e4567-e89b-12d3-a456-426614174000?x=1" ), "/order/{uuid}?x=1" );
+        assertEquals( cut.normalize( "/product/42;jsessionid=abc" ), "/product/{n}" );
+        assertEquals( cut.normalize( "/product/a42" ), "/product/a42" );
+        assertEquals( cut.normalize( "/" ), "/" );
+        assertEquals( cut.normalize( "" ), "" );
+    }
+
+    @Test
+    public void testRewriteRulesAreApplied() {
+        final DefaultRequestKeyNormalizer cut = new DefaultRequestKeyNormalizer( Collections.singleton( "*" ), true,
+                DefaultRequestKeyNormalizer.parseRewriteRules( "^/shop/[^/]+/=>/shop/{category}/ \\.html$=>" ) );
+        assertEquals( cut.normalize( "/shop/books/{n}.html?x=1" ), "/shop/{category}/{n}" );
+        assertEquals( cut.normalize( "/shop/books/17.html?x=1" ), "/shop/{category}/17" );
+    }
+
+    @Test( expectedExceptions = IllegalArgumentException.class )
+    public void testInvalidRewriteRule() {
+        DefaultRequestKeyNormalizer.parseRewriteRules( "/foo" );
+    }
+
+    @Test
+    public void testParseIgnoredParameters() {
+        assertNull( DefaultRequestKeyNormalizer.parseIgnoredParameters( " " ) );
+        assertEquals( DefaultRequestKeyNormalizer.parseIgnoredParameters( "id, page," ).size(), 2 );
+        assertTrue( DefaultRequestKeyNormalizer.parseIgnoredParameters( "id, page" ).contains( "page" ) );
+    }
+
+    @Test
+    public void testIsUUID() {
+        assertTrue( DefaultRequestKeyNormalizer.isUUID( "123E4567-E89B-12D3-A456-426614174000" ) );
+        assertFalse( DefaultRequestKeyNormalizer.isUUID( "123e4567-e89b-12d3-a456-42661417400g" ) );
+        assertFalse( DefaultRequestKeyNormalizer.isUUID( "123e4567e-89b-12d3-a456-426614174000" ) );
+    }
+
+}
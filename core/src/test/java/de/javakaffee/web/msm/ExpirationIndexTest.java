@@ -0,0 +1,73 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link ExpirationIndex}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class ExpirationIndexTest {
+
+    @Test
+    public void testPollReturnsSessionsOrderedByExpiration() {
+        final ExpirationIndex cut = new ExpirationIndex();
+        cut.schedule( "c", 300 );
+        cut.schedule( "a", 100 );
+        cut.schedule( "b", 200 );
+        cut.schedule( "d", 400 );
+
+        assertEquals( cut.pollExpiringBefore( 50 ).size(), 0 );
+        assertEquals( cut.pollExpiringBefore( 300 ), Arrays.asList( "a", "b", "c" ) );
+        assertEquals( cut.size(), 1 );
+        assertEquals( cut.pollExpiringBefore( 1000 ), Arrays.asList( "d" ) );
+        assertEquals( cut.size(), 0 );
+    }
+
+    @Test
+    public void testScheduleAgainReplacesEntry() {
+        final ExpirationIndex cut = new ExpirationIndex();
+        cut.schedule( "a", 100 );
+        cut.schedule( "b", 200 );
+        cut.schedule( "a", 300 );
+        assertEquals( cut.size(), 2 );
+
+        assertEquals( cut.pollExpiringBefore( 250 ), Arrays.asList( "b" ) );
+        assertEquals( cut.pollExpiringBefore( 300 ), Arrays.asList( "a" ) );
+    }
+
+    @Test
+    public void testRemove() {
+        final ExpirationIndex cut = new ExpirationIndex();
+        cut.schedule( "a", 100 );
+        cut.schedule( "b", 100 );
+        cut.remove( "a" );
+        cut.remove( "unknown" );
+
+        assertEquals( cut.size(), 1 );
+        assertEquals( cut.pollExpiringBefore( 100 ), Arrays.asList( "b" ) );
+        assertTrue( cut.pollExpiringBefore( Long.MAX_VALUE ).isEmpty() );
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link InFlightLoads}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class InFlightLoadsTest {
+
+    private ExecutorService _executor;
+
+    @BeforeMethod
+    public void setUp() {
+        _executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        _executor.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentLoadsAreCoalesced() throws Exception {
+        final InFlightLoads<Object> cut = new InFlightLoads<Object>();
+        final CountDownLatch loading = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final AtomicInteger loads = new AtomicInteger();
+        final Object session = new Object();
+        final Callable<Object> loader = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                loads.incrementAndGet();
+                loading.countDown();
+                release.await();
+                return session;
+            }
+        };
+
+        final Future<Object> leader = _executor.submit( load( cut, loader, 5000 ) );
+        loading.await();
+        final Future<Object> follower = _executor.submit( load( cut, loader, 5000 ) );
+        Thread.sleep( 50 );
+        release.countDown();
+
+        assertSame( leader.get( 1, TimeUnit.SECONDS ), session );
+        assertSame( follower.get( 1, TimeUnit.SECONDS ), session );
+        assertEquals( loads.get(), 1 );
+        assertEquals( cut.size(), 0 );
+    }
+
+    @Test
+    public void testFollowerLoadsItselfAfterTimeout() throws Exception {
+        final InFlightLoads<Object> cut = new InFlightLoads<Object>();
+        final CountDownLatch loading = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final AtomicInteger loads = new AtomicInteger();
+        final Callable<Object> loader = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                if ( loads.incrementAndGet() == 1 ) {
+                    loading.countDown();
+                    release.await();
+                    return "leader";
+                }
+                return "follower";
+            }
+        };
+
+        final Future<Object> leader = _executor.submit( load( cut, loader, 5000 ) );
+        loading.await();
+        assertEquals( cut.load( "foo", loader, 10 ), "follower" );
+        release.countDown();
+        assertEquals( leader.get( 1, TimeUnit.SECONDS ), "leader" );
+        assertEquals( loads.get(), 2 );
+    }
+
+    @Test
+    public void testExceptionIsPropagatedToFollowers() throws Exception {
+        final InFlightLoads<Object> cut = new InFlightLoads<Object>();
+        final CountDownLatch loading = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final Callable<Object> loader = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                loading.countDown();
+                release.await();
+                throw new IllegalStateException( "expected" );
+            }
+        };
+
+        _executor.submit( load( cut, loader, 5000 ) );
+        loading.await();
+        final Future<Object> follower = _executor.submit( load( cut, loader, 5000 ) );
+        Thread.sleep( 50 );
+        release.countDown();
+        try {
+            follower.get( 1, TimeUnit.SECONDS );
+            fail( "Expected IllegalStateException." );
+        } catch ( final ExecutionException e ) {
+            assertEquals( e.getCause().getClass(), IllegalStateException.class );
+        }
+    }
+
+    private static Callable<Object> load( final InFlightLoads<Object> cut, final Callable<Object> loader, final long timeout ) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return cut.load( "foo", loader, timeout );
+            }
+        };
+    }
+
+}
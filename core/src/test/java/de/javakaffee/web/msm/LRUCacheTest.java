@@ -22,6 +22,11 @@ import static org.testng.Assert.assertTrue;
 
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -84,6 +89,14 @@ public class LRUCacheTest {
         Assert.assertNull( cut.get("foo"), "old key still existing, unexpected cache size" );
     }
 
+    @Test
+    public void testCacheSizeZero() {
+        final LRUCache<String,String> cut = new LRUCache<String, String>( 0 );
+        Assert.assertNull( cut.put("foo", "bar") );
+        Assert.assertNull( cut.get("foo") );
+        Assert.assertTrue( cut.getKeys().isEmpty() );
+    }
+
     @Test
     public void testCacheTTL() throws InterruptedException {
         final LRUCache<String,String> cut = new LRUCache<String, String>(1, 100);
@@ -119,4 +132,57 @@ public class LRUCacheTest {
                 "invalid order of items, the keys are not order by their values" );
     }
 
+    @Test
+    public void testCacheSizeWithSegments() {
+        final LRUCache<String,String> cut = new LRUCache<String, String>( 1000 );
+        for ( int i = 0; i < 500; i++ ) {
+            cut.put( "key" + i, "value" + i );
+        }
+        // recently accessed keys should survive the eviction of the others
+        for ( int i = 0; i < 100; i++ ) {
+            cut.get( "key" + i );
+        }
+        for ( int i = 500; i < 1100; i++ ) {
+            cut.put( "key" + i, "value" + i );
+        }
+        assertTrue( cut.getKeys().size() <= 1000, "Expected at most 1000 entries, but got " + cut.getKeys().size() );
+        for ( int i = 0; i < 100; i++ ) {
+            assertEquals( cut.get( "key" + i ), "value" + i );
+        }
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final LRUCache<String,Integer> cut = new LRUCache<String, Integer>( 500 );
+        final ExecutorService executor = Executors.newFixedThreadPool( 32 );
+        try {
+            final Callable<Void> task = new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for ( int i = 0; i < 10000; i++ ) {
+                        final String key = "key" + ( i % 1000 );
+                        final Integer value = cut.get( key );
+                        if ( value != null ) {
+                            assertEquals( value.intValue(), i % 1000 );
+                        }
+                        else {
+                            cut.put( key, i % 1000 );
+                        }
+                    }
+                    return null;
+                }
+            };
+            final Future<?>[] futures = new Future<?>[32];
+            for ( int i = 0; i < futures.length; i++ ) {
+                futures[i] = executor.submit( task );
+            }
+            for ( final Future<?> future : futures ) {
+                future.get( 30, TimeUnit.SECONDS );
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue( cut.getKeys().size() <= 500, "Expected at most 500 entries, but got " + cut.getKeys().size() );
+    }
+
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.BackupSessionService.SimpleFuture;
+import de.javakaffee.web.msm.BackupSessionService.SynchronousExecutorService;
+
+/**
+ * Test the {@link ListenableFutureTask}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class ListenableFutureTaskTest {
+
+    private static final Executor SAME_THREAD = new SynchronousExecutorService();
+
+    @Test
+    public void testListenersAreRunOnceOnCompletion() throws Exception {
+        final ListenableFutureTask<String> cut = new ListenableFutureTask<String>( new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return "foo";
+            }
+        } );
+        final AtomicInteger before = new AtomicInteger();
+        cut.addListener( new CountingListener( before ), SAME_THREAD );
+        assertEquals( before.get(), 0 );
+
+        cut.run();
+        assertEquals( before.get(), 1 );
+
+        final AtomicInteger after = new AtomicInteger();
+        cut.addListener( new CountingListener( after ), SAME_THREAD );
+        assertEquals( after.get(), 1 );
+        assertEquals( before.get(), 1 );
+        assertEquals( cut.get(), "foo" );
+    }
+
+    @Test
+    public void testFailingListenerDoesNotAffectOtherListeners() throws Exception {
+        final ListenableFutureTask<String> cut = new ListenableFutureTask<String>( new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                throw new IllegalStateException( "expected" );
+            }
+        } );
+        cut.addListener( new Runnable() {
+            @Override
+            public void run() {
+                throw new RuntimeException( "expected" );
+            }
+        }, SAME_THREAD );
+        final AtomicInteger counter = new AtomicInteger();
+        cut.addListener( new CountingListener( counter ), SAME_THREAD );
+
+        cut.run();
+        assertEquals( counter.get(), 1 );
+    }
+
+    @Test
+    public void testSimpleFutureRunsListenerImmediately() {
+        final AtomicInteger counter = new AtomicInteger();
+        new SimpleFuture<String>( "foo" ).addListener( new CountingListener( counter ), SAME_THREAD );
+        assertEquals( counter.get(), 1 );
+    }
+
+    private static final class CountingListener implements Runnable {
+        private final AtomicInteger _counter;
+        CountingListener( final AtomicInteger counter ) {
+            _counter = counter;
+        }
+        @Override
+        public void run() {
+            _counter.incrementAndGet();
+        }
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Statistics.StatsType.ACQUIRE_LOCK_AFTER_RELEASE;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link LocalSessionLocks}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class LocalSessionLocksTest {
+
+    private ExecutorService _executor;
+    private Statistics _statistics;
+    private MemcachedClient _memcached;
+    private List<LocalSessionLocks> _locks;
+
+    @BeforeMethod
+    public void setUp() {
+        _executor = Executors.newCachedThreadPool();
+        _statistics = Statistics.create();
+        _memcached = mock( MemcachedClient.class );
+        _locks = new ArrayList<LocalSessionLocks>();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        _executor.shutdownNow();
+        for ( final LocalSessionLocks locks : _locks ) {
+            locks.shutdown();
+        }
+    }
+
+    @Test
+    public void testMemcachedLockIsHandedOverToWaiter() throws Exception {
+        final LocalSessionLocks cut = createLocks( 10000, 5 );
+        assertFalse( cut.acquire( "foo", 100 ) );
+        cut.lockedInMemcached( "foo", _memcached, "lock:foo", "token" );
+
+        final Future<Boolean> waiter = _executor.submit( acquire( cut, "foo", 5000 ) );
+        waitForWaiter( waiter );
+
+        assertTrue( cut.handOver( "foo" ) );
+        assertTrue( waiter.get( 1, TimeUnit.SECONDS ) );
+        assertEquals( _statistics.getLocalLockHandOvers(), 1 );
+        assertEquals( _statistics.getProbe( ACQUIRE_LOCK_AFTER_RELEASE ).getCount(), 1 );
+
+        // there's no waiter anymore, so the lock must be released
+        assertFalse( cut.handOver( "foo" ) );
+        cut.releaseLocal( "foo" );
+        assertEquals( cut.size(), 0 );
+    }
+
+    @Test
+    public void testTooOldMemcachedLockIsNotHandedOver() throws Exception {
+        final LocalSessionLocks cut = createLocks( 0, 5 );
+        assertFalse( cut.acquire( "foo", 100 ) );
+        cut.lockedInMemcached( "foo", _memcached, "lock:foo", "token" );
+
+        final Future<Boolean> waiter = _executor.submit( acquire( cut, "foo", 5000 ) );
+        waitForWaiter( waiter );
+
+        assertFalse( cut.handOver( "foo" ) );
+        cut.releaseLocal( "foo" );
+        // the waiter owns the local lock now, but has to acquire the memcached lock itself
+        assertFalse( waiter.get( 1, TimeUnit.SECONDS ) );
+        assertEquals( cut.size(), 1 );
+        assertEquals( _statistics.getLocalLockHandOvers(), 0 );
+    }
+
+    @Test
+    public void testWaiterTimesOut() throws Exception {
+        final LocalSessionLocks cut = createLocks( 10000, 5 );
+        assertFalse( cut.acquire( "foo", 100 ) );
+        try {
+            cut.acquire( "foo", 50 );
+            fail( "Expected TimeoutException" );
+        } catch ( final TimeoutException e ) {
+            // expected
+        }
+        // the timed out waiter must not get the lock
+        assertFalse( cut.handOver( "foo" ) );
+        cut.releaseLocal( "foo" );
+        assertEquals( cut.size(), 0 );
+    }
+
+    @Test
+    public void testDifferentSessionsDontBlock() throws Exception {
+        final LocalSessionLocks cut = createLocks( 10000, 5 );
+        assertFalse( cut.acquire( "foo", 100 ) );
+        assertFalse( cut.acquire( "bar", 100 ) );
+        assertEquals( cut.size(), 2 );
+    }
+
+    @Test
+    public void testOwnedLockIsDeletedOnRelease() throws Exception {
+        final LocalSessionLocks cut = createLocks( 10000, 5 );
+        final String token = cut.newToken();
+        assertFalse( cut.acquire( "foo", 100 ) );
+        cut.lockedInMemcached( "foo", _memcached, "lock:foo", token );
+        when( _memcached.gets( "lock:foo" ) ).thenReturn( new CASValue<Object>( 1, LocalSessionLocks.createLockValue( token ) ) );
+
+        cut.release( "foo", _memcached, "lock:foo" );
+        verify( _memcached ).delete( "lock:foo" );
+        assertEquals( cut.size(), 0 );
+    }
+
+    @Test
+    public void testLockOfOtherOwnerIsNotDeletedOnRelease() throws Exception {
+        final LocalSessionLocks cut = createLocks( 10000, 5 );
+        assertFalse( cut.acquire( "foo", 100 ) );
+        cut.lockedInMemcached( "foo", _memcached, "lock:foo", cut.newToken() );
+        when( _memcached.gets( "lock:foo" ) ).thenReturn( new CASValue<Object>( 1, LocalSessionLocks.createLockValue( "other" ) ) );
+
+        cut.release( "foo", _memcached, "lock:foo" );
+        verify( _memcached, never() ).delete( anyString() );
+        assertEquals( cut.size(), 0 );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    @Test
+    public void testLeaseIsRenewed() throws Exception {
+        final LocalSessionLocks cut = createLocks( 10000, 0 );
+        final String token = cut.newToken();
+        when( _memcached.gets( "lock:foo" ) ).thenReturn( new CASValue<Object>( 42, LocalSessionLocks.createLockValue( token ) ) );
+        when( _memcached.cas( eq( "lock:foo" ), eq( 42L ), eq( 0 ), any(), any( Transcoder.class ) ) ).thenReturn( CASResponse.OK );
+        assertFalse( cut.acquire( "foo", 100 ) );
+        cut.lockedInMemcached( "foo", _memcached, "lock:foo", token );
+
+        cut.renewLeases();
+        verify( _memcached, atLeastOnce() ).cas( eq( "lock:foo" ), anyLong(), eq( 0 ), any(), any( Transcoder.class ) );
+        assertTrue( _statistics.getLockLeaseRenewals() > 0 );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    @Test
+    public void testLeaseRenewalsAreLimited() throws Exception {
+        final LocalSessionLocks cut = createLocks( 10000, 0 );
+        cut.shutdown();
+        final String token = cut.newToken();
+        when( _memcached.gets( "lock:foo" ) ).thenReturn( new CASValue<Object>( 42, LocalSessionLocks.createLockValue( token ) ) );
+        when( _memcached.cas( eq( "lock:foo" ), eq( 42L ), eq( 0 ), any(), any( Transcoder.class ) ) ).thenReturn( CASResponse.OK );
+        assertFalse( cut.acquire( "foo", 100 ) );
+        cut.lockedInMemcached( "foo", _memcached, "lock:foo", token );
+
+        for ( int i = 0; i < 2 * LocalSessionLocks.MAX_LEASE_RENEWALS; i++ ) {
+            cut.renewLeases();
+        }
+        assertEquals( _statistics.getLockLeaseRenewals(), LocalSessionLocks.MAX_LEASE_RENEWALS );
+    }
+
+    @Test
+    public void testGetOwner() {
+        assertEquals( LocalSessionLocks.getOwner( LocalSessionLocks.createLockValue( "abc-1" ) ), "abc-1" );
+        assertNull( LocalSessionLocks.getOwner( "locked" ) );
+        assertNull( LocalSessionLocks.getOwner( null ) );
+    }
+
+    @Test
+    public void testGetLeaseTime() {
+        final long start = System.currentTimeMillis();
+        final long leaseTime = LocalSessionLocks.getLeaseTime( LocalSessionLocks.createLockValue( "abc-1" ) );
+        assertTrue( leaseTime >= start && leaseTime <= System.currentTimeMillis() );
+        assertEquals( LocalSessionLocks.getLeaseTime( "locked" ), -1 );
+        assertEquals( LocalSessionLocks.getLeaseTime( "abc:def" ), -1 );
+        assertEquals( LocalSessionLocks.getLeaseTime( null ), -1 );
+    }
+
+    @Test
+    public void testHoldTimesAreTracked() throws Exception {
+        final LocalSessionLocks cut = createLocks( 10000, 5 );
+        assertEquals( cut.getAverageHoldTime(), 0 );
+
+        assertFalse( cut.acquire( "foo", 100 ) );
+        // not locked in memcached, so this is no hold time
+        cut.releaseLocal( "foo" );
+        assertEquals( cut.getAverageHoldTime(), 0 );
+
+        assertFalse( cut.acquire( "foo", 100 ) );
+        cut.lockedInMemcached( "foo", _memcached, "lock:foo", "token" );
+        Thread.sleep( 50 );
+        cut.release( "foo", _memcached, "lock:foo" );
+        assertTrue( cut.getAverageHoldTime() >= 50, "Expected average hold time >= 50, but was " + cut.getAverageHoldTime() );
+    }
+
+    private LocalSessionLocks createLocks( final long maxHandOverAge, final int lockExpiration ) {
+        final LocalSessionLocks result = new LocalSessionLocks( maxHandOverAge, lockExpiration, _statistics );
+        _locks.add( result );
+        return result;
+    }
+
+    private void waitForWaiter( final Future<Boolean> waiter ) throws InterruptedException {
+        Thread.sleep( 50 );
+        assertFalse( waiter.isDone() );
+    }
+
+    private Callable<Boolean> acquire( final LocalSessionLocks cut, final String sessionId, final long timeout ) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return cut.acquire( sessionId, timeout );
+            }
+        };
+    }
+
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.SessionValidityInfo.createValidityInfoKeyName;
+import static de.javakaffee.web.msm.Statistics.StatsType.ACQUIRE_LOCK_AFTER_RELEASE;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.LockingStrategy.PrefetchedItems;
+import de.javakaffee.web.msm.MemcachedBackupSessionManager.LockStatus;
+
+/**
+ * Test the {@link LockingStrategy}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class LockingStrategyTest {
+
+    private static final String SESSION_ID = "foo-n1";
+
+    private Statistics _statistics;
+    private MemcachedClient _memcached;
+    private LocalSessionLocks _localSessionLocks;
+    private LockingStrategy _cut;
+
+    @BeforeMethod
+    public void setUp() {
+        _statistics = Statistics.create();
+        _memcached = mock( MemcachedClient.class );
+        _localSessionLocks = new LocalSessionLocks( 1000, 5, _statistics );
+        final MemcachedBackupSessionManager manager = mock( MemcachedBackupSessionManager.class );
+        when( manager.getLocalSessionLocks() ).thenReturn( _localSessionLocks );
+        when( manager.getUpgradeSupportTranscoder() ).thenReturn( new SerializingTranscoder() );
+        _cut = new LockingStrategyAll( manager, _memcached, new MissingSessionsCache( 10, 100, false, _statistics ),
+                false, _statistics );
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        _cut.shutdown();
+        _localSessionLocks.shutdown();
+    }
+
+    @Test
+    public void testSessionIsLoadedTogetherWithLock() throws Exception {
+        final List<String> keys = Arrays.asList( createValidityInfoKeyName( SESSION_ID ), SESSION_ID );
+        final Map<String, Object> items = new HashMap<String, Object>();
+        items.put( SESSION_ID, new byte[] { 1 } );
+        final Future<Map<String, Object>> bulk = future( items );
+        final Future<Boolean> locked = future( Boolean.TRUE );
+        when( _memcached.add( anyString(), anyInt(), anyObject() ) ).thenReturn( locked );
+        when( _memcached.asyncGetBulk( eq( keys ), any( Transcoder.class ) ) ).thenReturn( bulk );
+
+        assertEquals( _cut.onBeforeLoadFromMemcached( SESSION_ID ), LockStatus.LOCKED );
+
+        final PrefetchedItems prefetched = _cut.takePrefetchedItems( SESSION_ID );
+        assertNotNull( prefetched );
+        assertTrue( prefetched.contains( SESSION_ID ) );
+        assertTrue( prefetched.contains( createValidityInfoKeyName( SESSION_ID ) ) );
+        assertNotNull( prefetched.get( SESSION_ID ) );
+        assertNull( prefetched.get( createValidityInfoKeyName( SESSION_ID ) ) );
+        assertNull( _cut.takePrefetchedItems( SESSION_ID ), "The items must only be taken once." );
+        verify( bulk, never() ).cancel( false );
+    }
+
+    @Test
+    public void testLoadedItemsAreDiscardedIfLockFails() throws Exception {
+        final Future<Map<String, Object>> bulk = future( (Map<String, Object>) new HashMap<String, Object>() );
+        final Future<Boolean> notLocked = future( Boolean.FALSE );
+        final Future<Boolean> locked = future( Boolean.TRUE );
+        when( _memcached.add( anyString(), anyInt(), anyObject() ) ).thenReturn( notLocked, locked );
+        when( _memcached.asyncGetBulk( any( Collection.class ), any( Transcoder.class ) ) ).thenReturn( bulk );
+
+        assertEquals( _cut.onBeforeLoadFromMemcached( SESSION_ID ), LockStatus.LOCKED );
+
+        assertNull( _cut.takePrefetchedItems( SESSION_ID ) );
+        verify( bulk ).cancel( false );
+        verify( _memcached, times( 2 ) ).add( anyString(), anyInt(), anyObject() );
+        verify( _memcached, times( 1 ) ).asyncGetBulk( any( Collection.class ), any( Transcoder.class ) );
+        // the lock is read once to know its age
+        verify( _memcached, times( 1 ) ).get( "lock:" + SESSION_ID );
+        assertEquals( _statistics.getProbe( ACQUIRE_LOCK_AFTER_RELEASE ).getCount(), 1 );
+    }
+
+    @Test
+    public void testTimeToWaitIsDerivedFromHoldTimes() throws Exception {
+        // without known hold times the retry interval is used
+        assertBetween( _cut.getTimeToWait( System.currentTimeMillis(), 100 ), 75, 125 );
+
+        assertFalse( _localSessionLocks.acquire( "bar-n1", 100 ) );
+        _localSessionLocks.lockedInMemcached( "bar-n1", _memcached, "lock:bar-n1", "token" );
+        Thread.sleep( 200 );
+        _localSessionLocks.release( "bar-n1", _memcached, "lock:bar-n1" );
+        final long averageHoldTime = _localSessionLocks.getAverageHoldTime();
+        assertTrue( averageHoldTime >= 200 && averageHoldTime < LockingStrategy.LOCK_MAX_RETRY_INTERVAL );
+
+        // a new lock is expected to be released after the average hold time
+        final long expected = averageHoldTime - 10;
+        assertBetween( _cut.getTimeToWait( System.currentTimeMillis(), 10 ), expected * 3 / 4, averageHoldTime * 5 / 4 );
+
+        // for overdue locks the retry interval is limited to a quarter of the average hold time
+        assertBetween( _cut.getTimeToWait( System.currentTimeMillis() - 1000, 10 ), 7, 13 );
+        assertBetween( _cut.getTimeToWait( System.currentTimeMillis() - 1000, 400 ), averageHoldTime / 4 * 3 / 4,
+                averageHoldTime / 4 * 5 / 4 );
+    }
+
+    private static void assertBetween( final long actual, final long min, final long max ) {
+        assertTrue( actual >= min && actual <= max, "Expected value between " + min + " and " + max + ", but was " + actual );
+    }
+
+    @Test
+    public void testLockIsUsedIfItemsCannotBeLoaded() throws Exception {
+        final Future<Map<String, Object>> bulk = mockFuture();
+        when( bulk.get( anyLong(), any( TimeUnit.class ) ) ).thenThrow( new RuntimeException( "expected" ) );
+        final Future<Boolean> locked = future( Boolean.TRUE );
+        when( _memcached.add( anyString(), anyInt(), anyObject() ) ).thenReturn( locked );
+        when( _memcached.asyncGetBulk( any( Collection.class ), any( Transcoder.class ) ) ).thenReturn( bulk );
+
+        assertEquals( _cut.onBeforeLoadFromMemcached( SESSION_ID ), LockStatus.LOCKED );
+
+        assertNull( _cut.takePrefetchedItems( SESSION_ID ) );
+    }
+
+    @Test
+    public void testPrefetchedItemsOfOtherSessionAreNotReturned() throws Exception {
+        final Future<Map<String, Object>> bulk = future( (Map<String, Object>) new HashMap<String, Object>() );
+        final Future<Boolean> locked = future( Boolean.TRUE );
+        when( _memcached.add( anyString(), anyInt(), anyObject() ) ).thenReturn( locked );
+        when( _memcached.asyncGetBulk( any( Collection.class ), any( Transcoder.class ) ) ).thenReturn( bulk );
+
+        assertEquals( _cut.onBeforeLoadFromMemcached( SESSION_ID ), LockStatus.LOCKED );
+
+        assertNull( _cut.takePrefetchedItems( "bar-n1" ) );
+        assertNull( _cut.takePrefetchedItems( SESSION_ID ), "The items must be removed by the previous take." );
+    }
+
+    @Test
+    public void testSharedLockRefreshesExpirationOfReaders() throws Exception {
+        final MemcachedBackupSessionManager manager = mock( MemcachedBackupSessionManager.class );
+        when( manager.getLocalSessionLocks() ).thenReturn( _localSessionLocks );
+        final LockingStrategyReadWrite cut = new LockingStrategyReadWrite( manager, null, _memcached,
+                new MissingSessionsCache( 10, 100, false, _statistics ), false, _statistics );
+        try {
+            final String readLockName = new SessionIdFormat().createReadLockName( SESSION_ID );
+            when( _memcached.gets( readLockName ) ).thenReturn( new CASValue<Object>( 42, "2" ) );
+
+            assertEquals( cut.lockShared( SESSION_ID ), LockStatus.LOCKED_SHARED );
+
+            // incr only sets the expiration when the counter is created
+            verify( _memcached ).incr( readLockName, 1, 1, LockingStrategy.LOCK_EXPIRATION );
+            verify( _memcached ).asyncCAS( eq( readLockName ), eq( 42L ), eq( LockingStrategy.LOCK_EXPIRATION ), eq( "2" ),
+                    any( Transcoder.class ) );
+        } finally {
+            cut.shutdown();
+        }
+    }
+
+    @Test
+    public void testLockIsReleasedIfSessionIsNotBackedUp() throws Exception {
+        final Future<Map<String, Object>> bulk = future( (Map<String, Object>) new HashMap<String, Object>() );
+        final Future<Boolean> locked = future( Boolean.TRUE );
+        when( _memcached.add( anyString(), anyInt(), anyObject() ) ).thenReturn( locked );
+        when( _memcached.asyncGetBulk( any( Collection.class ), any( Transcoder.class ) ) ).thenReturn( bulk );
+
+        _cut.onRequestStart( null );
+        assertEquals( _cut.onBeforeLoadFromMemcached( SESSION_ID ), LockStatus.LOCKED );
+        assertEquals( _localSessionLocks.size(), 1 );
+
+        // the session was removed during the request, so it's not backed up
+        _cut.onBackupWithoutLoadedSession( SESSION_ID, "/foo", mock( BackupSessionService.class ) );
+        assertEquals( _localSessionLocks.size(), 0 );
+        _cut.onRequestFinished();
+    }
+
+    @Test
+    public void testLockOfOtherRequestIsNotReleasedIfSessionIsNotBackedUp() throws Exception {
+        assertFalse( _localSessionLocks.acquire( SESSION_ID, 100 ) );
+
+        _cut.onRequestStart( null );
+        _cut.onBackupWithoutLoadedSession( SESSION_ID, "/foo", mock( BackupSessionService.class ) );
+        assertEquals( _localSessionLocks.size(), 1 );
+        _cut.onRequestFinished();
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static <T> Future<T> mockFuture() {
+        return mock( Future.class );
+    }
+
+    private static <T> Future<T> future( final T value ) throws Exception {
+        final Future<T> result = mockFuture();
+        when( result.get() ).thenReturn( value );
+        when( result.get( anyLong(), any( TimeUnit.class ) ) ).thenReturn( value );
+        return result;
+    }
+
+}
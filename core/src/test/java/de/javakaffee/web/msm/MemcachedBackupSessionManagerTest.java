@@ -21,31 +21,51 @@ import static de.javakaffee.web.msm.SessionValidityInfo.encode;
 import static de.javakaffee.web.msm.integration.TestUtils.STICKYNESS_PROVIDER;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.transcoders.Transcoder;
 
 import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Request;
 import org.apache.catalina.core.StandardContext;
 import org.apache.catalina.core.StandardEngine;
 import org.apache.catalina.core.StandardHost;
 import org.apache.catalina.loader.WebappLoader;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
 import de.javakaffee.web.msm.LockingStrategy.LockingMode;
+import de.javakaffee.web.msm.MemcachedBackupSessionManager.LockStatus;
+import de.javakaffee.web.msm.SessionTrackerValve.SessionBackupService.BackupResultStatus;
+import de.javakaffee.web.msm.TranscoderService.SerializedAttributes;
 import de.javakaffee.web.msm.integration.TestUtils;
 import de.javakaffee.web.msm.integration.TestUtils.SessionAffinityMode;
 
@@ -179,7 +199,8 @@ public class MemcachedBackupSessionManagerTest {
         final TranscoderService transcoderServiceMock = mock( TranscoderService.class );
         @SuppressWarnings( "unchecked" )
         final Map<String, Object> anyMap = any( Map.class );
-        when( transcoderServiceMock.serializeAttributes( any( MemcachedBackupSession.class ), anyMap ) ).thenReturn( new byte[0] );
+        when( transcoderServiceMock.serializeAttributesWithHash( any( MemcachedBackupSession.class ), anyMap ) ).thenReturn( new SerializedAttributes( new byte[0], 1 ) );
+        when( transcoderServiceMock.serialize( any( MemcachedBackupSession.class ), any( SerializedAttributes.class ) ) ).thenReturn( new byte[0] );
         _manager.setTranscoderService( transcoderServiceMock );
 
         final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
@@ -188,15 +209,75 @@ public class MemcachedBackupSessionManagerTest {
         session.endAccess();
         session.setAttribute( "foo", "bar" );
         _manager.backupSession( session.getIdInternal(), false, null ).get();
-        verify( transcoderServiceMock, times( 1 ) ).serializeAttributes( eq( session ), eq( session.getAttributesInternal() ) );
+        verify( transcoderServiceMock, times( 1 ) ).serializeAttributesWithHash( eq( session ), eq( session.getAttributesInternal() ) );
 
         session.access();
         session.endAccess();
         _manager.backupSession( session.getIdInternal(), false, null ).get();
-        verify( transcoderServiceMock, times( 1 ) ).serializeAttributes( eq( session ), eq( session.getAttributesInternal() ) );
+        verify( transcoderServiceMock, times( 1 ) ).serializeAttributesWithHash( eq( session ), eq( session.getAttributesInternal() ) );
 
     }
 
+    /**
+     * Test that with attributes dirty tracking reading immutable attribute values
+     * does not cause serialization of the session attributes.
+     */
+    @Test
+    public void testAttributesDirtyTracking() throws InterruptedException, ExecutionException {
+        _manager.setAttributesDirtyTracking( true );
+        _manager.setImmutableAttributeClasses( StringBuilder.class.getName() );
+
+        final TranscoderService transcoderServiceMock = mock( TranscoderService.class );
+        @SuppressWarnings( "unchecked" )
+        final Map<String, Object> anyMap = any( Map.class );
+        // return different hashes so that each backup is performed
+        when( transcoderServiceMock.serializeAttributesWithHash( any( MemcachedBackupSession.class ), anyMap ) ).thenReturn(
+                new SerializedAttributes( new byte[0], 1 ), new SerializedAttributes( new byte[0], 2 ),
+                new SerializedAttributes( new byte[0], 3 ), new SerializedAttributes( new byte[0], 4 ) );
+        when( transcoderServiceMock.serialize( any( MemcachedBackupSession.class ), any( SerializedAttributes.class ) ) ).thenReturn( new byte[0] );
+        _manager.setTranscoderService( transcoderServiceMock );
+
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        session.setAttribute( "string", "foo" );
+        session.setAttribute( "builder", new StringBuilder( "bar" ) );
+        session.setAttribute( "list", new ArrayList<String>() );
+        assertSerializedAttributesAfterBackup( session, transcoderServiceMock, 1 );
+
+        // read only access to immutable values
+        session.access();
+        session.getAttribute( "string" );
+        session.getAttribute( "builder" );
+        session.getAttribute( "missing" );
+        session.setAttribute( "string", "foo" );
+        assertSerializedAttributesAfterBackup( session, transcoderServiceMock, 1 );
+
+        // a mutable value might be modified
+        session.access();
+        session.getAttribute( "list" );
+        assertSerializedAttributesAfterBackup( session, transcoderServiceMock, 2 );
+
+        session.access();
+        session.getAttribute( "string" );
+        assertSerializedAttributesAfterBackup( session, transcoderServiceMock, 2 );
+
+        session.access();
+        session.setAttribute( "string", "baz" );
+        assertSerializedAttributesAfterBackup( session, transcoderServiceMock, 3 );
+
+        session.access();
+        session.removeAttribute( "string" );
+        assertSerializedAttributesAfterBackup( session, transcoderServiceMock, 4 );
+    }
+
+    private void assertSerializedAttributesAfterBackup( final MemcachedBackupSession session,
+            final TranscoderService transcoderServiceMock, final int expectedSerializations ) throws InterruptedException, ExecutionException {
+        session.endAccess();
+        _manager.backupSession( session.getIdInternal(), false, null ).get();
+        verify( transcoderServiceMock, times( expectedSerializations ) ).serializeAttributesWithHash( eq( session ), eq( session.getAttributesInternal() ) );
+        // we need some millis between last backup and next access (due to check in BackupSessionService)
+        Thread.sleep( 5L );
+    }
+
     /**
      * Test that session attribute serialization and hash calculation is only
      * performed if the session and its attributes were accessed since the last backup/backup check.
@@ -210,14 +291,15 @@ public class MemcachedBackupSessionManagerTest {
         final TranscoderService transcoderServiceMock = mock( TranscoderService.class );
         @SuppressWarnings( "unchecked" )
         final Map<String, Object> anyMap = any( Map.class );
-        when( transcoderServiceMock.serializeAttributes( any( MemcachedBackupSession.class ), anyMap ) ).thenReturn( new byte[0] );
+        when( transcoderServiceMock.serializeAttributesWithHash( any( MemcachedBackupSession.class ), anyMap ) ).thenReturn( new SerializedAttributes( new byte[0], 1 ) );
+        when( transcoderServiceMock.serialize( any( MemcachedBackupSession.class ), any( SerializedAttributes.class ) ) ).thenReturn( new byte[0] );
         _manager.setTranscoderService( transcoderServiceMock );
 
         final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
 
         session.setAttribute( "foo", "bar" );
         _manager.backupSession( session.getIdInternal(), false, null ).get();
-        verify( transcoderServiceMock, times( 1 ) ).serializeAttributes( eq( session ), eq( session.getAttributesInternal() ) );
+        verify( transcoderServiceMock, times( 1 ) ).serializeAttributesWithHash( eq( session ), eq( session.getAttributesInternal() ) );
 
         // we need some millis between last backup and next access (due to check in BackupSessionService)
         Thread.sleep(5L);
@@ -225,14 +307,584 @@ public class MemcachedBackupSessionManagerTest {
         session.access();
         session.getAttribute( "foo" );
         _manager.backupSession( session.getIdInternal(), false, null ).get();
-        verify( transcoderServiceMock, times( 2 ) ).serializeAttributes( eq( session ), eq( session.getAttributesInternal() ) );
+        verify( transcoderServiceMock, times( 2 ) ).serializeAttributesWithHash( eq( session ), eq( session.getAttributesInternal() ) );
 
         // we need some millis between last backup and next access (due to check in BackupSessionService)
         Thread.sleep(5L);
 
         _manager.backupSession( session.getIdInternal(), false, null ).get();
-        verify( transcoderServiceMock, times( 2 ) ).serializeAttributes( eq( session ), eq( session.getAttributesInternal() ) );
+        verify( transcoderServiceMock, times( 2 ) ).serializeAttributesWithHash( eq( session ), eq( session.getAttributesInternal() ) );
+
+    }
+
+    /**
+     * Test that with attributes delta backup only modified attributes are sent to memcached,
+     * and that a session stored this way can be loaded again.
+     */
+    @Test
+    public void testAttributesDeltaBackup() throws Exception {
+        _manager.setAttributesDeltaBackup( true );
+        _manager.startInternal( _memcachedMock );
+
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final String sessionId = session.getId();
+
+        session.access();
+        session.endAccess();
+        session.setAttribute( "foo", "bar" );
+        session.setAttribute( "counter", 1 );
+        _manager.backupSession( sessionId, false, null ).get();
+
+        final String fooKey = AttributesManifest.createAttributeKeyName( sessionId, session.getAttributesManifest().get( "foo" ).getSlot() );
+        final String counterKey = AttributesManifest.createAttributeKeyName( sessionId, session.getAttributesManifest().get( "counter" ).getSlot() );
+        Assert.assertFalse( fooKey.equals( counterKey ) );
+        verify( _memcachedMock, times( 1 ) ).set( eq( sessionId ), anyInt(), any() );
+        verify( _memcachedMock, times( 1 ) ).set( eq( fooKey ), anyInt(), any() );
+        verify( _memcachedMock, times( 1 ) ).set( eq( counterKey ), anyInt(), any() );
+
+        // we need some millis between last backup and next access (due to check in BackupSessionService)
+        Thread.sleep( 5L );
+
+        session.access();
+        session.endAccess();
+        session.setAttribute( "counter", 2 );
+        _manager.backupSession( sessionId, false, null ).get();
+
+        // the modified attribute is stored in a new item, the previous one is deleted
+        final String newCounterKey = AttributesManifest.createAttributeKeyName( sessionId, session.getAttributesManifest().get( "counter" ).getSlot() );
+        Assert.assertFalse( newCounterKey.equals( counterKey ) );
+        Assert.assertFalse( newCounterKey.equals( fooKey ) );
+        verify( _memcachedMock, times( 2 ) ).set( eq( sessionId ), anyInt(), any() );
+        verify( _memcachedMock, times( 1 ) ).set( eq( fooKey ), anyInt(), any() );
+        verify( _memcachedMock, times( 1 ) ).set( eq( counterKey ), anyInt(), any() );
+        verify( _memcachedMock, times( 1 ) ).set( eq( newCounterKey ), anyInt(), any() );
+        verify( _memcachedMock, times( 1 ) ).delete( eq( counterKey ) );
 
+        Thread.sleep( 5L );
+
+        session.access();
+        session.endAccess();
+        session.getAttribute( "foo" );
+        session.removeAttribute( "counter" );
+        _manager.backupSession( sessionId, false, null ).get();
+
+        verify( _memcachedMock, times( 3 ) ).set( eq( sessionId ), anyInt(), any() );
+        verify( _memcachedMock, times( 1 ) ).set( eq( fooKey ), anyInt(), any() );
+        verify( _memcachedMock, times( 1 ) ).delete( eq( newCounterKey ) );
+
+        // now load the session from the captured data
+        final ArgumentCaptor<Object> sessionData = ArgumentCaptor.forClass( Object.class );
+        verify( _memcachedMock, times( 3 ) ).set( eq( sessionId ), anyInt(), sessionData.capture() );
+        final ArgumentCaptor<Object> fooData = ArgumentCaptor.forClass( Object.class );
+        verify( _memcachedMock, times( 1 ) ).set( eq( fooKey ), anyInt(), fooData.capture() );
+
+        final List<Object> allSessionData = sessionData.getAllValues();
+        when( _memcachedMock.get( eq( sessionId ), any( Transcoder.class ) ) ).thenReturn( allSessionData.get( allSessionData.size() - 1 ) );
+        final Map<String, Object> bulkResult = new HashMap<String, Object>();
+        bulkResult.put( fooKey, fooData.getValue() );
+        when( _memcachedMock.getBulk( any( Collection.class ) ) ).thenReturn( bulkResult );
+
+        session.setNote( MemcachedBackupSessionManager.NODE_FAILURE, Boolean.TRUE );
+        _manager.remove( session );
+
+        final MemcachedBackupSession loaded = (MemcachedBackupSession) _manager.findSession( sessionId );
+        Assert.assertNotNull( loaded );
+        Assert.assertEquals( loaded.getAttribute( "foo" ), "bar" );
+        Assert.assertNull( loaded.getAttribute( "counter" ) );
+        Assert.assertEquals( loaded.getAttributesManifest().size(), 1 );
+        verify( _memcachedMock, never() ).delete( eq( fooKey ) );
+    }
+
+    /**
+     * Test that with attributes delta backup a modified attribute does not overwrite the item
+     * referenced by the previous session item, so that a failed session backup leaves the
+     * session stored in memcached intact.
+     */
+    @Test
+    public void testAttributesDeltaBackupKeepsPreviousAttributesOnFailure() throws Exception {
+        _manager.setAttributesDeltaBackup( true );
+        _manager.startInternal( _memcachedMock );
+
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final String sessionId = session.getId();
+
+        session.access();
+        session.endAccess();
+        session.setAttribute( "foo", "bar" );
+        _manager.backupSession( sessionId, false, null ).get();
+
+        final int fooSlot = session.getAttributesManifest().get( "foo" ).getSlot();
+        final String fooKey = AttributesManifest.createAttributeKeyName( sessionId, fooSlot );
+        verify( _memcachedMock, times( 1 ) ).set( eq( fooKey ), anyInt(), any() );
+
+        @SuppressWarnings( "unchecked" )
+        final Future<Boolean> failingFuture = mock( Future.class );
+        when( failingFuture.get( anyInt(), any( TimeUnit.class ) ) ).thenThrow( new TimeoutException( "Simulated timeout." ) );
+        when( _memcachedMock.set( eq( sessionId ), anyInt(), any() ) ).thenReturn( failingFuture );
+
+        // we need some millis between last backup and next access (due to check in BackupSessionService)
+        Thread.sleep( 5L );
+
+        session.access();
+        session.endAccess();
+        session.setAttribute( "foo", "baz" );
+        final BackupResult result = _manager.backupSession( sessionId, false, null ).get();
+
+        Assert.assertEquals( result.getStatus(), BackupResultStatus.FAILURE );
+        verify( _memcachedMock, times( 1 ) ).set( eq( fooKey ), anyInt(), any() );
+        verify( _memcachedMock, never() ).delete( eq( fooKey ) );
+        Assert.assertEquals( session.getAttributesManifest().get( "foo" ).getSlot(), fooSlot );
+        verify( _memcachedMock, times( 1 ) ).set( eq( AttributesManifest.createAttributeKeyName( sessionId, fooSlot + 1 ) ), anyInt(), any() );
+    }
+
+    /**
+     * Test that a session exceeding the session chunk size is stored in chunks, that it can be
+     * loaded again and that stale chunks are deleted when the session shrinks.
+     */
+    @Test
+    public void testChunkedSessionBackup() throws Exception {
+        _manager.setSessionChunkSize( 1000 );
+        _manager.startInternal( _memcachedMock );
+
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final String sessionId = session.getId();
+
+        final StringBuilder sb = new StringBuilder();
+        final Random random = new Random( 42 );
+        for ( int i = 0; i < 3500; i++ ) {
+            sb.append( (char) ( 'a' + random.nextInt( 26 ) ) );
+        }
+        session.access();
+        session.endAccess();
+        session.setAttribute( "big", sb.toString() );
+        _manager.backupSession( sessionId, false, null ).get();
+
+        Assert.assertEquals( session.getNumChunks(), 4 );
+        final Map<String, Object> bulkResult = new HashMap<String, Object>();
+        for ( int i = 0; i < 4; i++ ) {
+            final String key = SessionChunks.createChunkKeyName( sessionId, i );
+            final ArgumentCaptor<Object> chunk = ArgumentCaptor.forClass( Object.class );
+            verify( _memcachedMock, times( 1 ) ).set( eq( key ), anyInt(), chunk.capture() );
+            Assert.assertTrue( ( (byte[]) chunk.getValue() ).length <= 1000 );
+            bulkResult.put( key, chunk.getValue() );
+        }
+        verify( _memcachedMock, never() ).set( eq( SessionChunks.createChunkKeyName( sessionId, 4 ) ), anyInt(), any() );
+        final ArgumentCaptor<Object> manifest = ArgumentCaptor.forClass( Object.class );
+        verify( _memcachedMock, times( 1 ) ).set( eq( sessionId ), anyInt(), manifest.capture() );
+        Assert.assertNotNull( SessionChunks.decode( (byte[]) manifest.getValue() ) );
+
+        // now load the session from the captured data
+        when( _memcachedMock.get( eq( sessionId ), any( Transcoder.class ) ) ).thenReturn( manifest.getValue() );
+        when( _memcachedMock.getBulk( any( Collection.class ) ) ).thenReturn( bulkResult );
+        session.setNote( MemcachedBackupSessionManager.NODE_FAILURE, Boolean.TRUE );
+        _manager.remove( session );
+
+        final MemcachedBackupSession loaded = (MemcachedBackupSession) _manager.findSession( sessionId );
+        Assert.assertNotNull( loaded );
+        Assert.assertEquals( loaded.getAttribute( "big" ), sb.toString() );
+        Assert.assertEquals( loaded.getNumChunks(), 4 );
+
+        // we need some millis between last backup and next access (due to check in BackupSessionService)
+        Thread.sleep( 5L );
+
+        loaded.access();
+        loaded.endAccess();
+        loaded.setAttribute( "big", "small" );
+        _manager.backupSession( sessionId, false, null ).get();
+
+        Assert.assertEquals( loaded.getNumChunks(), 0 );
+        for ( int i = 0; i < 4; i++ ) {
+            verify( _memcachedMock, times( 1 ) ).delete( eq( SessionChunks.createChunkKeyName( sessionId, i ) ) );
+        }
+        verify( _memcachedMock, times( 2 ) ).set( eq( sessionId ), anyInt(), manifest.capture() );
+        Assert.assertNull( SessionChunks.decode( (byte[]) manifest.getValue() ) );
+    }
+
+    /**
+     * Test that with a backup coalescing window backups of the same session are merged
+     * into a single backup that stores the latest session state.
+     */
+    @Test
+    public void testBackupCoalescing() throws Exception {
+        _manager.setSessionBackupAsync( true );
+        _manager.setBackupCoalescingWindow( 200 );
+        _manager.startInternal( _memcachedMock );
+
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final String sessionId = session.getId();
+
+        session.access();
+        session.endAccess();
+        session.setAttribute( "counter", 1 );
+        final Future<BackupResult> first = _manager.backupSession( sessionId, false, null );
+
+        Thread.sleep( 5L );
+
+        session.access();
+        session.endAccess();
+        session.setAttribute( "counter", 2 );
+        final Future<BackupResult> second = _manager.backupSession( sessionId, false, null );
+
+        Assert.assertSame( second, first );
+        Assert.assertEquals( first.get().getStatus(), BackupResultStatus.SUCCESS );
+        Assert.assertEquals( _manager.getMsmStatNumCoalescedBackups(), 1 );
+
+        final ArgumentCaptor<Object> sessionData = ArgumentCaptor.forClass( Object.class );
+        verify( _memcachedMock, times( 1 ) ).set( eq( sessionId ), anyInt(), sessionData.capture() );
+        final MemcachedBackupSession stored = _manager._transcoderService.deserialize( (byte[]) sessionData.getValue(), null, _manager );
+        Assert.assertEquals( stored.getAttribute( "counter" ), 2 );
+
+        Thread.sleep( 5L );
+
+        session.access();
+        session.endAccess();
+        session.setAttribute( "counter", 3 );
+        final Future<BackupResult> third = _manager.backupSession( sessionId, false, null );
+        Assert.assertNotSame( third, first );
+        third.get();
+        verify( _memcachedMock, times( 2 ) ).set( eq( sessionId ), anyInt(), any() );
+    }
+
+    /**
+     * Test that backups exceeding the max number of queued backups are handled
+     * according to the overload policy.
+     */
+    @Test
+    public void testBackupOverloadPolicyDropOldest() throws Exception {
+        _manager.setSessionBackupAsync( true );
+        _manager.setBackupThreadCount( 1 );
+        _manager.setMaxQueuedBackups( 1 );
+        _manager.setBackupOverloadPolicy( "dropOldest" );
+        _manager.startInternal( _memcachedMock );
+
+        final MemcachedBackupSession session1 = (MemcachedBackupSession) _manager.createSession( null );
+        final MemcachedBackupSession session2 = (MemcachedBackupSession) _manager.createSession( null );
+        final MemcachedBackupSession session3 = (MemcachedBackupSession) _manager.createSession( null );
+
+        // block the only backup thread with the backup of session1
+        final CountDownLatch storing = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final Future<Boolean> futureMock = _memcachedMock.set( "foo", 0, null );
+        when( _memcachedMock.set( eq( session1.getId() ), anyInt(), any() ) ).thenAnswer( new Answer<Future<Boolean>>() {
+            @Override
+            public Future<Boolean> answer( final InvocationOnMock invocation ) throws Throwable {
+                storing.countDown();
+                release.await();
+                return futureMock;
+            }
+        } );
+        final Future<BackupResult> result1 = backup( session1 );
+        storing.await();
+
+        final Future<BackupResult> result2 = backup( session2 );
+        Assert.assertEquals( _manager.getMsmStatBackupQueueSize(), 1 );
+        Assert.assertEquals( _manager.getMsmStatNumRejectedBackups(), 0 );
+
+        // the queued backup of session2 is replaced by the new one
+        final Future<BackupResult> result2b = backup( session2 );
+        Assert.assertTrue( result2.isCancelled() );
+        Assert.assertEquals( _manager.getMsmStatBackupQueueSize(), 1 );
+        Assert.assertEquals( _manager.getMsmStatNumRejectedBackups(), 1 );
+
+        // the oldest queued backup (of session2) is dropped in favor of session3
+        final Future<BackupResult> result3 = backup( session3 );
+        Assert.assertTrue( result2b.isCancelled() );
+        Assert.assertEquals( _manager.getMsmStatBackupQueueSize(), 1 );
+        Assert.assertEquals( _manager.getMsmStatNumRejectedBackups(), 2 );
+
+        release.countDown();
+        Assert.assertEquals( result1.get().getStatus(), BackupResultStatus.SUCCESS );
+        Assert.assertEquals( result3.get().getStatus(), BackupResultStatus.SUCCESS );
+        verify( _memcachedMock, never() ).set( eq( session2.getId() ), anyInt(), any() );
+        verify( _memcachedMock, times( 1 ) ).set( eq( session3.getId() ), anyInt(), any() );
+    }
+
+    /**
+     * Test that the dropOldest overload policy also drops queued backups for non-sticky
+     * sessions, where each request works with its own session instance.
+     */
+    @Test
+    public void testBackupOverloadPolicyDropOldestNonSticky() throws Exception {
+        _manager.setStickyInternal( false );
+        _manager.setLockingMode( LockingMode.NONE, null, false );
+        _manager.setSessionBackupAsync( true );
+        _manager.setBackupThreadCount( 1 );
+        _manager.setMaxQueuedBackups( 1 );
+        _manager.setBackupOverloadPolicy( "dropOldest" );
+        _manager.startInternal( _memcachedMock );
+
+        final MemcachedBackupSession session1 = (MemcachedBackupSession) _manager.createSession( null );
+        final MemcachedBackupSession session2 = (MemcachedBackupSession) _manager.createSession( null );
+
+        // block the only backup thread with the backup of session1
+        final CountDownLatch storing = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final Future<Boolean> futureMock = _memcachedMock.set( "foo", 0, null );
+        when( _memcachedMock.set( eq( session1.getId() ), anyInt(), any() ) ).thenAnswer( new Answer<Future<Boolean>>() {
+            @Override
+            public Future<Boolean> answer( final InvocationOnMock invocation ) throws Throwable {
+                storing.countDown();
+                release.await();
+                return futureMock;
+            }
+        } );
+        final Future<BackupResult> result1 = backup( session1 );
+        storing.await();
+
+        final Future<BackupResult> result2 = backup( session2 );
+        Assert.assertEquals( _manager.getMsmStatBackupQueueSize(), 1 );
+        Assert.assertEquals( _manager.getMsmStatNumRejectedBackups(), 0 );
+
+        // the next request for session2 works with a new session instance
+        final MemcachedBackupSession session2b = (MemcachedBackupSession) _manager.createEmptySession();
+        session2b.setValid( true );
+        session2b.setCreationTime( System.currentTimeMillis() );
+        session2b.setMaxInactiveInterval( session2.getMaxInactiveInterval() );
+        session2b.setId( session2.getId() );
+        Assert.assertNotSame( session2b, session2 );
+
+        final Future<BackupResult> result2b = backup( session2b );
+        Assert.assertTrue( result2.isCancelled() );
+        Assert.assertEquals( _manager.getMsmStatBackupQueueSize(), 1 );
+        Assert.assertEquals( _manager.getMsmStatNumRejectedBackups(), 1 );
+
+        release.countDown();
+        Assert.assertEquals( result1.get().getStatus(), BackupResultStatus.SUCCESS );
+        Assert.assertEquals( result2b.get().getStatus(), BackupResultStatus.SUCCESS );
+        verify( _memcachedMock, times( 1 ) ).set( eq( session2.getId() ), anyInt(), any() );
+    }
+
+    /**
+     * Test that the secondary backup of a non-sticky session that's too big for a single item is stored
+     * in chunks, and that it's joined when the session is loaded from the backup.
+     */
+    @SuppressWarnings( "unchecked" )
+    @Test
+    public void testChunkedSecondarySessionBackup() throws Exception {
+        _manager.setMemcachedNodes( "n1:127.0.0.1:11211 n2:127.0.0.1:11212" );
+        _manager.setSticky( false );
+        _manager.setLockingMode( "none" );
+        _manager.setSessionChunkSize( 1000 );
+        _manager.startInternal( _memcachedMock );
+
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final String sessionId = session.getId();
+
+        final StringBuilder sb = new StringBuilder();
+        final Random random = new Random( 42 );
+        for ( int i = 0; i < 3500; i++ ) {
+            sb.append( (char) ( 'a' + random.nextInt( 26 ) ) );
+        }
+        session.access();
+        session.endAccess();
+        session.setAttribute( "big", sb.toString() );
+        _manager.backupSession( sessionId, false, null ).get();
+
+        // wait for the secondary backup
+        final ExecutorService executor = _manager.getLockingStrategy().getExecutorService();
+        executor.shutdown();
+        Assert.assertTrue( executor.awaitTermination( 1, TimeUnit.SECONDS ) );
+
+        final SessionIdFormat fmt = new SessionIdFormat();
+        final Map<String, Object> bulkResult = new HashMap<String, Object>();
+        for ( int i = 0; i < 4; i++ ) {
+            final String key = fmt.createBackupKey( SessionChunks.createChunkKeyName( sessionId, i ) );
+            final ArgumentCaptor<Object> chunk = ArgumentCaptor.forClass( Object.class );
+            verify( _memcachedMock, times( 1 ) ).set( eq( key ), anyInt(), chunk.capture() );
+            Assert.assertTrue( ( (byte[]) chunk.getValue() ).length <= 1000 );
+            bulkResult.put( key, chunk.getValue() );
+        }
+        final ArgumentCaptor<Object> manifest = ArgumentCaptor.forClass( Object.class );
+        verify( _memcachedMock, times( 1 ) ).set( eq( fmt.createBackupKey( sessionId ) ), anyInt(), manifest.capture() );
+        Assert.assertNotNull( SessionChunks.decode( (byte[]) manifest.getValue() ) );
+        final String validityKey = fmt.createBackupKey( createValidityInfoKeyName( sessionId ) );
+        final ArgumentCaptor<Object> validity = ArgumentCaptor.forClass( Object.class );
+        verify( _memcachedMock, times( 1 ) ).set( eq( validityKey ), anyInt(), validity.capture() );
+
+        // now load the session from the backup, as the primary node is not available
+        when( _memcachedMock.get( validityKey ) ).thenReturn( validity.getValue() );
+        when( _memcachedMock.get( fmt.createBackupKey( sessionId ) ) ).thenReturn( manifest.getValue() );
+        when( _memcachedMock.getBulk( any( Collection.class ) ) ).thenReturn( bulkResult );
+        _manager.getNodeIdService().setNodeAvailable( fmt.extractMemcachedId( sessionId ), false );
+
+        final String newSessionId = _manager.changeSessionIdOnMemcachedFailover( sessionId );
+        Assert.assertNotNull( newSessionId );
+        final MemcachedBackupSession loaded = (MemcachedBackupSession) _manager.findSession( newSessionId );
+        Assert.assertNotNull( loaded );
+        Assert.assertEquals( loaded.getAttribute( "big" ), sb.toString() );
+    }
+
+    /**
+     * Test that the lock of a non-sticky session is released when the session is removed
+     * (e.g. invalidated) during the request, as it's not backed up then.
+     */
+    @Test
+    public void testLockIsReleasedWhenNonStickySessionIsRemoved() throws Exception {
+        _manager.setStickyInternal( false );
+        _manager.setLockingMode( LockingMode.ALL, null, false );
+
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final LocalSessionLocks locks = _manager.getLocalSessionLocks();
+        Assert.assertFalse( locks.acquire( session.getIdInternal(), 100 ) );
+        session.setLockStatus( LockStatus.LOCKED );
+
+        session.invalidate();
+        Assert.assertEquals( locks.size(), 0 );
+        Assert.assertFalse( session.isLocked() );
+    }
+
+    /**
+     * Test that with the session near cache the lock is released only after the validity info
+     * carrying the new version of the session is stored. Otherwise another tomcat could get the
+     * lock and read the old version from the validity info.
+     */
+    @Test
+    public void testLockIsReleasedAfterValidityInfoIsStoredWithSessionNearCache() throws Exception {
+        _manager.setSticky( false );
+        _manager.setLockingMode( "all" );
+        _manager.setSessionNearCacheSize( 10 );
+        _manager.startInternal( _memcachedMock );
+        Assert.assertNotNull( _manager.getSessionNearCache() );
+
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final String sessionId = session.getIdInternal();
+        final String lockName = new SessionIdFormat().createLockName( sessionId );
+        final String validityKey = createValidityInfoKeyName( sessionId );
+
+        // the other tomcat gets the lock when it's deleted and then reads the validity info
+        final List<String> setKeys = new ArrayList<String>();
+        final boolean[] validityStoredWhenLockReleased = new boolean[1];
+        @SuppressWarnings( "unchecked" )
+        final Future<Boolean> futureMock = mock( Future.class );
+        when( futureMock.get( anyInt(), any( TimeUnit.class ) ) ).thenReturn( Boolean.TRUE );
+        when( _memcachedMock.set( any( String.class ), anyInt(), any() ) ).thenAnswer( new Answer<Future<Boolean>>() {
+            @Override
+            public Future<Boolean> answer( final InvocationOnMock invocation ) throws Throwable {
+                setKeys.add( (String) invocation.getArguments()[0] );
+                return futureMock;
+            }
+        } );
+        when( _memcachedMock.delete( lockName ) ).thenAnswer( new Answer<Future<Boolean>>() {
+            @Override
+            public Future<Boolean> answer( final InvocationOnMock invocation ) throws Throwable {
+                validityStoredWhenLockReleased[0] = setKeys.contains( validityKey );
+                return futureMock;
+            }
+        } );
+
+        final LocalSessionLocks locks = _manager.getLocalSessionLocks();
+        Assert.assertFalse( locks.acquire( sessionId, 100 ) );
+        session.setLockStatus( LockStatus.LOCKED );
+
+        Assert.assertEquals( backup( session ).get().getStatus(), BackupResultStatus.SUCCESS );
+
+        verify( _memcachedMock, times( 1 ) ).delete( lockName );
+        Assert.assertTrue( validityStoredWhenLockReleased[0], "The lock was released before the validity info was stored." );
+        Assert.assertTrue( session.getVersion() != 0 );
+        Assert.assertEquals( locks.size(), 0 );
+        Assert.assertFalse( session.isLocked() );
+    }
+
+    /**
+     * Test that concurrent requests for a non-sticky session with locking don't share the load
+     * of the session: each request must get the lock, so the second request has to wait until
+     * the first one released the lock.
+     */
+    @SuppressWarnings( "unchecked" )
+    @Test
+    public void testConcurrentLoadsAreNotSharedWithLockingModeAll() throws Exception {
+        _manager.setSticky( false );
+        _manager.setLockingMode( "all" );
+        _manager.startInternal( _memcachedMock );
+
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final String sessionId = session.getIdInternal();
+        _manager.remove( session );
+
+        final Map<String, Object> items = new HashMap<String, Object>();
+        items.put( createValidityInfoKeyName( sessionId ), encode( session.getMaxInactiveInterval(),
+                session.getLastAccessedTimeInternal(), session.getThisAccessedTimeInternal() ) );
+        items.put( sessionId, session );
+
+        final Future<Boolean> lockResult = mock( Future.class );
+        when( lockResult.get() ).thenReturn( Boolean.TRUE );
+        when( _memcachedMock.add( eq( new SessionIdFormat().createLockName( sessionId ) ), anyInt(), any() ) ).thenReturn( lockResult );
+
+        // the first load (together with the lock) blocks until it's released by the test
+        final CountDownLatch loadStarted = new CountDownLatch( 1 );
+        final CountDownLatch loadReleased = new CountDownLatch( 1 );
+        final Future<Map<String, Object>> bulkResult = mock( Future.class );
+        when( bulkResult.get( anyLong(), any( TimeUnit.class ) ) ).thenAnswer( new Answer<Map<String, Object>>() {
+            @Override
+            public Map<String, Object> answer( final InvocationOnMock invocation ) throws Throwable {
+                loadStarted.countDown();
+                loadReleased.await();
+                return items;
+            }
+        } );
+        when( _memcachedMock.asyncGetBulk( any( Collection.class ), any( Transcoder.class ) ) ).thenReturn( (Future) bulkResult );
+        when( _memcachedMock.getBulk( any( Collection.class ), any( Transcoder.class ) ) ).thenReturn( (Map) items );
+
+        final ExecutorService executor = Executors.newFixedThreadPool( 2 );
+        try {
+            final Future<MemcachedBackupSession> request1 = executor.submit( findSessionInRequest( sessionId ) );
+            Assert.assertTrue( loadStarted.await( 1, TimeUnit.SECONDS ) );
+            final Future<MemcachedBackupSession> request2 = executor.submit( findSessionInRequest( sessionId ) );
+            Thread.sleep( 100 );
+
+            loadReleased.countDown();
+            final MemcachedBackupSession session1 = request1.get( 1, TimeUnit.SECONDS );
+            Assert.assertNotNull( session1 );
+            Assert.assertTrue( session1.isLocked() );
+
+            try {
+                request2.get( 200, TimeUnit.MILLISECONDS );
+                Assert.fail( "The second request got the session without the lock." );
+            } catch ( final TimeoutException e ) {
+                // expected, the lock is still held by the first request
+            }
+
+            _manager.getLockingStrategy().releaseLock( sessionId );
+            final MemcachedBackupSession session2 = request2.get( 1, TimeUnit.SECONDS );
+            Assert.assertNotNull( session2 );
+            Assert.assertTrue( session2.isLocked() );
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Callable<MemcachedBackupSession> findSessionInRequest( final String sessionId ) {
+        return new Callable<MemcachedBackupSession>() {
+            @Override
+            public MemcachedBackupSession call() throws Exception {
+                _manager.getLockingStrategy().onRequestStart( mock( Request.class ) );
+                try {
+                    return (MemcachedBackupSession) _manager.findSession( sessionId );
+                } finally {
+                    _manager.getLockingStrategy().onRequestFinished();
+                }
+            }
+        };
+    }
+
+    /**
+     * Test that the previous locking strategy is shut down when the locking mode is changed.
+     */
+    @Test
+    public void testPreviousLockingStrategyIsShutDown() throws Exception {
+        _manager.setStickyInternal( false );
+        _manager.setLockingMode( LockingMode.AUTO, null, false );
+        final LockingStrategy previous = _manager.getLockingStrategy();
+        _manager.setLockingMode( LockingMode.ALL, null, false );
+        Assert.assertTrue( previous.getExecutorService().isShutdown() );
+        Assert.assertFalse( _manager.getLockingStrategy().getExecutorService().isShutdown() );
+    }
+
+    private Future<BackupResult> backup( final MemcachedBackupSession session ) {
+        session.access();
+        session.endAccess();
+        session.setAttribute( "foo", "bar" );
+        return _manager.backupSession( session.getId(), false, null );
     }
 
     /**
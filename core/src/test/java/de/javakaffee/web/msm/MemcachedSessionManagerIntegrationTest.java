@@ -43,10 +43,14 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import com.thimbleware.jmemcached.Cache;
+import com.thimbleware.jmemcached.LocalCacheElement;
 import com.thimbleware.jmemcached.MemCacheDaemon;
 
+import de.javakaffee.web.msm.SessionTrackerValve.SessionBackupService.BackupResultStatus;
 import de.javakaffee.web.msm.integration.TestUtils;
 import de.javakaffee.web.msm.integration.TestUtils.SessionAffinityMode;
+import de.javakaffee.web.msm.integration.TouchCapableMemcachedClient;
 
 /**
  * Integration test testing basic session manager functionality.
@@ -291,6 +295,82 @@ public class MemcachedSessionManagerIntegrationTest {
 
     }
 
+    /**
+     * Test that the expiration of a session is updated via touch if the memcached client
+     * supports this, and that the session is stored again if it's missing in memcached.
+     */
+    @SuppressWarnings( "unchecked" )
+    @Test( enabled = true )
+    public void testUpdateExpirationWithTouch() throws Exception {
+        final InetSocketAddress address = new InetSocketAddress( "localhost", _memcachedPort );
+        final TouchCapableMemcachedClient touchClient = new TouchCapableMemcachedClient( (Cache<LocalCacheElement>) _daemon.getCache(),
+                new SuffixLocatorConnectionFactory( NodeIdList.create( _memcachedNodeId ), NodeIdResolver.node( _memcachedNodeId, address ).build(),
+                        new SessionIdFormat(), Statistics.create() ), Arrays.asList( address ) );
+        // Wait a little bit, so that the memcached client can connect
+        Thread.sleep( 100 );
+        final MemcachedBackupSessionManager manager = getManager( _tomcat1 );
+        manager.startInternal( touchClient );
+
+        final MemcachedBackupSession session = (MemcachedBackupSession) manager.createSession( null );
+        session.setMaxInactiveInterval( 2 );
+        session.access();
+        session.setAttribute( "foo", "bar" );
+        session.endAccess();
+        assertEquals( manager.backupSession( session.getId(), false, null ).get().getStatus(), BackupResultStatus.SUCCESS );
+
+        final int setCmds = _daemon.getCache().getSetCmds();
+        Thread.sleep( 10 );
+        session.access();
+        session.endAccess();
+        manager.updateExpirationInMemcached();
+        assertTrue( touchClient.getTouches() > 0 );
+        assertEquals( _daemon.getCache().getSetCmds(), setCmds, "The session should not be stored again." );
+        assertNotNull( _memcached.get( session.getId() ) );
+
+        _memcached.delete( session.getId() ).get();
+        Thread.sleep( 10 );
+        session.access();
+        session.endAccess();
+        manager.updateExpirationInMemcached();
+        assertTrue( _daemon.getCache().getSetCmds() > setCmds, "The session should have been stored again." );
+        assertNotNull( _memcached.get( session.getId() ) );
+    }
+
+    /**
+     * Test that the expiration of a session that never expired before is updated again
+     * after it got a positive maxInactiveInterval.
+     */
+    @SuppressWarnings( "unchecked" )
+    @Test( enabled = true )
+    public void testUpdateExpirationAfterMaxInactiveIntervalGetsPositive() throws Exception {
+        final InetSocketAddress address = new InetSocketAddress( "localhost", _memcachedPort );
+        final TouchCapableMemcachedClient touchClient = new TouchCapableMemcachedClient( (Cache<LocalCacheElement>) _daemon.getCache(),
+                new SuffixLocatorConnectionFactory( NodeIdList.create( _memcachedNodeId ), NodeIdResolver.node( _memcachedNodeId, address ).build(),
+                        new SessionIdFormat(), Statistics.create() ), Arrays.asList( address ) );
+        // Wait a little bit, so that the memcached client can connect
+        Thread.sleep( 100 );
+        final MemcachedBackupSessionManager manager = getManager( _tomcat1 );
+        manager.startInternal( touchClient );
+
+        final MemcachedBackupSession session = (MemcachedBackupSession) manager.createSession( null );
+        session.setMaxInactiveInterval( -1 );
+        session.access();
+        session.setAttribute( "foo", "bar" );
+        session.endAccess();
+        assertEquals( manager.backupSession( session.getId(), false, null ).get().getStatus(), BackupResultStatus.SUCCESS );
+
+        // the session never expires, so it's not scheduled again
+        manager.updateExpirationInMemcached();
+        assertEquals( touchClient.getTouches(), 0 );
+
+        session.setMaxInactiveInterval( 2 );
+        Thread.sleep( 10 );
+        session.access();
+        session.endAccess();
+        manager.updateExpirationInMemcached();
+        assertTrue( touchClient.getTouches() > 0, "The expiration should have been updated." );
+    }
+
     /**
      * Test that a session that has been serialized with the old serialization
      * format (the complete session was serialized by one serialization strategy)
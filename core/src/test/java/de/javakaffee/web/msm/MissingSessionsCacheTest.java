@@ -0,0 +1,75 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link MissingSessionsCache}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class MissingSessionsCacheTest {
+
+    @DataProvider
+    public Object[][] bloomFilterProvider() {
+        return new Object[][] {
+                { false },
+                { true }
+        };
+    }
+
+    @Test( dataProvider = "bloomFilterProvider" )
+    public void testContainsAndStatistics( final boolean bloomFilter ) {
+        final Statistics statistics = Statistics.create();
+        final MissingSessionsCache cut = new MissingSessionsCache( 100, 10000, bloomFilter, statistics );
+        assertFalse( cut.contains( "foo" ) );
+        cut.put( "foo" );
+        assertTrue( cut.contains( "foo" ) );
+        assertFalse( cut.contains( "bar" ) );
+        assertEquals( statistics.getMissingSessionsCacheHits(), 1 );
+        assertEquals( statistics.getMissingSessionsCacheMisses(), 2 );
+    }
+
+    @Test( dataProvider = "bloomFilterProvider" )
+    public void testEntriesExpire( final boolean bloomFilter ) throws InterruptedException {
+        final MissingSessionsCache cut = new MissingSessionsCache( 100, 50, bloomFilter, Statistics.create() );
+        cut.put( "foo" );
+        assertTrue( cut.contains( "foo" ) );
+        Thread.sleep( 100 );
+        assertFalse( cut.contains( "foo" ) );
+        cut.put( "foo" );
+        assertTrue( cut.contains( "foo" ) );
+    }
+
+    @Test( dataProvider = "bloomFilterProvider" )
+    public void testSizeIsBounded( final boolean bloomFilter ) {
+        final MissingSessionsCache cut = new MissingSessionsCache( 64, 10000, bloomFilter, Statistics.create() );
+        for ( int i = 0; i < 1000; i++ ) {
+            cut.put( "session-" + i );
+        }
+        assertTrue( cut.size() <= 64, "Expected at most 64 entries, but got " + cut.size() );
+        assertTrue( cut.contains( "session-999" ) );
+        assertFalse( cut.contains( "session-0" ) );
+    }
+
+}
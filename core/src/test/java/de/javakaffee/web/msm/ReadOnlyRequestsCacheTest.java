@@ -17,9 +17,11 @@
 package de.javakaffee.web.msm;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 import org.testng.annotations.Test;
 
@@ -66,6 +68,136 @@ public class ReadOnlyRequestsCacheTest {
 
     }
 
+    @Test
+    public void testRequestsAreClassifiedByNormalizedKey() {
+        final ReadOnlyRequestsCache cut = new ReadOnlyRequestsCache(
+                new DefaultRequestKeyNormalizer( Arrays.asList( "id" ), true, null ), 1, 1 );
+
+        cut.readOnlyRequest( "/product?id=1" );
+        assertTrue( cut.isReadOnlyRequest( "/product?id=2" ) );
+        assertEquals( cut.getReadOnlyRequests(), Arrays.asList( "/product" ) );
+
+        cut.readOnlyRequest( "/order/1" );
+        assertTrue( cut.isReadOnlyRequest( "/order/2" ) );
+        cut.modifyingRequest( "/order/3" );
+        assertFalse( cut.isReadOnlyRequest( "/order/1" ) );
+    }
+
+    @Test
+    public void testReadOnlyRequestRequiresMinHits() {
+        final ReadOnlyRequestsCache cut = new ReadOnlyRequestsCache( new DefaultRequestKeyNormalizer(), 3, 1 );
+
+        cut.readOnlyRequest( "foo" );
+        cut.readOnlyRequest( "foo" );
+        assertFalse( cut.isReadOnlyRequest( "foo" ) );
+        cut.readOnlyRequest( "foo" );
+        assertTrue( cut.isReadOnlyRequest( "foo" ) );
+    }
+
+    @Test
+    public void testReadOnlyRequestRequiresMinConfidence() {
+        final ReadOnlyRequestsCache cut = new ReadOnlyRequestsCache( new DefaultRequestKeyNormalizer(), 1, 0.9 );
+
+        // a modifying request doesn't blacklist the request forever
+        cut.modifyingRequest( "foo" );
+        assertTrue( cut.readOnlyRequest( "foo" ) );
+        assertFalse( cut.isReadOnlyRequest( "foo" ) );
+        for ( int i = 0; i < 8; i++ ) {
+            cut.readOnlyRequest( "foo" );
+        }
+        // 9 of 10 requests were readonly
+        assertTrue( cut.isReadOnlyRequest( "foo" ) );
+        cut.modifyingRequest( "foo" );
+        assertFalse( cut.isReadOnlyRequest( "foo" ) );
+    }
+
+    @Test( expectedExceptions = IllegalArgumentException.class )
+    public void testInvalidMinConfidence() {
+        new ReadOnlyRequestsCache( new DefaultRequestKeyNormalizer(), 1, 0 );
+    }
+
+    @Test
+    public void testMergeSnapshot() {
+        final ReadOnlyRequestsCache other = new ReadOnlyRequestsCache();
+        other.readOnlyRequest( "foo" );
+        other.readOnlyRequest( "foo" );
+        other.readOnlyRequest( "bar" );
+        other.modifyingRequest( "baz" );
+
+        final ReadOnlyRequestsCache cut = new ReadOnlyRequestsCache();
+        cut.readOnlyRequest( "baz" );
+        cut.modifyingRequest( "bar" );
+        cut.merge( other.toSnapshot() );
+
+        readOnlyRequestsShouldContain( cut, "foo", true );
+        // locally known as modifying
+        readOnlyRequestsShouldContain( cut, "bar", false );
+        // modifying according to the snapshot
+        readOnlyRequestsShouldContain( cut, "baz", false );
+
+        // merging again doesn't change the counts
+        cut.readOnlyRequest( "qux" );
+        cut.merge( other.toSnapshot() );
+        assertEquals( cut.getReadOnlyRequestsByFrequency(), Arrays.asList( "qux", "foo" ) );
+    }
+
+    @Test
+    public void testMergeIgnoresInvalidLines() {
+        final ReadOnlyRequestsCache cut = new ReadOnlyRequestsCache();
+        cut.merge( null );
+        final long now = System.currentTimeMillis();
+        cut.merge( "R\t1\t" + now + "\t/valid\nR\tx\t" + now + "\t/invalidcount\nR\t1\tx\t/invalidtime\nR\t1\t/notime\n"
+                + "X\t1\t" + now + "\t/invalidtype\n/nofields\n\n" );
+        assertEquals( cut.getReadOnlyRequests(), Arrays.asList( "/valid" ) );
+    }
+
+    @Test
+    public void testMergeKeepsConfidence() {
+        final ReadOnlyRequestsCache other = new ReadOnlyRequestsCache( new DefaultRequestKeyNormalizer(), 1, 0.6 );
+        other.readOnlyRequest( "foo" );
+        other.readOnlyRequest( "foo" );
+        other.modifyingRequest( "foo" );
+
+        final ReadOnlyRequestsCache cut = new ReadOnlyRequestsCache( new DefaultRequestKeyNormalizer(), 1, 0.6 );
+        cut.modifyingRequest( "foo" );
+        cut.merge( other.toSnapshot() );
+        // 2 readonly and 1 modifying
+        assertTrue( cut.isReadOnlyRequest( "foo" ) );
+        cut.modifyingRequest( "foo" );
+        assertFalse( cut.isReadOnlyRequest( "foo" ) );
+    }
+
+    @Test
+    public void testMergeKeepsInsertionTime() {
+        final long sevenHoursAgo = System.currentTimeMillis() - TimeUnit.HOURS.toMillis( 7 );
+        final long oneHourAgo = System.currentTimeMillis() - TimeUnit.HOURS.toMillis( 1 );
+        final ReadOnlyRequestsCache cut = new ReadOnlyRequestsCache();
+        cut.merge( "R\t1\t" + sevenHoursAgo + "\t/expired\nR\t1\t" + oneHourAgo + "\t/valid\n" );
+        assertEquals( cut.getReadOnlyRequests(), Arrays.asList( "/valid" ) );
+
+        // the merged request is exported with its original insertion time
+        assertEquals( cut.toSnapshot(), "R\t1\t" + oneHourAgo + "\t/valid\n" );
+    }
+
+    @Test
+    public void testSnapshotIsLimitedInBytes() {
+        final ReadOnlyRequestsCache cut = new ReadOnlyRequestsCache();
+        for ( int i = 0; i < 100; i++ ) {
+            cut.modifyingRequest( "/modifying" + i );
+            cut.readOnlyRequest( "/readonly" + i );
+        }
+        final String full = cut.toSnapshot();
+        final int maxBytes = full.length() / 4;
+        final String snapshot = cut.toSnapshot( maxBytes );
+        assertTrue( snapshot.length() <= maxBytes );
+
+        // readonly requests take precedence, the most recently accessed ones
+        final ReadOnlyRequestsCache other = new ReadOnlyRequestsCache();
+        other.merge( snapshot );
+        assertTrue( other.isReadOnlyRequest( "/readonly99" ) );
+        assertFalse( other.isReadOnlyRequest( "/readonly0" ) );
+    }
+
     private void readOnlyRequestsShouldContain( final ReadOnlyRequestsCache cut, final String key, final boolean shouldBeContained ) {
         assertEquals( cut.isReadOnlyRequest( key ), shouldBeContained );
         assertEquals( cut.getReadOnlyRequests().contains( key ), shouldBeContained );
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link SessionValidityHeaders}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SessionValidityHeadersTest {
+
+    @Test
+    public void testDecodePrependedHeaders() {
+        final byte[] data = { 0, 1, 2, 3, 4 };
+        assertNull( SessionValidityHeaders.decode( data ) );
+
+        final byte[] item = concat( SessionValidityHeaders.encode( 3, 4 ), SessionValidityHeaders.encode( 1, 2 ), data );
+        final SessionValidityHeaders headers = SessionValidityHeaders.decode( item );
+        assertNotNull( headers );
+        assertEquals( headers.getCount(), 2 );
+        assertEquals( headers.getLastAccessedTime(), 3 );
+        assertEquals( headers.getThisAccessedTime(), 4 );
+        assertEquals( headers.strip( item ), data );
+    }
+
+    @Test
+    public void testIsRewriteRequired() {
+        final long now = System.currentTimeMillis();
+        assertFalse( SessionValidityHeaders.isRewriteRequired( null, now, 60 ) );
+        assertTrue( SessionValidityHeaders.isRewriteRequired( null, now - 61000, 60 ) );
+        assertFalse( SessionValidityHeaders.isRewriteRequired( null, now - 61000, 0 ) );
+
+        byte[] item = { 0, 1 };
+        for ( int i = 0; i < SessionValidityHeaders.MAX_HEADERS; i++ ) {
+            item = concat( SessionValidityHeaders.encode( now, now ), item );
+        }
+        assertTrue( SessionValidityHeaders.isRewriteRequired( SessionValidityHeaders.decode( item ), now, 60 ) );
+    }
+
+    private static byte[] concat( final byte[] ... arrays ) {
+        int length = 0;
+        for ( final byte[] array : arrays ) {
+            length += array.length;
+        }
+        final byte[] result = new byte[length];
+        int offset = 0;
+        for ( final byte[] array : arrays ) {
+            System.arraycopy( array, 0, result, offset, array.length );
+            offset += array.length;
+        }
+        return result;
+    }
+
+}
@@ -34,6 +34,17 @@ public class SessionValidityInfoTest {
         assertEquals( decoded.getMaxInactiveInterval(), 23 );
         assertEquals( decoded.getLastAccessedTime(), 42 );
         assertEquals( decoded.getThisAccessedTime(), 4711 );
+        assertEquals( decoded.getVersion(), 0 );
+    }
+
+    @Test
+    public void testDecodeEncodedDataWithVersion() {
+        final byte[] encoded = SessionValidityInfo.encode( 23, 42, 4711, -1234567890123L );
+        final SessionValidityInfo decoded = SessionValidityInfo.decode( encoded );
+        assertEquals( decoded.getMaxInactiveInterval(), 23 );
+        assertEquals( decoded.getLastAccessedTime(), 42 );
+        assertEquals( decoded.getThisAccessedTime(), 4711 );
+        assertEquals( decoded.getVersion(), -1234567890123L );
     }
 
 }
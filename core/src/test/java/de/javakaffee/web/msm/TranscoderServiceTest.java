@@ -20,6 +20,9 @@ import static de.javakaffee.web.msm.integration.TestUtils.assertDeepEquals;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.Realm;
 import org.apache.catalina.authenticator.Constants;
@@ -32,6 +35,10 @@ import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import de.javakaffee.web.msm.Statistics.StatsType;
+import de.javakaffee.web.msm.TranscoderService.Compression;
+import de.javakaffee.web.msm.TranscoderService.SerializedAttributes;
+
 
 /**
  * Test the {@link TranscoderService}.
@@ -122,6 +129,144 @@ public class TranscoderServiceTest {
         Assert.assertEquals( value, deserialized.getAttribute( "foo" ) );
     }
 
+    @Test
+    public void testSerializeSessionFieldsIntoReservedSpace() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _manager ) );
+        session.setAttribute( "foo", "bar" );
+
+        final SerializedAttributes attributes = transcoderService.serializeAttributesWithHash( session, session.getAttributesInternal() );
+        session.setLastBackupTime( System.currentTimeMillis() );
+        final byte[] data = transcoderService.serialize( session, attributes );
+        Assert.assertEquals( data.length, TranscoderService.serializeSessionFields( session ).length + attributes.getLength() );
+
+        final MemcachedBackupSession deserialized = transcoderService.deserialize( data, _manager.getContainer().getRealm(), _manager );
+        assertSessionFields( session, deserialized );
+        Assert.assertEquals( deserialized.getAttribute( "foo" ), "bar" );
+        Assert.assertEquals( deserialized.getDataHash(), attributes.getHash() );
+    }
+
+    @Test
+    public void testSerializeSessionWithPrincipalChangedAfterAttributesSerialization() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _manager ) );
+        final Realm realm = _manager.getContainer().getRealm();
+        session.setAttribute( "foo", "bar" );
+
+        final SerializedAttributes attributes = transcoderService.serializeAttributesWithHash( session, session.getAttributesInternal() );
+        session.setAuthType( Constants.FORM_METHOD );
+        session.setPrincipal( new GenericPrincipal( realm, "foo", "bar" ) );
+        final byte[] data = transcoderService.serialize( session, attributes );
+
+        final MemcachedBackupSession deserialized = transcoderService.deserialize( data, realm, _manager );
+        assertSessionFields( session, deserialized );
+        Assert.assertEquals( deserialized.getAttribute( "foo" ), "bar" );
+    }
+
+    @Test
+    public void testSerializeSessionWithCompression() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < 1000; i++ ) {
+            sb.append( "value " ).append( i % 10 );
+        }
+        session.setAttribute( "foo", sb.toString() );
+        session.setLastBackupTime( System.currentTimeMillis() );
+
+        final TranscoderService uncompressing = new TranscoderService( new JavaSerializationTranscoder( _manager ) );
+        final byte[] uncompressed = uncompressing.serialize( session );
+
+        for ( final Compression compression : new Compression[] { Compression.DEFLATE, Compression.LZ4 } ) {
+            final Statistics statistics = Statistics.create();
+            final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _manager ),
+                    compression, 1024, statistics );
+            final byte[] data = transcoderService.serialize( session );
+            Assert.assertTrue( data.length < uncompressed.length / 2, compression + ": " + data.length + " of " + uncompressed.length );
+            Assert.assertEquals( statistics.getProbe( StatsType.COMPRESSION_RATIO ).getCount(), 1 );
+
+            /* compressed data must be read regardless of the configured compression, as well as uncompressed data
+             */
+            for ( final TranscoderService reader : new TranscoderService[] { transcoderService, uncompressing } ) {
+                final MemcachedBackupSession deserialized = reader.deserialize( data, _manager.getContainer().getRealm(), _manager );
+                assertSessionFields( session, deserialized );
+                Assert.assertEquals( deserialized.getAttribute( "foo" ), sb.toString() );
+                Assert.assertEquals( deserialized.getDataHash(),
+                        XXHash64.hash( uncompressing.serializeAttributes( session, session.getAttributesInternal() ) ) );
+            }
+            final MemcachedBackupSession deserialized = transcoderService.deserialize( uncompressed, _manager.getContainer().getRealm(), _manager );
+            Assert.assertEquals( deserialized.getAttribute( "foo" ), sb.toString() );
+        }
+    }
+
+    @Test
+    public void testSessionBelowCompressionThresholdIsNotCompressed() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        session.setAttribute( "foo", "bar" );
+        session.setLastBackupTime( System.currentTimeMillis() );
+
+        final byte[] uncompressed = new TranscoderService( new JavaSerializationTranscoder( _manager ) ).serialize( session );
+        final byte[] data = new TranscoderService( new JavaSerializationTranscoder( _manager ),
+                Compression.LZ4, TranscoderService.DEFAULT_COMPRESSION_THRESHOLD, Statistics.create() ).serialize( session );
+        Assert.assertEquals( data, uncompressed );
+    }
+
+    @Test
+    public void testLazyAttributesDeserialization() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        session.setAttribute( "foo", "bar" );
+        session.setAttribute( "baz", new ArrayList<String>( Arrays.asList( "a", "b" ) ) );
+        session.setLastBackupTime( System.currentTimeMillis() );
+
+        for ( final Compression compression : new Compression[] { Compression.NONE, Compression.LZ4 } ) {
+            final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _manager ),
+                    compression, 1, Statistics.create(), true );
+            final SerializedAttributes attributes = transcoderService.serializeAttributesWithHash( session, session.getAttributesInternal() );
+            final byte[] data = transcoderService.serialize( session, attributes );
+
+            final MemcachedBackupSession deserialized = transcoderService.deserialize( data, _manager.getContainer().getRealm(), _manager );
+            assertSessionFields( session, deserialized );
+            Assert.assertEquals( deserialized.getDataHash(), attributes.getHash() );
+            Assert.assertTrue( deserialized.getAttributesInternal().get( "foo" ) instanceof LazyAttribute );
+            Assert.assertEquals( deserialized.getAttribute( "foo" ), "bar" );
+            Assert.assertEquals( deserialized.getAttributesInternal().get( "foo" ), "bar" );
+            Assert.assertTrue( deserialized.getAttributesInternal().get( "baz" ) instanceof LazyAttribute );
+
+            // the attribute that was not accessed is stored as it was loaded
+            Assert.assertEquals( transcoderService.serializeAttributesWithHash( deserialized, deserialized.getAttributesInternal() ).getHash(),
+                    attributes.getHash() );
+
+            // indexed attributes are read without lazy deserialization, and lazy attributes are
+            // deserialized when the session is stored in another format
+            final TranscoderService eager = new TranscoderService( new JavaSerializationTranscoder( _manager ) );
+            Assert.assertEquals( eager.deserialize( data, _manager.getContainer().getRealm(), _manager ).getAttributesInternal(),
+                    session.getAttributesInternal() );
+            final byte[] eagerData = eager.serialize( deserialized );
+            Assert.assertEquals( eager.deserialize( eagerData, _manager.getContainer().getRealm(), _manager ).getAttribute( "baz" ),
+                    Arrays.asList( "a", "b" ) );
+        }
+    }
+
+    /**
+     * Session data with indexed attributes must not be mistaken for a {@link SessionChunks} manifest,
+     * which is identified by its length and version.
+     */
+    @Test
+    public void testIndexedAttributesAreNotMistakenForChunksManifest() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        session.setAttribute( "foo", "bar" );
+        session.setLastBackupTime( System.currentTimeMillis() );
+
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _manager ),
+                Compression.NONE, 1, Statistics.create(), true );
+        final byte[] data = transcoderService.serialize( session,
+                transcoderService.serializeAttributesWithHash( session, session.getAttributesInternal() ) );
+
+        // a payload with the length of a manifest
+        final byte[] payload = Arrays.copyOf( data, 18 );
+        Assert.assertNull( SessionChunks.decode( payload ) );
+        Assert.assertNotNull( SessionChunks.decode( SessionChunks.createManifest( data, 2 ) ) );
+    }
+
     private void assertSessionFields( final MemcachedBackupSession session, final MemcachedBackupSession deserialized ) {
         Assert.assertEquals( session.getCreationTimeInternal(), deserialized.getCreationTimeInternal() );
         Assert.assertEquals( session.getLastAccessedTimeInternal(), deserialized.getLastAccessedTimeInternal() );
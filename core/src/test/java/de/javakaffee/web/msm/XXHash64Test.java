@@ -0,0 +1,82 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link XXHash64} and the {@link HashingOutputStream}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class XXHash64Test {
+
+    @Test
+    public void testKnownValues() throws Exception {
+        assertEquals( XXHash64.hash( new byte[0] ), 0xEF46DB3751D8E999L );
+        assertEquals( XXHash64.hash( "abc".getBytes( "US-ASCII" ) ), 0x44BC2CF5AD770999L );
+        assertEquals( XXHash64.hash( "Nobody inspects the spammish repetition".getBytes( "US-ASCII" ) ), 0xFBCEA83C8A378BF1L );
+    }
+
+    @Test
+    public void testIncrementalUpdateEqualsHashOfAllData() {
+        final Random random = new Random( 42 );
+        final byte[] data = new byte[1000];
+        random.nextBytes( data );
+
+        final XXHash64 hash = new XXHash64();
+        int off = 0;
+        while ( off < data.length ) {
+            final int len = Math.min( random.nextInt( 70 ), data.length - off );
+            if ( len == 1 ) {
+                hash.update( data[off] );
+            }
+            else {
+                hash.update( data, off, len );
+            }
+            off += len;
+        }
+        assertEquals( hash.getValue(), XXHash64.hash( data ) );
+    }
+
+    @Test
+    public void testHashingOutputStream() throws Exception {
+        final byte[] data = "Nobody inspects the spammish repetition".getBytes( "US-ASCII" );
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final HashingOutputStream out = new HashingOutputStream( bos );
+        out.write( data, 0, 10 );
+        out.write( data[10] );
+        out.write( data, 11, data.length - 11 );
+        assertEquals( bos.toByteArray(), data );
+        assertEquals( out.getHash(), 0xFBCEA83C8A378BF1L );
+    }
+
+    @Test
+    public void testSingleBitChangesHash() {
+        final byte[] data = new byte[100];
+        final long hash = XXHash64.hash( data );
+        data[50] = 1;
+        assertFalse( XXHash64.hash( data ) == hash );
+    }
+
+}
@@ -22,6 +22,7 @@ import static de.javakaffee.web.msm.integration.TestUtils.*;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
 import java.io.IOException;
@@ -154,6 +155,7 @@ public class NonStickySessionsIntegrationTest {
                 { LockingMode.ALL, null },
                 { LockingMode.AUTO, null },
                 { LockingMode.URI_PATTERN, Pattern.compile( ".*" ) },
+                { LockingMode.READ_WRITE, null },
                 { LockingMode.NONE, null }
         };
     }
@@ -163,7 +165,8 @@ public class NonStickySessionsIntegrationTest {
         return new Object[][] {
                 { LockingMode.ALL, null },
                 { LockingMode.AUTO, null },
-                { LockingMode.URI_PATTERN, Pattern.compile( ".*" ) }
+                { LockingMode.URI_PATTERN, Pattern.compile( ".*" ) },
+                { LockingMode.READ_WRITE, null }
         };
     }
 
@@ -316,6 +319,35 @@ public class NonStickySessionsIntegrationTest {
 
     }
 
+    /**
+     * Tests that for auto locking mode readonly requests detected by one tomcat are shared via
+     * memcached, so that another tomcat doesn't lock the session for them right from the start.
+     */
+    @Test
+    public void testReadOnlyRequestsAreSharedForAutoLocking() throws Exception {
+
+        getManager( _tomcat1 ).setReadOnlyRequestSharingInterval( 1 );
+        getManager( _tomcat2 ).setReadOnlyRequestSharingInterval( 1 );
+        setLockingMode( LockingMode.AUTO, null );
+
+        final String sessionId = post( _httpClient, TC_PORT_1, null, "k1", "v1" ).getSessionId();
+        assertNotNull( sessionId );
+
+        // detect the readonly request on tomcat1 and share it
+        final String path = "/mypath";
+        final Map<String, String> params = asMap( "foo", "bar" );
+        assertEquals( get( _httpClient, TC_PORT_1, path, sessionId, params ).getSessionId(), sessionId );
+        Thread.sleep( 1100 );
+        getManager( _tomcat1 ).backgroundProcess();
+
+        // the locking strategy of tomcat2 is recreated like after a restart, it must know the readonly request
+        getManager( _tomcat2 ).setLockingMode( LockingMode.AUTO, null, true );
+        final long readOnlyRequests = getManager( _tomcat2 ).getMsmStatNumNonStickySessionsReadOnlyRequest();
+        assertEquals( get( _httpClient, TC_PORT_2, path, sessionId, params ).getSessionId(), sessionId );
+        assertEquals( getManager( _tomcat2 ).getMsmStatNumNonStickySessionsReadOnlyRequest(), readOnlyRequests + 1 );
+
+    }
+
     /**
      * Tests that for uriPattern locking mode requests that don't match the pattern the
      * session is not locked.
@@ -368,6 +400,56 @@ public class NonStickySessionsIntegrationTest {
 
     }
 
+    /**
+     * Tests that for readWrite locking mode reading requests don't block each other, but
+     * wait for a writing request.
+     */
+    @Test
+    public void testReadingRequestsShareLockForReadWriteLocking() throws IOException, InterruptedException, HttpException, ExecutionException {
+
+        final String readPath = "/read";
+        setLockingMode( LockingMode.READ_WRITE, Pattern.compile( readPath + ".*" ) );
+
+        final String sessionId = get( _httpClient, TC_PORT_1, null ).getSessionId();
+        assertNotNull( sessionId );
+
+        // two reading requests in parallel (on different tomcats, as requests on the same tomcat
+        // share the session anyway) should not block each other
+        final long timeToWaitInMillis = 500;
+        final Map<String, String> paramsWait = asMap( PARAM_WAIT, "true", PARAM_MILLIS, String.valueOf( timeToWaitInMillis ) );
+        final long start = System.currentTimeMillis();
+        final Future<Response> response1 = _executor.submit( new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                return get( _httpClient, TC_PORT_1, readPath, sessionId, paramsWait );
+            }
+        });
+        final Future<Response> response2 = _executor.submit( new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                return get( _httpClient, TC_PORT_2, readPath, sessionId, paramsWait );
+            }
+        });
+        assertEquals( response1.get().getSessionId(), sessionId );
+        assertEquals( response2.get().getSessionId(), sessionId );
+        assertTrue ( ( System.currentTimeMillis() - start ) < ( 2 * timeToWaitInMillis ),
+                "The time for both requests should be less than 2 * the wait time if they don't block each other." );
+
+        // a reading request must wait for a writing request
+        final Future<Response> response3 = _executor.submit( new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                return get( _httpClient, TC_PORT_1, "/write", sessionId, paramsWait );
+            }
+        });
+        Thread.sleep( 100 );
+        final Response response4 = get( _httpClient, TC_PORT_2, readPath, sessionId );
+        assertEquals( response4.getSessionId(), sessionId );
+        assertTrue( response3.isDone(), "The reading request should wait for the writing request" );
+        assertEquals( response3.get().getSessionId(), sessionId );
+
+    }
+
     /**
      * Tests that non-sticky sessions are not invalidated too early when sessions are accessed readonly.
      * Each (even session readonly request) must update the lastAccessedTime for the session in memcached.
@@ -449,6 +531,44 @@ public class NonStickySessionsIntegrationTest {
 
     }
 
+    /**
+     * Tests that with the validity info stored in the session item requests that don't modify
+     * the session only prepend a validity header to the session item (and its backup).
+     */
+    @Test( enabled = true )
+    public void testValidityInSessionItem() throws IOException, InterruptedException, HttpException {
+        getManager( _tomcat1 ).setValidityInSessionItem( true );
+        getManager( _tomcat2 ).setValidityInSessionItem( true );
+
+        final String sessionId1 = post( _httpClient, TC_PORT_1, null, "foo", "bar" ).getSessionId();
+        assertNotNull( sessionId1 );
+        Thread.sleep( 100 );
+
+        final SessionIdFormat fmt = new SessionIdFormat();
+        final boolean node1 = fmt.extractMemcachedId( sessionId1 ).equals( NODE_ID_1 );
+        final MemCacheDaemon<?> primary = node1 ? _daemon1 : _daemon2;
+        final MemCacheDaemon<?> secondary = node1 ? _daemon2 : _daemon1;
+
+        assertNull( primary.getCache().get( key( createValidityInfoKeyName( sessionId1 ) ) )[0] );
+        assertNull( secondary.getCache().get( key( fmt.createBackupKey( createValidityInfoKeyName( sessionId1 ) ) ) )[0] );
+        final int length = primary.getCache().get( key( sessionId1 ) )[0].getData().capacity();
+        final int backupLength = secondary.getCache().get( key( fmt.createBackupKey( sessionId1 ) ) )[0].getData().capacity();
+
+        // the session is accessed but not modified
+        assertEquals( get( _httpClient, TC_PORT_2, sessionId1 ).get( "foo" ), "bar" );
+        // the session is not accessed at all
+        get( _httpClient, TC_PORT_1, PATH_NO_SESSION_ACCESS, sessionId1 );
+        Thread.sleep( 100 );
+
+        assertEquals( primary.getCache().get( key( sessionId1 ) )[0].getData().capacity(), length + 2 * 18 );
+        assertEquals( secondary.getCache().get( key( fmt.createBackupKey( sessionId1 ) ) )[0].getData().capacity(), backupLength + 2 * 18 );
+
+        // the session is loaded with the prepended headers
+        final Response response = get( _httpClient, TC_PORT_2, sessionId1 );
+        assertEquals( response.getSessionId(), sessionId1 );
+        assertEquals( response.get( "foo" ), "bar" );
+    }
+
     /**
      * Test for issue #79: In non-sticky sessions mode with only a single memcached the backup is done in the primary node.
      */
@@ -507,6 +627,81 @@ public class NonStickySessionsIntegrationTest {
         }
     }
 
+    /**
+     * Tests that the session and its validity info are loaded with a single get.
+     */
+    @Test( enabled = true )
+    public void testSessionAndValidityInfoLoadedWithSingleGet() throws IOException, HttpException, InterruptedException {
+        setLockingMode( LockingMode.NONE, null );
+        getManager( _tomcat1 ).setMemcachedNodes( NODE_ID_1 + ":localhost:" + MEMCACHED_PORT_1 );
+        try {
+
+            final String sessionId1 = post( _httpClient, TC_PORT_1, null, "foo", "bar" ).getSessionId();
+            assertNotNull( sessionId1 );
+            Thread.sleep( 200 );
+
+            final int getCmds = _daemon1.getCache().getGetCmds();
+            final int getMisses = _daemon1.getCache().getGetMisses();
+
+            assertEquals( get( _httpClient, TC_PORT_1, sessionId1 ).get( "foo" ), "bar" );
+            Thread.sleep( 200 );
+
+            // session and validity info
+            assertEquals( _daemon1.getCache().getGetHits(), 2 );
+            // node availability checks (gets for a ping key) are the only other gets and always miss
+            final int pings = _daemon1.getCache().getGetMisses() - getMisses;
+            assertEquals( _daemon1.getCache().getGetCmds() - getCmds - pings, 1 );
+
+        } finally {
+            getManager( _tomcat1 ).setMemcachedNodes( MEMCACHED_NODES );
+        }
+    }
+
+    @Test( enabled = true )
+    public void testSessionNearCache() throws IOException, HttpException, InterruptedException {
+        getManager( _tomcat1 ).setSessionNearCacheSize( 10 );
+        getManager( _tomcat2 ).setSessionNearCacheSize( 10 );
+        setLockingMode( LockingMode.NONE, null );
+
+        final String sessionId1 = post( _httpClient, TC_PORT_1, null, "foo", "bar" ).getSessionId();
+        assertNotNull( sessionId1 );
+        Thread.sleep( 200 );
+
+        // the session was not modified, so the cached session is used
+        assertEquals( get( _httpClient, TC_PORT_1, sessionId1 ).get( "foo" ), "bar" );
+        assertEquals( getManager( _tomcat1 ).getMsmStatNumNearCacheHits(), 1 );
+        Thread.sleep( 200 );
+
+        // the session is modified on tomcat2, so the cached session is stale
+        post( _httpClient, TC_PORT_2, sessionId1, "foo", "baz" );
+        Thread.sleep( 200 );
+        assertEquals( get( _httpClient, TC_PORT_1, sessionId1 ).get( "foo" ), "baz" );
+        assertEquals( getManager( _tomcat1 ).getMsmStatNumNearCacheStale(), 1 );
+        assertEquals( getManager( _tomcat1 ).getMsmStatNumNearCacheHits(), 1 );
+        Thread.sleep( 200 );
+
+        // the reloaded session is cached again
+        assertEquals( get( _httpClient, TC_PORT_1, sessionId1 ).get( "foo" ), "baz" );
+        assertEquals( getManager( _tomcat1 ).getMsmStatNumNearCacheHits(), 2 );
+    }
+
+    @Test( enabled = true )
+    public void testLazyAttributesDeserialization() throws IOException, HttpException, InterruptedException {
+        getManager( _tomcat1 ).setLazyAttributesDeserialization( true );
+        getManager( _tomcat2 ).setLazyAttributesDeserialization( true );
+
+        final String sessionId1 = post( _httpClient, TC_PORT_1, null, "foo", "bar" ).getSessionId();
+        assertNotNull( sessionId1 );
+        Thread.sleep( 100 );
+
+        post( _httpClient, TC_PORT_2, sessionId1, "bar", "baz" );
+        Thread.sleep( 100 );
+
+        final Response response = get( _httpClient, TC_PORT_1, sessionId1 );
+        assertEquals( response.get( "foo" ), "bar" );
+        assertEquals( response.get( "bar" ), "baz" );
+    }
+
     @Test( enabled = true )
     public void testBasicAuth() throws Exception {
 
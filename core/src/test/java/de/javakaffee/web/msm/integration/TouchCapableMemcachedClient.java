@@ -0,0 +1,96 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.integration;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.MemcachedClient;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.thimbleware.jmemcached.Cache;
+import com.thimbleware.jmemcached.Cache.StoreResponse;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+
+/**
+ * A {@link MemcachedClient} that provides the touch command (which is neither supported by this
+ * version of the memcached client nor by jmemcached) by directly updating the expiration
+ * of the item in the cache of the jmemcached daemon.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class TouchCapableMemcachedClient extends MemcachedClient {
+
+    private final Cache<LocalCacheElement> _cache;
+    private final AtomicInteger _touches = new AtomicInteger();
+
+    public TouchCapableMemcachedClient( final Cache<LocalCacheElement> cache, final ConnectionFactory cf,
+            final List<InetSocketAddress> addrs ) throws IOException {
+        super( cf, addrs );
+        _cache = cache;
+    }
+
+    /**
+     * Updates the expiration of the item with the given key, like the memcached touch command.
+     */
+    public Future<Boolean> touch( final String key, final int exp ) {
+        _touches.incrementAndGet();
+        final Key cacheKey = new Key( ChannelBuffers.wrappedBuffer( getBytes( key ) ) );
+        final LocalCacheElement element = _cache.get( cacheKey )[0];
+        boolean result = false;
+        if ( element != null ) {
+            final LocalCacheElement touched = new LocalCacheElement( cacheKey, element.getFlags(),
+                    exp != 0 ? LocalCacheElement.Now() + exp : 0, 0L );
+            touched.setData( element.getData() );
+            result = _cache.replace( touched ) == StoreResponse.STORED;
+        }
+        final boolean touchResult = result;
+        final FutureTask<Boolean> future = new FutureTask<Boolean>( new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return touchResult;
+            }
+        } );
+        future.run();
+        return future;
+    }
+
+    /**
+     * The number of touch commands executed.
+     */
+    public int getTouches() {
+        return _touches.get();
+    }
+
+    private static byte[] getBytes( final String key ) {
+        try {
+            return key.getBytes( "UTF-8" );
+        } catch ( final UnsupportedEncodingException e ) {
+            throw new RuntimeException( e );
+        }
+    }
+
+}
@@ -20,6 +20,9 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Map;
 
 import javolution.xml.XMLObjectReader;
@@ -33,8 +36,8 @@ import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
 import de.javakaffee.web.msm.MemcachedBackupSession;
-import de.javakaffee.web.msm.SessionAttributesTranscoder;
 import de.javakaffee.web.msm.SessionTranscoder;
+import de.javakaffee.web.msm.StreamingSessionAttributesTranscoder;
 
 /**
  * A {@link net.spy.memcached.transcoders.Transcoder} that serializes catalina
@@ -52,7 +55,7 @@ import de.javakaffee.web.msm.SessionTranscoder;
  *
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  */
-public class JavolutionTranscoder extends SessionTranscoder implements SessionAttributesTranscoder {
+public class JavolutionTranscoder extends SessionTranscoder implements StreamingSessionAttributesTranscoder {
 
     static final String REFERENCE_ATTRIBUTE_ID = "__id";
     static final String REFERENCE_ATTRIBUTE_REF_ID = "__ref";
@@ -113,6 +116,28 @@ public class JavolutionTranscoder extends SessionTranscoder implements SessionAt
         return doSerialize( attributes, "attributes" );
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes, final OutputStream out ) {
+        if ( attributes == null ) {
+            throw new NullPointerException( "Can't serialize null" );
+        }
+        XMLObjectWriter writer = null;
+        try {
+            // the writer must be closed so that it's recycled, but this must not close the provided stream
+            writer = createWriter( new NonClosingOutputStream( out ) );
+            writer.write( attributes, "attributes" );
+            writer.flush();
+        } catch ( final Exception e ) {
+            LOG.error( "caught exception", e );
+            throw new IllegalArgumentException( "Could not serialize object", e );
+        } finally {
+            closeSilently( writer );
+        }
+    }
+
     /**
      * This is there just for testing, so that we can serialize sessions using
      * the former serialization strategy (the whole session, not just attribtes).
@@ -132,12 +157,7 @@ public class JavolutionTranscoder extends SessionTranscoder implements SessionAt
         XMLObjectWriter writer = null;
         try {
             final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            writer = XMLObjectWriter.newInstance( bos );
-            final XMLReferenceResolver xmlReferenceResolver = new XMLReferenceResolver();
-            xmlReferenceResolver.setIdentifierAttribute( REFERENCE_ATTRIBUTE_ID );
-            xmlReferenceResolver.setReferenceAttribute( REFERENCE_ATTRIBUTE_REF_ID );
-            writer.setReferenceResolver( xmlReferenceResolver );
-            writer.setBinding( _xmlBinding );
+            writer = createWriter( bos );
             writer.write( object, name );
             writer.flush();
 
@@ -160,6 +180,16 @@ public class JavolutionTranscoder extends SessionTranscoder implements SessionAt
         }
     }
 
+    private XMLObjectWriter createWriter( final OutputStream out ) throws XMLStreamException {
+        final XMLObjectWriter writer = XMLObjectWriter.newInstance( out );
+        final XMLReferenceResolver xmlReferenceResolver = new XMLReferenceResolver();
+        xmlReferenceResolver.setIdentifierAttribute( REFERENCE_ATTRIBUTE_ID );
+        xmlReferenceResolver.setReferenceAttribute( REFERENCE_ATTRIBUTE_REF_ID );
+        writer.setReferenceResolver( xmlReferenceResolver );
+        writer.setBinding( _xmlBinding );
+        return writer;
+    }
+
     /**
      * Get the object represented by the given serialized bytes.
      *
@@ -177,6 +207,19 @@ public class JavolutionTranscoder extends SessionTranscoder implements SessionAt
         return doDeserialize( in, "attributes" );
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Object> deserializeAttributes( final byte[] in, final int offset, final int length ) {
+
+        if ( LOG.isDebugEnabled() ) {
+            LOG.debug( "Reading serialized data:\n" + new String( in, offset, length ) );
+        }
+
+        return doDeserialize( in, offset, length, "attributes" );
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -192,10 +235,14 @@ public class JavolutionTranscoder extends SessionTranscoder implements SessionAt
     }
 
     private <T> T doDeserialize( final byte[] in, final String name ) {
+        return this.<T> doDeserialize( in, 0, in.length, name );
+    }
+
+    private <T> T doDeserialize( final byte[] in, final int offset, final int length, final String name ) {
         // getLogger().info( "Loading serialized:\n" + new String( in ) );
         XMLObjectReader reader = null;
         try {
-            final ByteArrayInputStream bis = new ByteArrayInputStream( in );
+            final ByteArrayInputStream bis = new ByteArrayInputStream( in, offset, length );
             reader = XMLObjectReader.newInstance( bis );
             final XMLReferenceResolver xmlReferenceResolver = new XMLReferenceResolver();
             xmlReferenceResolver.setIdentifierAttribute( REFERENCE_ATTRIBUTE_ID );
@@ -207,10 +254,10 @@ public class JavolutionTranscoder extends SessionTranscoder implements SessionAt
             }
             return reader.<T> read( name );
         } catch ( final RuntimeException e ) {
-            LOG.warn( "Caught Exception decoding "+ in.length +" bytes of data", e );
+            LOG.warn( "Caught Exception decoding "+ length +" bytes of data", e );
             throw e;
         } catch ( final XMLStreamException e ) {
-            LOG.warn( "Caught Exception decoding "+ in.length +" bytes of data", e );
+            LOG.warn( "Caught Exception decoding "+ length +" bytes of data", e );
             throw new RuntimeException( e );
         } finally {
             closeSilently( reader );
@@ -237,4 +284,25 @@ public class JavolutionTranscoder extends SessionTranscoder implements SessionAt
         }
     }
 
+    /**
+     * An {@link OutputStream} that only flushes the underlying stream when it's closed.
+     */
+    private static final class NonClosingOutputStream extends FilterOutputStream {
+
+        NonClosingOutputStream( final OutputStream out ) {
+            super( out );
+        }
+
+        @Override
+        public void write( final byte[] b, final int off, final int len ) throws IOException {
+            out.write( b, off, len );
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+    }
+
 }
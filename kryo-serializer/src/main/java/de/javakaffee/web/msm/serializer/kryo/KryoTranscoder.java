@@ -16,11 +16,13 @@
  */
 package de.javakaffee.web.msm.serializer.kryo;
 
+import java.io.OutputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -69,13 +71,14 @@ import de.javakaffee.kryoserializers.UnmodifiableCollectionsSerializer;
 import de.javakaffee.web.msm.MemcachedBackupSession;
 import de.javakaffee.web.msm.SessionAttributesTranscoder;
 import de.javakaffee.web.msm.SessionTranscoder;
+import de.javakaffee.web.msm.StreamingSessionAttributesTranscoder;
 
 /**
  * A {@link SessionAttributesTranscoder} that uses {@link Kryo} for serialization.
  * 
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  */
-public class KryoTranscoder extends SessionTranscoder implements SessionAttributesTranscoder {
+public class KryoTranscoder extends SessionTranscoder implements StreamingSessionAttributesTranscoder {
 
     private static final Log LOG = LogFactory.getLog( KryoTranscoder.class );
     
@@ -257,6 +260,15 @@ public class KryoTranscoder extends SessionTranscoder implements SessionAttribut
         return new ObjectBuffer( _kryo ).readObject( data, ConcurrentHashMap.class );
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings( "unchecked" )
+    @Override
+    public Map<String, Object> deserializeAttributes( final byte[] data, final int offset, final int length ) {
+        return _kryo.readObject( ByteBuffer.wrap( data, offset, length ), ConcurrentHashMap.class );
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -268,6 +280,14 @@ public class KryoTranscoder extends SessionTranscoder implements SessionAttribut
         return new ObjectBuffer( _kryo, _initialBufferSize, _maxBufferSize  ).writeObject( attributes );
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes, final OutputStream out ) {
+        new ObjectBuffer( _kryo, _initialBufferSize, _maxBufferSize  ).writeObject( out, attributes );
+    }
+
     /**
      * {@inheritDoc}
      */
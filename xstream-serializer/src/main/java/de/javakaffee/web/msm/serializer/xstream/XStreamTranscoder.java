@@ -20,6 +20,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Map;
 
 import org.apache.catalina.Manager;
@@ -30,8 +31,8 @@ import org.apache.juli.logging.LogFactory;
 import com.thoughtworks.xstream.XStream;
 
 import de.javakaffee.web.msm.MemcachedBackupSession;
-import de.javakaffee.web.msm.SessionAttributesTranscoder;
 import de.javakaffee.web.msm.SessionTranscoder;
+import de.javakaffee.web.msm.StreamingSessionAttributesTranscoder;
 
 /**
  * A {@link net.spy.memcached.transcoders.Transcoder} that serializes catalina
@@ -39,7 +40,7 @@ import de.javakaffee.web.msm.SessionTranscoder;
  * 
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  */
-public class XStreamTranscoder extends SessionTranscoder implements SessionAttributesTranscoder {
+public class XStreamTranscoder extends SessionTranscoder implements StreamingSessionAttributesTranscoder {
 
     private static final Log LOG = LogFactory.getLog( XStreamTranscoder.class );
 
@@ -66,6 +67,21 @@ public class XStreamTranscoder extends SessionTranscoder implements SessionAttri
 
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes, final OutputStream out ) {
+        if ( attributes == null ) {
+            throw new NullPointerException( "Can't serialize null" );
+        }
+        try {
+            _xstream.toXML( attributes, out );
+        } catch ( final Exception e ) {
+            throw new IllegalArgumentException( "Non-serializable object", e );
+        }
+    }
+
     private byte[] doSerialize( final Object object ) {
         if ( object == null ) {
             throw new NullPointerException( "Can't serialize null" );
@@ -91,13 +107,21 @@ public class XStreamTranscoder extends SessionTranscoder implements SessionAttri
      */
     @Override
     public Map<String, Object> deserializeAttributes( final byte[] in ) {
-        final ByteArrayInputStream bis = new ByteArrayInputStream( in );
+        return deserializeAttributes( in, 0, in.length );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Object> deserializeAttributes( final byte[] in, final int offset, final int length ) {
+        final ByteArrayInputStream bis = new ByteArrayInputStream( in, offset, length );
         try {
             @SuppressWarnings( "unchecked" )
             final Map<String, Object> result = (Map<String, Object>) _xstream.fromXML( bis );
             return result;
         } catch ( final RuntimeException e ) {
-            LOG.warn( "Caught Exception decoding "+ in.length +" bytes of data", e );
+            LOG.warn( "Caught Exception decoding "+ length +" bytes of data", e );
             throw e ;
         } finally {
             closeSilently( bis );